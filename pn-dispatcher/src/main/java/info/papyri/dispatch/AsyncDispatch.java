@@ -0,0 +1,777 @@
+package info.papyri.dispatch;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Runs the servlets that wait on Solr or the triple store (DispatcherServlet,
+ * Reader, CollectionBrowser, FacetBrowser) asynchronously: the request is
+ * put into async mode and handed to a bounded pool of backend threads, so
+ * the container's thread goes back to the connector instead of sitting out
+ * a slow backend.  Each request has <code>backendTimeout</code> ms to finish
+ * before it is answered with a 504 (a 503 if the pool's queue is full).
+ * <p>
+ * A request that has timed out may still be running; it is interrupted, and
+ * anything it writes after that is dropped, since the container will have
+ * recycled its response.  The same goes for the request: its URI and
+ * parameters are kept from before, and anything else it is asked for comes
+ * back empty.  If it is in the middle of a write when it times out, the
+ * response isn't completed until that write returns.  Where async isn't
+ * available (a filter that doesn't support it, or an include) the request is
+ * just run in place.
+ * <p>
+ * Configured from the web.xml context-params <code>backendThreads</code>,
+ * <code>backendQueueSize</code> and <code>backendTimeout</code>.
+ *
+ * @author hcayless
+ */
+public class AsyncDispatch implements ServletContextListener {
+
+  static final int DEFAULT_THREADS = 64;
+  static final int DEFAULT_QUEUE_SIZE = 256;
+  static final long DEFAULT_TIMEOUT = 30000;
+
+  private static ThreadPoolExecutor executor;
+  private static volatile long timeout = DEFAULT_TIMEOUT;
+
+  private static final AtomicLong dispatched = new AtomicLong();
+  private static final AtomicLong inPlace = new AtomicLong();
+  private static final AtomicLong completed = new AtomicLong();
+  private static final AtomicLong failed = new AtomicLong();
+  private static final AtomicLong rejected = new AtomicLong();
+  private static final AtomicLong timeouts = new AtomicLong();
+  private static final AtomicLong totalMillis = new AtomicLong();
+
+  /**
+   * The work a servlet does for a request, usually its
+   * <code>processRequest</code>.
+   */
+  public interface Handler {
+
+    void handle(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException;
+  }
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    ServletContext context = sce.getServletContext();
+    int threads = DEFAULT_THREADS;
+    int queueSize = DEFAULT_QUEUE_SIZE;
+    try {
+      String value = context.getInitParameter("backendThreads");
+      if (value != null) threads = Integer.parseInt(value.trim());
+      value = context.getInitParameter("backendQueueSize");
+      if (value != null) queueSize = Integer.parseInt(value.trim());
+      value = context.getInitParameter("backendTimeout");
+      if (value != null) timeout = Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      context.log("Bad backend pool setting, using defaults.", e);
+    }
+    configure(threads, queueSize);
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    synchronized (AsyncDispatch.class) {
+      if (executor != null) executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  static synchronized void configure(int threads, int queueSize) {
+    if (executor != null) executor.shutdownNow();
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "backend-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    }, new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  private static synchronized ThreadPoolExecutor getExecutor() {
+    if (executor == null) configure(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+    return executor;
+  }
+
+  /**
+   * Runs <code>handler</code> for the request on the backend pool, or in
+   * place if the request can't go async.
+   */
+  public static void dispatch(final HttpServletRequest request, final HttpServletResponse response, final Handler handler)
+          throws ServletException, IOException {
+    if (!request.isAsyncSupported() || request.isAsyncStarted()) {
+      inPlace.incrementAndGet();
+      handler.handle(request, response);
+      return;
+    }
+    final long start = System.currentTimeMillis();
+    final AsyncContext async = request.startAsync(request, response);
+    async.setTimeout(timeout);
+    final GuardedResponse guarded = new GuardedResponse(response);
+    final GuardedRequest guardedRequest = new GuardedRequest(request, guarded);
+    final AtomicBoolean finished = new AtomicBoolean();
+    final Future<?>[] task = new Future<?>[1];
+    final Runnable complete = new Runnable() {
+      @Override
+      public void run() {
+        async.complete();
+      }
+    };
+    async.addListener(new AsyncListener() {
+      @Override
+      public void onTimeout(AsyncEvent event) throws IOException {
+        if (finished.compareAndSet(false, true)) {
+          timeouts.incrementAndGet();
+          synchronized (task) {
+            if (task[0] != null) task[0].cancel(true);
+          }
+          guarded.detach(HttpServletResponse.SC_GATEWAY_TIMEOUT, complete);
+        }
+      }
+
+      @Override
+      public void onError(AsyncEvent event) throws IOException {
+        if (finished.compareAndSet(false, true)) {
+          failed.incrementAndGet();
+          synchronized (task) {
+            if (task[0] != null) task[0].cancel(true);
+          }
+          guarded.detach(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, complete);
+        }
+      }
+
+      @Override
+      public void onComplete(AsyncEvent event) {
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {
+      }
+    });
+    dispatched.incrementAndGet();
+    try {
+      synchronized (task) {
+        task[0] = getExecutor().submit(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              handler.handle(guardedRequest, guarded);
+              completed.incrementAndGet();
+            } catch (Exception e) {
+              if (!finished.get()) {
+                failed.incrementAndGet();
+                System.out.println("Error handling " + guardedRequest.getRequestURI() + ": " + e.getMessage());
+                guarded.error(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+              }
+            } finally {
+              if (finished.compareAndSet(false, true)) {
+                totalMillis.addAndGet(System.currentTimeMillis() - start);
+                guarded.detach(0, complete);
+              }
+            }
+          }
+        });
+      }
+    } catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      if (finished.compareAndSet(false, true)) {
+        guarded.detach(HttpServletResponse.SC_SERVICE_UNAVAILABLE, complete);
+      }
+    }
+  }
+
+  public static Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    long c = completed.get();
+    stats.put("dispatched", dispatched.get());
+    stats.put("inPlace", inPlace.get());
+    stats.put("completed", c);
+    stats.put("failed", failed.get());
+    stats.put("rejected", rejected.get());
+    stats.put("timeouts", timeouts.get());
+    stats.put("avgMillis", c == 0 ? 0 : totalMillis.get() / c);
+    ThreadPoolExecutor pool = executor;
+    if (pool != null) {
+      stats.put("active", pool.getActiveCount());
+      stats.put("queued", pool.getQueue().size());
+      stats.put("poolSize", pool.getPoolSize());
+    }
+    return stats;
+  }
+
+  /**
+   * The request a backend thread reads from.  Its method, URI and query
+   * string are copied when it is made, and its parameters the first time
+   * they are asked for (so that a handler can still set the character
+   * encoding first).  Everything else goes through to the real request only
+   * until <code>guard</code> is detached.
+   */
+  static class GuardedRequest extends HttpServletRequestWrapper {
+
+    private final GuardedResponse guard;
+    private final String method;
+    private final String requestURI;
+    private final String requestURL;
+    private final String queryString;
+    private Map<String, String[]> parameters;
+
+    GuardedRequest(HttpServletRequest request, GuardedResponse guard) {
+      super(request);
+      this.guard = guard;
+      method = request.getMethod();
+      requestURI = request.getRequestURI();
+      requestURL = String.valueOf(request.getRequestURL());
+      queryString = request.getQueryString();
+    }
+
+    private synchronized Map<String, String[]> parameters() {
+      if (parameters == null) {
+        if (!guard.enter()) {
+          return Collections.emptyMap();
+        }
+        try {
+          parameters = Collections.unmodifiableMap(new LinkedHashMap<String, String[]>(super.getParameterMap()));
+        } finally {
+          guard.exit();
+        }
+      }
+      return parameters;
+    }
+
+    @Override
+    public String getParameter(String name) {
+      String[] values = parameters().get(name);
+      return values == null || values.length == 0 ? null : values[0];
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+      String[] values = parameters().get(name);
+      return values == null ? null : values.clone();
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+      return parameters();
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+      return Collections.enumeration(parameters().keySet());
+    }
+
+    @Override
+    public String getMethod() {
+      return method;
+    }
+
+    @Override
+    public String getRequestURI() {
+      return requestURI;
+    }
+
+    @Override
+    public StringBuffer getRequestURL() {
+      return new StringBuffer(requestURL);
+    }
+
+    @Override
+    public String getQueryString() {
+      return queryString;
+    }
+
+    @Override
+    public void setCharacterEncoding(String env) throws UnsupportedEncodingException {
+      if (guard.enter()) {
+        try {
+          super.setCharacterEncoding(env);
+        } finally {
+          guard.exit();
+        }
+      }
+    }
+
+    @Override
+    public String getHeader(String name) {
+      if (!guard.enter()) {
+        return null;
+      }
+      try {
+        return super.getHeader(name);
+      } finally {
+        guard.exit();
+      }
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+      if (!guard.enter()) {
+        return Collections.enumeration(Collections.<String>emptyList());
+      }
+      try {
+        return Collections.enumeration(Collections.list(super.getHeaders(name)));
+      } finally {
+        guard.exit();
+      }
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+      if (!guard.enter()) {
+        return Collections.enumeration(Collections.<String>emptyList());
+      }
+      try {
+        return Collections.enumeration(Collections.list(super.getHeaderNames()));
+      } finally {
+        guard.exit();
+      }
+    }
+
+    @Override
+    public long getDateHeader(String name) {
+      if (!guard.enter()) {
+        return -1;
+      }
+      try {
+        return super.getDateHeader(name);
+      } finally {
+        guard.exit();
+      }
+    }
+
+    @Override
+    public int getIntHeader(String name) {
+      if (!guard.enter()) {
+        return -1;
+      }
+      try {
+        return super.getIntHeader(name);
+      } finally {
+        guard.exit();
+      }
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+      if (!guard.enter()) {
+        return null;
+      }
+      try {
+        return super.getAttribute(name);
+      } finally {
+        guard.exit();
+      }
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+      if (!guard.enter()) {
+        return Collections.enumeration(Collections.<String>emptyList());
+      }
+      try {
+        return Collections.enumeration(Collections.list(super.getAttributeNames()));
+      } finally {
+        guard.exit();
+      }
+    }
+
+    @Override
+    public void setAttribute(String name, Object o) {
+      if (guard.enter()) {
+        try {
+          super.setAttribute(name, o);
+        } finally {
+          guard.exit();
+        }
+      }
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+      if (guard.enter()) {
+        try {
+          super.removeAttribute(name);
+        } finally {
+          guard.exit();
+        }
+      }
+    }
+  }
+
+  /**
+   * The response a backend thread writes to.  Once detached (the request
+   * finished or was given up on) everything it does is dropped.
+   * <p>
+   * No lock is held while writing, so detaching from a container thread
+   * never waits on a slow client: each call into the real response is
+   * counted while it runs, and whatever detaching has to do (send the error,
+   * complete the request) is left to the last of them to finish.
+   */
+  static class GuardedResponse extends HttpServletResponseWrapper {
+
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    private final AtomicBoolean detached = new AtomicBoolean();
+    private final AtomicBoolean released = new AtomicBoolean();
+    /** Calls into the real response under way */
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile int status;
+    private volatile Runnable done;
+    private ServletOutputStream out;
+    private PrintWriter writer;
+
+    GuardedResponse(HttpServletResponse response) {
+      super(response);
+    }
+
+    /**
+     * Stops any further output.  Then, once no call into the real response
+     * is under way (straight away, or when the one in progress returns),
+     * sends <code>status</code> as an error if it is non-zero and nothing has
+     * been sent yet, and runs <code>done</code> (which may be null).  Only
+     * the first call does anything.
+     */
+    void detach(int status, Runnable done) {
+      if (!claimed.compareAndSet(false, true)) {
+        return;
+      }
+      this.status = status;
+      this.done = done;
+      detached.set(true);
+      if (active.get() == 0) {
+        release();
+      }
+    }
+
+    /**
+     * Whether a call may go through to the real response (or request); if
+     * so, it must be followed by {@link #exit}.
+     */
+    boolean enter() {
+      active.incrementAndGet();
+      if (detached.get()) {
+        exit();
+        return false;
+      }
+      return true;
+    }
+
+    void exit() {
+      if (active.decrementAndGet() == 0 && detached.get()) {
+        release();
+      }
+    }
+
+    private void release() {
+      if (!released.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        if (status != 0 && !getResponse().isCommitted()) {
+          ((HttpServletResponse) getResponse()).sendError(status);
+        }
+      } catch (IOException e) {
+        // the client has gone
+      } finally {
+        if (done != null) {
+          done.run();
+        }
+      }
+    }
+
+    void error(int status) {
+      if (enter()) {
+        try {
+          if (!getResponse().isCommitted()) {
+            ((HttpServletResponse) getResponse()).sendError(status);
+          }
+        } catch (IOException e) {
+          // the client has gone
+        } finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public synchronized ServletOutputStream getOutputStream() throws IOException {
+      if (out == null) {
+        final ServletOutputStream real = detached.get() ? null : getResponse().getOutputStream();
+        out = new ServletOutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            if (enter()) {
+              try {
+                real.write(b);
+              } finally {
+                exit();
+              }
+            }
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            if (enter()) {
+              try {
+                real.write(b, off, len);
+              } finally {
+                exit();
+              }
+            }
+          }
+
+          @Override
+          public void flush() throws IOException {
+            if (enter()) {
+              try {
+                real.flush();
+              } finally {
+                exit();
+              }
+            }
+          }
+
+          @Override
+          public void close() throws IOException {
+            if (enter()) {
+              try {
+                real.close();
+              } finally {
+                exit();
+              }
+            }
+          }
+        };
+      }
+      return out;
+    }
+
+    @Override
+    public synchronized PrintWriter getWriter() throws IOException {
+      if (writer == null) {
+        final PrintWriter real = detached.get() ? null : getResponse().getWriter();
+        writer = new PrintWriter(new Writer() {
+          @Override
+          public void write(char[] cbuf, int off, int len) throws IOException {
+            if (enter()) {
+              try {
+                real.write(cbuf, off, len);
+              } finally {
+                exit();
+              }
+            }
+          }
+
+          @Override
+          public void flush() throws IOException {
+            if (enter()) {
+              try {
+                real.flush();
+              } finally {
+                exit();
+              }
+            }
+          }
+
+          @Override
+          public void close() throws IOException {
+            if (enter()) {
+              try {
+                real.close();
+              } finally {
+                exit();
+              }
+            }
+          }
+        });
+      }
+      return writer;
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+      if (enter()) {
+        try {
+          super.sendError(sc, msg);
+        } finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+      if (enter()) {
+        try {
+          super.sendError(sc);
+        } finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+      if (enter()) {
+        try {
+          super.sendRedirect(location);
+        } finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void setStatus(int sc) {
+      if (enter()) {
+        try {
+          super.setStatus(sc);
+        } finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      if (enter()) {
+        try {
+          super.setHeader(name, value);
+        } finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+      if (enter()) {
+        try {
+          super.addHeader(name, value);
+        } finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+      if (enter()) {
+        try {
+          super.setDateHeader(name, date);
+        } finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+      if (enter()) {
+        try {
+          super.addDateHeader(name, date);
+        } finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+      if (enter()) {
+        try {
+          super.setIntHeader(name, value);
+        } finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void setContentType(String type) {
+      if (enter()) {
+        try {
+          super.setContentType(type);
+        } finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void setContentLength(int len) {
+      if (enter()) {
+        try {
+          super.setContentLength(len);
+        } finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset) {
+      if (enter()) {
+        try {
+          super.setCharacterEncoding(charset);
+        } finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      if (enter()) {
+        try {
+          super.flushBuffer();
+        } finally {
+          exit();
+        }
+      }
+    }
+
+    @Override
+    public void reset() {
+      if (enter()) {
+        try {
+          super.reset();
+        } finally {
+          exit();
+        }
+      }
+    }
+  }
+
+}
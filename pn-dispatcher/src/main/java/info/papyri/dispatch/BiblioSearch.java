@@ -11,16 +11,13 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.URL;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.net.URLEncoder;
-import java.net.MalformedURLException;
 import javax.servlet.ServletConfig;
 
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.request.QueryRequest;
@@ -34,29 +31,22 @@ import org.apache.solr.client.solrj.SolrRequest.METHOD;
  */
 public class BiblioSearch extends HttpServlet {
 
-  private String solrUrl;
-  private URL searchURL;
+  private PageTemplate searchPage;
   private String xmlPath = "";
   private String htmlPath = "";
   private String home = "";
   private FileUtils util;
   private SolrUtils solrutil;
-  private static String BiblioSearch = "biblio-search/";
 
   @Override
   public void init(ServletConfig config) throws ServletException {
     super.init(config);
-    solrUrl = config.getInitParameter("solrUrl");
     xmlPath = config.getInitParameter("xmlPath");
     htmlPath = config.getInitParameter("htmlPath");
     home = config.getInitParameter("home");
     util = new FileUtils(xmlPath, htmlPath);
     solrutil = new SolrUtils(config);
-    try {
-      searchURL = new URL("file://" + home + "/" + "bibliosearch.html");
-    } catch (MalformedURLException e) {
-      throw new ServletException(e);
-    }
+    searchPage = new PageTemplate(home + "/bibliosearch.html", "<!-- Results -->");
 
   }
 
@@ -70,82 +60,82 @@ public class BiblioSearch extends HttpServlet {
   protected void processRequest(HttpServletRequest request, HttpServletResponse response)
           throws ServletException, IOException {
     response.setContentType("text/html;charset=UTF-8");
-    PrintWriter out = response.getWriter();
-    BufferedReader reader = null;
+    OutputStream os = response.getOutputStream();
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(os, "UTF-8"));
     try {
       String q = request.getParameter("q");
-      reader = new BufferedReader(new InputStreamReader(searchURL.openStream()));
-      String line = "";
-      while ((line = reader.readLine()) != null) {
-        if (line.contains("<!-- Results -->") && !("".equals(q) || q == null)) {
-          SolrServer solr = new CommonsHttpSolrServer(solrUrl + BiblioSearch);
-          int rows = 30;
+      byte[][] page = searchPage.getParts();
+      PageTemplate.write(page, 0, os);
+      if (page[1].length > 0 && !("".equals(q) || q == null)) {
+        SolrServer solr = SolrServerRegistry.getServer(SolrServerRegistry.BIBLIO_SEARCH);
+        int rows = 30;
+        try {
+          rows = Integer.parseInt(request.getParameter("rows"));
+        } catch (Exception e) {
+        }
+        int start = 0;
+        try {
+          start = Integer.parseInt(request.getParameter("start"));
+        } catch (Exception e) {}
+        SolrQuery sq = new SolrQuery();
+        try {
+          sq.setQuery(q.toLowerCase());
+          sq.setStart(start);
+          sq.setRows(rows);
+          sq.addSortField("date", SolrQuery.ORDER.asc);
+          sq.addSortField("sort", SolrQuery.ORDER.asc);
+          QueryRequest req = new QueryRequest(sq);
+          req.setMethod(METHOD.POST);
+          QueryResponse rs = req.process(solr);
+          SolrDocumentList docs = rs.getResults();
+          out.println("<p>" + docs.getNumFound() + " hits on \"" + q.toString() + "\".</p>");
+          out.println("<table>");
+          String uq = q;
           try {
-            rows = Integer.parseInt(request.getParameter("rows"));
+            uq = URLEncoder.encode(q, "UTF-8");
           } catch (Exception e) {
           }
-          int start = 0;
-          try {
-            start = Integer.parseInt(request.getParameter("start"));
-          } catch (Exception e) {}
-          SolrQuery sq = new SolrQuery();
-          try {
-            sq.setQuery(q.toLowerCase());
-            sq.setStart(start);
-            sq.setRows(rows);
-            sq.addSortField("date", SolrQuery.ORDER.asc);
-            sq.addSortField("sort", SolrQuery.ORDER.asc);
-            QueryRequest req = new QueryRequest(sq);
-            req.setMethod(METHOD.POST);
-            QueryResponse rs = req.process(solr);
-            SolrDocumentList docs = rs.getResults();
-            out.println("<p>" + docs.getNumFound() + " hits on \"" + q.toString() + "\".</p>");
-            out.println("<table>");
-            String uq = q;
-            try {
-              uq = URLEncoder.encode(q, "UTF-8");
-            } catch (Exception e) {
-            }
-            for (SolrDocument doc : docs) {
-              StringBuilder row = new StringBuilder("<tr class=\"result-record\"><td>");
-              row.append("<a href=\"");
-              row.append("/biblio/");
-              row.append(((String) doc.getFieldValue("id")));
-              row.append("/?q=");
-              row.append(uq);
-              row.append("\">");
-              row.append(doc.getFieldValue("display"));
-              row.append("</a>");
-              row.append("</td>");
-              row.append("</tr>");
-              out.print(row);
-            }
-            out.println("</table>");
-            if (docs.getNumFound() > rows) {
-              out.println("<div id=\"pagination\">");
-              int pages = (int) Math.ceil((double) docs.getNumFound() / (double) rows);
-              int p = 0;
-              while (p < pages) {
-                if ((p * rows) == start) {
-                  out.print("<div class=\"page current\">");
-                  out.print((p + 1) + " ");
-                  out.print("</div>");
-                } else {
-                  StringBuilder plink = new StringBuilder(uq + "&start=" + p * rows + "&rows=" + rows);
-                  out.print("<div class=\"page\"><a href=\"/bibliosearch?q=" + plink + "\">" + (p + 1) + "</a></div>");
-                }
-                p++;
+          for (SolrDocument doc : docs) {
+            StringBuilder row = new StringBuilder("<tr class=\"result-record\"><td>");
+            row.append("<a href=\"");
+            row.append("/biblio/");
+            row.append(((String) doc.getFieldValue("id")));
+            row.append("/?q=");
+            row.append(uq);
+            row.append("\">");
+            row.append(doc.getFieldValue("display"));
+            row.append("</a>");
+            row.append("</td>");
+            row.append("</tr>");
+            out.print(row);
+          }
+          out.println("</table>");
+          if (docs.getNumFound() > rows) {
+            out.println("<div id=\"pagination\">");
+            int pages = (int) Math.ceil((double) docs.getNumFound() / (double) rows);
+            int p = 0;
+            while (p < pages) {
+              if ((p * rows) == start) {
+                out.print("<div class=\"page current\">");
+                out.print((p + 1) + " ");
+                out.print("</div>");
+              } else {
+                StringBuilder plink = new StringBuilder(uq + "&start=" + p * rows + "&rows=" + rows);
+                out.print("<div class=\"page\"><a href=\"/bibliosearch?q=" + plink + "\">" + (p + 1) + "</a></div>");
               }
-              out.println("</div>");
+              p++;
             }
-          } catch (SolrServerException e) {
-            out.println("<p>Unable to execute query.  Please try again.</p>");
-            throw new ServletException(e);
+            out.println("</div>");
           }
-        } else {
-          out.println(line);
+        } catch (SolrServerException e) {
+          out.println("<p>Unable to execute query.  Please try again.</p>");
+          throw new ServletException(e);
         }
+        out.flush();
+      } else {
+        PageTemplate.write(page, 1, os);
       }
+      PageTemplate.write(page, 2, os);
 
     } finally {
       out.close();
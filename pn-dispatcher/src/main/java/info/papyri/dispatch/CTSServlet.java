@@ -7,24 +7,39 @@ package info.papyri.dispatch;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.XMLReaderFactory;
 
 /**
  *
@@ -35,7 +50,8 @@ public class CTSServlet extends HttpServlet {
   private String xmlPath = "";
   private String htmlPath = "";
   private FileUtils util;
-  private byte[] buffer = new byte[8192];
+  private ThreadPoolExecutor pool;
+  private int maxBatch = 500;
   File inventory = new File("/data/papyri.info/cts/fakeTextInventory.xml");
 
 
@@ -46,6 +62,39 @@ public class CTSServlet extends HttpServlet {
     htmlPath = config.getInitParameter("htmlPath");
     System.out.println("XML Path: " + xmlPath);
     util = new FileUtils("/data/papyri.info/idp.data", htmlPath);
+    CitationIndex.configure("/data/papyri.info/idp.data", config.getInitParameter("ctsIndexPath"));
+    int threads = 4;
+    try {
+      if (config.getInitParameter("batchThreads") != null) {
+        threads = Integer.parseInt(config.getInitParameter("batchThreads").trim());
+      }
+      if (config.getInitParameter("batchMaxUrns") != null) {
+        maxBatch = Integer.parseInt(config.getInitParameter("batchMaxUrns").trim());
+      }
+    } catch (NumberFormatException e) {
+      log("Bad batch setting, using defaults.", e);
+    }
+    // GetPassages works on one file per task; when the queue is full the
+    // request thread does the work itself
+    pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1000),
+            new ThreadFactory() {
+
+              private final AtomicInteger count = new AtomicInteger();
+
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cts-batch-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+              }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+    pool.allowCoreThreadTimeOut(true);
+  }
+
+  @Override
+  public void destroy() {
+    pool.shutdownNow();
+    super.destroy();
   }
 
   /**
@@ -64,24 +113,27 @@ public class CTSServlet extends HttpServlet {
     String req = request.getParameter("request");
     String inv = request.getParameter("inv");
     if ("GetCapabilities".equals(req)) {
-      send(response,inventory);
+      FileSender.send(request, response, inventory);
     }
     if ("GetValidReff".equals(req)) {
       CTSUrn cts = new CTSUrn(request.getParameter("urn"));
       String id = FileUtils.substringAfter(cts.toString(), "urn:cts:papyri.info:ddbdp.", false);
-      PrintWriter out = response.getWriter();
       File f = util.getXmlFile("ddbdp", FileUtils.substringBefore(id, ":"));
+      if (f == null || !f.exists()) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+      PrintWriter out = response.getWriter();
       try {
         writeStart(out, req, inv, cts);
-        CTSReffContentHandler handler = new CTSReffContentHandler();
-        handler.setup(out, cts);
-        XMLReader reader = XMLReaderFactory.createXMLReader();
-        reader.setContentHandler(handler);
-        reader.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
-        reader.setFeature("http://xml.org/sax/features/validation", false);
-        InputSource is = new InputSource(new java.io.FileInputStream(f));
-        is.setSystemId(f.getAbsoluteFile().getParentFile().getAbsolutePath() + "/");
-        reader.parse(is);
+        CitationIndex idx = CitationIndex.get(f);
+        if (idx != null) {
+          writeReff(out, cts, idx.getRefs());
+        } else {
+          CTSReffContentHandler handler = new CTSReffContentHandler();
+          handler.setup(out, cts);
+          parse(f, handler);
+        }
         writeEnd(out,req);
       } catch (Exception e) {
           e.printStackTrace();
@@ -90,25 +142,23 @@ public class CTSServlet extends HttpServlet {
         out.close();
       }
     }
+    if ("GetPassages".equals(req)) {
+      batch(request, response, req, inv);
+    }
     if ("GetPassage".equals(req)) {
       String cts = request.getParameter("urn");
       String id = FileUtils.substringAfter(cts, "urn:cts:papyri.info:ddbdp.", false);
       String location = FileUtils.substringAfter(id, ":", false);
       File f = util.getXmlFile("ddbdp", FileUtils.substringBefore(id, ":"));
+      if (f == null || !f.exists()) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
       if (location.length() > 0) {
         PrintWriter out = response.getWriter();
-        CTSPassageContentHandler handler = new CTSPassageContentHandler();
-        handler.setup(out);
-        handler.parseReference(location);
         try {
           writeStart(out, req, inv, new CTSUrn(cts));
-          XMLReader reader = XMLReaderFactory.createXMLReader();
-          reader.setContentHandler(handler);
-          reader.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
-          reader.setFeature("http://xml.org/sax/features/validation", false);
-          InputSource is = new InputSource(new java.io.FileInputStream(f));
-          is.setSystemId(f.getAbsoluteFile().getParentFile().getAbsolutePath() + "/");
-          reader.parse(is);
+          out.write(passages(f, Collections.singletonList(location)).get(0));
           writeEnd(out, req);
         } catch (Exception e) {
           e.printStackTrace();
@@ -119,13 +169,225 @@ public class CTSServlet extends HttpServlet {
       } else {
         PrintWriter out = response.getWriter();
         writeStart(out, req, inv, new CTSUrn(cts));
-        send(response, f);
+        copyDocument(f, out);
         writeEnd(out, req);
         out.close();
       }
     }
   }
   
+  /**
+   * Answers GetPassages: the passages at each of the <code>urn</code>
+   * parameters (each may hold several, separated by whitespace), in the
+   * order given.  URNs are grouped by file, so each file is read (or walked)
+   * once, and files are done in parallel; passages are written out in order
+   * as their files finish.
+   */
+  private void batch(HttpServletRequest request, HttpServletResponse response, String req, String inv)
+          throws IOException {
+    List<String> urns = new ArrayList<String>();
+    String[] values = request.getParameterValues("urn");
+    if (values != null) {
+      for (String value : values) {
+        for (String urn : value.trim().split("\\s+")) {
+          if (urn.length() > 0) {
+            urns.add(urn);
+          }
+        }
+      }
+    }
+    if (urns.isEmpty() || urns.size() > maxBatch) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Between 1 and " + maxBatch + " URNs may be requested at once.");
+      return;
+    }
+    Map<File, List<Integer>> groups = new LinkedHashMap<File, List<Integer>>();
+    final String[] locations = new String[urns.size()];
+    File[] files = new File[urns.size()];
+    int[] positions = new int[urns.size()];
+    for (int i = 0; i < urns.size(); i++) {
+      String id = FileUtils.substringAfter(urns.get(i), "urn:cts:papyri.info:ddbdp.", false);
+      locations[i] = FileUtils.substringAfter(id, ":", false);
+      File f = null;
+      try {
+        f = id.length() > 0 ? util.getXmlFile("ddbdp", FileUtils.substringBefore(id, ":")) : null;
+      } catch (RuntimeException e) {
+        // not a DDbDP id we know how to find; reported as an empty passage
+      }
+      if (f != null && f.exists()) {
+        files[i] = f;
+        List<Integer> group = groups.get(f);
+        if (group == null) {
+          group = new ArrayList<Integer>();
+          groups.put(f, group);
+        }
+        positions[i] = group.size();
+        group.add(i);
+      }
+    }
+    Map<File, Future<List<String>>> results = new HashMap<File, Future<List<String>>>();
+    for (final Map.Entry<File, List<Integer>> group : groups.entrySet()) {
+      results.put(group.getKey(), pool.submit(new Callable<List<String>>() {
+
+        @Override
+        public List<String> call() throws Exception {
+          List<String> locs = new ArrayList<String>(group.getValue().size());
+          for (int i : group.getValue()) {
+            locs.add(locations[i]);
+          }
+          return passages(group.getKey(), locs);
+        }
+      }));
+    }
+    PrintWriter out = response.getWriter();
+    try {
+      out.write("<cts:" + req + "\n" +
+"            xmlns:cts=\"http://chs.harvard.edu/xmlns/cts3\"\n" +
+"            xmlns=\"http://chs.harvard.edu/xmlns/cts3\">");
+      out.write("  <request>\n" +
+                "	 <requestName>" + req +"</requestName>");
+      for (String urn : urns) {
+        out.write("  <requestUrn>" + escape(urn) + "</requestUrn>\n");
+      }
+      out.write("    <inv>" + inv + "</inv>\n" +
+                "  </request>");
+      out.write("  <cts:reply xmlns:tei=\"http://www.tei-c.org/ns/1.0\" xml:space=\"preserve\">\n");
+      for (int i = 0; i < urns.size(); i++) {
+        String passage = "";
+        if (files[i] != null) {
+          try {
+            passage = results.get(files[i]).get().get(positions[i]);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          } catch (ExecutionException e) {
+            System.out.println("Unable to read passages from " + files[i] + ": " + e.getCause());
+          }
+        }
+        out.write("<cts:passage urn=\"" + escape(urns.get(i)) + "\">");
+        out.write(passage);
+        out.write("</cts:passage>\n");
+        out.flush();
+      }
+      writeEnd(out, req);
+    } finally {
+      for (Future<List<String>> result : results.values()) {
+        result.cancel(true);
+      }
+      out.close();
+    }
+  }
+
+  /**
+   * The passages of <code>f</code> at each of <code>locations</code> (the
+   * whole text for an empty one).  They are read from the file's citation
+   * index where possible; any left over are found in a single walk of the
+   * file.
+   */
+  List<String> passages(File f, List<String> locations) throws IOException, SAXException {
+    String[] result = new String[locations.size()];
+    CitationIndex idx = CitationIndex.get(f);
+    List<Integer> walk = new ArrayList<Integer>();
+    for (int i = 0; i < result.length; i++) {
+      String location = locations.get(i);
+      if (location.length() == 0) {
+        StringWriter text = new StringWriter();
+        copyDocument(f, text);
+        result[i] = text.toString();
+      } else if (idx != null) {
+        String[] loc = location.split("-");
+        result[i] = idx.passage(f, loc[0], loc[loc.length - 1]);
+      }
+      if (result[i] == null) {
+        walk.add(i);
+      }
+    }
+    if (!walk.isEmpty()) {
+      List<ContentHandler> handlers = new ArrayList<ContentHandler>();
+      List<StringWriter> texts = new ArrayList<StringWriter>();
+      for (int i : walk) {
+        StringWriter text = new StringWriter();
+        CTSPassageContentHandler handler = new CTSPassageContentHandler();
+        handler.setup(new PrintWriter(text));
+        handler.parseReference(locations.get(i));
+        handlers.add(handler);
+        texts.add(text);
+      }
+      parse(f, handlers.size() == 1 ? handlers.get(0) : new ContentHandlers(handlers));
+      for (int j = 0; j < walk.size(); j++) {
+        result[walk.get(j)] = texts.get(j).toString();
+      }
+    }
+    return Arrays.asList(result);
+  }
+
+  /**
+   * Copies the (UTF-8) text of <code>f</code> to <code>out</code> without its
+   * XML declaration, which can't appear inside the reply.
+   */
+  static void copyDocument(File f, Writer out) throws IOException {
+    InputStreamReader in = new InputStreamReader(new FileInputStream(f), "UTF-8");
+    try {
+      char[] buf = new char[8192];
+      int len = 0;
+      int n;
+      // the declaration, if any, is well within the first buffer
+      while (len < buf.length && (n = in.read(buf, len, buf.length - len)) > 0) {
+        len += n;
+      }
+      out.write(new String(buf, 0, len).replaceFirst("^\\s*<\\?xml[^>]*\\?>", ""));
+      while ((n = in.read(buf)) > 0) {
+        out.write(buf, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String escape(String s) {
+    return s.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+  }
+
+  /**
+   * A non-validating, namespace-aware reader that also reports namespace
+   * declarations as attributes, as the passage and reference walks expect.
+   */
+  static XMLReader newReader() throws SAXException {
+    SAXParserFactory factory = SAXParserFactory.newInstance();
+    factory.setNamespaceAware(true);
+    factory.setValidating(false);
+    try {
+      factory.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
+      return factory.newSAXParser().getXMLReader();
+    } catch (ParserConfigurationException e) {
+      throw new SAXException(e);
+    }
+  }
+
+  private void parse(File f, ContentHandler handler) throws IOException, SAXException {
+    XMLReader reader = newReader();
+    reader.setContentHandler(handler);
+    InputStream in = new FileInputStream(f);
+    try {
+      InputSource is = new InputSource(in);
+      is.setSystemId(f.getAbsoluteFile().getParentFile().getAbsolutePath() + "/");
+      reader.parse(is);
+    } finally {
+      in.close();
+    }
+  }
+
+  private void writeReff(PrintWriter out, CTSUrn base, List<String> refs) {
+    out.write("<reff>");
+    for (String ref : refs) {
+      out.write("<urn>");
+      out.write(base.toString());
+      out.write(":");
+      out.write(ref);
+      out.write("</urn>");
+    }
+    out.write("</reff>");
+  }
+
   private void writeStart(PrintWriter out, String name, String inv, CTSUrn urn) {
     out.write("<cts:" + name + "\n" +
 "            xmlns:cts=\"http://chs.harvard.edu/xmlns/cts3\"\n" +
@@ -144,31 +406,7 @@ public class CTSServlet extends HttpServlet {
     out.write("  </cts:reply>\n</cts:" + action + ">");
   }
     
-  private void send(HttpServletResponse response, File f)
-          throws ServletException, IOException {
-    FileInputStream reader = null;
-    OutputStream out = response.getOutputStream();
-    if (f != null && f.exists()) {
-      try {
-        reader = new FileInputStream(f);
-        int size = reader.read(buffer);
-        while (size > 0) { 
-          out.write(buffer, 0, size);
-          size = reader.read(buffer);
-        }
-      } catch (IOException e) {
-        response.sendError(HttpServletResponse.SC_NOT_FOUND);
-      } finally {
-        reader.close();
-        out.close();
-      }
-    } else {
-      response.sendError(HttpServletResponse.SC_NOT_FOUND);
-    }
-    
-  }
-  
-  void setCurrentRef(Ref currentRef, String localName, Attributes atts) {
+  static void setCurrentRef(Ref currentRef, String localName, Attributes atts) {
       if ("div".equals(localName) && "textpart".equals(atts.getValue("type"))) {
         String n = atts.getValue("n");
         if (n != null) {
@@ -266,15 +504,7 @@ public class CTSServlet extends HttpServlet {
 
     @Override
     public void endDocument() throws SAXException {
-      out.write("<reff>");
-      for (String ref : refs) {
-        out.write("<urn>");
-        out.write(base.toString());
-        out.write(":");
-        out.write(ref);
-        out.write("</urn>");
-      }
-      out.write("</reff>");
+      writeReff(out, base, refs);
     }
 
     @Override
@@ -466,7 +696,75 @@ public class CTSServlet extends HttpServlet {
     }
   }
   
-  class Ref {
+  /**
+   * Passes SAX events on to several handlers, so one walk of a file can
+   * answer several requests.
+   */
+  static class ContentHandlers implements ContentHandler {
+
+    private final List<ContentHandler> handlers;
+
+    ContentHandlers(List<ContentHandler> handlers) {
+      this.handlers = handlers;
+    }
+
+    @Override
+    public void setDocumentLocator(Locator lctr) {
+      for (ContentHandler h : handlers) h.setDocumentLocator(lctr);
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+      for (ContentHandler h : handlers) h.startDocument();
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+      for (ContentHandler h : handlers) h.endDocument();
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+      for (ContentHandler h : handlers) h.startPrefixMapping(prefix, uri);
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException {
+      for (ContentHandler h : handlers) h.endPrefixMapping(prefix);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+      for (ContentHandler h : handlers) h.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+      for (ContentHandler h : handlers) h.endElement(uri, localName, qName);
+    }
+
+    @Override
+    public void characters(char[] chars, int start, int len) throws SAXException {
+      for (ContentHandler h : handlers) h.characters(chars, start, len);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] chars, int start, int len) throws SAXException {
+      for (ContentHandler h : handlers) h.ignorableWhitespace(chars, start, len);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+      for (ContentHandler h : handlers) h.processingInstruction(target, data);
+    }
+
+    @Override
+    public void skippedEntity(String name) throws SAXException {
+      for (ContentHandler h : handlers) h.skippedEntity(name);
+    }
+  }
+
+  static class Ref {
     
     private List<String> ref = new ArrayList<String>();
     private List<String> parts = new ArrayList<String>();
@@ -0,0 +1,617 @@
+package info.papyri.dispatch;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * The CTS citation index of a DDbDP document: every valid reference, in
+ * document order (as GetValidReff lists them), with the byte range of the
+ * source passage it covers, so GetPassage can read just that range instead
+ * of walking the whole file.  A reference starts at the tag that introduces
+ * it (its textpart div or lb) and ends where the next reference outside it
+ * starts, or at the end of its ab or div.
+ * <p>
+ * A passage is put together the way the walk (CTSPassageContentHandler)
+ * writes it: the textparts it is in, less their other references, around
+ * the passage itself and whatever follows it up to the next start tag, with
+ * comments and processing instructions left out.  Only the serialization of
+ * what is left differs: tags, attributes and character references are
+ * copied as they are in the source rather than rewritten.
+ * <p>
+ * Indexes are kept next to each other under <code>ctsIndexPath</code>
+ * (a CTSServlet init-param), mirroring the source tree, and are stale when
+ * the source's length or modification time changes.  Run <code>main</code>
+ * after the indexer to (re)build them all; a missing or stale one is built
+ * when it is first asked for.
+ *
+ * @author hcayless
+ */
+public class CitationIndex {
+
+  static final String DEFAULT_XML_PATH = "/data/papyri.info/idp.data";
+  static final String DEFAULT_INDEX_PATH = "/data/papyri.info/pn/cts-index";
+  static final String SUFFIX = ".cts";
+  static final int MAX_CACHED = 2000;
+  static final String TEI_PREFIX = "tei:";
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int START = 0;
+  private static final int END = 1;
+  private static final int EMPTY = 2;
+
+  private static volatile String xmlRoot = DEFAULT_XML_PATH;
+  private static volatile String indexRoot = DEFAULT_INDEX_PATH;
+  private static final Map<String, CitationIndex> cache = new LinkedHashMap<String, CitationIndex>(256, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CitationIndex> eldest) {
+      return size() > MAX_CACHED;
+    }
+  };
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong loads = new AtomicLong();
+  private static final AtomicLong builds = new AtomicLong();
+  private static final AtomicLong failures = new AtomicLong();
+  private static final AtomicLong passages = new AtomicLong();
+  private static final AtomicLong unbalanced = new AtomicLong();
+
+  private final long sourceLength;
+  private final long sourceModified;
+  private final List<String> refs;
+  private final Map<String, long[]> ranges;
+
+  CitationIndex(long sourceLength, long sourceModified, List<String> refs, Map<String, long[]> ranges) {
+    this.sourceLength = sourceLength;
+    this.sourceModified = sourceModified;
+    this.refs = Collections.unmodifiableList(refs);
+    this.ranges = ranges;
+  }
+
+  static void configure(String xml, String index) {
+    if (xml != null) {
+      xmlRoot = xml;
+    }
+    if (index != null) {
+      indexRoot = index;
+    }
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  /**
+   * The index for <code>xml</code>, read from disk or built as needed, or
+   * null if one can't be made (the caller should walk the file itself).
+   */
+  public static CitationIndex get(File xml) {
+    String key = xml.getPath();
+    CitationIndex idx;
+    synchronized (cache) {
+      idx = cache.get(key);
+    }
+    if (idx != null && idx.isCurrent(xml)) {
+      hits.incrementAndGet();
+      return idx;
+    }
+    File f = indexFile(xml);
+    try {
+      idx = f.exists() ? read(f) : null;
+      if (idx != null && idx.isCurrent(xml)) {
+        loads.incrementAndGet();
+      } else {
+        idx = build(xml);
+        builds.incrementAndGet();
+        write(idx, f);
+      }
+    } catch (Exception e) {
+      failures.incrementAndGet();
+      System.out.println("Unable to index citations in " + xml + ": " + e.getMessage());
+      return null;
+    }
+    synchronized (cache) {
+      cache.put(key, idx);
+    }
+    return idx;
+  }
+
+  static File indexFile(File xml) {
+    String path = xml.getPath();
+    if (path.startsWith(xmlRoot)) {
+      path = path.substring(xmlRoot.length());
+    }
+    return new File(indexRoot + File.separator + path + SUFFIX);
+  }
+
+  boolean isCurrent(File xml) {
+    return xml.length() == sourceLength && xml.lastModified() == sourceModified;
+  }
+
+  /**
+   * The valid references, in document order.
+   */
+  public List<String> getRefs() {
+    return refs;
+  }
+
+  /**
+   * The byte range [start, end) of the passage from <code>start</code> to
+   * <code>end</code> (inclusive), or null if either is unknown or they are
+   * out of order.
+   */
+  public long[] range(String start, String end) {
+    long[] s = ranges.get(start);
+    long[] e = ranges.get(end);
+    if (s == null || e == null || e[1] < s[0]) {
+      return null;
+    }
+    return new long[] {s[0], e[1]};
+  }
+
+  /**
+   * The passage of <code>xml</code> from <code>start</code> to
+   * <code>end</code> (inclusive), with its elements given the
+   * <code>tei:</code> prefix; "" if either reference is unknown or they are
+   * out of order, or null if the passage's tags aren't balanced (the caller
+   * should fall back to walking the file).
+   */
+  public String passage(File xml, String start, String end) throws IOException {
+    long[] s = ranges.get(start);
+    long[] e = ranges.get(end);
+    if (s == null || e == null || e[1] < s[0]) {
+      return "";
+    }
+    passages.incrementAndGet();
+    // the walk writes everything from the start to the first element after
+    // the end, and, around that, whatever is part of either one
+    long from = s[0];
+    long to = e[2];
+    for (String ref : related(start, end)) {
+      long[] r = ranges.get(ref);
+      from = Math.min(from, r[0]);
+      to = Math.max(to, r[1]);
+    }
+    byte[] b = new byte[(int) (to - from)];
+    RandomAccessFile raf = new RandomAccessFile(xml, "r");
+    try {
+      raf.seek(from);
+      raf.readFully(b);
+    } finally {
+      raf.close();
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(b.length);
+    copyPartOf(b, from, from, s[0], start, end, out);
+    out.write(b, (int) (s[0] - from), (int) (e[2] - s[0]));
+    copyPartOf(b, from, e[2], to, start, end, out);
+    String result = prefix(out.toByteArray());
+    if (result == null) {
+      unbalanced.incrementAndGet();
+    }
+    return result;
+  }
+
+  /**
+   * <code>start</code>, <code>end</code> and the references (textparts)
+   * they are within.
+   */
+  private List<String> related(String start, String end) {
+    List<String> result = new ArrayList<String>();
+    for (String ref : new String[] {start, end}) {
+      result.add(ref);
+      int dot = ref.indexOf('.');
+      while (dot > 0) {
+        String part = ref.substring(0, dot);
+        if (ranges.containsKey(part)) {
+          result.add(part);
+        }
+        dot = ref.indexOf('.', dot + 1);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Whether the walk counts <code>ref</code> as part of <code>other</code>:
+   * either is within (or is) the other.
+   */
+  private static boolean isPartOf(String ref, String other) {
+    return ref.equals(other) || ref.startsWith(other + ".") || other.startsWith(ref + ".");
+  }
+
+  /**
+   * Copies the bytes from <code>from</code> to <code>to</code> (file
+   * offsets; <code>b</code> starts at <code>base</code>) that aren't in a
+   * reference outside both <code>start</code> and <code>end</code>.
+   */
+  private void copyPartOf(byte[] b, long base, long from, long to, String start, String end, ByteArrayOutputStream out) {
+    long pos = from;
+    for (String ref : refs) {
+      long[] r = ranges.get(ref);
+      if (r[0] < pos || r[0] >= to || isPartOf(ref, start) || isPartOf(ref, end)) {
+        continue;
+      }
+      out.write(b, (int) (pos - base), (int) (r[0] - pos));
+      pos = Math.min(r[1], to);
+    }
+    if (pos < to) {
+      out.write(b, (int) (pos - base), (int) (to - pos));
+    }
+  }
+
+  /**
+   * Rewrites unprefixed element names as <code>tei:</code> ones, so the
+   * fragment means the same thing inside the CTS reply, and drops comments
+   * and processing instructions, or returns null if the fragment's tags
+   * aren't balanced.
+   */
+  static String prefix(byte[] b) {
+    b = withoutComments(b);
+    List<int[]> tags = tags(b);
+    StringBuilder result = new StringBuilder(b.length + tags.size() * 4);
+    int depth = 0;
+    int pos = 0;
+    for (int[] tag : tags) {
+      if (tag[2] == START) {
+        depth++;
+      } else if (tag[2] == END) {
+        depth--;
+      }
+      if (depth < 0) {
+        return null;
+      }
+      int name = tag[0] + (tag[2] == END ? 2 : 1);
+      result.append(new String(b, pos, name - pos, UTF8));
+      pos = name;
+      boolean prefixed = false;
+      for (int i = name; i < tag[1] && isNameChar(b[i]); i++) {
+        if (b[i] == ':') {
+          prefixed = true;
+        }
+      }
+      if (!prefixed) {
+        result.append(TEI_PREFIX);
+      }
+    }
+    if (depth != 0) {
+      return null;
+    }
+    result.append(new String(b, pos, b.length - pos, UTF8));
+    return result.toString();
+  }
+
+  /**
+   * <code>b</code> less its comments and processing instructions.
+   */
+  static byte[] withoutComments(byte[] b) {
+    ByteArrayOutputStream out = null;
+    int pos = 0;
+    int i = 0;
+    while (i < b.length) {
+      if (b[i] != '<') {
+        i++;
+      } else if (startsWith(b, i, "<![CDATA[")) {
+        i = skipPast(b, i + 9, "]]>");
+      } else if (startsWith(b, i, "<!--") || startsWith(b, i, "<?")) {
+        if (out == null) {
+          out = new ByteArrayOutputStream(b.length);
+        }
+        out.write(b, pos, i - pos);
+        i = Math.min(b.length, b[i + 1] == '?' ? skipPast(b, i + 2, "?>") : skipPast(b, i + 4, "-->"));
+        pos = i;
+      } else {
+        i++;
+      }
+    }
+    if (out == null) {
+      return b;
+    }
+    out.write(b, pos, b.length - pos);
+    return out.toByteArray();
+  }
+
+  private static boolean isNameChar(byte c) {
+    return c != ' ' && c != '\t' && c != '\n' && c != '\r' && c != '/' && c != '>';
+  }
+
+  /**
+   * The elements' tags in <code>b</code>: {begin, end, START|END|EMPTY}.
+   * Comments, processing instructions, CDATA sections and the doctype are
+   * skipped.
+   */
+  static List<int[]> tags(byte[] b) {
+    List<int[]> tags = new ArrayList<int[]>();
+    int i = 0;
+    while (i < b.length) {
+      if (b[i] != '<') {
+        i++;
+        continue;
+      }
+      if (startsWith(b, i, "<!--")) {
+        i = skipPast(b, i + 4, "-->");
+      } else if (startsWith(b, i, "<![CDATA[")) {
+        i = skipPast(b, i + 9, "]]>");
+      } else if (startsWith(b, i, "<?")) {
+        i = skipPast(b, i + 2, "?>");
+      } else if (startsWith(b, i, "<!")) {
+        // doctype, possibly with an internal subset
+        int j = i + 2;
+        int brackets = 0;
+        while (j < b.length && (b[j] != '>' || brackets > 0)) {
+          if (b[j] == '[') brackets++;
+          if (b[j] == ']') brackets--;
+          j++;
+        }
+        i = j + 1;
+      } else {
+        int j = i + 1;
+        byte quote = 0;
+        while (j < b.length && (quote != 0 || b[j] != '>')) {
+          if (quote == 0 && (b[j] == '"' || b[j] == '\'')) {
+            quote = b[j];
+          } else if (b[j] == quote) {
+            quote = 0;
+          }
+          j++;
+        }
+        int kind = b[i + 1] == '/' ? END : b[j - 1] == '/' ? EMPTY : START;
+        tags.add(new int[] {i, Math.min(j + 1, b.length), kind});
+        i = j + 1;
+      }
+    }
+    return tags;
+  }
+
+  private static boolean startsWith(byte[] b, int i, String s) {
+    if (i + s.length() > b.length) {
+      return false;
+    }
+    for (int j = 0; j < s.length(); j++) {
+      if (b[i + j] != s.charAt(j)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int skipPast(byte[] b, int i, String s) {
+    while (i < b.length && !startsWith(b, i, s)) {
+      i++;
+    }
+    return i + s.length();
+  }
+
+  /**
+   * Walks <code>xml</code> the way GetValidReff does, noting where each
+   * reference starts and ends.
+   */
+  static CitationIndex build(File xml) throws IOException, SAXException {
+    long length = xml.length();
+    long modified = xml.lastModified();
+    byte[] b = new byte[(int) length];
+    FileInputStream in = new FileInputStream(xml);
+    try {
+      int off = 0;
+      int n;
+      while (off < b.length && (n = in.read(b, off, b.length - off)) > 0) {
+        off += n;
+      }
+    } finally {
+      in.close();
+    }
+    final List<int[]> tags = tags(b);
+    final List<String> refs = new ArrayList<String>();
+    final Map<String, long[]> ranges = new HashMap<String, long[]>();
+    final List<String> active = new ArrayList<String>();
+    final long end = b.length;
+    DefaultHandler handler = new DefaultHandler() {
+      CTSServlet.Ref current = new CTSServlet.Ref();
+      int starts = 0;
+      int ends = 0;
+
+      @Override
+      public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        int[] tag = next(true);
+        CTSServlet.setCurrentRef(current, localName, atts);
+        String ref = current.toString();
+        close(ref, tag[0]);
+        if (!current.empty() && !ranges.containsKey(ref)) {
+          refs.add(ref);
+          ranges.put(ref, new long[] {tag[0], end, end});
+          active.add(ref);
+        }
+      }
+
+      @Override
+      public void endElement(String uri, String localName, String qName) throws SAXException {
+        int[] tag = next(false);
+        if ("ab".equals(localName)) {
+          current.removePart("line");
+        }
+        if ("div".equals(localName)) {
+          current.pop();
+        }
+        close(current.toString(), "div".equals(localName) ? tag[1] : tag[0]);
+      }
+
+      /**
+       * Ends the active references that <code>ref</code> isn't within.
+       */
+      private void close(String ref, long at) {
+        for (int i = active.size() - 1; i >= 0; i--) {
+          String r = active.get(i);
+          if (!ref.equals(r) && !ref.startsWith(r + ".")) {
+            ranges.get(r)[1] = at;
+            active.remove(i);
+          }
+        }
+      }
+
+      private int[] next(boolean start) throws SAXException {
+        int i = start ? starts : ends;
+        while (i < tags.size() && tags.get(i)[2] == (start ? END : START)) {
+          i++;
+        }
+        if (i >= tags.size()) {
+          // the parser saw elements we didn't, e.g. from entities
+          throw new SAXException("Tags and elements don't line up");
+        }
+        if (start) {
+          starts = i + 1;
+        } else {
+          ends = i + 1;
+        }
+        return tags.get(i);
+      }
+    };
+    XMLReader reader = CTSServlet.newReader();
+    reader.setContentHandler(handler);
+    InputSource is = new InputSource(new ByteArrayInputStream(b));
+    is.setSystemId(xml.getAbsoluteFile().getParentFile().getAbsolutePath() + "/");
+    reader.parse(is);
+    // the walk keeps writing after a passage until the next element starts
+    for (long[] range : ranges.values()) {
+      range[2] = nextStart(tags, range[1], end);
+    }
+    return new CitationIndex(length, modified, refs, ranges);
+  }
+
+  /**
+   * Where the first start (or empty) tag at or after <code>at</code> begins,
+   * or <code>end</code> if there isn't one.
+   */
+  private static long nextStart(List<int[]> tags, long at, long end) {
+    int lo = 0;
+    int hi = tags.size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (tags.get(mid)[0] < at) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    for (int i = lo; i < tags.size(); i++) {
+      if (tags.get(i)[2] != END) {
+        return tags.get(i)[0];
+      }
+    }
+    return end;
+  }
+
+  /**
+   * Writes <code>idx</code> as a header line (source length and
+   * modification time) followed by one "ref TAB start TAB end TAB next"
+   * line per reference (next being where the next element after it
+   * starts), via a temporary file.
+   */
+  static void write(CitationIndex idx, File f) throws IOException {
+    File dir = f.getParentFile();
+    if (dir != null && !dir.exists() && !dir.mkdirs() && !dir.exists()) {
+      throw new IOException("Unable to create " + dir);
+    }
+    File tmp = new File(f.getPath() + ".tmp" + Thread.currentThread().getId());
+    Writer out = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+    try {
+      out.write(idx.sourceLength + "\t" + idx.sourceModified + "\n");
+      for (String ref : idx.refs) {
+        long[] range = idx.ranges.get(ref);
+        out.write(ref + "\t" + range[0] + "\t" + range[1] + "\t" + range[2] + "\n");
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(f)) {
+      f.delete();
+      if (!tmp.renameTo(f)) {
+        tmp.delete();
+        throw new IOException("Unable to move " + tmp + " to " + f);
+      }
+    }
+  }
+
+  static CitationIndex read(File f) throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), UTF8));
+    try {
+      String[] header = in.readLine().split("\t");
+      List<String> refs = new ArrayList<String>();
+      Map<String, long[]> ranges = new HashMap<String, long[]>();
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] parts = line.split("\t");
+        refs.add(parts[0]);
+        ranges.put(parts[0], new long[] {Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3])});
+      }
+      return new CitationIndex(Long.parseLong(header[0]), Long.parseLong(header[1]), refs, ranges);
+    } catch (RuntimeException e) {
+      // truncated, garbled or from before the next column; it will be rebuilt
+      return null;
+    } finally {
+      in.close();
+    }
+  }
+
+  public static Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    synchronized (cache) {
+      stats.put("cached", cache.size());
+    }
+    stats.put("hits", hits.get());
+    stats.put("loads", loads.get());
+    stats.put("builds", builds.get());
+    stats.put("failures", failures.get());
+    stats.put("passages", passages.get());
+    stats.put("unbalanced", unbalanced.get());
+    return stats;
+  }
+
+  /**
+   * Builds the indexes of every DDbDP file: <code>CitationIndex [xmlPath
+   * [ctsIndexPath]]</code>.
+   */
+  public static void main(String[] args) {
+    configure(args.length > 0 ? args[0] : null, args.length > 1 ? args[1] : null);
+    long[] counts = new long[2];
+    walk(new File(xmlRoot, "DDB_EpiDoc_XML"), counts);
+    System.out.println("Indexed " + counts[0] + " of " + counts[1] + " files.");
+  }
+
+  private static void walk(File dir, long[] counts) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File f : files) {
+      if (f.isDirectory()) {
+        walk(f, counts);
+      } else if (f.getName().endsWith(".xml")) {
+        counts[1]++;
+        if (get(f) != null) {
+          counts[0]++;
+        }
+        synchronized (cache) {
+          cache.clear();
+        }
+      }
+    }
+  }
+
+}
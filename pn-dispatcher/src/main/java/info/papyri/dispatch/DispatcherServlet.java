@@ -1,32 +1,32 @@
 package info.papyri.dispatch;
 
 import java.io.IOException;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.OutputStream;
 import java.net.URLEncoder;
 import java.net.SocketTimeoutException;
-import java.util.HashMap;
-import java.util.Map;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
-import javax.servlet.ServletConfig;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.httpclient.ConnectTimeoutException;
+
 /**
  *
  * @author hcayless
  */
-@WebServlet(name="DispatcherServlet", urlPatterns={"/dispatch"})
+@WebServlet(name="DispatcherServlet", urlPatterns={"/dispatch"}, asyncSupported=true)
 public class DispatcherServlet extends HttpServlet {
 
-  private static String graph = "http://papyri.info/graph";
-  private static String path = "/pi/query";
-  private String sparqlServer;
+  /** Runs {@link #processRequest} on the backend pool. */
+  private final AsyncDispatch.Handler handler = new AsyncDispatch.Handler() {
+    @Override
+    public void handle(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+      processRequest(request, response);
+    }
+  };
+
   private enum Method {
     RDF ("rdfxml"),
     N3,
@@ -50,12 +50,6 @@ public class DispatcherServlet extends HttpServlet {
     }
 
 
-  }
-
-  @Override
-  public void init(ServletConfig config) throws ServletException {
-    super.init(config);
-    sparqlServer = config.getInitParameter("sparqlUrl");
   }
    
     /** 
@@ -67,7 +61,7 @@ public class DispatcherServlet extends HttpServlet {
      */
     protected void processRequest(HttpServletRequest request, HttpServletResponse response)
     throws ServletException, IOException {
-      Map<String,String> params = new HashMap<String,String>();
+      String uri = null;
       StringBuilder query = new StringBuilder();
       query.append(request.getParameter("query"));
       String format = query.substring(query.lastIndexOf("/") + 1);
@@ -89,50 +83,53 @@ public class DispatcherServlet extends HttpServlet {
         }
 
         if ("ddbdp".equals(domain)) {
-          params.put("query", ddbdp(query.toString()));
+          uri = ddbdp(query.toString());
         }
         if ("apis".equals(domain)) {
-          params.put("query", apis(query.toString()));
+          uri = apis(query.toString());
         }
         if ("hgv".equals(domain)) {
-          params.put("query", hgv(query.toString()));
+          uri = hgv(query.toString());
         }
         if ("hgvtrans".equals(domain)) {
-          params.put("query", hgvtrans(query.toString()));
+          uri = hgvtrans(query.toString());
         } if ("biblio".equals(domain)) {
-          params.put("query", biblio(query.toString()));
+          uri = biblio(query.toString());
+        }
+        if (uri == null) {
+          response.sendError(HttpServletResponse.SC_NOT_FOUND);
+          return;
         }
 
-        BufferedInputStream in = null;
-        BufferedOutputStream out = null;
-        HttpURLConnection http = null;
+        ModelCache.Entry model;
         try {
-          URL m = new URL(sparqlServer + path + "?" + readParams(params));
-          http = (HttpURLConnection)m.openConnection();
-          if ("rdfxml".equals(format)) http.addRequestProperty("Accept", "application/rdf+xml");
-          if ("turtle".equals(format)) http.addRequestProperty("Accept", "text/turtle");
-          if ("n3".equals(format)) http.addRequestProperty("Accept", "text/plain");
-          if ("json".equals(format)) http.addRequestProperty("Accept", "application/rdf+json");
-          http.setConnectTimeout(2000);
-          if (http.getResponseCode() == HttpURLConnection.HTTP_OK) {
-            response.setContentType(http.getContentType());
-            byte[] b = new byte[8192];
-            in = new BufferedInputStream(http.getInputStream());
-            out = new BufferedOutputStream(response.getOutputStream());
-            int s = in.read(b, 0, b.length);
-            while (s > 0) {
-              out.write(b, 0, s);
-              s = in.read(b, 0, b.length);
-            }
-          } else {
-            response.sendError(http.getResponseCode());
-          }
+          model = ModelCache.get(uri);
+        } catch (ModelCache.FetchException e) {
+          response.sendError(e.getStatus());
+          return;
         } catch (SocketTimeoutException e) {
           e.printStackTrace(System.out);
+          response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+          return;
+        } catch (ConnectTimeoutException e) {
+          e.printStackTrace(System.out);
+          response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+          return;
+        }
+        String etag = model.getETag(format);
+        response.setHeader("ETag", etag);
+        if (FileSender.matches(request.getHeader("If-None-Match"), etag)) {
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return;
+        }
+        byte[] body = model.serialize(format);
+        response.setContentType(ModelCache.contentType(format));
+        response.setContentLength(body.length);
+        OutputStream out = response.getOutputStream();
+        try {
+          out.write(body);
         } finally {
-          if (out != null) out.close();
-          if (in != null) in.close();
-          if (http != null) http.disconnect();
+          out.close();
         }
       }
     } 
@@ -148,7 +145,7 @@ public class DispatcherServlet extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
     throws ServletException, IOException {
-        processRequest(request, response);
+        AsyncDispatch.dispatch(request, response, handler);
     } 
 
     /** 
@@ -161,7 +158,7 @@ public class DispatcherServlet extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
     throws ServletException, IOException {
-        processRequest(request, response);
+        AsyncDispatch.dispatch(request, response, handler);
     }
 
     /** 
@@ -173,124 +170,50 @@ public class DispatcherServlet extends HttpServlet {
         return "Short description";
     }// </editor-fold>
 
-    protected String readParams(Map params) throws ServletException {
-      StringBuilder result = new StringBuilder();
-      Object[] keys = params.keySet().toArray();
-      for (int i = 0; i < keys.length; i++) {
-        result.append((String)keys[i]);
-        result.append("=");
-        try {
-          result.append(URLEncoder.encode((String)params.get(keys[i]), "UTF-8"));
-        } catch (UnsupportedEncodingException e) {
-          throw new ServletException(e);
-        }
-        if (i < keys.length - 1) result.append("&");
-      }
-      return result.toString();
-    }
-
     protected String ddbdp(String in) {
       if ("".equals(in) || in == null) {
-        return "prefix dc: <http://purl"
-             +  ".org/dc/terms/> construct{<http://papyri."
-             +  "info/ddbdp> ?Predicate ?Object} from "
-             +  "<http://papyri.info/graph> where { <http://papyri.info/ddbdp>" 
-             +  " ?Predicate ?Object } "
-             + "order by ?Object";
+        return "http://papyri.info/ddbdp";
       }
       String[] parts = in.split(";");
       if (parts.length == 1) {
-        return "prefix dc: <http://"
-             +  "purl.org/dc/terms/> construct{<http:/" 
-             +  "/papyri.info/ddbdp/" + parts[0] + "> ?Predicate ?Object}"
-             +  " from <http://papyri.info/graph>" 
-             +  " where { <http://papyri.info/ddbdp/" + parts[0] + ">"
-             +  " ?Predicate ?Object } "
-             + "order by ?Object";
+        return "http://papyri.info/ddbdp/" + parts[0];
       }
       if (parts.length == 2) {
-        return "prefix dc: <http://"
-             +  "purl.org/dc/terms/> construct{<http://"  
-             +  "papyri.info/ddbdp/" + parts[0] + ";" + parts[1] + "> ?Predicate ?Object} "
-             +  "from <http://papyri.info/graph> where "
-             +  "{ <http://papyri.info/ddbdp/" + parts[0] + ";" + parts[1] + ">"
-             +  " ?Predicate ?Object } "
-             + "order by ?Object";
+        return "http://papyri.info/ddbdp/" + parts[0] + ";" + parts[1];
       }
       if (parts.length == 3) {
-          parts[2] = encode(parts[2]);
-        return "prefix dc: <http://purl.org/dc/terms/> "
-             +  "construct{<http://"
-             +  "papyri.info/ddbdp/" + parts[0] + ";" + parts[1] + ";" + parts[2]  
-             +  "/source>  ?Predicate"  
-             +  " ?Object} from <http://papyri.info/graph> "  
-             +  "where {<http://"  
-             +  "papyri.info/ddbdp/" + parts[0] + ";" + parts[1] + ";" + parts[2]  
-             +  "/source> ?Predicate"  
-             +  " ?Object} "
-             + "order by ?Object";
+        parts[2] = encode(parts[2]);
+        return "http://papyri.info/ddbdp/" + parts[0] + ";" + parts[1] + ";" + parts[2] + "/source";
       }
-      return in;
+      return null;
     }
     
     protected String apis(String in) {
       if ("".equals(in) || in == null) {
-        return "prefix dc: <http://purl"
-             +  ".org/dc/terms/> construct{<http://papyri."
-             +  "info/apis> ?Predicate ?Object} from <http://papyri.info/graph> " 
-             +  "where { <http://papyri.info/apis> ?Predicate ?Object} "
-             + "order by ?Object";
+        return "http://papyri.info/apis";
       }
       if (!in.contains(".")) {
-        return "prefix dc: <http://purl.org/dc/terms/> " 
-             + "construct{<http://papyri.info/apis/" + in + "> ?Predicate ?Object} "
-             +  "from <http://papyri.info/graph> "
-             +  "where { <http://papyri.info/apis/" + in + "> ?Predicate ?Object} "
-             + "order by ?Object";
+        return "http://papyri.info/apis/" + in;
       }
-      return "prefix dc: <http://purl.org/dc/terms/> "
-           + "construct{<http://papyri.info/apis/" + in + "/source> " 
-           + "?Predicate ?Object} from <http://papyri.info/graph> "
-           + "where {<http://papyri.info/apis/" + in + "/source> ?Predicate ?Object} "
-           + "order by ?Object";
+      return "http://papyri.info/apis/" + in + "/source";
     }
     
     protected String hgv(String in) {
       if ("".equals(in) || in == null) {
-        return "prefix dc: <http://purl"
-             +  ".org/dc/terms/> construct{<http://papyri."
-             +  "info/hgv> ?Predicate ?Object} from <http://papyri.info/graph> " 
-             +  "where { <http://papyri.info/hgv> ?Predicate ?Object} "
-             + "order by ?Object";
+        return "http://papyri.info/hgv";
       }
       if (in.matches("\\d+[a-z]*")) {
-        return "prefix dc: <http://purl.org/dc/terms/> " +
-                "construct{<http://papyri.info/hgv/" + in + "/source> " +
-                "?Predicate ?Object} from <http://papyri.info/graph> " +
-                "where {<http://papyri.info/hgv/" + in + "/source> ?Predicate ?Object} "
-             + "order by ?Object";
+        return "http://papyri.info/hgv/" + in + "/source";
       }
-      return "prefix dc: <http://purl.org/dc/terms/> " +
-              "construct{<http://papyri.info/hgv/" + in + "> ?Predicate ?Object} " +
-              "from <http://papyri.info/graph> " +
-              "where {<http://papyri.info/hgv/" + in + "> ?Predicate ?Object} "
-             + "order by ?Object";
+      return "http://papyri.info/hgv/" + in;
     }
 
     protected String hgvtrans(String in) {
-      return "prefix dc: <http://purl.org/dc/terms/> " +
-              "construct{<http://papyri.info/hgvtrans/" + in + "/source> " +
-                "?Predicate ?Object} from <http://papyri.info/graph> " +
-                "where {<http://papyri.info/hgvtrans/" + in + "/source> ?Predicate ?Object} "
-             + "order by ?Object";
+      return "http://papyri.info/hgvtrans/" + in + "/source";
     }
     
     protected String biblio(String in) {
-      return "prefix dc: <http://purl.org/dc/terms/> " +
-              "construct{<http://papyri.info/biblio/" + in + "> " +
-                "?Predicate ?Object} from <http://papyri.info/graph> " +
-                "where {<http://papyri.info/biblio/" + in + "> ?Predicate ?Object} "
-             + "order by ?Object";
+      return "http://papyri.info/biblio/" + in;
     }
 
     protected static String encode(String in) {
@@ -0,0 +1,205 @@
+package info.papyri.dispatch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Decoded (UTF-8) contents of the text and HTML files read by
+ * {@link FileUtils#loadFile(File)}, kept in an LRU map bounded by the total
+ * number of bytes held.  Entries are keyed by path and are reloaded when the
+ * file's modification time or length changes.  Files larger than
+ * <code>fileCacheMaxEntryBytes</code> are read (memory-mapped) but not kept.
+ * <p>
+ * Configured from the web.xml context-params <code>fileCacheMaxBytes</code>
+ * and <code>fileCacheMaxEntryBytes</code>.
+ *
+ * @author hcayless
+ */
+public class FileCache implements ServletContextListener {
+
+  static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+  static final long DEFAULT_MAX_ENTRY_BYTES = 2L * 1024 * 1024;
+  /** Files at least this big are memory-mapped rather than read through a buffer. */
+  static final long MAP_THRESHOLD = 256 * 1024;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static volatile long maxBytes = DEFAULT_MAX_BYTES;
+  private static volatile long maxEntryBytes = DEFAULT_MAX_ENTRY_BYTES;
+  private static final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+  private static long residentBytes;
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong reloads = new AtomicLong();
+  private static final AtomicLong evictions = new AtomicLong();
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    ServletContext context = sce.getServletContext();
+    try {
+      String max = context.getInitParameter("fileCacheMaxBytes");
+      String entry = context.getInitParameter("fileCacheMaxEntryBytes");
+      configure(max == null ? DEFAULT_MAX_BYTES : Long.parseLong(max.trim()),
+              entry == null ? DEFAULT_MAX_ENTRY_BYTES : Long.parseLong(entry.trim()));
+    } catch (NumberFormatException e) {
+      context.log("Bad file cache setting, using defaults.", e);
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    clear();
+  }
+
+  static void configure(long max, long maxEntry) {
+    maxBytes = max;
+    maxEntryBytes = maxEntry;
+    synchronized (cache) {
+      evict();
+    }
+  }
+
+  /**
+   * Returns the contents of <code>f</code>, from memory if the file has not
+   * changed since it was last read.
+   */
+  public static String getText(File f) throws IOException {
+    String key = f.getPath();
+    long modified = f.lastModified();
+    long length = f.length();
+    if (modified == 0L) {
+      throw new FileNotFoundException(key);
+    }
+    Entry e;
+    synchronized (cache) {
+      e = cache.get(key);
+    }
+    if (e != null && e.modified == modified && e.length == length) {
+      hits.incrementAndGet();
+      return e.text;
+    }
+    if (e != null) {
+      reloads.incrementAndGet();
+    }
+    misses.incrementAndGet();
+    String text = read(f, length);
+    long size = sizeOf(text);
+    if (size <= maxEntryBytes) {
+      synchronized (cache) {
+        Entry old = cache.put(key, new Entry(text, modified, length, size));
+        if (old != null) {
+          residentBytes -= old.size;
+        }
+        residentBytes += size;
+        evict();
+      }
+    }
+    return text;
+  }
+
+  public static void clear() {
+    synchronized (cache) {
+      cache.clear();
+      residentBytes = 0;
+    }
+  }
+
+  public static Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    long h = hits.get();
+    long m = misses.get();
+    synchronized (cache) {
+      stats.put("entries", cache.size());
+      stats.put("residentBytes", residentBytes);
+    }
+    stats.put("maxBytes", maxBytes);
+    stats.put("hits", h);
+    stats.put("misses", m);
+    stats.put("hitRatio", h + m == 0 ? 0.0 : (double) h / (h + m));
+    stats.put("reloads", reloads.get());
+    stats.put("evictions", evictions.get());
+    return stats;
+  }
+
+  /**
+   * Drops least recently used entries until the cache fits.  Callers hold
+   * the cache lock.
+   */
+  private static void evict() {
+    Iterator<Entry> i = cache.values().iterator();
+    while (residentBytes > maxBytes && i.hasNext()) {
+      residentBytes -= i.next().size;
+      i.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  private static String read(File f, long length) throws IOException {
+    FileInputStream in = new FileInputStream(f);
+    try {
+      if (length >= MAP_THRESHOLD) {
+        FileChannel channel = in.getChannel();
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        return UTF8.decode(buf).toString();
+      }
+      return new String(readFully(in, (int) length), UTF8);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] readFully(InputStream in, int length) throws IOException {
+    byte[] buf = new byte[Math.max(length, 16)];
+    int total = 0;
+    int n;
+    while ((n = in.read(buf, total, buf.length - total)) > 0) {
+      total += n;
+      if (total == buf.length) {
+        // the file grew while we were reading it
+        byte[] bigger = new byte[buf.length * 2];
+        System.arraycopy(buf, 0, bigger, 0, total);
+        buf = bigger;
+      }
+    }
+    if (total == buf.length) {
+      return buf;
+    }
+    byte[] result = new byte[total];
+    System.arraycopy(buf, 0, result, 0, total);
+    return result;
+  }
+
+  /**
+   * Approximate heap taken by a String of this length.
+   */
+  static long sizeOf(String s) {
+    return 40L + 2L * s.length();
+  }
+
+  private static class Entry {
+    final String text;
+    final long modified;
+    final long length;
+    final long size;
+
+    Entry(String text, long modified, long length, long size) {
+      this.text = text;
+      this.modified = modified;
+      this.length = length;
+      this.size = size;
+    }
+  }
+
+}
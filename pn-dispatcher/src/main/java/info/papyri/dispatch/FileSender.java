@@ -0,0 +1,273 @@
+package info.papyri.dispatch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Sends static files (generated HTML, text and source XML) as response
+ * bodies.  Responses carry <code>Last-Modified</code>, <code>ETag</code> and
+ * <code>Content-Length</code>; conditional requests are answered with 304 and
+ * single byte ranges with 206.  Pre-compressed variants are used where
+ * wanted and available.  The body is handed to Tomcat's sendfile when
+ * the connector supports it, and otherwise copied with
+ * <code>FileChannel.transferTo</code>.  Nothing is shared between requests.
+ *
+ * @author hcayless
+ */
+public class FileSender {
+
+  static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+  static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+  static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+  static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+  private FileSender() {
+  }
+
+  /**
+   * Sends <code>f</code>, or a 404 if it doesn't exist.  The content type
+   * should already have been set.
+   */
+  public static void send(HttpServletRequest request, HttpServletResponse response, File f)
+          throws IOException {
+    send(request, response, f, false);
+  }
+
+  /**
+   * Sends <code>f</code>, or a 404 if it doesn't exist.  If
+   * <code>compressible</code>, whole-file requests from clients accepting
+   * gzip get the file's pre-compressed sibling when it is up to date (see
+   * {@link GzipVariants}).
+   */
+  public static void send(HttpServletRequest request, HttpServletResponse response, File f, boolean compressible)
+          throws IOException {
+    if (f == null || !f.isFile()) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    long length = f.length();
+    long modified = f.lastModified();
+    String etag = etag(length, modified);
+    if (compressible) {
+      response.setHeader("Vary", "Accept-Encoding");
+      File gz = request.getHeader("Range") == null && acceptsGzip(request) ? GzipVariants.variant(f) : null;
+      if (gz != null) {
+        // the variant is a different entity, so gets its own validator
+        etag = etag.substring(0, etag.length() - 1) + "-gz\"";
+        length = gz.length();
+        f = gz;
+        response.setHeader("Content-Encoding", "gzip");
+      }
+    }
+    response.setHeader("ETag", etag);
+    response.setDateHeader("Last-Modified", modified);
+    response.setHeader("Accept-Ranges", "bytes");
+    if (notModified(request, etag, modified)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    long start = 0;
+    long end = length - 1;
+    long[] range = range(request, etag, modified, length);
+    if (range != null && range[0] < 0) {
+      response.setHeader("Content-Range", "bytes */" + length);
+      response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      return;
+    }
+    if (range != null) {
+      start = range[0];
+      end = range[1];
+      response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+    }
+    long count = end - start + 1;
+    setContentLength(response, count);
+    if ("HEAD".equals(request.getMethod()) || count == 0) {
+      return;
+    }
+    if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+      request.setAttribute(SENDFILE_FILENAME, f.getCanonicalPath());
+      request.setAttribute(SENDFILE_START, Long.valueOf(start));
+      request.setAttribute(SENDFILE_END, Long.valueOf(end + 1));
+      return;
+    }
+    OutputStream out = response.getOutputStream();
+    try {
+      copy(f, start, count, out);
+    } catch (IOException e) {
+      // most likely the client went away
+      System.out.println("Failed to send " + f + ": " + e.getMessage());
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Copies <code>count</code> bytes of <code>f</code>, starting at
+   * <code>start</code>, to <code>out</code>.
+   */
+  static void copy(File f, long start, long count, OutputStream out) throws IOException {
+    FileInputStream in = new FileInputStream(f);
+    try {
+      FileChannel channel = in.getChannel();
+      WritableByteChannel target = Channels.newChannel(out);
+      long pos = start;
+      long end = start + count;
+      while (pos < end) {
+        long n = channel.transferTo(pos, end - pos, target);
+        if (n <= 0) {
+          break;
+        }
+        pos += n;
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Whether the Accept-Encoding header lists gzip with a non-zero quality.
+   */
+  static boolean acceptsGzip(HttpServletRequest request) {
+    String header = request.getHeader("Accept-Encoding");
+    if (header == null) {
+      return false;
+    }
+    for (String coding : header.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim();
+      if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+        for (int i = 1; i < parts.length; i++) {
+          String param = parts[i].trim();
+          if (param.startsWith("q=")) {
+            try {
+              return Double.parseDouble(param.substring(2)) > 0;
+            } catch (NumberFormatException e) {
+              return false;
+            }
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static String etag(long length, long modified) {
+    return "\"" + Long.toHexString(length) + "-" + Long.toHexString(modified) + "\"";
+  }
+
+  /**
+   * Whether the client's cached copy is current.  If-None-Match takes
+   * precedence over If-Modified-Since.
+   */
+  static boolean notModified(HttpServletRequest request, String etag, long modified) {
+    String match = request.getHeader("If-None-Match");
+    if (match != null) {
+      return matches(match, etag);
+    }
+    long since = dateHeader(request, "If-Modified-Since");
+    // HTTP dates have one second resolution
+    return since >= 0 && modified / 1000 <= since / 1000;
+  }
+
+  /**
+   * The inclusive byte range requested, null for the whole file (no Range
+   * header, a stale If-Range, or a form we don't handle, such as multiple
+   * ranges), or {-1, -1} if the range can't be satisfied.
+   */
+  static long[] range(HttpServletRequest request, String etag, long modified, long length) {
+    String header = request.getHeader("Range");
+    if (header == null || !header.startsWith("bytes=") || header.indexOf(',') > 0) {
+      return null;
+    }
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange != null) {
+      if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+        if (!ifRange.trim().equals(etag)) {
+          return null;
+        }
+      } else {
+        long date = dateHeader(request, "If-Range");
+        if (date < 0 || modified / 1000 > date / 1000) {
+          return null;
+        }
+      }
+    }
+    String spec = header.substring(6).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    long start;
+    long end;
+    try {
+      if (dash == 0) {
+        long suffix = Long.parseLong(spec.substring(1).trim());
+        if (suffix <= 0) {
+          return new long[] {-1, -1};
+        }
+        start = Math.max(0, length - suffix);
+        end = length - 1;
+      } else {
+        start = Long.parseLong(spec.substring(0, dash).trim());
+        String last = spec.substring(dash + 1).trim();
+        end = last.length() == 0 ? Long.MAX_VALUE : Long.parseLong(last);
+        if (end < start) {
+          return null;
+        }
+        end = Math.min(end, length - 1);
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (start >= length) {
+      return new long[] {-1, -1};
+    }
+    return new long[] {start, end};
+  }
+
+  /**
+   * Whether an <code>If-None-Match</code> header (which may be null) lists
+   * <code>etag</code>, weakly or as "*".
+   */
+  static boolean matches(String header, String etag) {
+    if (header == null) {
+      return false;
+    }
+    for (String tag : header.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if ("*".equals(tag) || etag.equals(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long dateHeader(HttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      return -1;
+    }
+  }
+
+  private static void setContentLength(HttpServletResponse response, long length) {
+    if (length <= Integer.MAX_VALUE) {
+      response.setContentLength((int) length);
+    } else {
+      response.setHeader("Content-Length", Long.toString(length));
+    }
+  }
+
+}
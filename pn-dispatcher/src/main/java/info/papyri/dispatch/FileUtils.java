@@ -2,14 +2,12 @@ package info.papyri.dispatch;
 
 import java.io.*;
 import java.net.URLDecoder;
-import java.nio.charset.Charset;
 import java.text.Normalizer;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList; 
 import java.util.Arrays;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.antlr.runtime.*;
 
@@ -30,7 +28,6 @@ public class FileUtils {
     this.htmlPath = htmlPath;
   }
 
-  private char[] buffer = new char[8192];
   /**
    * Returns the HTML <code>java.io.File</code> for the given collection
    * and item.
@@ -286,23 +283,18 @@ public class FileUtils {
   }
 
   /**
-   * Reads the given File into a String and returns it
+   * Reads the given File into a String and returns it.  Contents are served
+   * from the shared {@link FileCache} when the file is unchanged.
    * @param f
    * @return the File contents
    */
   public String loadFile(File f) {
-    StringBuilder t = new StringBuilder();
     try {
-      InputStreamReader reader = new InputStreamReader(new FileInputStream(f), Charset.forName("UTF-8"));
-      int size = -1;
-      while ((size = reader.read(buffer)) > 0) {
-        t.append(buffer, 0, size);
-      }
-      reader.close();
+      return FileCache.getText(f);
     } catch (Exception e) {
       e.printStackTrace(System.out);
     }
-    return t.toString();
+    return "";
   }
 
   /**
@@ -313,74 +305,11 @@ public class FileUtils {
    * @return the highlighted text
    */
   public String standardHighlight(String query, String t) {
-    Pattern[] patterns = getPatterns(query);
-    List<String> exclusions = getExclusions(t);
-    String text = t.toString().replaceAll(exclude, "ⓐⓐⓐ\n");
-    int index = 0;
-    for (Pattern pattern : patterns) {
-      StringBuilder hl = new StringBuilder();
-      Matcher m = pattern.matcher(text);
-      while (m.find()) {
-        hl.append(text.substring(index, m.start()));
-        hl.append(hlStartMark);
-        hl.append(text.substring(m.start(), m.end()));
-        hl.append(hlEndMark);
-        index = m.end();
-      }
-      if (hl.length() > 0) {
-        hl.append(text.substring(index));
-        text = hl.toString();
-        index = 0;
-      }
-    }
-    Pattern p = Pattern.compile("ⓐⓐⓐ\\n?");
-    int i = 0;
-    int start = 0;
-    Matcher m = p.matcher(text);
-    StringBuilder result = new StringBuilder();
-    while (m.find()) {
-      result.append(text.substring(start, m.start()));
-      result.append(exclusions.get(i));
-      start = m.end();
-      i++;
-    }
-    result.append(text.substring(start));
-    return result.toString().replaceAll("Ⓐ+", hlStart).replaceAll("Ⓑ+", hlEnd);
+    return Snippets.highlight(getPatterns(query), t);
   }
   
   public String highlight(Pattern[] patterns, String t) {
-    List<String> exclusions = getExclusions(t);
-    String text = t.toString().replaceAll(exclude, "ⓐⓐⓐ\n");
-    int index = 0;
-    for (Pattern pattern : patterns) {
-      StringBuilder hl = new StringBuilder();
-      Matcher m = pattern.matcher(text);
-      while (m.find()) {
-        hl.append(text.substring(index, m.start()));
-        hl.append(hlStartMark);
-        hl.append(text.substring(m.start(), m.end()));
-        hl.append(hlEndMark);
-        index = m.end();
-      }
-      if (hl.length() > 0) {
-        hl.append(text.substring(index));
-        text = hl.toString();
-        index = 0;
-      }
-    }
-    Pattern p = Pattern.compile("ⓐⓐⓐ\\n?");
-    int i = 0;
-    int start = 0;
-    Matcher m = p.matcher(text);
-    StringBuilder result = new StringBuilder();
-    while (m.find()) {
-      result.append(text.substring(start, m.start()));
-      result.append(exclusions.get(i));
-      start = m.end();
-      i++;
-    }
-    result.append(text.substring(start));
-    return result.toString().replaceAll("Ⓐ+", hlStart).replaceAll("Ⓑ+", hlEnd);
+    return Snippets.highlight(patterns, t);
   }
   
 
@@ -394,65 +323,25 @@ public class FileUtils {
   /**
    * Finds matches in a text file and returns the top 3 matches with HTML
    * highlighting applied and with context surrounding the highlighted text.
-   * @param query the text to match
+   * @see Snippets#highlightMatches(String, Pattern[])
    * @param t the text
+   * @param patterns the patterns to match
    * @return A <code>java.util.List</code> containing the top 3 matches plus
    * context
    */
   public List<String> highlightMatches(String t, Pattern[] patterns) {
-    List<String> result = new ArrayList<String>();
-    String text = t.toString().replaceAll(hyphenatedLineNumInSupplied, "Ⓜ$3ⓞ").replaceAll(hyphenatedLineNum, "Ⓝ$3ⓜ").replaceAll(lineNum, "\nⓝ$3ⓜ").replace("\n", " ⓝ").replace("<", "&lt;").replace(">", "&gt;");
-    for (Pattern pattern : patterns) {
-      Matcher m = pattern.matcher(text);
-      int prevEnd = 0;
-      while (m.find()) {
-        int start = m.toMatchResult().start();
-        int end = m.toMatchResult().end();
-        if (text.substring(0, start).indexOf('ⓝ') > 0) {
-          start = text.substring(0, start).lastIndexOf("ⓝ");
-        } else {
-          start = 0;
-        }
-        if (end > text.length() - 50) {
-          end = text.length();
-        } else {
-          if (text.indexOf('ⓝ', end) > 0) {
-            end = text.indexOf('ⓝ', end) - 1;
-          }
-        }
-        // if our lines are excessively long, then trim them
-        if (end - start > 150) {
-          while (m.toMatchResult().start() - start > 100) {
-            start = text.indexOf(' ', start + 70) + 1; 
-          }
-          if (end - m.toMatchResult().end() > 100) {
-            end = text.lastIndexOf(' ', m.toMatchResult().end() + 70);
-          }
-        }
-        if (start >= prevEnd) {
-          result.add(highlight(patterns, text.substring(start, end)).replaceAll("Ⓜ([^ⓞ]+)ⓞ"
-                  + "", "-]<br/>$1 ").replaceAll("Ⓝ([^ⓜ]+)ⓜ", "-<br/>$1 ").replaceAll("ⓝ([^ⓜ]+)ⓜ", "$1 ").replace("ⓝ", ""));
-          if (result.size() > 2) {
-            return result;
-          }
-          prevEnd = end;
-        } else {
-          String hit = result.remove(result.size() - 1) + text.substring(prevEnd, end);
-          result.add(highlight(patterns, hit).replaceAll("Ⓜ([^ⓞ]+)ⓞ", "-]<br/>$1 ").replaceAll("Ⓝ([^ⓜ]+)ⓜ", "-<br/>$1 ").replaceAll("ⓝ([^ⓜ]+)ⓜ", "$1 ").replace("ⓝ", ""));
-          if (result.size() > 2) {
-            return result;
-          }
-        }
-      }
-    }
-    return result;
+    return Snippets.highlightMatches(t, patterns);
   }
   
 
 
     public Pattern[] getPatterns(String query) {
+      Pattern[] patterns = HighlightPatterns.get(HighlightPatterns.STANDARD, query);
+      if (patterns != null) {
+        return patterns;
+      }
       String q = query.replace("*", "£").replace("?", "¥");
-      ANTLRStringStream a = new ANTLRStringStream(q.replaceAll("[\\\\/]", "").replaceAll("\"([^\"]+)\"~\\d+", "$1"));
+      ANTLRStringStream a = new ANTLRStringStream(QUERY_PROXIMITY.matcher(QUERY_SLASHES.matcher(q).replaceAll("")).replaceAll("$1"));
       QueryLexer ql = new QueryLexer(a);
       CommonTokenStream tokens = new CommonTokenStream(ql);
       QueryParser qp = new QueryParser(tokens);
@@ -461,52 +350,38 @@ public class FileUtils {
         qp.query();
         find = qp.getStrings();
       } catch (RecognitionException e) {
-        return new Pattern[0];
+        return HighlightPatterns.put(HighlightPatterns.STANDARD, query, new Pattern[0]);
       }
-      Pattern[] patterns = new Pattern[find.size()];
+      patterns = new Pattern[find.size()];
       for (int i = 0; i < find.size(); i++) {
         if (query.contains("#") || query.contains("ngram")) {
-          patterns[i] = Pattern.compile(find.get(i).toLowerCase()
-                .replaceAll("([^ #])", sigla + "$1" + sigla)
+          String p = NOT_SPACE_OR_HASH.matcher(find.get(i).toLowerCase()).replaceAll(siglaWrapped)
                 .replace("# #", "\\s+")
-                .replace("#", "(\\b)")
-                .replaceAll("\\s", "\\\\s+")
-                .replaceAll("^#", "(\\s|^)")
-                .replaceAll("^$", "(\\s|$)")
-                .replace("£", "\\S*").replace("¥", "\\S").replace("\"", "")
-                .replace("α", "(α|ἀ|ἁ|ἂ|ἃ|ἄ|ἅ|ἆ|ἇ|ὰ|ά|ᾀ|ᾁ|ᾂ|ᾃ|ᾄ|ᾅ|ᾆ|ᾇ|ᾲ|ᾳ|ᾴ|ᾶ|ᾷ)")
-                .replace("ε", "(ε|ἐ|ἑ|ἒ|ἓ|ἔ|ἕ|έ|ὲ)")
-                .replace("η", "(η|ἠ|ἡ|ἢ|ἣ|ἤ|ἥ|ἦ|ἧ|ή|ὴ|ᾐ|ᾑ|ᾒ|ᾓ|ᾔ|ᾕ|ᾖ|ᾗ|ῂ|ῃ|ῄ|ῆ|ῇ)")
-                .replace("ι", "(ι|ί|ὶ|ἰ|ἱ|ἲ|ἳ|ἴ|ἵ|ἶ|ἷ|ῒ|ΐ|ῖ|ῗ)")
-                .replace("ο", "(ο|ὸ|ό|ὀ|ὁ|ὂ|ὃ|ὄ|ὅ)")
-                .replace("υ", "(υ|ύ|ὺ|ὐ|ὑ|ὒ|ὓ|ὔ|ὕ|ὖ|ὗ|ῢ|ΰ|ῦ|ῧ)")
-                .replace("ω", "(ω|ώ|ὼ|ὠ|ὡ|ὢ|ὣ|ὤ|ὥ|ὦ|ὧ|ᾠ|ᾡ|ᾢ|ᾣ|ᾤ|ᾥ|ᾦ|ᾧ|ῲ|ῳ|ῴ|ῶ|ῷ)")
-                .replace("ρ", "(ρ|ῥ)").replaceAll("(σ|ς)", "(σ|ς)" + sigla),
+                .replace("#", "(\\b)");
+          p = WHITESPACE.matcher(p).replaceAll("\\\\s+");
+          p = LEADING_HASH.matcher(p).replaceAll("(\\s|^)");
+          p = EMPTY.matcher(p).replaceAll("(\\s|$)");
+          p = p.replace("£", "\\S*").replace("¥", "\\S").replace("\"", "");
+          patterns[i] = Pattern.compile(HighlightPatterns.expand(p, siglaPattern),
                 Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.UNIX_LINES);
         } else {
-          patterns[i] = Pattern.compile("\\b" + find.get(i).toLowerCase()
-                .replaceAll("(\\S)", sigla + "$1" + sigla)
-                .replaceAll("([^£¥])$", "$1\\\\b")
-                .replaceAll("\\s", "\\\\s+")
-                .replace("£", "\\S*").replace("¥", "\\S").replace("\"", "")
-                .replace("α", "(α|ἀ|ἁ|ἂ|ἃ|ἄ|ἅ|ἆ|ἇ|ὰ|ά|ᾀ|ᾁ|ᾂ|ᾃ|ᾄ|ᾅ|ᾆ|ᾇ|ᾲ|ᾳ|ᾴ|ᾶ|ᾷ)")
-                .replace("ε", "(ε|ἐ|ἑ|ἒ|ἓ|ἔ|ἕ|έ|ὲ)")
-                .replace("η", "(η|ἠ|ἡ|ἢ|ἣ|ἤ|ἥ|ἦ|ἧ|ή|ὴ|ᾐ|ᾑ|ᾒ|ᾓ|ᾔ|ᾕ|ᾖ|ᾗ|ῂ|ῃ|ῄ|ῆ|ῇ)")
-                .replace("ι", "(ι|ί|ὶ|ἰ|ἱ|ἲ|ἳ|ἴ|ἵ|ἶ|ἷ|ῒ|ΐ|ῖ|ῗ)")
-                .replace("ο", "(ο|ὸ|ό|ὀ|ὁ|ὂ|ὃ|ὄ|ὅ)")
-                .replace("υ", "(υ|ύ|ὺ|ὐ|ὑ|ὒ|ὓ|ὔ|ὕ|ὖ|ὗ|ῢ|ΰ|ῦ|ῧ)")
-                .replace("ω", "(ω|ώ|ὼ|ὠ|ὡ|ὢ|ὣ|ὤ|ὥ|ὦ|ὧ|ᾠ|ᾡ|ᾢ|ᾣ|ᾤ|ᾥ|ᾦ|ᾧ|ῲ|ῳ|ῴ|ῶ|ῷ)")
-                .replace("ρ", "(ρ|ῥ)").replaceAll("(σ|ς)", "(σ|ς)" + sigla),
+          String p = NOT_SPACE.matcher(find.get(i).toLowerCase()).replaceAll(siglaWrapped);
+          p = LAST_NOT_WILDCARD.matcher(p).replaceAll("$1\\\\b");
+          p = WHITESPACE.matcher(p).replaceAll("\\\\s+");
+          p = p.replace("£", "\\S*").replace("¥", "\\S").replace("\"", "");
+          patterns[i] = Pattern.compile("\\b" + HighlightPatterns.expand(p, siglaPattern),
                 Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.UNIX_LINES);
         }
     }
-    return patterns;
+    return HighlightPatterns.put(HighlightPatterns.STANDARD, query, patterns);
   }
    
   public Pattern[] getSubstringHighlightPatterns(String query){
       
+      Pattern[] patterns = HighlightPatterns.get(HighlightPatterns.SUBSTRING, query);
+      if(patterns != null) return patterns;
       List<String> tokens = getTokensFromQuery(query);
-      Pattern[] patterns = new Pattern[tokens.size()];
+      patterns = new Pattern[tokens.size()];
       for(int i = 0; i < tokens.size(); i++){
           
           String token = tokens.get(i);
@@ -515,13 +390,15 @@ public class FileUtils {
           
       }
       
-      return patterns;
+      return HighlightPatterns.put(HighlightPatterns.SUBSTRING, query, patterns);
   }
   
   public Pattern[] getPhraseHighlightPatterns(String query){
       
+      Pattern[] patterns = HighlightPatterns.get(HighlightPatterns.PHRASE, query);
+      if(patterns != null) return patterns;
       List<String> tokens = getTokensFromQuery(query);
-      Pattern[] patterns = new Pattern[tokens.size()];
+      patterns = new Pattern[tokens.size()];
       for(int i = 0; i < tokens.size(); i++){
       
           String token = tokens.get(i);
@@ -531,7 +408,7 @@ public class FileUtils {
           
       }
       
-      return patterns;
+      return HighlightPatterns.put(HighlightPatterns.PHRASE, query, patterns);
   }
   
 
@@ -539,7 +416,7 @@ public class FileUtils {
    public List<String> getTokensFromQuery(String query){
        
       String q = query.replace("*", "£").replace("?", "¥");
-      ANTLRStringStream a = new ANTLRStringStream(q.replaceAll("[\\\\/]", "").replaceAll("\"([^\"]+)\"~\\d+", "$1"));
+      ANTLRStringStream a = new ANTLRStringStream(QUERY_PROXIMITY.matcher(QUERY_SLASHES.matcher(q).replaceAll("")).replaceAll("$1"));
       QueryLexer ql = new QueryLexer(a);
       CommonTokenStream tokens = new CommonTokenStream(ql);
       QueryParser qp = new QueryParser(tokens);
@@ -553,18 +430,13 @@ public class FileUtils {
        
    }
     
+   /**
+    * Replaces each unaccented Greek vowel (and rho) with a group matching
+    * any of its accented forms.
+    */
    public String substituteDiacritics(String rawString){
         
-        String transformedString = rawString
-                .replace("α", "(α|ἀ|ἁ|ἂ|ἃ|ἄ|ἅ|ἆ|ἇ|ὰ|ά|ᾀ|ᾁ|ᾂ|ᾃ|ᾄ|ᾅ|ᾆ|ᾇ|ᾲ|ᾳ|ᾴ|ᾶ|ᾷ)")
-                .replace("ε", "(ε|ἐ|ἑ|ἒ|ἓ|ἔ|ἕ|έ|ὲ)")
-                .replace("η", "(η|ἠ|ἡ|ἢ|ἣ|ἤ|ἥ|ἦ|ἧ|ή|ὴ|ᾐ|ᾑ|ᾒ|ᾓ|ᾔ|ᾕ|ᾖ|ᾗ|ῂ|ῃ|ῄ|ῆ|ῇ)")
-                .replace("ι", "(ι|ί|ὶ|ἰ|ἱ|ἲ|ἳ|ἴ|ἵ|ἶ|ἷ|ῒ|ΐ|ῖ|ῗ)")
-                .replace("ο", "(ο|ὸ|ό|ὀ|ὁ|ὂ|ὃ|ὄ|ὅ)")
-                .replace("υ", "(υ|ύ|ὺ|ὐ|ὑ|ὒ|ὓ|ὔ|ὕ|ὖ|ὗ|ῢ|ΰ|ῦ|ῧ)")
-                .replace("ω", "(ω|ώ|ὼ|ὠ|ὡ|ὢ|ὣ|ὤ|ὥ|ὦ|ὧ|ᾠ|ᾡ|ᾢ|ᾣ|ᾤ|ᾥ|ᾦ|ᾧ|ῲ|ῳ|ῴ|ῶ|ῷ)")
-                .replace("ρ", "(ρ|ῥ)");                  
-        return transformedString;
+        return HighlightPatterns.expand(rawString, null);
         
     }
    
@@ -586,17 +458,17 @@ public class FileUtils {
    public String substituteForSubstringPatternMatch(String rawString){
        
        String transformedString = rawString;
-       transformedString = transformedString.toLowerCase()
-                .replaceAll("([^ #])", sigla + "$1" + sigla)
+       transformedString = NOT_SPACE_OR_HASH.matcher(transformedString.toLowerCase()).replaceAll(siglaWrapped)
                 .replace("# #", "\\s+")
-                .replace("#", "(\\b)")
-                .replaceAll("\\s", "\\\\s+")
-                .replaceAll("^#", "(\\s|^)")
-                .replaceAll("^$", "(\\s|$)")
-                .replaceAll("°", "\\\\((?!\\\\*)")
-                .replaceAll("£", "[^//s]*").replaceAll("¥", "[^//s]").replace("\"", "");
-       transformedString = substituteDiacritics(transformedString);
-       transformedString = swapInSigla(transformedString);
+                .replace("#", "(\\b)");
+       transformedString = WHITESPACE.matcher(transformedString).replaceAll("\\\\s+");
+       transformedString = LEADING_HASH.matcher(transformedString).replaceAll("(\\s|^)");
+       transformedString = EMPTY.matcher(transformedString).replaceAll("(\\s|$)");
+       transformedString = DEGREE.matcher(transformedString).replaceAll("\\\\((?!\\\\*)");
+       transformedString = POUND.matcher(transformedString).replaceAll("[^//s]*");
+       transformedString = YEN.matcher(transformedString).replaceAll("[^//s]").replace("\"", "");
+       // substituteDiacritics and swapInSigla in one pass
+       transformedString = HighlightPatterns.expand(transformedString, siglaPattern);
        return transformedString;
        
    }
@@ -604,17 +476,17 @@ public class FileUtils {
    public String substituteForPhrasePatternMatch(String rawString){
        
        String transformedString = rawString;
-       transformedString = transformedString.toLowerCase()
-                .replaceAll("(\\S)", sigla + "$1" + sigla)
+       transformedString = NOT_SPACE.matcher(transformedString.toLowerCase()).replaceAll(siglaWrapped)
                 .replace("^ #", "\\s+")
-                .replace("#", "(\\b)")
-                .replaceAll("\\s", "\\\\s+")
-                .replaceAll("^#", "(\\s|^)")
-                .replaceAll("^$", "(\\s|$)")
-                .replaceAll("°", "\\\\((?!\\\\*)")
-                .replace("£", "[^\\s]*").replaceAll("¥", "[^\\s]").replace("\"", "");
-       transformedString = substituteDiacritics(transformedString);
-       transformedString = swapInSigla(transformedString);
+                .replace("#", "(\\b)");
+       transformedString = WHITESPACE.matcher(transformedString).replaceAll("\\\\s+");
+       transformedString = LEADING_HASH.matcher(transformedString).replaceAll("(\\s|^)");
+       transformedString = EMPTY.matcher(transformedString).replaceAll("(\\s|$)");
+       transformedString = DEGREE.matcher(transformedString).replaceAll("\\\\((?!\\\\*)");
+       transformedString = transformedString.replace("£", "[^\\s]*");
+       transformedString = YEN.matcher(transformedString).replaceAll("[^\\s]").replace("\"", "");
+       // substituteDiacritics and swapInSigla in one pass
+       transformedString = HighlightPatterns.expand(transformedString, siglaPattern);
        transformedString = "(^|(?<=[\\s]))" + transformedString + "((?=[\\s])|$)";
        return transformedString;
        
@@ -630,7 +502,7 @@ public class FileUtils {
    
    public String swapInSigla(String rawString){
         
-       return rawString.replaceAll("(σ|ς)", "(σ|ς)" + sigla);
+       return SIGMA.matcher(rawString).replaceAll("(σ|ς)" + sigla);
        
    }
    
@@ -642,6 +514,8 @@ public class FileUtils {
    
     Pattern[] buildPatterns(String q){
       
+      Pattern[] cached = HighlightPatterns.get(HighlightPatterns.READER, q);
+      if(cached != null) return cached;
       ArrayList<Pattern> patterns = new ArrayList<Pattern>();
       String[] qbits = q.split("\\)");
       for(int i = 0; i < qbits.length; i++){
@@ -675,7 +549,7 @@ public class FileUtils {
       }
       
       Pattern[] patt = new Pattern[patterns.size()];
-      return patterns.toArray(patt);
+      return HighlightPatterns.put(HighlightPatterns.READER, q, patterns.toArray(patt));
       
   }
 
@@ -689,16 +563,6 @@ public class FileUtils {
       return Normalizer.normalize(in, Normalizer.Form.NFD).replaceAll("[\\p{InCombiningDiacriticalMarks}]", "");
     }
 
-  private List<String> getExclusions(String t) {
-    List<String> exclusions = new ArrayList<String>();
-    Pattern exPattern = Pattern.compile(exclude);
-    Matcher exMatch = exPattern.matcher(t);
-    while (exMatch.find()) {
-      exclusions.add(t.substring(exMatch.start(), exMatch.end()));
-    }
-    return exclusions;
-  }
-
   /**
    * Given an input string and a string to find within it, returns the
    * remainder of the input string after the first occurrence of the
@@ -779,12 +643,20 @@ public class FileUtils {
   private String xmlPath;
   private String htmlPath;
   private static String sigla = "([-’ʼ\\\\[\\\\]()\u0323〚〛\\\\\\\\/\"|?*ⓐⒶⒷ.]|&gt;|&lt;|ca\\.|ⓝ[0-9a-z]+\\\\.ⓜ|Ⓝ[0-9a-z]+\\\\.ⓜ|Ⓜ[0-9a-z]+\\\\.ⓞ)*";
-  private static String exclude = "(<span\\s[^>]+>[^<]+</span>|<a\\s[^>]+>[^<]+</a>|<[^>]+>|&\\w+;)";
-  private static String lineNum = "((\\s|\\r|\\n)+([0-9]+\\.\\S*)\\s*)";
-  private static String hyphenatedLineNumInSupplied = "((?<![-])-\\](\\s|\\r|\\n)+([0-9]+\\.\\S*)\\s*)";
-  private static String hyphenatedLineNum = "(-(\\s|\\r|\\n)+([0-9]+\\.\\S*)\\s*)";
-  private static String hlStart = "<span class=\"highlight\">";
-  private static String hlStartMark = "Ⓐ";
-  private static String hlEnd = "</span>";
-  private static String hlEndMark = "Ⓑ";
+  /** replacement wrapping a captured character in sigla */
+  private static final String siglaWrapped = sigla + "$1" + sigla;
+  /** sigla as it comes out of a regex replacement, i.e. with its escapes applied */
+  private static final String siglaPattern = Pattern.compile("^").matcher("").replaceAll(sigla);
+  private static final Pattern QUERY_SLASHES = Pattern.compile("[\\\\/]");
+  private static final Pattern QUERY_PROXIMITY = Pattern.compile("\"([^\"]+)\"~\\d+");
+  private static final Pattern NOT_SPACE = Pattern.compile("(\\S)");
+  private static final Pattern NOT_SPACE_OR_HASH = Pattern.compile("([^ #])");
+  private static final Pattern LAST_NOT_WILDCARD = Pattern.compile("([^£¥])$");
+  private static final Pattern WHITESPACE = Pattern.compile("\\s");
+  private static final Pattern LEADING_HASH = Pattern.compile("^#");
+  private static final Pattern EMPTY = Pattern.compile("^$");
+  private static final Pattern DEGREE = Pattern.compile("°");
+  private static final Pattern POUND = Pattern.compile("£");
+  private static final Pattern YEN = Pattern.compile("¥");
+  private static final Pattern SIGMA = Pattern.compile("(σ|ς)");
 }
@@ -0,0 +1,239 @@
+package info.papyri.dispatch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Pre-compressed <code>.gz</code> siblings of the generated HTML, text and
+ * XML files, which {@link FileSender} serves to clients accepting gzip.
+ * A sibling is current if its modification time equals the original's; a
+ * missing or stale sibling is (re)built in the background the first time it
+ * is asked for, and the original is served meanwhile.  Run
+ * <code>main</code> over the data directories to build them all in one go
+ * after the indexer has run.
+ * <p>
+ * Configured from the web.xml context-params <code>gzipVariants</code>
+ * (true/false) and <code>gzipMinBytes</code>.
+ *
+ * @author hcayless
+ */
+public class GzipVariants implements ServletContextListener {
+
+  static final long DEFAULT_MIN_BYTES = 1024;
+  static final int MAX_QUEUED = 1000;
+
+  private static volatile boolean enabled = true;
+  private static volatile long minBytes = DEFAULT_MIN_BYTES;
+  private static ThreadPoolExecutor executor;
+  private static final Set<String> queued = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private static final AtomicLong served = new AtomicLong();
+  private static final AtomicLong stale = new AtomicLong();
+  private static final AtomicLong missing = new AtomicLong();
+  private static final AtomicLong created = new AtomicLong();
+  private static final AtomicLong failed = new AtomicLong();
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    ServletContext context = sce.getServletContext();
+    if (context.getInitParameter("gzipVariants") != null) {
+      enabled = Boolean.parseBoolean(context.getInitParameter("gzipVariants").trim());
+    }
+    try {
+      if (context.getInitParameter("gzipMinBytes") != null) {
+        minBytes = Long.parseLong(context.getInitParameter("gzipMinBytes").trim());
+      }
+    } catch (NumberFormatException e) {
+      context.log("Bad gzipMinBytes setting, using default.", e);
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    synchronized (GzipVariants.class) {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+      executor = null;
+    }
+  }
+
+  /**
+   * The current compressed sibling of <code>f</code>, or null if there isn't
+   * one yet (in which case one is queued to be made).
+   */
+  public static File variant(File f) {
+    if (!enabled || f.length() < minBytes) {
+      return null;
+    }
+    File gz = sibling(f);
+    long modified = gz.lastModified();
+    if (modified != 0L && modified == f.lastModified()) {
+      served.incrementAndGet();
+      return gz;
+    }
+    if (modified == 0L) {
+      missing.incrementAndGet();
+    } else {
+      stale.incrementAndGet();
+    }
+    schedule(f);
+    return null;
+  }
+
+  static File sibling(File f) {
+    return new File(f.getPath() + ".gz");
+  }
+
+  /**
+   * Writes the compressed sibling of <code>f</code> (via a temporary file, so
+   * readers never see a partial one) and gives it <code>f</code>'s
+   * modification time.
+   */
+  static File compress(File f) throws IOException {
+    long modified = f.lastModified();
+    File gz = sibling(f);
+    File tmp = new File(gz.getPath() + ".tmp" + Thread.currentThread().getId());
+    InputStream in = new FileInputStream(f);
+    try {
+      OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 8192);
+      try {
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+          out.write(buf, 0, n);
+        }
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      tmp.delete();
+      throw e;
+    } finally {
+      in.close();
+    }
+    if (f.lastModified() != modified) {
+      // regenerated while we were reading it; try again next time
+      tmp.delete();
+      return null;
+    }
+    tmp.setLastModified(modified);
+    if (!tmp.renameTo(gz)) {
+      gz.delete();
+      if (!tmp.renameTo(gz)) {
+        tmp.delete();
+        throw new IOException("Unable to move " + tmp + " to " + gz);
+      }
+    }
+    created.incrementAndGet();
+    return gz;
+  }
+
+  private static void schedule(final File f) {
+    final String key = f.getPath();
+    if (!queued.add(key)) {
+      return;
+    }
+    try {
+      getExecutor().execute(new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            compress(f);
+          } catch (IOException e) {
+            failed.incrementAndGet();
+            System.out.println("Failed to compress " + f + ": " + e.getMessage());
+          } finally {
+            queued.remove(key);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      queued.remove(key);
+    }
+  }
+
+  private static synchronized ThreadPoolExecutor getExecutor() {
+    if (executor == null) {
+      executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED),
+              new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "gzip-variants");
+                  t.setDaemon(true);
+                  t.setPriority(Thread.MIN_PRIORITY);
+                  return t;
+                }
+              }, new ThreadPoolExecutor.AbortPolicy());
+      executor.allowCoreThreadTimeOut(true);
+    }
+    return executor;
+  }
+
+  public static Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    stats.put("enabled", enabled);
+    stats.put("served", served.get());
+    stats.put("missing", missing.get());
+    stats.put("stale", stale.get());
+    stats.put("created", created.get());
+    stats.put("failed", failed.get());
+    stats.put("queued", queued.size());
+    return stats;
+  }
+
+  /**
+   * Creates or refreshes the siblings of every .html, .txt and .xml file
+   * under the given directories.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.out.println("Usage: GzipVariants <dir>...");
+      return;
+    }
+    long[] counts = new long[2];
+    for (String dir : args) {
+      walk(new File(dir), counts);
+    }
+    System.out.println("Compressed " + counts[0] + " of " + counts[1] + " files.");
+  }
+
+  private static void walk(File dir, long[] counts) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File f : files) {
+      String name = f.getName();
+      if (f.isDirectory()) {
+        walk(f, counts);
+      } else if (f.length() >= minBytes && (name.endsWith(".html") || name.endsWith(".txt") || name.endsWith(".xml"))) {
+        counts[1]++;
+        if (sibling(f).lastModified() != f.lastModified() && compress(f) != null) {
+          counts[0]++;
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,129 @@
+package info.papyri.dispatch;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Greek diacritic expansion for highlight regexes, and a bounded LRU cache of
+ * the compiled highlight <code>Pattern[]</code> sets built by FileUtils, keyed
+ * by query and mode, so that a search's patterns are compiled once rather
+ * than by every result row and every Reader view.
+ *
+ * @author hcayless
+ */
+public class HighlightPatterns {
+
+  /** FileUtils.getPatterns */
+  public static final String STANDARD = "standard";
+  /** FileUtils.getSubstringHighlightPatterns */
+  public static final String SUBSTRING = "substring";
+  /** FileUtils.getPhraseHighlightPatterns */
+  public static final String PHRASE = "phrase";
+  /** FileUtils.buildPatterns */
+  public static final String READER = "reader";
+
+  static final int MAX_SIZE = 1000;
+
+  private static final String[] EXPANSIONS = new String[0x400];
+  static {
+    EXPANSIONS['α'] = "(α|ἀ|ἁ|ἂ|ἃ|ἄ|ἅ|ἆ|ἇ|ὰ|ά|ᾀ|ᾁ|ᾂ|ᾃ|ᾄ|ᾅ|ᾆ|ᾇ|ᾲ|ᾳ|ᾴ|ᾶ|ᾷ)";
+    EXPANSIONS['ε'] = "(ε|ἐ|ἑ|ἒ|ἓ|ἔ|ἕ|έ|ὲ)";
+    EXPANSIONS['η'] = "(η|ἠ|ἡ|ἢ|ἣ|ἤ|ἥ|ἦ|ἧ|ή|ὴ|ᾐ|ᾑ|ᾒ|ᾓ|ᾔ|ᾕ|ᾖ|ᾗ|ῂ|ῃ|ῄ|ῆ|ῇ)";
+    EXPANSIONS['ι'] = "(ι|ί|ὶ|ἰ|ἱ|ἲ|ἳ|ἴ|ἵ|ἶ|ἷ|ῒ|ΐ|ῖ|ῗ)";
+    EXPANSIONS['ο'] = "(ο|ὸ|ό|ὀ|ὁ|ὂ|ὃ|ὄ|ὅ)";
+    EXPANSIONS['υ'] = "(υ|ύ|ὺ|ὐ|ὑ|ὒ|ὓ|ὔ|ὕ|ὖ|ὗ|ῢ|ΰ|ῦ|ῧ)";
+    EXPANSIONS['ω'] = "(ω|ώ|ὼ|ὠ|ὡ|ὢ|ὣ|ὤ|ὥ|ὦ|ὧ|ᾠ|ᾡ|ᾢ|ᾣ|ᾤ|ᾥ|ᾦ|ᾧ|ῲ|ῳ|ῴ|ῶ|ῷ)";
+    EXPANSIONS['ρ'] = "(ρ|ῥ)";
+  }
+
+  private static final Map<String, Pattern[]> cache = new LinkedHashMap<String, Pattern[]>(256, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Pattern[]> eldest) {
+      return size() > MAX_SIZE;
+    }
+  };
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+
+  private HighlightPatterns() {
+  }
+
+  /**
+   * Replaces each unaccented Greek vowel (and rho) in <code>in</code> with a
+   * group matching any of its accented forms, and, if <code>sigma</code> is
+   * given, each sigma with <code>(σ|ς)</code> followed by <code>sigma</code>.
+   * One pass over the input.
+   */
+  static String expand(String in, String sigma) {
+    StringBuilder out = null;
+    for (int i = 0; i < in.length(); i++) {
+      char c = in.charAt(i);
+      String x = null;
+      if (c < EXPANSIONS.length) {
+        x = EXPANSIONS[c];
+        if (x == null && sigma != null && (c == 'σ' || c == 'ς')) {
+          x = "(σ|ς)" + sigma;
+        }
+      }
+      if (x != null) {
+        if (out == null) {
+          out = new StringBuilder(in.length() * 8).append(in, 0, i);
+        }
+        out.append(x);
+      } else if (out != null) {
+        out.append(c);
+      }
+    }
+    return out == null ? in : out.toString();
+  }
+
+  /**
+   * The cached patterns for <code>query</code> in the given mode, or null.
+   * The returned array is a copy.
+   */
+  static Pattern[] get(String mode, String query) {
+    Pattern[] patterns;
+    synchronized (cache) {
+      patterns = cache.get(mode + ':' + query);
+    }
+    if (patterns == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return patterns.clone();
+  }
+
+  /**
+   * Caches and returns <code>patterns</code>.
+   */
+  static Pattern[] put(String mode, String query, Pattern[] patterns) {
+    synchronized (cache) {
+      cache.put(mode + ':' + query, patterns.clone());
+    }
+    return patterns;
+  }
+
+  public static void clear() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  public static Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    long h = hits.get();
+    long m = misses.get();
+    synchronized (cache) {
+      stats.put("size", cache.size());
+    }
+    stats.put("maxSize", MAX_SIZE);
+    stats.put("hits", h);
+    stats.put("misses", m);
+    stats.put("hitRatio", h + m == 0 ? 0.0 : (double) h / (h + m));
+    return stats;
+  }
+
+}
@@ -0,0 +1,232 @@
+package info.papyri.dispatch;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Streaming version of {@link Snippets#highlight(Pattern[], String)}, for
+ * whole documents.  Input is read and highlighted a chunk at a time and
+ * written straight to the output, so memory use depends on the chunk size
+ * rather than the document size.
+ * <p>
+ * Output is identical to the in-memory version.  Chunks end after a tag, and
+ * one is only written if no tag exclusion or pattern match attempt in it
+ * needed to read past its end ({@link Matcher#hitEnd()}); otherwise it is
+ * extended and tried again.  Each pattern gets the end of the text it saw in
+ * the previous chunk as context for lookbehinds and word boundaries.
+ * Patterns that always run to the end of their input (e.g.
+ * <code>[^x]*</code>) degrade to one chunk per document.
+ *
+ * @author hcayless
+ */
+public class Highlighter {
+
+  static final int CHUNK = 16384;
+  static final int CONTEXT = 256;
+
+  private final Pattern[] patterns;
+  private final int chunkSize;
+
+  public Highlighter(Pattern[] patterns) {
+    this(patterns, CHUNK);
+  }
+
+  Highlighter(Pattern[] patterns, int chunkSize) {
+    this.patterns = patterns;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Copies <code>in</code> to <code>out</code>, wrapping every match of the
+   * patterns with a highlight span and leaving tags and entities alone.
+   * Neither stream is closed.
+   */
+  public void highlight(Reader in, Writer out) throws IOException {
+    char[] buf = new char[Math.min(chunkSize, 8192)];
+    StringBuilder pending = new StringBuilder(chunkSize * 2);
+    LinkedList<String> exclusions = new LinkedList<String>();
+    String[] contexts = new String[patterns.length];
+    Arrays.fill(contexts, "");
+    char[] prev = new char[1];
+    int want = chunkSize;
+    boolean eof = false;
+    while (true) {
+      while (!eof && pending.length() < want) {
+        int n = in.read(buf);
+        if (n < 0) {
+          eof = true;
+        } else {
+          pending.append(buf, 0, n);
+        }
+      }
+      if (pending.length() == 0) {
+        break;
+      }
+      int end = eof ? pending.length() : boundary(pending);
+      boolean last = eof && end == pending.length();
+      String chunk = process(pending.substring(0, end), contexts, exclusions, last);
+      if (chunk == null) {
+        // not safe to stop here; read more and try again with a bigger chunk
+        want = pending.length() * 2;
+        continue;
+      }
+      restore(chunk, exclusions, out, prev);
+      pending.delete(0, end);
+      want = chunkSize;
+    }
+  }
+
+  /**
+   * Where to end the next chunk: just after the last tag in the pending text
+   * that isn't an opening span or link (those may be part of a longer
+   * exclusion), or failing that the last newline.
+   */
+  private static int boundary(StringBuilder pending) {
+    int i = pending.lastIndexOf(">");
+    while (i > 0) {
+      int tag = pending.lastIndexOf("<", i);
+      if (!opens(pending, tag, "<span") && !opens(pending, tag, "<a")) {
+        return i + 1;
+      }
+      i = pending.lastIndexOf(">", tag);
+    }
+    i = pending.lastIndexOf("\n");
+    return i < 0 ? pending.length() : i + 1;
+  }
+
+  private static boolean opens(StringBuilder s, int at, String name) {
+    int end = at + name.length();
+    return at >= 0 && end < s.length() && name.equals(s.substring(at, end)) && Character.isWhitespace(s.charAt(end));
+  }
+
+  /**
+   * Swaps exclusions for sentinels and applies each pattern in turn, as
+   * Snippets.highlight does, with <code>contexts[k]</code> (the end of the
+   * text pattern k saw in the previous chunk) in front for lookbehinds.
+   * Returns the marked chunk and advances the contexts, or returns null if
+   * the chunk cannot safely end where it does.
+   */
+  private String process(String raw, String[] contexts, LinkedList<String> exclusions, boolean last) {
+    LinkedList<String> found = new LinkedList<String>();
+    StringBuilder sb = new StringBuilder(raw.length() + 64);
+    Matcher ex = Snippets.EXCLUDE.matcher(raw);
+    int pos = 0;
+    while (ex.find()) {
+      if (!last && ex.hitEnd()) {
+        return null;
+      }
+      found.add(ex.group());
+      sb.append(raw, pos, ex.start()).append(Snippets.EXCLUSION_MARK);
+      pos = ex.end();
+    }
+    if (!last && runsOff(ex, pos, raw.length())) {
+      return null;
+    }
+    sb.append(raw, pos, raw.length());
+    String text = sb.toString();
+    String[] seen = new String[patterns.length];
+    for (int k = 0; k < patterns.length; k++) {
+      String input = contexts[k] + text;
+      int from = contexts[k].length();
+      seen[k] = input.length() > CONTEXT ? input.substring(input.length() - CONTEXT) : input;
+      Matcher m = patterns[k].matcher(input);
+      m.region(from, input.length());
+      m.useTransparentBounds(true);
+      m.useAnchoringBounds(false);
+      StringBuilder hl = null;
+      int index = from;
+      while (m.find()) {
+        if (!last && (m.hitEnd() || m.start() == input.length())) {
+          return null;
+        }
+        if (hl == null) {
+          hl = new StringBuilder(text.length() + 16);
+        }
+        hl.append(input, index, m.start());
+        hl.append(Snippets.HL_START_MARK);
+        hl.append(input, m.start(), m.end());
+        hl.append(Snippets.HL_END_MARK);
+        index = m.end();
+      }
+      if (!last && runsOff(m, index, input.length())) {
+        return null;
+      }
+      if (hl != null) {
+        hl.append(input, index, input.length());
+        text = hl.toString();
+      }
+    }
+    if (!last) {
+      Matcher m = Snippets.EXCLUDED.matcher(text);
+      int end = 0;
+      while (m.find()) {
+        end = m.end();
+      }
+      if (runsOff(m, end, text.length())) {
+        return null;
+      }
+    }
+    System.arraycopy(seen, 0, contexts, 0, seen.length);
+    exclusions.addAll(found);
+    return text;
+  }
+
+  /**
+   * Whether any match attempt starting between <code>from</code> and the end
+   * of the text needs to read beyond it.  (After a failed find(),
+   * <code>hitEnd()</code> is always true, so the positions after the last
+   * match are tried one at a time.)  Leaves the matcher's region changed.
+   */
+  private static boolean runsOff(Matcher m, int from, int to) {
+    for (int i = from; i < to; i++) {
+      m.region(i, to);
+      m.lookingAt();
+      if (m.hitEnd()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Puts the excluded tags and entities back and writes the chunk, turning
+   * each run of start or end marks into a span tag.  <code>prev</code>
+   * carries the last character written over to the next chunk.
+   */
+  private static void restore(String text, LinkedList<String> exclusions, Writer out, char[] prev)
+          throws IOException {
+    Matcher m = Snippets.EXCLUDED.matcher(text);
+    int start = 0;
+    while (m.find()) {
+      write(text, start, m.start(), out, prev);
+      write(exclusions.removeFirst(), 0, -1, out, prev);
+      start = m.end();
+    }
+    write(text, start, text.length(), out, prev);
+  }
+
+  private static void write(String s, int from, int to, Writer out, char[] prev) throws IOException {
+    if (to < 0) {
+      to = s.length();
+    }
+    int plain = from;
+    for (int i = from; i < to; i++) {
+      char c = s.charAt(i);
+      if (c == Snippets.HL_START_MARK || c == Snippets.HL_END_MARK) {
+        out.write(s, plain, i - plain);
+        plain = i + 1;
+        if (prev[0] != c) {
+          out.write(c == Snippets.HL_START_MARK ? Snippets.HL_START : Snippets.HL_END);
+        }
+      }
+      prev[0] = c;
+    }
+    out.write(s, plain, to - plain);
+  }
+
+}
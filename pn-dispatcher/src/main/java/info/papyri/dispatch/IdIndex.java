@@ -0,0 +1,702 @@
+package info.papyri.dispatch;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Maps papyri.info ids (<code>ddbdp/bgu;1;2</code>, <code>hgv/1234a</code>,
+ * <code>apis/michigan.apis.5</code>, <code>hgvtrans/1234</code>,
+ * <code>biblio/567</code>) to their source XML, HTML and text files, so that
+ * Reader can resolve any id with one lookup.  HGV and APIS records that have
+ * no page of their own point at the DDbDP (or HGV) page they are aggregated
+ * into, which otherwise takes a triple store query.
+ * <p>
+ * The index is built by walking the XML tree (DDbDP ids and aggregation
+ * links come from the <code>idno</code>s in each file's publicationStmt) and
+ * written to <code>idIndexFile</code> as a sorted table that is
+ * memory-mapped when loaded.  pn-sync appends the path of every XML file it
+ * publishes to <code>idIndexJournal</code>; those files are re-read into an
+ * in-memory overlay, checked for at most every
+ * <code>idIndexCheckInterval</code> ms.  If the index file is missing at
+ * startup it is built in the background; run <code>main</code> to rebuild it
+ * from scratch.
+ * <p>
+ * Until an index is loaded, {@link #current()} is null and Reader derives
+ * paths itself as before.
+ *
+ * @author hcayless
+ */
+public class IdIndex implements ServletContextListener {
+
+  static final String DEFAULT_INDEX_FILE = "/data/papyri.info/pn/idindex.bin";
+  static final String DEFAULT_JOURNAL = "/data/papyri.info/pn/idindex.journal";
+  static final String DEFAULT_XML_PATH = "/data/papyri.info/idp.data";
+  static final String DEFAULT_HTML_PATH = "/data/papyri.info/pn/idp.html";
+  static final long DEFAULT_CHECK_INTERVAL = 60000;
+  static final int MAGIC = 0x50494458;
+  static final int VERSION = 1;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  /** Marks a stored path that isn't relative to its root. */
+  private static final char ABSOLUTE = '\u0000';
+
+  private static volatile IdIndex current;
+  private static volatile File indexFile = new File(DEFAULT_INDEX_FILE);
+  private static volatile File journal = new File(DEFAULT_JOURNAL);
+  private static volatile String xmlPath = DEFAULT_XML_PATH;
+  private static volatile String htmlPath = DEFAULT_HTML_PATH;
+  private static volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+  private static volatile long lastCheck;
+  private static volatile boolean loading;
+  private static volatile boolean enabled;
+  private static volatile Thread loader;
+  private static final AtomicLong lookups = new AtomicLong();
+  private static final AtomicLong found = new AtomicLong();
+
+  private final ByteBuffer data;
+  private final int count;
+  private final int offsets;
+  private final int records;
+  private final String xmlRoot;
+  private final String htmlRoot;
+  private final long modified;
+  private final long loadedAt;
+  private final Map<String, Entry> overlay = new ConcurrentHashMap<String, Entry>();
+  private final Set<String> removed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private volatile long journalOffset;
+
+  public IdIndex() {
+    this(ByteBuffer.allocate(0), 0, 0, 0, "", "", 0, 0);
+  }
+
+  IdIndex(ByteBuffer data, int count, int offsets, int records, String xmlRoot, String htmlRoot, long modified, long journalOffset) {
+    this.data = data;
+    this.count = count;
+    this.offsets = offsets;
+    this.records = records;
+    this.xmlRoot = xmlRoot;
+    this.htmlRoot = htmlRoot;
+    this.modified = modified;
+    this.journalOffset = journalOffset;
+    this.loadedAt = System.currentTimeMillis();
+  }
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    ServletContext context = sce.getServletContext();
+    if (context.getInitParameter("idIndexFile") != null) {
+      if ("".equals(context.getInitParameter("idIndexFile").trim())) {
+        return;
+      }
+      indexFile = new File(context.getInitParameter("idIndexFile").trim());
+    }
+    if (context.getInitParameter("idIndexJournal") != null) {
+      journal = new File(context.getInitParameter("idIndexJournal").trim());
+    }
+    if (context.getInitParameter("idIndexXmlPath") != null) {
+      xmlPath = context.getInitParameter("idIndexXmlPath").trim();
+    }
+    if (context.getInitParameter("idIndexHtmlPath") != null) {
+      htmlPath = context.getInitParameter("idIndexHtmlPath").trim();
+    }
+    String interval = context.getInitParameter("idIndexCheckInterval");
+    if (interval != null) {
+      try {
+        checkInterval = Long.parseLong(interval.trim());
+      } catch (NumberFormatException e) {
+        context.log("Bad idIndexCheckInterval '" + interval + "', using default.");
+      }
+    }
+    enabled = true;
+    lastCheck = System.currentTimeMillis();
+    reloadInBackground();
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    Thread t = loader;
+    if (t != null) {
+      t.interrupt();
+    }
+    enabled = false;
+    current = null;
+  }
+
+  /**
+   * The loaded index, or null if none is available (yet).  Also triggers a
+   * background reload if the index file has been rebuilt or the journal has
+   * grown.
+   */
+  public static IdIndex current() {
+    long now = System.currentTimeMillis();
+    if (enabled && now - lastCheck > checkInterval) {
+      lastCheck = now;
+      IdIndex idx = current;
+      if (idx == null || idx.isStale()) {
+        reloadInBackground();
+      }
+    }
+    return current;
+  }
+
+  /**
+   * The files for <code>id</code> (collection/item, without a trailing
+   * /source), or null if the index doesn't know it or isn't loaded.
+   */
+  public static Entry lookup(String id) {
+    IdIndex idx = current();
+    if (idx == null) {
+      return null;
+    }
+    lookups.incrementAndGet();
+    Entry e = idx.get(id);
+    if (e != null) {
+      found.incrementAndGet();
+    }
+    return e;
+  }
+
+  /**
+   * The journal pn-sync appends to on every publication.
+   */
+  public static File getJournal() {
+    return journal;
+  }
+
+  public Entry get(String id) {
+    Entry e = overlay.get(id);
+    if (e == null) {
+      int i = find(id.getBytes(UTF8));
+      if (i < 0) {
+        return null;
+      }
+      e = read(i);
+    }
+    if (e.xml != null && removed.contains(e.xml)) {
+      return null;
+    }
+    return e;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  boolean isStale() {
+    return indexFile.lastModified() != modified || journal.length() != journalOffset;
+  }
+
+  /**
+   * Binary search for the record whose key has these UTF-8 bytes.
+   */
+  private int find(byte[] key) {
+    int lo = 0;
+    int hi = count - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = compare(data.getInt(offsets + 4 * mid) + records, key);
+      if (c < 0) {
+        lo = mid + 1;
+      } else if (c > 0) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private int compare(int pos, byte[] key) {
+    int len = data.getShort(pos) & 0xffff;
+    pos += 2;
+    int n = Math.min(len, key.length);
+    for (int i = 0; i < n; i++) {
+      int c = (data.get(pos + i) & 0xff) - (key[i] & 0xff);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return len - key.length;
+  }
+
+  private Entry read(int i) {
+    int pos = data.getInt(offsets + 4 * i) + records;
+    String[] fields = new String[4];
+    for (int f = 0; f < 4; f++) {
+      int len = data.getShort(pos) & 0xffff;
+      byte[] b = new byte[len];
+      for (int j = 0; j < len; j++) {
+        b[j] = data.get(pos + 2 + j);
+      }
+      fields[f] = new String(b, UTF8);
+      pos += 2 + len;
+    }
+    return new Entry(absolute(fields[1], xmlRoot), absolute(fields[2], htmlRoot), absolute(fields[3], htmlRoot));
+  }
+
+  private static String absolute(String stored, String root) {
+    if (stored.length() == 0) {
+      return null;
+    }
+    return stored.charAt(0) == ABSOLUTE ? stored.substring(1) : root + stored;
+  }
+
+  private static String relative(String path, String root) {
+    if (path == null) {
+      return "";
+    }
+    return path.startsWith(root) ? path.substring(root.length()) : ABSOLUTE + path;
+  }
+
+  /**
+   * Re-reads the files listed in the journal since the last time into the
+   * overlay.
+   */
+  void applyJournal(File journal, FileUtils util) throws IOException {
+    long length = journal.length();
+    if (length <= journalOffset) {
+      journalOffset = length;
+      return;
+    }
+    RandomAccessFile raf = new RandomAccessFile(journal, "r");
+    try {
+      raf.seek(journalOffset);
+      byte[] bytes = new byte[(int) (length - journalOffset)];
+      raf.readFully(bytes);
+      String[] lines = new String(bytes, UTF8).split("\n");
+      // only whole lines; a partial last one is picked up next time
+      int complete = bytes[bytes.length - 1] == '\n' ? lines.length : lines.length - 1;
+      long applied = journalOffset;
+      for (int i = 0; i < complete; i++) {
+        applied += lines[i].getBytes(UTF8).length + 1;
+        String path = lines[i].trim();
+        if (path.length() == 0) {
+          continue;
+        }
+        File f = new File(path);
+        if (!f.exists()) {
+          removed.add(path);
+          continue;
+        }
+        removed.remove(path);
+        String[] record = describe(f, util);
+        if (record != null) {
+          overlay.put(record[0], new Entry(record[1], record[2], record[3]));
+        }
+      }
+      journalOffset = applied;
+    } finally {
+      raf.close();
+    }
+  }
+
+  public static Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    IdIndex idx = current;
+    stats.put("loaded", idx != null);
+    stats.put("loading", loading);
+    stats.put("lookups", lookups.get());
+    stats.put("found", found.get());
+    if (idx != null) {
+      stats.put("entries", idx.count);
+      stats.put("overlay", idx.overlay.size());
+      stats.put("removed", idx.removed.size());
+      stats.put("mappedBytes", idx.data.capacity());
+      stats.put("journalOffset", idx.journalOffset);
+      stats.put("loadedAt", new Date(idx.loadedAt).toString());
+    }
+    return stats;
+  }
+
+  static synchronized void reloadInBackground() {
+    if (loading) {
+      return;
+    }
+    loading = true;
+    final IdIndex old = current;
+    loader = new Thread("id-index-loader") {
+      @Override
+      public void run() {
+        try {
+          FileUtils util = new FileUtils(xmlPath, htmlPath);
+          IdIndex idx = old;
+          if (idx == null || indexFile.lastModified() != idx.modified) {
+            if (!indexFile.exists()) {
+              System.out.println("Building id index " + indexFile);
+              write(build(new File(xmlPath), util), indexFile, journal.length(), xmlPath, htmlPath);
+            }
+            idx = load(indexFile);
+          }
+          idx.applyJournal(journal, util);
+          if (!isInterrupted()) {
+            current = idx;
+            if (idx != old) {
+              System.out.println("Id index loaded: " + getStats());
+            }
+          }
+        } catch (Exception e) {
+          System.out.println("Unable to load id index: " + e.getMessage());
+        } finally {
+          loading = false;
+        }
+      }
+    };
+    loader.setDaemon(true);
+    loader.start();
+  }
+
+  /**
+   * Maps an index file written by {@link #write}.
+   */
+  static IdIndex load(File f) throws IOException {
+    long modified = f.lastModified();
+    FileInputStream in = new FileInputStream(f);
+    MappedByteBuffer data;
+    try {
+      FileChannel channel = in.getChannel();
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      in.close();
+    }
+    if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+      throw new IOException(f + " is not a version " + VERSION + " id index");
+    }
+    long journalOffset = data.getLong(8);
+    int pos = 16;
+    String[] roots = new String[2];
+    for (int i = 0; i < 2; i++) {
+      int len = data.getShort(pos) & 0xffff;
+      byte[] b = new byte[len];
+      for (int j = 0; j < len; j++) {
+        b[j] = data.get(pos + 2 + j);
+      }
+      roots[i] = new String(b, UTF8);
+      pos += 2 + len;
+    }
+    int count = data.getInt(pos);
+    int offsets = pos + 4;
+    return new IdIndex(data, count, offsets, offsets + 4 * count, roots[0], roots[1], modified, journalOffset);
+  }
+
+  /**
+   * Writes the records (id, xml, html, text) sorted by id, via a temporary
+   * file so a running dispatcher never maps a partial index.
+   */
+  static void write(List<String[]> entries, File f, long journalOffset, String xmlRoot, String htmlRoot)
+          throws IOException {
+    final List<byte[]> keys = new ArrayList<byte[]>(entries.size());
+    List<Integer> order = new ArrayList<Integer>(entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      keys.add(entries.get(i)[0].getBytes(UTF8));
+      order.add(i);
+    }
+    Collections.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        byte[] x = keys.get(a);
+        byte[] y = keys.get(b);
+        int n = Math.min(x.length, y.length);
+        for (int i = 0; i < n; i++) {
+          int c = (x[i] & 0xff) - (y[i] & 0xff);
+          if (c != 0) {
+            return c;
+          }
+        }
+        return x.length - y.length;
+      }
+    });
+    List<byte[][]> records = new ArrayList<byte[][]>(entries.size());
+    byte[] previous = null;
+    for (int i : order) {
+      String[] e = entries.get(i);
+      if (previous != null && Arrays.equals(previous, keys.get(i))) {
+        continue;
+      }
+      previous = keys.get(i);
+      records.add(new byte[][] {keys.get(i), relative(e[1], xmlRoot).getBytes(UTF8),
+        relative(e[2], htmlRoot).getBytes(UTF8), relative(e[3], htmlRoot).getBytes(UTF8)});
+    }
+    File tmp = new File(f.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(journalOffset);
+      writeString(out, xmlRoot.getBytes(UTF8));
+      writeString(out, htmlRoot.getBytes(UTF8));
+      out.writeInt(records.size());
+      int offset = 0;
+      for (byte[][] r : records) {
+        out.writeInt(offset);
+        for (byte[] field : r) {
+          offset += 2 + field.length;
+        }
+      }
+      for (byte[][] r : records) {
+        for (byte[] field : r) {
+          writeString(out, field);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(f)) {
+      f.delete();
+      if (!tmp.renameTo(f)) {
+        throw new IOException("Unable to move " + tmp + " to " + f);
+      }
+    }
+  }
+
+  private static void writeString(DataOutputStream out, byte[] b) throws IOException {
+    if (b.length > 0xffff) {
+      throw new IOException("Field too long for id index");
+    }
+    out.writeShort(b.length);
+    out.write(b);
+  }
+
+  /**
+   * Describes every XML file under <code>root</code>.
+   */
+  static List<String[]> build(File root, FileUtils util) throws IOException {
+    List<String[]> entries = new ArrayList<String[]>(200000);
+    walk(root, util, entries);
+    return entries;
+  }
+
+  private static void walk(File dir, FileUtils util, List<String[]> entries) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File f : files) {
+      if (f.isDirectory()) {
+        if (!f.getName().startsWith(".")) {
+          walk(f, util, entries);
+        }
+      } else if (f.getName().endsWith(".xml")) {
+        String[] record = describe(f, util);
+        if (record != null) {
+          entries.add(record);
+        }
+      }
+    }
+  }
+
+  /**
+   * The id, XML, HTML and text paths (null where there isn't one) for a
+   * source file, or null if it isn't one Reader serves.
+   */
+  static String[] describe(File xml, FileUtils util) throws IOException {
+    String path = xml.getPath();
+    String name = xml.getName().substring(0, xml.getName().length() - 4);
+    if (path.contains("/DDB_EpiDoc_XML/")) {
+      Idnos idnos = Idnos.read(xml);
+      if (idnos.ddb == null) {
+        return null;
+      }
+      String item = idnos.ddb;
+      return new String[] {"ddbdp/" + item, path, existing(util.getHtmlFile("ddbdp", item)), existing(util.getTextFile("ddbdp", item))};
+    } else if (path.contains("/HGV_meta_EpiDoc/")) {
+      Idnos idnos = Idnos.read(xml);
+      String html = existing(util.getHtmlFile("hgv", name));
+      String text = existing(util.getTextFile("hgv", name));
+      if (html == null && idnos.ddb != null) {
+        html = existing(util.getHtmlFile("ddbdp", idnos.ddb));
+        text = existing(util.getTextFile("ddbdp", idnos.ddb));
+      }
+      return new String[] {"hgv/" + name, path, html, text};
+    } else if (path.contains("/HGV_trans_EpiDoc/")) {
+      return new String[] {"hgvtrans/" + name, path, null, null};
+    } else if (path.contains("/APIS/") && path.contains("/xml/") && name.contains(".apis.")) {
+      Idnos idnos = Idnos.read(xml);
+      String html = existing(util.getHtmlFile("apis", name));
+      String text = existing(util.getTextFile("apis", name));
+      if (html == null && idnos.ddb != null) {
+        html = existing(util.getHtmlFile("ddbdp", idnos.ddb));
+        text = existing(util.getTextFile("ddbdp", idnos.ddb));
+      }
+      if (html == null && idnos.hgv != null) {
+        html = existing(util.getHtmlFile("hgv", idnos.hgv));
+        text = existing(util.getTextFile("hgv", idnos.hgv));
+      }
+      return new String[] {"apis/" + name, path, html, text};
+    } else if (path.contains("/Biblio/") && name.matches("\\d+")) {
+      return new String[] {"biblio/" + name, path, existing(util.getHtmlFile("biblio", name)), null};
+    }
+    return null;
+  }
+
+  private static String existing(File f) {
+    return f != null && f.exists() ? f.getPath() : null;
+  }
+
+  /**
+   * Rebuilds the index file: <code>IdIndex [xmlPath htmlPath [indexFile
+   * [journal]]]</code>.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length >= 2) {
+      xmlPath = args[0];
+      htmlPath = args[1];
+    }
+    if (args.length >= 3) {
+      indexFile = new File(args[2]);
+    }
+    if (args.length >= 4) {
+      journal = new File(args[3]);
+    }
+    long start = System.currentTimeMillis();
+    long journalOffset = journal.length();
+    List<String[]> entries = build(new File(xmlPath), new FileUtils(xmlPath, htmlPath));
+    write(entries, indexFile, journalOffset, xmlPath, htmlPath);
+    System.out.println("Indexed " + entries.size() + " files in " + (System.currentTimeMillis() - start) + " ms.");
+  }
+
+  /**
+   * The files for one id.
+   */
+  public static class Entry {
+
+    private final String xml;
+    private final String html;
+    private final String text;
+
+    Entry(String xml, String html, String text) {
+      this.xml = xml;
+      this.html = html;
+      this.text = text;
+    }
+
+    public File getXmlFile() {
+      return xml == null ? null : new File(xml);
+    }
+
+    public File getHtmlFile() {
+      return html == null ? null : new File(html);
+    }
+
+    public File getTextFile() {
+      return text == null ? null : new File(text);
+    }
+  }
+
+  /**
+   * The ddb-hybrid and HGV idnos from a file's publicationStmt.  Parsing
+   * stops at the end of the publicationStmt.
+   */
+  static class Idnos extends DefaultHandler {
+
+    private static final SAXParserFactory factory = SAXParserFactory.newInstance();
+    private static final SAXException DONE = new SAXException("done");
+
+    String ddb;
+    String hgv;
+    private String type;
+    private final StringBuilder text = new StringBuilder();
+    private boolean inPublicationStmt;
+
+    static Idnos read(File f) throws IOException {
+      Idnos idnos = new Idnos();
+      InputStream in = new FileInputStream(f);
+      try {
+        SAXParser parser;
+        synchronized (factory) {
+          parser = factory.newSAXParser();
+        }
+        try {
+          parser.getXMLReader().setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        } catch (SAXException e) {
+          // not supported by this parser
+        }
+        parser.parse(new InputSource(in), idnos);
+      } catch (SAXException e) {
+        if (e != DONE) {
+          System.out.println("Unable to read idnos from " + f + ": " + e.getMessage());
+        }
+      } catch (javax.xml.parsers.ParserConfigurationException e) {
+        throw new IOException(e.getMessage());
+      } finally {
+        in.close();
+      }
+      return idnos;
+    }
+
+    @Override
+    public void startElement(String uri, String local, String qname, Attributes atts) {
+      if (qname.endsWith("publicationStmt")) {
+        inPublicationStmt = true;
+      } else if (inPublicationStmt && qname.endsWith("idno")) {
+        type = atts.getValue("type");
+        text.setLength(0);
+      }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      if (type != null) {
+        text.append(ch, start, length);
+      }
+    }
+
+    @Override
+    public void endElement(String uri, String local, String qname) throws SAXException {
+      if (qname.endsWith("publicationStmt")) {
+        throw DONE;
+      } else if (type != null && qname.endsWith("idno")) {
+        String value = text.toString().trim().replaceAll("\\s+", " ");
+        if ("ddb-hybrid".equals(type) && value.length() > 0) {
+          ddb = normalizeDdb(value);
+        } else if ("HGV".equals(type) && value.length() > 0) {
+          hgv = value.split(" ")[0];
+        }
+        type = null;
+      }
+    }
+
+    /**
+     * Normalizes the collection part of a ddb-hybrid id the way the RDF
+     * mapping does (hgv-rdf.xsl).
+     */
+    static String normalizeDdb(String id) {
+      int semi = id.indexOf(';');
+      if (semi < 0) {
+        return id;
+      }
+      String collection = Normalizer.normalize(id.substring(0, semi), Normalizer.Form.NFD).replaceAll("[^.a-z0-9]", "");
+      return collection + id.substring(semi);
+    }
+  }
+
+}
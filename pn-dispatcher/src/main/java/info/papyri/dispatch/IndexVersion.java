@@ -0,0 +1,71 @@
+package info.papyri.dispatch;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.solr.client.solrj.request.LukeRequest;
+import org.apache.solr.client.solrj.response.LukeResponse;
+
+/**
+ * Polls the index version of a Solr core (through a Luke request, at most
+ * every <code>checkInterval</code> ms), so that the caches of what the core
+ * returns (LemmaCache, FacetResultCache) know when to drop their contents.
+ * Only one thread checks at a time; the rest carry on with the version as it
+ * was.
+ *
+ * @author hcayless
+ */
+public class IndexVersion {
+
+  private final String core;
+  private final AtomicBoolean checking = new AtomicBoolean();
+  private volatile long checkInterval;
+  private volatile long version = -1;
+  private volatile long lastCheck = 0;
+
+  public IndexVersion(String core, long checkInterval) {
+    this.core = core;
+    this.checkInterval = checkInterval;
+  }
+
+  public void setCheckInterval(long checkInterval) {
+    this.checkInterval = checkInterval;
+  }
+
+  /**
+   * The version found by the last successful check, or -1 if there hasn't
+   * been one.
+   */
+  public long get() {
+    return version;
+  }
+
+  /**
+   * Checks the version if it is due to be.
+   *
+   * @return true if the version has changed since the last successful check
+   * (but not on the first one)
+   */
+  public boolean check() {
+    long now = System.currentTimeMillis();
+    if (now - lastCheck < checkInterval || !checking.compareAndSet(false, true)) {
+      return false;
+    }
+    try {
+      lastCheck = now;
+      LukeRequest luke = new LukeRequest();
+      luke.setShowSchema(false);
+      luke.setNumTerms(0);
+      LukeResponse rsp = luke.process(SolrServerRegistry.getServer(core));
+      Object v = rsp.getIndexInfo().get("version");
+      if (v instanceof Number) {
+        long previous = version;
+        version = ((Number) v).longValue();
+        return previous != -1 && previous != version;
+      }
+    } catch (Exception e) {
+      System.out.println("Unable to check " + core + " index version: " + e.getMessage());
+    } finally {
+      checking.set(false);
+    }
+    return false;
+  }
+}
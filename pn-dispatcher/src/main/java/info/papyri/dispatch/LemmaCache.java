@@ -0,0 +1,225 @@
+package info.papyri.dispatch;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocumentList;
+
+/**
+ * Bounded LRU cache from a lemma to the set of its forms, as found in the
+ * morph-search core.  Shared by SolrUtils.expandLemmas (Reader, Search) and
+ * StringSearchFacet's lemma clauses.  The whole cache is dropped when the
+ * morph-search index version changes, i.e. after <code>-loadLemmas</code>.
+ * Once the in-memory {@link MorphIndex} has loaded, lookups are answered from
+ * it directly and neither the cache nor morph-search is consulted.
+ * <p>
+ * Configured from the web.xml context-params <code>lemmaCacheSize</code>,
+ * <code>lemmaCacheCheckInterval</code> (ms between index version checks) and
+ * <code>lemmaWarmupFile</code> (optional; one lemma per line, looked up in the
+ * background at startup).
+ *
+ * @author hcayless
+ */
+public class LemmaCache implements ServletContextListener {
+
+  static final int DEFAULT_SIZE = 5000;
+  static final long DEFAULT_CHECK_INTERVAL = 60000;
+
+  private static volatile int maxSize = DEFAULT_SIZE;
+  private static final IndexVersion indexVersion = new IndexVersion(SolrServerRegistry.MORPH_SEARCH, DEFAULT_CHECK_INTERVAL);
+  private static final Map<String, Forms> cache = new LinkedHashMap<String, Forms>(256, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Forms> eldest) {
+      if (size() > maxSize) {
+        evictions.incrementAndGet();
+        return true;
+      }
+      return false;
+    }
+  };
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong evictions = new AtomicLong();
+  private static final AtomicLong invalidations = new AtomicLong();
+  private static final AtomicLong embedded = new AtomicLong();
+  /** Bumped on every clear, so a lookup that overlaps one isn't kept. */
+  private static final AtomicLong generation = new AtomicLong();
+  private static volatile Thread warmer;
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    ServletContext context = sce.getServletContext();
+    String size = context.getInitParameter("lemmaCacheSize");
+    String interval = context.getInitParameter("lemmaCacheCheckInterval");
+    try {
+      if (size != null) maxSize = Integer.parseInt(size.trim());
+      if (interval != null) indexVersion.setCheckInterval(Long.parseLong(interval.trim()));
+    } catch (NumberFormatException e) {
+      context.log("Bad lemma cache setting, using defaults.", e);
+    }
+    final String warmup = context.getInitParameter("lemmaWarmupFile");
+    if (warmup != null && !"".equals(warmup)) {
+      warmer = new Thread("lemma-cache-warmup") {
+        @Override
+        public void run() {
+          warm(warmup);
+        }
+      };
+      warmer.setDaemon(true);
+      warmer.start();
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    Thread t = warmer;
+    if (t != null) {
+      t.interrupt();
+    }
+    clear();
+  }
+
+  /**
+   * Forms of <code>lemma</code>, diacritics stripped, '_' and '^' removed and
+   * lower-cased.  Empty if the lemma is unknown.
+   */
+  public static Set<String> getForms(String lemma) throws SolrServerException {
+    return lookup(lemma).folded;
+  }
+
+  /**
+   * As {@link #getForms(String)}, but with everything except letters removed.
+   */
+  public static Set<String> getLetterForms(String lemma) throws SolrServerException {
+    return lookup(lemma).letters;
+  }
+
+  public static void clear() {
+    synchronized (cache) {
+      generation.incrementAndGet();
+      cache.clear();
+    }
+  }
+
+  public static Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    long h = hits.get();
+    long m = misses.get();
+    stats.put("size", size());
+    stats.put("maxSize", maxSize);
+    stats.put("hits", h);
+    stats.put("misses", m);
+    stats.put("hitRatio", h + m == 0 ? 0.0 : (double) h / (h + m));
+    stats.put("evictions", evictions.get());
+    stats.put("invalidations", invalidations.get());
+    stats.put("embedded", embedded.get());
+    stats.put("indexVersion", indexVersion.get());
+    return stats;
+  }
+
+  static int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  private static Forms lookup(String lemma) throws SolrServerException {
+    MorphIndex index = MorphIndex.current();
+    if (index != null) {
+      embedded.incrementAndGet();
+      return new Forms(index.getForms(lemma), index.getLetterForms(lemma));
+    }
+    if (indexVersion.check()) {
+      invalidations.incrementAndGet();
+      clear();
+    }
+    Forms forms;
+    long gen;
+    synchronized (cache) {
+      forms = cache.get(lemma);
+      gen = generation.get();
+    }
+    if (forms != null) {
+      hits.incrementAndGet();
+      return forms;
+    }
+    misses.incrementAndGet();
+    forms = load(lemma);
+    synchronized (cache) {
+      if (generation.get() == gen) {
+        cache.put(lemma, forms);
+      }
+    }
+    return forms;
+  }
+
+  private static Forms load(String lemma) throws SolrServerException {
+    SolrServer solr = SolrServerRegistry.getServer(SolrServerRegistry.MORPH_SEARCH);
+    SolrQuery sq = new SolrQuery();
+    sq.setQuery("lemma:" + lemma);
+    sq.setFields("form");
+    sq.setRows(1000);
+    QueryResponse rs = solr.query(sq);
+    SolrDocumentList docs = rs.getResults();
+    Set<String> folded = new LinkedHashSet<String>();
+    Set<String> letters = new LinkedHashSet<String>();
+    for (int i = 0; i < docs.size(); i++) {
+      String form = FileUtils.stripDiacriticals((String) docs.get(i).getFieldValue("form")).toLowerCase();
+      folded.add(form.replaceAll("[_^]", ""));
+      letters.add(form.replaceAll("[^\\p{L}]", ""));
+    }
+    return new Forms(folded, letters);
+  }
+
+  static void warm(String file) {
+    BufferedReader in = null;
+    int count = 0;
+    try {
+      in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      String line;
+      while ((line = in.readLine()) != null && count < maxSize && !Thread.currentThread().isInterrupted()) {
+        line = line.trim();
+        if (line.length() > 0 && !line.startsWith("#")) {
+          lookup(line);
+          count++;
+        }
+      }
+      System.out.println("Lemma cache warmed with " + count + " lemmas from " + file);
+    } catch (Exception e) {
+      System.out.println("Lemma cache warm-up from " + file + " stopped after " + count + " lemmas: " + e.getMessage());
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+        }
+      }
+    }
+  }
+
+  private static class Forms {
+    final Set<String> folded;
+    final Set<String> letters;
+
+    Forms(Set<String> folded, Set<String> letters) {
+      this.folded = Collections.unmodifiableSet(folded);
+      this.letters = Collections.unmodifiableSet(letters);
+    }
+  }
+
+}
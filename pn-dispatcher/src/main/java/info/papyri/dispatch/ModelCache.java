@@ -0,0 +1,552 @@
+package info.papyri.dispatch;
+
+import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.shared.JenaException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * Bounded LRU cache of the RDF DispatcherServlet serves, one Jena model per
+ * described URI.  A model is fetched from the triple store once, as RDF/XML,
+ * and serialized locally into whichever format is asked for; concurrent
+ * requests for an uncached URI share a single fetch.  Models are kept for
+ * <code>rdfCacheTtl</code> ms, but dropped as soon as pn-sync republishes the
+ * record they describe: the lines pn-sync has added to the id index journal
+ * are read at most every <code>rdfCacheCheckInterval</code> ms and mapped
+ * back to the URIs they affect.
+ * <p>
+ * Configured from the web.xml context-params named above and
+ * <code>rdfCacheSize</code>.
+ *
+ * @author hcayless
+ */
+public class ModelCache implements ServletContextListener {
+
+  static final int DEFAULT_SIZE = 5000;
+  static final long DEFAULT_TTL = 6 * 3600000L;
+  static final long DEFAULT_CHECK_INTERVAL = 60000L;
+  /** More new journal than this and the whole cache is dropped instead. */
+  static final int MAX_JOURNAL_READ = 1 << 20;
+  static final String BASE = "http://papyri.info/";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final JsonFactory json = new JsonFactory();
+
+  private static volatile int maxSize = DEFAULT_SIZE;
+  private static volatile long ttl = DEFAULT_TTL;
+  private static volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+  private static final Map<String, Entry> cache = new LinkedHashMap<String, Entry>(256, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, ModelCache.Entry> eldest) {
+      if (size() > maxSize) {
+        evictions.incrementAndGet();
+        return true;
+      }
+      return false;
+    }
+  };
+  private static final ConcurrentMap<String, FutureTask<Entry>> pending = new ConcurrentHashMap<String, FutureTask<Entry>>();
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong shared = new AtomicLong();
+  private static final AtomicLong fetches = new AtomicLong();
+  private static final AtomicLong failures = new AtomicLong();
+  private static final AtomicLong expirations = new AtomicLong();
+  private static final AtomicLong evictions = new AtomicLong();
+  private static final AtomicLong invalidations = new AtomicLong();
+  private static final AtomicLong clears = new AtomicLong();
+  /** Bumped on every invalidation, so a fetch that overlaps one isn't kept. */
+  private static final AtomicLong generation = new AtomicLong();
+  private static volatile long lastCheck = 0;
+  private static long journalOffset = -1;
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    ServletContext context = sce.getServletContext();
+    try {
+      String value = context.getInitParameter("rdfCacheSize");
+      if (value != null) maxSize = Integer.parseInt(value.trim());
+      value = context.getInitParameter("rdfCacheTtl");
+      if (value != null) ttl = Long.parseLong(value.trim());
+      value = context.getInitParameter("rdfCacheCheckInterval");
+      if (value != null) checkInterval = Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      context.log("Bad RDF cache setting, using defaults.", e);
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    clear();
+  }
+
+  /**
+   * The model describing <code>uri</code>, fetched from the triple store if
+   * it isn't cached.
+   *
+   * @throws FetchException if the triple store answers with an error
+   */
+  public static Entry get(final String uri) throws IOException {
+    checkPublications();
+    Entry e = cached(uri);
+    if (e != null) {
+      hits.incrementAndGet();
+      return e;
+    }
+    misses.incrementAndGet();
+    FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+      @Override
+      public Entry call() throws IOException {
+        return fetch(uri);
+      }
+    });
+    FutureTask<Entry> running = pending.putIfAbsent(uri, task);
+    if (running == null) {
+      running = task;
+      try {
+        task.run();
+      } finally {
+        pending.remove(uri);
+      }
+    } else {
+      shared.incrementAndGet();
+    }
+    try {
+      return running.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for " + uri);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new IOException(String.valueOf(cause));
+    }
+  }
+
+  private static Entry cached(String uri) {
+    synchronized (cache) {
+      Entry e = cache.get(uri);
+      if (e != null && e.expires <= System.currentTimeMillis()) {
+        cache.remove(uri);
+        expirations.incrementAndGet();
+        e = null;
+      }
+      return e;
+    }
+  }
+
+  private static Entry fetch(String uri) throws IOException {
+    long gen = generation.get();
+    fetches.incrementAndGet();
+    GetMethod get = SparqlClient.execute(SparqlTemplate.DESCRIBE.bind(uri), "application/rdf+xml");
+    try {
+      if (get.getStatusCode() != HttpStatus.SC_OK) {
+        failures.incrementAndGet();
+        throw new FetchException(get.getStatusCode());
+      }
+      Entry e = parse(uri, read(get.getResponseBodyAsStream()));
+      if (generation.get() == gen) {
+        put(e);
+      }
+      return e;
+    } finally {
+      get.releaseConnection();
+    }
+  }
+
+  /**
+   * Builds a cache entry from the RDF/XML describing <code>uri</code>.
+   */
+  static Entry parse(String uri, byte[] rdf) throws IOException {
+    Model model = ModelFactory.createDefaultModel();
+    try {
+      model.read(new ByteArrayInputStream(rdf), uri, "RDF/XML");
+    } catch (JenaException e) {
+      failures.incrementAndGet();
+      throw new IOException("Unable to parse RDF for " + uri + ": " + e.getMessage());
+    }
+    return new Entry(uri, model, digest(rdf), System.currentTimeMillis() + ttl);
+  }
+
+  static void put(Entry e) {
+    synchronized (cache) {
+      cache.put(e.uri, e);
+    }
+  }
+
+  static void invalidate(String uri) {
+    generation.incrementAndGet();
+    synchronized (cache) {
+      if (cache.remove(uri) != null) {
+        invalidations.incrementAndGet();
+      }
+    }
+  }
+
+  public static void clear() {
+    generation.incrementAndGet();
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  static int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  public static Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    long h = hits.get();
+    long m = misses.get();
+    stats.put("size", size());
+    stats.put("maxSize", maxSize);
+    stats.put("hits", h);
+    stats.put("misses", m);
+    stats.put("hitRatio", h + m == 0 ? 0.0 : (double) h / (h + m));
+    stats.put("sharedFetches", shared.get());
+    stats.put("fetches", fetches.get());
+    stats.put("failures", failures.get());
+    stats.put("expirations", expirations.get());
+    stats.put("evictions", evictions.get());
+    stats.put("invalidations", invalidations.get());
+    stats.put("clears", clears.get());
+    return stats;
+  }
+
+  /**
+   * Drops the models pn-sync has republished since the last check.
+   */
+  static void checkPublications() {
+    long now = System.currentTimeMillis();
+    if (now - lastCheck < checkInterval) {
+      return;
+    }
+    lastCheck = now;
+    try {
+      replay(IdIndex.getJournal());
+    } catch (IOException e) {
+      System.out.println("Unable to read id index journal: " + e.getMessage());
+      clears.incrementAndGet();
+      clear();
+    }
+  }
+
+  /**
+   * Invalidates the URIs of the files added to <code>journal</code> since it
+   * was last read.  The first call only notes where the journal ends.
+   */
+  static synchronized void replay(File journal) throws IOException {
+    long length = journal.length();
+    if (journalOffset < 0 || length == journalOffset) {
+      journalOffset = length;
+      return;
+    }
+    if (length < journalOffset || length - journalOffset > MAX_JOURNAL_READ) {
+      // rotated, or a bulk publication: not worth picking through
+      journalOffset = length;
+      clears.incrementAndGet();
+      clear();
+      return;
+    }
+    RandomAccessFile raf = new RandomAccessFile(journal, "r");
+    try {
+      raf.seek(journalOffset);
+      byte[] bytes = new byte[(int) (length - journalOffset)];
+      raf.readFully(bytes);
+      int end = bytes.length;
+      // only whole lines; a partial last one is picked up next time
+      while (end > 0 && bytes[end - 1] != '\n') {
+        end--;
+      }
+      journalOffset += end;
+      boolean dropAll = false;
+      List<String> uris = new ArrayList<String>();
+      for (String line : new String(bytes, 0, end, UTF8).split("\n")) {
+        if (line.trim().length() == 0) {
+          continue;
+        }
+        Set<String> affected = uris(new File(line.trim()));
+        if (affected == null) {
+          dropAll = true;
+          break;
+        }
+        uris.addAll(affected);
+      }
+      if (dropAll) {
+        clears.incrementAndGet();
+        clear();
+      } else {
+        for (String uri : uris) {
+          invalidate(uri);
+        }
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * The URIs whose descriptions may change when <code>xml</code> is
+   * published: its own, those of the collections it belongs to, and those of
+   * the records it is aggregated with.  Null if they can't be worked out
+   * (a removed DDbDP file, whose id is only in its contents).
+   */
+  static Set<String> uris(File xml) throws IOException {
+    Set<String> uris = new LinkedHashSet<String>();
+    String path = xml.getPath();
+    if (!xml.getName().endsWith(".xml")) {
+      return uris;
+    }
+    String name = xml.getName().substring(0, xml.getName().length() - 4);
+    IdIndex.Idnos idnos = xml.exists() ? IdIndex.Idnos.read(xml) : null;
+    if (path.contains("/DDB_EpiDoc_XML/")) {
+      if (idnos == null) {
+        return null;
+      }
+      addDdb(uris, idnos.ddb);
+    } else if (path.contains("/HGV_meta_EpiDoc/")) {
+      uris.add(BASE + "hgv/" + name + "/source");
+      uris.add(BASE + "hgv");
+      if (idnos != null) {
+        addDdb(uris, idnos.ddb);
+      }
+    } else if (path.contains("/HGV_trans_EpiDoc/")) {
+      uris.add(BASE + "hgvtrans/" + name + "/source");
+    } else if (path.contains("/APIS/") && path.contains("/xml/") && name.contains(".apis.")) {
+      uris.add(BASE + "apis/" + name + "/source");
+      uris.add(BASE + "apis/" + name.substring(0, name.indexOf('.')));
+      uris.add(BASE + "apis");
+      if (idnos != null) {
+        addDdb(uris, idnos.ddb);
+        if (idnos.hgv != null) {
+          uris.add(BASE + "hgv/" + idnos.hgv + "/source");
+        }
+      }
+    } else if (path.contains("/Biblio/")) {
+      uris.add(BASE + "biblio/" + name);
+    }
+    return uris;
+  }
+
+  private static void addDdb(Set<String> uris, String ddb) {
+    if (ddb == null) {
+      return;
+    }
+    String[] parts = ddb.split(";", -1);
+    if (parts.length == 3) {
+      // as DispatcherServlet.ddbdp() builds them
+      uris.add(BASE + "ddbdp/" + parts[0] + ";" + parts[1] + ";" + DispatcherServlet.encode(parts[2]) + "/source");
+      uris.add(BASE + "ddbdp/" + parts[0] + ";" + parts[1]);
+    }
+    uris.add(BASE + "ddbdp/" + parts[0]);
+    uris.add(BASE + "ddbdp");
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      byte[] b = new byte[8192];
+      int s;
+      while ((s = in.read(b)) > 0) {
+        out.write(b, 0, s);
+      }
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  private static String digest(byte[] b) {
+    try {
+      byte[] d = MessageDigest.getInstance("MD5").digest(b);
+      StringBuilder hex = new StringBuilder();
+      for (int i = 0; i < 8; i++) {
+        hex.append(Character.forDigit((d[i] >> 4) & 0xf, 16)).append(Character.forDigit(d[i] & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      return Long.toHexString(System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * The content type DispatcherServlet sends for a format.
+   */
+  static String contentType(String format) {
+    if ("turtle".equals(format)) return "text/turtle";
+    if ("n3".equals(format)) return "text/plain";
+    if ("json".equals(format)) return "application/rdf+json";
+    return "application/rdf+xml";
+  }
+
+  /**
+   * Writes <code>model</code> as RDF/XML (<code>rdfxml</code>), Turtle,
+   * N-Triples (<code>n3</code>, which was always served as text/plain) or
+   * RDF/JSON, which this version of Jena has no writer for.
+   */
+  static void write(Model model, String format, OutputStream out) throws IOException {
+    if ("json".equals(format)) {
+      writeJson(model, out);
+    } else if ("turtle".equals(format)) {
+      model.write(out, "TURTLE");
+    } else if ("n3".equals(format)) {
+      model.write(out, "N-TRIPLE");
+    } else {
+      model.write(out, "RDF/XML");
+    }
+  }
+
+  private static void writeJson(Model model, OutputStream out) throws IOException {
+    Map<String, Map<String, List<RDFNode>>> subjects = new TreeMap<String, Map<String, List<RDFNode>>>();
+    StmtIterator statements = model.listStatements();
+    try {
+      while (statements.hasNext()) {
+        Statement s = statements.nextStatement();
+        String subject = name(s.getSubject());
+        Map<String, List<RDFNode>> predicates = subjects.get(subject);
+        if (predicates == null) {
+          predicates = new TreeMap<String, List<RDFNode>>();
+          subjects.put(subject, predicates);
+        }
+        List<RDFNode> objects = predicates.get(s.getPredicate().getURI());
+        if (objects == null) {
+          objects = new ArrayList<RDFNode>();
+          predicates.put(s.getPredicate().getURI(), objects);
+        }
+        objects.add(s.getObject());
+      }
+    } finally {
+      statements.close();
+    }
+    JsonGenerator g = json.createJsonGenerator(out, JsonEncoding.UTF8);
+    g.writeStartObject();
+    for (Map.Entry<String, Map<String, List<RDFNode>>> subject : subjects.entrySet()) {
+      g.writeObjectFieldStart(subject.getKey());
+      for (Map.Entry<String, List<RDFNode>> predicate : subject.getValue().entrySet()) {
+        g.writeArrayFieldStart(predicate.getKey());
+        for (RDFNode o : predicate.getValue()) {
+          g.writeStartObject();
+          if (o.isLiteral()) {
+            Literal l = (Literal) o;
+            g.writeStringField("type", "literal");
+            g.writeStringField("value", l.getLexicalForm());
+            if (l.getLanguage() != null && l.getLanguage().length() > 0) {
+              g.writeStringField("lang", l.getLanguage());
+            }
+            if (l.getDatatypeURI() != null) {
+              g.writeStringField("datatype", l.getDatatypeURI());
+            }
+          } else {
+            Resource r = (Resource) o;
+            g.writeStringField("type", r.isAnon() ? "bnode" : "uri");
+            g.writeStringField("value", name(r));
+          }
+          g.writeEndObject();
+        }
+        g.writeEndArray();
+      }
+      g.writeEndObject();
+    }
+    g.writeEndObject();
+    g.flush();
+  }
+
+  private static String name(Resource r) {
+    return r.isAnon() ? "_:" + r.getId().getLabelString() : r.getURI();
+  }
+
+  /**
+   * A cached model, with its serializations as they are asked for.
+   */
+  public static class Entry {
+
+    final String uri;
+    final Model model;
+    final String version;
+    final long expires;
+    private final Map<String, byte[]> serialized = new HashMap<String, byte[]>();
+
+    Entry(String uri, Model model, String version, long expires) {
+      this.uri = uri;
+      this.model = model;
+      this.version = version;
+      this.expires = expires;
+    }
+
+    /**
+     * A strong ETag for this version of the model in <code>format</code>.
+     */
+    public String getETag(String format) {
+      return "\"" + version + "-" + format + "\"";
+    }
+
+    public synchronized byte[] serialize(String format) throws IOException {
+      byte[] b = serialized.get(format);
+      if (b == null) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(model, format, out);
+        b = out.toByteArray();
+        serialized.put(format, b);
+      }
+      return b;
+    }
+  }
+
+  /**
+   * The triple store answered with an error status.
+   */
+  public static class FetchException extends IOException {
+
+    final int status;
+
+    FetchException(int status) {
+      super("Triple store returned " + status);
+      this.status = status;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+  }
+
+}
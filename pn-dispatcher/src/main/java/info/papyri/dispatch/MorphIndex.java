@@ -0,0 +1,419 @@
+package info.papyri.dispatch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * In-memory, read-only lemma &rarr; forms table built from the same Perseus
+ * morphology files that <code>indexer -loadLemmas</code> feeds to the
+ * morph-search core.  Lemmas are tokenized the way morph-search's
+ * <code>lctext</code> field is (runs of letters, lower-cased), so a lookup
+ * answers the same question as a <code>lemma:x</code> query, without the HTTP
+ * round trip or the 1000-row cap.
+ * <p>
+ * The layout is a sorted <code>String[]</code> of lemma tokens, an offsets
+ * array into one <code>int[]</code> of form ids, and a table of distinct
+ * (interned) forms, already diacritic-folded both ways LemmaCache needs.
+ * <p>
+ * Loaded in the background at startup from the comma-separated
+ * <code>morphDataFiles</code> context-param.  The files' mtimes are checked at
+ * most every <code>morphCheckInterval</code> ms; when one changes a new index
+ * is built off to the side and swapped in atomically.  Until the first load
+ * finishes, {@link #current()} is null and callers fall back to morph-search.
+ *
+ * @author hcayless
+ */
+public class MorphIndex implements ServletContextListener {
+
+  static final String DEFAULT_FILES = "/data/papyri.info/git/navigator/pn-lemmas/greek.morph.unicode.xml,"
+          + "/data/papyri.info/git/navigator/pn-lemmas/latin.morph.xml";
+  static final long DEFAULT_CHECK_INTERVAL = 300000;
+
+  private static volatile MorphIndex current;
+  private static volatile File[] files = new File[0];
+  private static volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+  private static volatile long lastCheck;
+  private static volatile boolean loading;
+  private static volatile Thread loader;
+
+  private final String[] lemmas;
+  private final int[] offsets;
+  private final int[] formIds;
+  private final String[] folded;
+  private final String[] letters;
+  private final long[] modified;
+  private final long loadedAt;
+  private final long loadMillis;
+
+  public MorphIndex() {
+    this(new String[0], new int[] {0}, new int[0], new String[0], new String[0], new long[0], 0);
+  }
+
+  MorphIndex(String[] lemmas, int[] offsets, int[] formIds, String[] folded, String[] letters, long[] modified, long loadMillis) {
+    this.lemmas = lemmas;
+    this.offsets = offsets;
+    this.formIds = formIds;
+    this.folded = folded;
+    this.letters = letters;
+    this.modified = modified;
+    this.loadedAt = System.currentTimeMillis();
+    this.loadMillis = loadMillis;
+  }
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    ServletContext context = sce.getServletContext();
+    String paths = context.getInitParameter("morphDataFiles");
+    if (paths == null) {
+      paths = DEFAULT_FILES;
+    }
+    if ("".equals(paths.trim())) {
+      return;
+    }
+    String interval = context.getInitParameter("morphCheckInterval");
+    if (interval != null) {
+      try {
+        checkInterval = Long.parseLong(interval.trim());
+      } catch (NumberFormatException e) {
+        context.log("Bad morphCheckInterval '" + interval + "', using default.");
+      }
+    }
+    String[] p = paths.split("\\s*,\\s*");
+    File[] f = new File[p.length];
+    for (int i = 0; i < p.length; i++) {
+      f[i] = new File(p[i].trim());
+    }
+    files = f;
+    lastCheck = System.currentTimeMillis();
+    reloadInBackground();
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    Thread t = loader;
+    if (t != null) {
+      t.interrupt();
+    }
+    current = null;
+    files = new File[0];
+  }
+
+  /**
+   * The loaded index, or null if none is available (yet).  Also triggers a
+   * background reload if a data file has changed.
+   */
+  public static MorphIndex current() {
+    long now = System.currentTimeMillis();
+    if (files.length > 0 && now - lastCheck > checkInterval) {
+      lastCheck = now;
+      MorphIndex idx = current;
+      if (idx == null || idx.isStale()) {
+        reloadInBackground();
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Forms of every lemma matching <code>query</code>, diacritics stripped,
+   * '_' and '^' removed and lower-cased.
+   */
+  public Set<String> getForms(String query) {
+    return collect(query, folded);
+  }
+
+  /**
+   * As {@link #getForms(String)}, but with everything except letters removed.
+   */
+  public Set<String> getLetterForms(String query) {
+    return collect(query, letters);
+  }
+
+  private Set<String> collect(String query, String[] table) {
+    Set<String> result = new LinkedHashSet<String>();
+    for (String token : tokenize(query)) {
+      int i = Arrays.binarySearch(lemmas, token);
+      if (i >= 0) {
+        for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+          result.add(table[formIds[j]]);
+        }
+      }
+    }
+    return result;
+  }
+
+  boolean isStale() {
+    File[] f = files;
+    if (f.length != modified.length) {
+      return true;
+    }
+    for (int i = 0; i < f.length; i++) {
+      if (f[i].lastModified() != modified[i]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Approximate heap used by the index, in bytes.
+   */
+  public long getFootprint() {
+    long bytes = 16L + 4L * offsets.length + 16L + 4L * formIds.length;
+    bytes += 16L + 8L * lemmas.length;
+    for (String s : lemmas) {
+      bytes += stringBytes(s);
+    }
+    bytes += 2 * (16L + 8L * folded.length);
+    Set<String> seen = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+    for (int i = 0; i < folded.length; i++) {
+      if (seen.add(folded[i])) bytes += stringBytes(folded[i]);
+      if (seen.add(letters[i])) bytes += stringBytes(letters[i]);
+    }
+    return bytes;
+  }
+
+  private static long stringBytes(String s) {
+    // object header + fields + char[] header + chars, rounded to 8 bytes
+    return 24L + ((16L + 2L * s.length() + 7L) & ~7L);
+  }
+
+  public static Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    MorphIndex idx = current;
+    stats.put("loaded", idx != null);
+    stats.put("loading", loading);
+    if (idx != null) {
+      stats.put("lemmas", idx.lemmas.length);
+      stats.put("forms", idx.folded.length);
+      stats.put("postings", idx.formIds.length);
+      stats.put("footprintBytes", idx.getFootprint());
+      stats.put("loadMillis", idx.loadMillis);
+      stats.put("loadedAt", new Date(idx.loadedAt).toString());
+    }
+    return stats;
+  }
+
+  /**
+   * Splits a lemma into lower-cased runs of letters, as Solr's
+   * LowerCaseTokenizer does for the morph-search lemma field.
+   */
+  static List<String> tokenize(String in) {
+    List<String> tokens = new ArrayList<String>(2);
+    int start = -1;
+    for (int i = 0; i <= in.length(); i++) {
+      boolean letter = i < in.length() && Character.isLetter(in.charAt(i));
+      if (letter && start < 0) {
+        start = i;
+      } else if (!letter && start >= 0) {
+        tokens.add(in.substring(start, i).toLowerCase());
+        start = -1;
+      }
+    }
+    return tokens;
+  }
+
+  static synchronized void reloadInBackground() {
+    if (loading) {
+      return;
+    }
+    loading = true;
+    final File[] f = files;
+    loader = new Thread("morph-index-loader") {
+      @Override
+      public void run() {
+        try {
+          MorphIndex idx = build(f);
+          if (!isInterrupted()) {
+            current = idx;
+            LemmaCache.clear();
+            System.out.println("Morph index loaded: " + getStats());
+          }
+        } catch (Exception e) {
+          System.out.println("Unable to load morph index: " + e.getMessage());
+        } finally {
+          loading = false;
+        }
+      }
+    };
+    loader.setDaemon(true);
+    loader.start();
+  }
+
+  /**
+   * Builds an index from the given Perseus morphology files.
+   */
+  static MorphIndex build(File... sources) throws IOException, SAXException {
+    long start = System.currentTimeMillis();
+    long[] modified = new long[sources.length];
+    Builder builder = new Builder();
+    SAXParserFactory factory = SAXParserFactory.newInstance();
+    for (int i = 0; i < sources.length; i++) {
+      modified[i] = sources[i].lastModified();
+      InputStream in = new FileInputStream(sources[i]);
+      try {
+        factory.newSAXParser().parse(new InputSource(in), builder);
+      } catch (javax.xml.parsers.ParserConfigurationException e) {
+        throw new SAXException(e);
+      } finally {
+        in.close();
+      }
+    }
+    return builder.finish(modified, System.currentTimeMillis() - start);
+  }
+
+  static MorphIndex build(InputStream... sources) throws IOException, SAXException {
+    long start = System.currentTimeMillis();
+    Builder builder = new Builder();
+    SAXParserFactory factory = SAXParserFactory.newInstance();
+    for (InputStream in : sources) {
+      try {
+        factory.newSAXParser().parse(new InputSource(in), builder);
+      } catch (javax.xml.parsers.ParserConfigurationException e) {
+        throw new SAXException(e);
+      }
+    }
+    return builder.finish(new long[0], System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Collects (lemma token, form) pairs from &lt;analysis&gt; elements.
+   */
+  private static class Builder extends DefaultHandler {
+
+    private final Map<String, Integer> formIds = new HashMap<String, Integer>();
+    private final List<String> folded = new ArrayList<String>();
+    private final List<String> letters = new ArrayList<String>();
+    private final Map<String, String> interned = new HashMap<String, String>();
+    private final TreeMap<String, int[]> postings = new TreeMap<String, int[]>();
+    private final StringBuilder text = new StringBuilder();
+    private String element;
+    private String form;
+    private String lemma;
+
+    @Override
+    public void startElement(String uri, String local, String qname, Attributes atts) {
+      element = qname;
+      text.setLength(0);
+      if ("analysis".equals(qname)) {
+        form = null;
+        lemma = null;
+      }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      if ("form".equals(element) || "lemma".equals(element)) {
+        text.append(ch, start, length);
+      }
+    }
+
+    @Override
+    public void endElement(String uri, String local, String qname) {
+      if ("form".equals(qname)) {
+        form = text.toString();
+      } else if ("lemma".equals(qname)) {
+        lemma = text.toString();
+      } else if ("analysis".equals(qname) && form != null && lemma != null) {
+        int id = formId(form);
+        for (String token : tokenize(lemma)) {
+          add(intern(token), id);
+        }
+      }
+      element = null;
+      text.setLength(0);
+    }
+
+    private int formId(String raw) {
+      Integer id = formIds.get(raw);
+      if (id == null) {
+        String base = FileUtils.stripDiacriticals(raw).toLowerCase();
+        String f = intern(base.replaceAll("[_^]", ""));
+        String l = intern(base.replaceAll("[^\\p{L}]", ""));
+        // forms that fold to the same strings share an id
+        String key = f + '\u0000' + l;
+        id = formIds.get(key);
+        if (id == null) {
+          id = folded.size();
+          folded.add(f);
+          letters.add(l);
+          formIds.put(key, id);
+        }
+        formIds.put(raw, id);
+      }
+      return id;
+    }
+
+    private String intern(String s) {
+      String i = interned.get(s);
+      if (i == null) {
+        interned.put(s, s);
+        i = s;
+      }
+      return i;
+    }
+
+    private void add(String token, int id) {
+      int[] list = postings.get(token);
+      if (list == null) {
+        list = new int[3];
+        postings.put(token, list);
+      } else {
+        int n = list[0];
+        for (int i = 1; i <= n; i++) {
+          if (list[i] == id) return;
+        }
+        if (n + 1 == list.length) {
+          list = Arrays.copyOf(list, list.length * 2);
+          postings.put(token, list);
+        }
+      }
+      list[0]++;
+      list[list[0]] = id;
+    }
+
+    MorphIndex finish(long[] modified, long millis) {
+      String[] lemmas = postings.keySet().toArray(new String[postings.size()]);
+      int[] offsets = new int[lemmas.length + 1];
+      int total = 0;
+      for (int i = 0; i < lemmas.length; i++) {
+        offsets[i] = total;
+        total += postings.get(lemmas[i])[0];
+      }
+      offsets[lemmas.length] = total;
+      int[] ids = new int[total];
+      for (int i = 0; i < lemmas.length; i++) {
+        int[] list = postings.get(lemmas[i]);
+        System.arraycopy(list, 1, ids, offsets[i], list[0]);
+      }
+      return new MorphIndex(lemmas, offsets, ids,
+              folded.toArray(new String[folded.size()]),
+              letters.toArray(new String[letters.size()]),
+              modified, millis);
+    }
+  }
+
+}
@@ -0,0 +1,165 @@
+package info.papyri.dispatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * An HTML page shell (search.html, browse.html, etc.) held in memory as byte
+ * fragments split around the lines carrying its <code>&lt;!-- ... --&gt;</code>
+ * injection markers.  {@link #getParts()} returns, for n markers, 2n+1
+ * fragments: the text before the first marker line, the first marker line,
+ * the text between the first and second marker lines, and so on.  A marker
+ * that is missing from the file yields empty fragments.
+ * <p>
+ * The file is reloaded when its modification time changes, checked at most
+ * once a second.
+ *
+ * @author hcayless
+ */
+public class PageTemplate {
+
+  static final long CHECK_INTERVAL = 1000;
+
+  private final File file;
+  private final String[] markers;
+  private volatile Loaded loaded;
+
+  public PageTemplate(File file, String... markers) {
+    this.file = file;
+    this.markers = markers;
+  }
+
+  public PageTemplate(String path, String... markers) {
+    this(new File(path), markers);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * The current fragments of the page.  The returned arrays must not be modified.
+   */
+  public byte[][] getParts() throws IOException {
+    return current().parts;
+  }
+
+  /**
+   * The whole page as a String, for templates with no markers (e.g. the
+   * FacetBrowser instructions).
+   */
+  public String getText() throws IOException {
+    return current().text;
+  }
+
+  /**
+   * Writes fragment <code>i</code> of the given parts to <code>out</code>.
+   */
+  public static void write(byte[][] parts, int i, OutputStream out) throws IOException {
+    if (parts[i].length > 0) {
+      out.write(parts[i]);
+    }
+  }
+
+  private Loaded current() throws IOException {
+    Loaded l = loaded;
+    long now = System.currentTimeMillis();
+    if (l != null && now - l.checked < CHECK_INTERVAL) {
+      return l;
+    }
+    synchronized (this) {
+      l = loaded;
+      if (l != null && now - l.checked < CHECK_INTERVAL) {
+        return l;
+      }
+      long modified = file.lastModified();
+      if (modified == 0L) {
+        throw new FileNotFoundException(file.getPath());
+      }
+      if (l == null || l.modified != modified || l.length != file.length()) {
+        l = load(modified);
+      } else {
+        l.checked = now;
+      }
+      loaded = l;
+      return l;
+    }
+  }
+
+  private Loaded load(long modified) throws IOException {
+    byte[] content = readFully(file);
+    byte[][] parts = new byte[markers.length * 2 + 1][];
+    int pos = 0;
+    for (int m = 0; m < markers.length; m++) {
+      byte[] marker = markers[m].getBytes("UTF-8");
+      int at = indexOf(content, marker, pos);
+      if (at < 0) {
+        parts[m * 2] = new byte[0];
+        parts[m * 2 + 1] = new byte[0];
+        continue;
+      }
+      int lineStart = at;
+      while (lineStart > pos && content[lineStart - 1] != '\n') {
+        lineStart--;
+      }
+      int lineEnd = at + marker.length;
+      while (lineEnd < content.length && content[lineEnd - 1] != '\n') {
+        lineEnd++;
+      }
+      parts[m * 2] = Arrays.copyOfRange(content, pos, lineStart);
+      parts[m * 2 + 1] = Arrays.copyOfRange(content, lineStart, lineEnd);
+      pos = lineEnd;
+    }
+    parts[markers.length * 2] = Arrays.copyOfRange(content, pos, content.length);
+    Loaded l = new Loaded();
+    l.parts = parts;
+    l.text = new String(content, "UTF-8");
+    l.modified = modified;
+    l.length = content.length;
+    l.checked = System.currentTimeMillis();
+    return l;
+  }
+
+  static int indexOf(byte[] content, byte[] marker, int from) {
+    outer:
+    for (int i = from; i <= content.length - marker.length; i++) {
+      for (int j = 0; j < marker.length; j++) {
+        if (content[i + j] != marker[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  private static byte[] readFully(File f) throws IOException {
+    InputStream in = new FileInputStream(f);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(f.length(), 1024));
+      byte[] buf = new byte[8192];
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        out.write(buf, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static class Loaded {
+    byte[][] parts;
+    String text;
+    long modified;
+    long length;
+    volatile long checked;
+  }
+
+}
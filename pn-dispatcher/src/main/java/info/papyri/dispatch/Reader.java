@@ -3,12 +3,9 @@ package info.papyri.dispatch;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.util.Iterator;
 import java.util.regex.Pattern;
 import javax.servlet.ServletConfig;
@@ -18,22 +15,25 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.map.ObjectMapper;
 
 /**
  *
  * @author hcayless
  */
-@WebServlet(name = "Reader", urlPatterns = {"/reader"})
+@WebServlet(name = "Reader", urlPatterns = {"/reader"}, asyncSupported = true)
 public class Reader extends HttpServlet {
-  private static String graph = "http://papyri.info/graph";
-  private static String path = "/pi/query";
-  private String sparqlServer;
   private String xmlPath = "";
   private String htmlPath = "";
   private FileUtils util;
   private SolrUtils solrutil;
-  private byte[] buffer = new byte[8192];
+
+  /** Runs {@link #processRequest} on the backend pool. */
+  private final AsyncDispatch.Handler handler = new AsyncDispatch.Handler() {
+    @Override
+    public void handle(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+      processRequest(request, response);
+    }
+  };
 
   @Override
   public void init(ServletConfig config) throws ServletException {
@@ -42,7 +42,6 @@ public class Reader extends HttpServlet {
     htmlPath = config.getInitParameter("htmlPath");
     util = new FileUtils(xmlPath, htmlPath);
     solrutil = new SolrUtils(config);
-    sparqlServer = config.getInitParameter("sparqlUrl");
   }
 
   /**
@@ -70,24 +69,37 @@ public class Reader extends HttpServlet {
       } else if (page.contains("/")) {
         String collection = FileUtils.substringBefore(page, "/");
         String item = FileUtils.substringAfter(page, "/").replaceAll("/$", "");
-        File file = null;
+        File file;
+        // the id index, once loaded, knows every source file and the page
+        // each aggregated record is shown on; anything it doesn't have, or
+        // has a missing file for, is resolved the old way
+        IdIndex.Entry entry = IdIndex.lookup(collection + "/" + item.replaceAll("/(source|text)$", ""));
         if (item.endsWith("/source")) {
           response.setContentType("application/xml;charset=UTF-8");
-          file = util.getXmlFile(collection, item.replace("/source", ""));
-          if (file != null && !file.exists()) { //use triple store to resolve to source file
-            file = resolveFile("http://papyri.info/" + collection + "/" + item + "/source", "Xml");
+          file = existing(entry == null ? null : entry.getXmlFile());
+          if (file == null) {
+            file = util.getXmlFile(collection, item.replace("/source", ""));
+            if (file != null && !file.exists()) { //use triple store to resolve to source file
+              file = resolveFile("http://papyri.info/" + collection + "/" + item + "/source", "Xml");
+            }
           }
         } else if (page.endsWith("text")) {
           response.setContentType("text/plain;charset=UTF-8");
-          file = util.getTextFile(collection, item.replace("/text", ""));
-          if (file != null && !file.exists()) { //use triple store to resolve to source file
-            file = resolveFile("http://papyri.info/" + collection + "/" + item + "/source", "Text");
+          file = existing(entry == null ? null : entry.getTextFile());
+          if (file == null) {
+            file = util.getTextFile(collection, item.replace("/text", ""));
+            if (file != null && !file.exists()) { //use triple store to resolve to source file
+              file = resolveFile("http://papyri.info/" + collection + "/" + item + "/source", "Text");
+            }
           }
         } else {
           response.setContentType("text/html;charset=UTF-8");
-          file = util.getHtmlFile(collection, item);
-          if (file != null && !file.exists()) { //use triple store to resolve to source file
-            file = resolveFile("http://papyri.info/" + collection + "/" + item + "/source", "Html");
+          file = existing(entry == null ? null : entry.getHtmlFile());
+          if (file == null) {
+            file = util.getHtmlFile(collection, item);
+            if (file != null && !file.exists()) { //use triple store to resolve to source file
+              file = resolveFile("http://papyri.info/" + collection + "/" + item + "/source", "Html");
+            }
           }
         }
         if (file == null) {
@@ -96,7 +108,7 @@ public class Reader extends HttpServlet {
           if (request.getParameter("q") != null) {
             sendWithHighlight(response, file, request.getParameter("q"));
           } else {
-            send(response, file);
+            FileSender.send(request, response, file, true);
           }
         }
       }
@@ -105,30 +117,6 @@ public class Reader extends HttpServlet {
     }
   }
 
-  private void send(HttpServletResponse response, File f)
-          throws ServletException, IOException {
-    FileInputStream reader = null;
-    OutputStream out = response.getOutputStream();
-    if (f != null && f.exists()) {
-      try {
-        reader = new FileInputStream(f);
-        int size = reader.read(buffer);
-        while (size > 0) { 
-          out.write(buffer, 0, size);
-          size = reader.read(buffer);
-        }
-      } catch (IOException e) {
-        response.sendError(HttpServletResponse.SC_NOT_FOUND);
-        System.out.println("Failed to send " + f);
-      } finally {
-        reader.close();
-        out.close();
-      }
-    } else {
-      response.sendError(HttpServletResponse.SC_NOT_FOUND);
-    }
-  }
-
   private void sendWithHighlight(HttpServletResponse response, File f, String q)
     throws ServletException, IOException {
     PrintWriter out = response.getWriter();
@@ -150,7 +138,12 @@ public class Reader extends HttpServlet {
     if (f != null && f.exists()) {
       try {
         Pattern[] patterns = util.buildPatterns(q);
-        out.write(util.highlight(patterns, util.loadFile(f)));
+        InputStreamReader in = new InputStreamReader(new FileInputStream(f), "UTF-8");
+        try {
+          new Highlighter(patterns).highlight(in, out);
+        } finally {
+          in.close();
+        }
       } catch (Exception e) {
         e.printStackTrace(System.out);
       } finally {
@@ -161,23 +154,19 @@ public class Reader extends HttpServlet {
     }
   }
 
+  private static File existing(File f) {
+    return f != null && f.exists() ? f : null;
+  }
+
   private File resolveFile(String page, String type) {
-    File result = null;
-    StringBuilder sparql = new StringBuilder();
-    sparql.append("prefix dc: <http://purl.org/dc/terms/> ");
-    sparql.append("select ?related ");
-    sparql.append("from <");
-    sparql.append(graph);
-    sparql.append("> where { <").append(page).append("> dc:relation ?related . ");
-    sparql.append("optional { ?related dc:isReplacedBy ?orig } . ");
-    sparql.append("filter (!bound(?orig)) . ");
-    sparql.append("filter regex(str(?related), \"^http://papyri.info/(ddbdp|hgv)\") }");
+    String key = type + " " + page;
+    File result = ResolutionCache.get(key);
+    if (result != null) {
+      return result == ResolutionCache.NONE ? null : result;
+    }
+    String sparql = SparqlTemplate.RELATED_TEXTS.bind(page);
     try {
-      URL m = new URL(sparqlServer + path + "?query=" + URLEncoder.encode(sparql.toString(), "UTF-8") + "&format=json");
-      HttpURLConnection http = (HttpURLConnection)m.openConnection();
-      http.setConnectTimeout(2000);
-      ObjectMapper o = new ObjectMapper();
-      JsonNode root = o.readValue(http.getInputStream(), JsonNode.class);
+      JsonNode root = SparqlClient.select(sparql);
       Iterator<JsonNode> i = root.path("results").path("bindings").iterator();
       String uri;
       while (i.hasNext()) {
@@ -188,11 +177,12 @@ public class Reader extends HttpServlet {
         if (uri.contains("hgv/")) {
           result = (File)util.getClass().getMethod("get"+type+"FileFromId", String.class).invoke(util, URLDecoder.decode(uri, "UTF-8"));
         }
-        if (result.exists()) {
+        if (result != null && result.exists()) {
           break;
         }
       }
-      
+      ResolutionCache.put(key, result);
+
     } catch (Exception e) {
       e.printStackTrace();
       System.out.println(sparql);
@@ -214,7 +204,7 @@ public class Reader extends HttpServlet {
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
           throws ServletException, IOException {
-    processRequest(request, response);
+    AsyncDispatch.dispatch(request, response, handler);
   }
 
   /**
@@ -227,7 +217,7 @@ public class Reader extends HttpServlet {
   @Override
   protected void doPost(HttpServletRequest request, HttpServletResponse response)
           throws ServletException, IOException {
-    processRequest(request, response);
+    AsyncDispatch.dispatch(request, response, handler);
   }
 
   /**
@@ -0,0 +1,182 @@
+package info.papyri.dispatch;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Bounded LRU cache of Reader's triple store resolutions: the file a page
+ * whose own file is missing (usually an HGV or APIS record aggregated into a
+ * DDbDP text) is shown from, or the fact that there is none.  Found files are
+ * kept for <code>resolveCacheTtl</code> ms and misses for
+ * <code>resolveCacheNegativeTtl</code> ms.  Since the answers only change
+ * when pn-sync publishes, the whole cache is dropped as soon as the id index
+ * journal (which pn-sync appends to on every publication) changes, checked
+ * at most every <code>resolveCacheCheckInterval</code> ms.
+ * <p>
+ * Configured from the web.xml context-params named above and
+ * <code>resolveCacheSize</code>.
+ *
+ * @author hcayless
+ */
+public class ResolutionCache implements ServletContextListener {
+
+  static final int DEFAULT_SIZE = 20000;
+  static final long DEFAULT_TTL = 6 * 3600000L;
+  static final long DEFAULT_NEGATIVE_TTL = 600000L;
+  static final long DEFAULT_CHECK_INTERVAL = 60000L;
+
+  private static volatile int maxSize = DEFAULT_SIZE;
+  private static volatile long ttl = DEFAULT_TTL;
+  private static volatile long negativeTtl = DEFAULT_NEGATIVE_TTL;
+  private static volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+  private static final Map<String, Resolution> cache = new LinkedHashMap<String, Resolution>(256, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Resolution> eldest) {
+      if (size() > maxSize) {
+        evictions.incrementAndGet();
+        return true;
+      }
+      return false;
+    }
+  };
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong negativeHits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong expirations = new AtomicLong();
+  private static final AtomicLong evictions = new AtomicLong();
+  private static final AtomicLong invalidations = new AtomicLong();
+  private static volatile long lastCheck = 0;
+  private static volatile long journalState = -1;
+
+  /**
+   * Marks a cached miss; nulls are used for "not cached".
+   */
+  static final File NONE = new File("");
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    ServletContext context = sce.getServletContext();
+    try {
+      String value = context.getInitParameter("resolveCacheSize");
+      if (value != null) maxSize = Integer.parseInt(value.trim());
+      value = context.getInitParameter("resolveCacheTtl");
+      if (value != null) ttl = Long.parseLong(value.trim());
+      value = context.getInitParameter("resolveCacheNegativeTtl");
+      if (value != null) negativeTtl = Long.parseLong(value.trim());
+      value = context.getInitParameter("resolveCacheCheckInterval");
+      if (value != null) checkInterval = Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      context.log("Bad resolution cache setting, using defaults.", e);
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    clear();
+  }
+
+  /**
+   * The cached resolution of <code>key</code>: a file, {@link #NONE} if it
+   * is known not to resolve, or null if it has to be looked up.
+   */
+  public static File get(String key) {
+    checkPublications();
+    long now = System.currentTimeMillis();
+    Resolution r;
+    synchronized (cache) {
+      r = cache.get(key);
+      if (r != null && r.expires <= now) {
+        cache.remove(key);
+        expirations.incrementAndGet();
+        r = null;
+      }
+    }
+    if (r == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    if (r.file == NONE) {
+      negativeHits.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return r.file;
+  }
+
+  /**
+   * Caches the resolution of <code>key</code>; a null or missing
+   * <code>file</code> is cached as a miss.
+   */
+  public static void put(String key, File file) {
+    boolean found = file != null && file.exists();
+    Resolution r = new Resolution(found ? file : NONE, System.currentTimeMillis() + (found ? ttl : negativeTtl));
+    synchronized (cache) {
+      cache.put(key, r);
+    }
+  }
+
+  public static void clear() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  static int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  public static Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    long h = hits.get() + negativeHits.get();
+    long m = misses.get();
+    stats.put("size", size());
+    stats.put("maxSize", maxSize);
+    stats.put("hits", hits.get());
+    stats.put("negativeHits", negativeHits.get());
+    stats.put("misses", m);
+    stats.put("hitRatio", h + m == 0 ? 0.0 : (double) h / (h + m));
+    stats.put("expirations", expirations.get());
+    stats.put("evictions", evictions.get());
+    stats.put("invalidations", invalidations.get());
+    return stats;
+  }
+
+  /**
+   * Drops the cache if pn-sync has published since the last check.
+   */
+  static void checkPublications() {
+    long now = System.currentTimeMillis();
+    if (now - lastCheck < checkInterval) {
+      return;
+    }
+    lastCheck = now;
+    File journal = IdIndex.getJournal();
+    long state = journal.length() ^ journal.lastModified();
+    if (journalState != state) {
+      if (journalState != -1) {
+        invalidations.incrementAndGet();
+        clear();
+      }
+      journalState = state;
+    }
+  }
+
+  private static class Resolution {
+
+    final File file;
+    final long expires;
+
+    Resolution(File file, long expires) {
+      this.file = file;
+      this.expires = expires;
+    }
+  }
+
+}
@@ -2,10 +2,9 @@ package info.papyri.dispatch;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.URLEncoder;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -17,7 +16,6 @@ import edu.unc.epidoc.transcoder.TransCoder;
 
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.request.QueryRequest;
@@ -33,30 +31,22 @@ import org.apache.solr.client.solrj.SolrRequest.METHOD;
  */
 public class Search extends HttpServlet {
 
-  private String solrUrl;
-  private URL searchURL;
+  private PageTemplate searchPage;
   private String xmlPath = "";
   private String htmlPath = "";
   private String home = "";
   private FileUtils util;
   private SolrUtils solrutil;
-  private static String PNSearch = "pn-search/";
-  private static String morphSearch = "morph-search/";
 
   @Override
   public void init(ServletConfig config) throws ServletException {
     super.init(config);
-    solrUrl = config.getInitParameter("solrUrl");
     xmlPath = config.getInitParameter("xmlPath");
     htmlPath = config.getInitParameter("htmlPath");
     home = config.getInitParameter("home");
     util = new FileUtils(xmlPath, htmlPath);
     solrutil = new SolrUtils(config);
-    try {
-      searchURL = new URL("file://" + home + "/" + "search.html");
-    } catch (MalformedURLException e) {
-      throw new ServletException(e);
-    }
+    searchPage = new PageTemplate(home + "/search.html", "<!-- Search form -->", "<!-- Search form end -->");
 
   }
 
@@ -77,29 +67,29 @@ public class Search extends HttpServlet {
           HttpServletResponse response) throws ServletException, IOException {
     request.setCharacterEncoding("UTF-8");
     response.setContentType("text/html;charset=UTF-8");
-    PrintWriter out = response.getWriter();
-    BufferedReader reader = null;
+    OutputStream os = response.getOutputStream();
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(os, "UTF-8"));
     try {
+      byte[][] page = searchPage.getParts();
       if (request.getParameter("keyword") != null || request.getParameter("q") != null) {
-        reader = new BufferedReader(new InputStreamReader(searchURL.openStream()));
-        String line = "";
-        while ((line = reader.readLine()) != null) {
-          if (line.contains("<!-- Search form -->")) {
-            out.println("<div id=\"hidesearch\" style=\"display:none\">");
-          }
-          if (line.contains("<!-- Search form end -->")) {
-            out.println("</div>");
-            out.println("<p><a href=\"#\" id=\"newsearch\">New Search</a></p>");
-            runQuery(out, request, response);
-          }
-          out.println(line);
+        PageTemplate.write(page, 0, os);
+        if (page[1].length > 0) {
+          out.println("<div id=\"hidesearch\" style=\"display:none\">");
+          out.flush();
+        }
+        PageTemplate.write(page, 1, os);
+        PageTemplate.write(page, 2, os);
+        if (page[3].length > 0) {
+          out.println("</div>");
+          out.println("<p><a href=\"#\" id=\"newsearch\">New Search</a></p>");
+          runQuery(out, request, response);
+          out.flush();
         }
+        PageTemplate.write(page, 3, os);
+        PageTemplate.write(page, 4, os);
       } else {
-        reader = new BufferedReader(new InputStreamReader(searchURL.openStream()));
-        char[] cbuf = new char[8192];
-        int l = -1;
-        while ((l = reader.read(cbuf)) > 0) {
-          out.write(cbuf, 0, l);
+        for (int i = 0; i < page.length; i++) {
+          PageTemplate.write(page, i, os);
         }
       }
 
@@ -121,12 +111,11 @@ public class Search extends HttpServlet {
       throw new ServletException(mue);
     } finally {
       out.close();
-      if (reader != null) reader.close();
     }
   }
 
   private void runQuery(PrintWriter out, HttpServletRequest request, HttpServletResponse response) throws MalformedURLException, SolrServerException, ServletException {
-    SolrServer solr = new CommonsHttpSolrServer(solrUrl + PNSearch);
+    SolrServer solr = SolrServerRegistry.getServer(SolrServerRegistry.PN_SEARCH);
     String q = request.getParameter("q");
     if (q == null) {
       String query = request.getParameter("keyword");
@@ -288,6 +277,8 @@ public class Search extends HttpServlet {
       if ("yes".equals(request.getParameter("translationssfirst"))) {
         sq.addSortField("has_translation", SolrQuery.ORDER.desc);
       }
+      sq.addSortField("sort_key", SolrQuery.ORDER.asc);
+      // for documents indexed without a sort_key
       sq.addSortField("series", SolrQuery.ORDER.asc);
       sq.addSortField("volume", SolrQuery.ORDER.asc);
       sq.addSortField("item", SolrQuery.ORDER.asc);
@@ -0,0 +1,320 @@
+package info.papyri.dispatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds the keyword-in-context snippets shown under search results, and
+ * highlights matches in text or HTML.  The text is prepared once: line
+ * numbers are rewritten to the ⓝ/Ⓝ/Ⓜ marker forms and the offsets of the
+ * line markers are recorded, so each match's context window is found by
+ * binary search rather than by rescanning the text before it.  All the
+ * regular expressions involved are compiled once.
+ * <p>
+ * Output is the same as the older FileUtils implementation, which this
+ * replaces: patterns are tried in order, context windows run from the line
+ * marker before a match to the one after it (trimmed when lines are long),
+ * overlapping windows are merged, and at most three snippets are returned.
+ *
+ * @author hcayless
+ */
+public class Snippets {
+
+  static final int MAX_SNIPPETS = 3;
+
+  static final Pattern EXCLUDE = Pattern.compile("(<span\\s[^>]+>[^<]+</span>|<a\\s[^>]+>[^<]+</a>|<[^>]+>|&\\w+;)");
+  static final Pattern EXCLUDED = Pattern.compile("ⓐⓐⓐ\\n?");
+  private static final Pattern SUPPLIED_BREAK = Pattern.compile("Ⓜ([^ⓞ]+)ⓞ");
+  private static final Pattern HYPHEN_BREAK = Pattern.compile("Ⓝ([^ⓜ]+)ⓜ");
+  private static final Pattern LINE_BREAK = Pattern.compile("ⓝ([^ⓜ]+)ⓜ");
+  static final String EXCLUSION_MARK = "ⓐⓐⓐ\n";
+  private static final char LINE_MARK = 'ⓝ';
+  static final char HL_START_MARK = 'Ⓐ';
+  static final char HL_END_MARK = 'Ⓑ';
+  static final String HL_START = "<span class=\"highlight\">";
+  static final String HL_END = "</span>";
+
+  private Snippets() {
+  }
+
+  /**
+   * Finds matches in a text file and returns the top 3 matches with HTML
+   * highlighting applied and with context surrounding the highlighted text.
+   * @param t the text
+   * @param patterns the patterns to match, in order of preference
+   * @return A <code>java.util.List</code> containing the top 3 matches plus
+   * context
+   */
+  public static List<String> highlightMatches(String t, Pattern[] patterns) {
+    List<String> result = new ArrayList<String>();
+    Prepared p = prepare(t);
+    String text = p.text;
+    int length = text.length();
+    int firstMark = p.marks.length > 0 ? p.marks[0] : -1;
+    for (Pattern pattern : patterns) {
+      Matcher m = pattern.matcher(text);
+      int prevEnd = 0;
+      while (m.find()) {
+        int matchStart = m.start();
+        int matchEnd = m.end();
+        int start = 0;
+        // the window starts at the last line marker before the match, unless
+        // the text itself begins with one
+        if (firstMark > 0 && firstMark < matchStart) {
+          start = p.marks[p.lastMarkBefore(matchStart)];
+        }
+        int end = matchEnd;
+        if (matchEnd > length - 50) {
+          end = length;
+        } else {
+          int next = p.firstMarkFrom(matchEnd);
+          if (next > 0) {
+            end = next - 1;
+          }
+        }
+        // if our lines are excessively long, then trim them
+        if (end - start > 150) {
+          while (matchStart - start > 100) {
+            start = text.indexOf(' ', start + 70) + 1;
+          }
+          if (end - matchEnd > 100) {
+            end = text.lastIndexOf(' ', matchEnd + 70);
+          }
+        }
+        if (start >= prevEnd) {
+          result.add(breakLines(highlight(patterns, text.substring(start, end))));
+          if (result.size() >= MAX_SNIPPETS) {
+            return result;
+          }
+          prevEnd = end;
+        } else {
+          String hit = result.remove(result.size() - 1) + text.substring(prevEnd, end);
+          result.add(breakLines(highlight(patterns, hit)));
+          if (result.size() >= MAX_SNIPPETS) {
+            return result;
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Wraps every match of the given patterns in <code>t</code> with a
+   * highlight span, leaving tags and entities alone.
+   * @param patterns
+   * @param t text or HTML
+   * @return the highlighted text
+   */
+  public static String highlight(Pattern[] patterns, String t) {
+    List<String> exclusions = new ArrayList<String>();
+    Matcher ex = EXCLUDE.matcher(t);
+    StringBuilder sb = new StringBuilder(t.length() + 64);
+    int pos = 0;
+    while (ex.find()) {
+      exclusions.add(ex.group());
+      sb.append(t, pos, ex.start()).append(EXCLUSION_MARK);
+      pos = ex.end();
+    }
+    sb.append(t, pos, t.length());
+    String text = sb.toString();
+    for (Pattern pattern : patterns) {
+      Matcher m = pattern.matcher(text);
+      if (!m.find()) {
+        continue;
+      }
+      StringBuilder hl = new StringBuilder(text.length() + 16);
+      int index = 0;
+      do {
+        hl.append(text, index, m.start());
+        hl.append(HL_START_MARK);
+        hl.append(text, m.start(), m.end());
+        hl.append(HL_END_MARK);
+        index = m.end();
+      } while (m.find());
+      hl.append(text, index, text.length());
+      text = hl.toString();
+    }
+    StringBuilder restored = new StringBuilder(text.length() + t.length());
+    Matcher m = EXCLUDED.matcher(text);
+    int i = 0;
+    int start = 0;
+    while (m.find()) {
+      restored.append(text, start, m.start());
+      restored.append(exclusions.get(i));
+      start = m.end();
+      i++;
+    }
+    restored.append(text, start, text.length());
+    return replaceMarks(restored);
+  }
+
+  /**
+   * Replaces each run of start or end marks with the highlight span tags.
+   */
+  private static String replaceMarks(CharSequence in) {
+    StringBuilder out = new StringBuilder(in.length() + 64);
+    char prev = 0;
+    for (int i = 0; i < in.length(); i++) {
+      char c = in.charAt(i);
+      if (c == HL_START_MARK) {
+        if (prev != HL_START_MARK) out.append(HL_START);
+      } else if (c == HL_END_MARK) {
+        if (prev != HL_END_MARK) out.append(HL_END);
+      } else {
+        out.append(c);
+      }
+      prev = c;
+    }
+    return out.toString();
+  }
+
+  private static String breakLines(String snippet) {
+    String s = SUPPLIED_BREAK.matcher(snippet).replaceAll("-]<br/>$1 ");
+    s = HYPHEN_BREAK.matcher(s).replaceAll("-<br/>$1 ");
+    s = LINE_BREAK.matcher(s).replaceAll("$1 ");
+    return s.replace("ⓝ", "");
+  }
+
+  /**
+   * Rewrites line numbers as markers, turns newlines into line marks and
+   * escapes angle brackets, recording where each line mark ends up.  The
+   * three line number rewrites behave exactly like the regular expressions
+   * <pre>
+   *   ((?&lt;![-])-\](\s|\r|\n)+([0-9]+\.\S*)\s*)  &rarr; Ⓜ$3ⓞ
+   *   (-(\s|\r|\n)+([0-9]+\.\S*)\s*)           &rarr; Ⓝ$3ⓜ
+   *   ((\s|\r|\n)+([0-9]+\.\S*)\s*)            &rarr; \nⓝ$3ⓜ
+   * </pre>
+   * applied in turn with <code>replaceAll</code>, but each is a plain scan.
+   */
+  static Prepared prepare(String t) {
+    String s = rewriteLineNumbers(t, SUPPLIED, "Ⓜ", "ⓞ");
+    s = rewriteLineNumbers(s, HYPHENATED, "Ⓝ", "ⓜ");
+    s = rewriteLineNumbers(s, PLAIN, "\nⓝ", "ⓜ");
+    StringBuilder text = new StringBuilder(s.length() + s.length() / 8);
+    int[] marks = new int[64];
+    int count = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\n') {
+        text.append(' ');
+        c = LINE_MARK;
+      } else if (c == '<') {
+        text.append("&lt;");
+        continue;
+      } else if (c == '>') {
+        text.append("&gt;");
+        continue;
+      }
+      if (c == LINE_MARK) {
+        if (count == marks.length) {
+          marks = Arrays.copyOf(marks, count * 2);
+        }
+        marks[count++] = text.length();
+      }
+      text.append(c);
+    }
+    return new Prepared(text.toString(), Arrays.copyOf(marks, count));
+  }
+
+  private static final int SUPPLIED = 0;
+  private static final int HYPHENATED = 1;
+  private static final int PLAIN = 2;
+
+  private static String rewriteLineNumbers(String s, int kind, String open, String close) {
+    StringBuilder out = null;
+    int copied = 0;
+    int length = s.length();
+    int i = 0;
+    while (i < length) {
+      char c = s.charAt(i);
+      int ws;
+      if (kind == PLAIN) {
+        if (!isSpace(c)) {
+          i++;
+          continue;
+        }
+        ws = i;
+      } else if (c == '-') {
+        if (kind == SUPPLIED) {
+          if (i + 1 >= length || s.charAt(i + 1) != ']' || (i > 0 && s.charAt(i - 1) == '-')) {
+            i++;
+            continue;
+          }
+          ws = i + 2;
+        } else {
+          ws = i + 1;
+        }
+      } else {
+        i++;
+        continue;
+      }
+      // whitespace, digits, '.', non-space, whitespace
+      int j = ws;
+      while (j < length && isSpace(s.charAt(j))) j++;
+      int num = j;
+      while (j < length && s.charAt(j) >= '0' && s.charAt(j) <= '9') j++;
+      if (num == ws || j == num || j >= length || s.charAt(j) != '.') {
+        // every start inside a run of whitespace fails the same way
+        i = kind == PLAIN ? Math.max(num, i + 1) : i + 1;
+        continue;
+      }
+      j++;
+      while (j < length && !isSpace(s.charAt(j))) j++;
+      int numEnd = j;
+      while (j < length && isSpace(s.charAt(j))) j++;
+      if (out == null) {
+        out = new StringBuilder(length + 256);
+      }
+      out.append(s, copied, i).append(open).append(s, num, numEnd).append(close);
+      copied = j;
+      i = j;
+    }
+    if (out == null) {
+      return s;
+    }
+    return out.append(s, copied, length).toString();
+  }
+
+  /**
+   * Java regex <code>\s</code>, i.e. <code>[ \t\n\x0B\f\r]</code>.
+   */
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  static class Prepared {
+
+    final String text;
+    final int[] marks;
+
+    Prepared(String text, int[] marks) {
+      this.text = text;
+      this.marks = marks;
+    }
+
+    /**
+     * Index in <code>marks</code> of the last line mark before
+     * <code>offset</code>, or -1.
+     */
+    int lastMarkBefore(int offset) {
+      int i = Arrays.binarySearch(marks, offset);
+      return (i >= 0 ? i : -i - 1) - 1;
+    }
+
+    /**
+     * Offset of the first line mark at or after <code>offset</code>, or -1.
+     */
+    int firstMarkFrom(int offset) {
+      int i = Arrays.binarySearch(marks, offset);
+      if (i < 0) {
+        i = -i - 1;
+      }
+      return i < marks.length ? marks[i] : -1;
+    }
+  }
+
+}
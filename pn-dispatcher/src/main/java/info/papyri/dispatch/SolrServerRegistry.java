@@ -0,0 +1,194 @@
+package info.papyri.dispatch;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.solr.client.solrj.ResponseParser;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Holds one long-lived, thread-safe SolrServer per Solr core, each backed by
+ * its own pooled connection manager.  The registry is built at webapp startup
+ * from the context-params in web.xml:
+ * <ul>
+ *   <li><code>solrUrl</code> - base URL of the Solr webapp</li>
+ *   <li><code>solrConnectTimeout</code>, <code>solrSoTimeout</code>,
+ *   <code>solrMaxConnections</code> - defaults for every core</li>
+ *   <li><code>&lt;core&gt;.connectTimeout</code>, <code>&lt;core&gt;.soTimeout</code>,
+ *   <code>&lt;core&gt;.maxConnections</code> - per-core overrides</li>
+ * </ul>
+ * Servlets call {@link #getServer(String)} instead of constructing a new
+ * CommonsHttpSolrServer for every request.
+ *
+ * @author hcayless
+ */
+public class SolrServerRegistry implements ServletContextListener {
+
+  public static final String PN_SEARCH = "pn-search";
+  public static final String MORPH_SEARCH = "morph-search";
+  public static final String BIBLIO_SEARCH = "biblio-search";
+  static final String[] CORES = {PN_SEARCH, MORPH_SEARCH, BIBLIO_SEARCH};
+
+  static final String DEFAULT_SOLR_URL = "http://localhost:8083/solr/";
+  static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+  static final int DEFAULT_SO_TIMEOUT = 20000;
+  static final int DEFAULT_MAX_CONNECTIONS = 32;
+
+  private static final Map<String, PooledSolrServer> servers = new ConcurrentHashMap<String, PooledSolrServer>();
+  private static volatile ServletContext context;
+  private static volatile String solrUrl = DEFAULT_SOLR_URL;
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    context = sce.getServletContext();
+    String url = context.getInitParameter("solrUrl");
+    if (url != null && !"".equals(url)) {
+      solrUrl = url.endsWith("/") ? url : url + "/";
+    }
+    for (String core : CORES) {
+      getServer(core);
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    synchronized (servers) {
+      for (PooledSolrServer server : servers.values()) {
+        server.manager.shutdown();
+      }
+      servers.clear();
+    }
+    context = null;
+  }
+
+  /**
+   * Returns the shared client for the named core (e.g. "pn-search").  Cores
+   * not created at startup are created on first use with the default settings.
+   */
+  public static SolrServer getServer(String core) {
+    PooledSolrServer server = servers.get(core);
+    if (server == null) {
+      synchronized (servers) {
+        server = servers.get(core);
+        if (server == null) {
+          server = createServer(core);
+          servers.put(core, server);
+        }
+      }
+    }
+    return server;
+  }
+
+  /**
+   * Pool usage and request counters for each core, keyed by core name.
+   */
+  public static Map<String, Map<String, Long>> getStats() {
+    Map<String, Map<String, Long>> result = new LinkedHashMap<String, Map<String, Long>>();
+    for (Map.Entry<String, PooledSolrServer> e : servers.entrySet()) {
+      result.put(e.getKey(), e.getValue().getStats());
+    }
+    return result;
+  }
+
+  private static PooledSolrServer createServer(String core) {
+    int connectTimeout = getIntParam(core, "connectTimeout", "solrConnectTimeout", DEFAULT_CONNECT_TIMEOUT);
+    int soTimeout = getIntParam(core, "soTimeout", "solrSoTimeout", DEFAULT_SO_TIMEOUT);
+    int maxConnections = getIntParam(core, "maxConnections", "solrMaxConnections", DEFAULT_MAX_CONNECTIONS);
+    MultiThreadedHttpConnectionManager manager = new MultiThreadedHttpConnectionManager();
+    HttpConnectionManagerParams params = manager.getParams();
+    params.setConnectionTimeout(connectTimeout);
+    params.setSoTimeout(soTimeout);
+    params.setDefaultMaxConnectionsPerHost(maxConnections);
+    params.setMaxTotalConnections(maxConnections);
+    params.setStaleCheckingEnabled(true);
+    try {
+      PooledSolrServer server = new PooledSolrServer(solrUrl + core, manager);
+      server.setConnectionManagerTimeout((long) connectTimeout);
+      return server;
+    } catch (MalformedURLException e) {
+      manager.shutdown();
+      throw new IllegalStateException("Bad Solr URL for core " + core + ": " + solrUrl + core, e);
+    }
+  }
+
+  private static int getIntParam(String core, String name, String defaultName, int defaultValue) {
+    ServletContext ctx = context;
+    if (ctx == null) {
+      return defaultValue;
+    }
+    String value = ctx.getInitParameter(core + "." + name);
+    if (value == null) {
+      value = ctx.getInitParameter(defaultName);
+    }
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      ctx.log("Ignoring non-numeric value '" + value + "' for " + core + "." + name);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * CommonsHttpSolrServer that keeps a handle on its connection manager and
+   * counts the requests it makes.
+   */
+  static class PooledSolrServer extends CommonsHttpSolrServer {
+
+    final MultiThreadedHttpConnectionManager manager;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong millis = new AtomicLong();
+
+    PooledSolrServer(String url, MultiThreadedHttpConnectionManager manager) throws MalformedURLException {
+      super(url, new HttpClient(manager));
+      this.manager = manager;
+    }
+
+    @Override
+    public NamedList<Object> request(SolrRequest request, ResponseParser processor) throws SolrServerException, IOException {
+      long start = System.currentTimeMillis();
+      requests.incrementAndGet();
+      try {
+        return super.request(request, processor);
+      } catch (SolrServerException e) {
+        failures.incrementAndGet();
+        throw e;
+      } catch (IOException e) {
+        failures.incrementAndGet();
+        throw e;
+      } catch (RuntimeException e) {
+        failures.incrementAndGet();
+        throw e;
+      } finally {
+        millis.addAndGet(System.currentTimeMillis() - start);
+      }
+    }
+
+    Map<String, Long> getStats() {
+      Map<String, Long> stats = new LinkedHashMap<String, Long>();
+      stats.put("requests", requests.get());
+      stats.put("failures", failures.get());
+      stats.put("totalMillis", millis.get());
+      stats.put("connectionsInPool", (long) manager.getConnectionsInPool());
+      stats.put("maxConnections", (long) manager.getParams().getMaxTotalConnections());
+      return stats;
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package info.papyri.dispatch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+
+/**
+ * Shared client for the numbers server (the Fuseki SPARQL endpoint).  All
+ * requests go through one pooled, keep-alive connection manager with connect
+ * and read timeouts, and JSON results are parsed with a single reusable
+ * reader.  Configured at startup from the web.xml context-params
+ * <code>sparqlUrl</code> (the full query endpoint), <code>sparqlConnectTimeout</code>,
+ * <code>sparqlReadTimeout</code> and <code>sparqlMaxConnections</code>.
+ *
+ * @author hcayless
+ */
+public class SparqlClient implements ServletContextListener {
+
+  static final String DEFAULT_ENDPOINT = "http://localhost:8090/pi/query";
+  static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+  static final int DEFAULT_READ_TIMEOUT = 20000;
+  static final int DEFAULT_MAX_CONNECTIONS = 32;
+
+  private static final ObjectReader jsonReader = new ObjectMapper().reader(JsonNode.class);
+  private static final AtomicLong requests = new AtomicLong();
+  private static final AtomicLong failures = new AtomicLong();
+  private static volatile String endpoint = DEFAULT_ENDPOINT;
+  private static volatile MultiThreadedHttpConnectionManager manager;
+  private static volatile HttpClient http;
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    ServletContext context = sce.getServletContext();
+    String url = context.getInitParameter("sparqlUrl");
+    configure(url == null ? DEFAULT_ENDPOINT : url,
+            getIntParam(context, "sparqlConnectTimeout", DEFAULT_CONNECT_TIMEOUT),
+            getIntParam(context, "sparqlReadTimeout", DEFAULT_READ_TIMEOUT),
+            getIntParam(context, "sparqlMaxConnections", DEFAULT_MAX_CONNECTIONS));
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    synchronized (SparqlClient.class) {
+      if (manager != null) {
+        manager.shutdown();
+      }
+      manager = null;
+      http = null;
+    }
+  }
+
+  /**
+   * (Re)creates the shared connection pool.
+   */
+  public static synchronized void configure(String url, int connectTimeout, int readTimeout, int maxConnections) {
+    MultiThreadedHttpConnectionManager old = manager;
+    MultiThreadedHttpConnectionManager m = new MultiThreadedHttpConnectionManager();
+    HttpConnectionManagerParams params = m.getParams();
+    params.setConnectionTimeout(connectTimeout);
+    params.setSoTimeout(readTimeout);
+    params.setDefaultMaxConnectionsPerHost(maxConnections);
+    params.setMaxTotalConnections(maxConnections);
+    params.setStaleCheckingEnabled(true);
+    HttpClient client = new HttpClient(m);
+    client.getParams().setConnectionManagerTimeout(connectTimeout);
+    endpoint = url;
+    manager = m;
+    http = client;
+    if (old != null) {
+      old.shutdown();
+    }
+  }
+
+  /**
+   * Runs a SELECT (or ASK) query and returns the parsed JSON result document.
+   */
+  public static JsonNode select(String query) throws IOException {
+    GetMethod get = execute(query, "application/sparql-results+json", "json");
+    try {
+      if (get.getStatusCode() != HttpStatus.SC_OK) {
+        failures.incrementAndGet();
+        throw new IOException("SPARQL query failed with status " + get.getStatusCode() + ": " + query);
+      }
+      InputStream in = get.getResponseBodyAsStream();
+      return jsonReader.readValue(in);
+    } finally {
+      get.releaseConnection();
+    }
+  }
+
+  /**
+   * Runs a query and returns the result bindings of a SELECT.
+   */
+  public static JsonNode bindings(String query) throws IOException {
+    return select(query).path("results").path("bindings");
+  }
+
+  /**
+   * Runs a query, asking for the given content type, and returns the executed
+   * method so the caller can stream the response body.  Callers must call
+   * <code>releaseConnection()</code> on the result when done with it.
+   */
+  public static GetMethod execute(String query, String accept) throws IOException {
+    return execute(query, accept, null);
+  }
+
+  private static GetMethod execute(String query, String accept, String output) throws IOException {
+    HttpClient client = getClient();
+    GetMethod get = new GetMethod(endpoint);
+    if (output == null) {
+      get.setQueryString(new NameValuePair[] {new NameValuePair("query", query)});
+    } else {
+      get.setQueryString(new NameValuePair[] {new NameValuePair("query", query), new NameValuePair("output", output)});
+    }
+    if (accept != null) {
+      get.addRequestHeader("Accept", accept);
+    }
+    requests.incrementAndGet();
+    try {
+      client.executeMethod(get);
+    } catch (IOException e) {
+      failures.incrementAndGet();
+      get.releaseConnection();
+      throw e;
+    } catch (RuntimeException e) {
+      failures.incrementAndGet();
+      get.releaseConnection();
+      throw e;
+    }
+    return get;
+  }
+
+  public static Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<String, Object>();
+    MultiThreadedHttpConnectionManager m = manager;
+    stats.put("endpoint", endpoint);
+    stats.put("requests", requests.get());
+    stats.put("failures", failures.get());
+    stats.put("connectionsInPool", m == null ? 0 : m.getConnectionsInPool());
+    return stats;
+  }
+
+  private static HttpClient getClient() {
+    HttpClient client = http;
+    if (client == null) {
+      synchronized (SparqlClient.class) {
+        if (http == null) {
+          configure(endpoint, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAX_CONNECTIONS);
+        }
+        client = http;
+      }
+    }
+    return client;
+  }
+
+  private static int getIntParam(ServletContext context, String name, int defaultValue) {
+    String value = context.getInitParameter(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      context.log("Ignoring non-numeric value '" + value + "' for " + name);
+      return defaultValue;
+    }
+  }
+
+}
@@ -0,0 +1,150 @@
+package info.papyri.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A SPARQL query with named slots, split into its constant fragments once so
+ * that binding a query is a simple concatenation.  Slots are written
+ * <code>&lt;$name&gt;</code> for IRIs and <code>"$name"</code> for string
+ * literals; bound values are escaped so they cannot break out of the slot.
+ *
+ * @author hcayless
+ */
+public class SparqlTemplate {
+
+  private static final Pattern SLOT = Pattern.compile("<\\$(\\w+)>|\"\\$(\\w+)\"");
+
+  /** Everything the numbers server knows about a single resource. */
+  public static final SparqlTemplate DESCRIBE = new SparqlTemplate(
+          "prefix dc: <http://purl.org/dc/terms/> "
+          + "construct{<$uri> ?Predicate ?Object} "
+          + "from <http://papyri.info/graph> "
+          + "where {<$uri> ?Predicate ?Object} "
+          + "order by ?Object");
+
+  /** Current (not replaced) DDbDP and HGV texts related to a resource. */
+  public static final SparqlTemplate RELATED_TEXTS = new SparqlTemplate(
+          "prefix dc: <http://purl.org/dc/terms/> "
+          + "select ?related "
+          + "from <http://papyri.info/graph> "
+          + "where { <$uri> dc:relation ?related . "
+          + "optional { ?related dc:isReplacedBy ?orig } . "
+          + "filter (!bound(?orig)) . "
+          + "filter regex(str(?related), \"^http://papyri.info/(ddbdp|hgv)\") }");
+
+  private final String[] fragments;
+  private final String[] names;
+  private final boolean[] iri;
+  private final int length;
+
+  public SparqlTemplate(String template) {
+    List<String> f = new ArrayList<String>();
+    List<String> n = new ArrayList<String>();
+    List<Boolean> t = new ArrayList<Boolean>();
+    Matcher m = SLOT.matcher(template);
+    int last = 0;
+    while (m.find()) {
+      f.add(template.substring(last, m.start()));
+      if (m.group(1) != null) {
+        n.add(m.group(1));
+        t.add(Boolean.TRUE);
+      } else {
+        n.add(m.group(2));
+        t.add(Boolean.FALSE);
+      }
+      last = m.end();
+    }
+    f.add(template.substring(last));
+    fragments = f.toArray(new String[f.size()]);
+    names = n.toArray(new String[n.size()]);
+    iri = new boolean[t.size()];
+    for (int i = 0; i < iri.length; i++) {
+      iri[i] = t.get(i);
+    }
+    length = template.length();
+  }
+
+  /**
+   * Binds every slot in the template to <code>value</code>.  Convenience
+   * for the common single-parameter templates.
+   */
+  public String bind(String value) {
+    StringBuilder result = new StringBuilder(length + value.length() * names.length);
+    for (int i = 0; i < names.length; i++) {
+      result.append(fragments[i]);
+      appendSlot(result, i, value);
+    }
+    result.append(fragments[names.length]);
+    return result.toString();
+  }
+
+  /**
+   * Binds slots by name, given as alternating name/value pairs.
+   */
+  public String bind(String... pairs) {
+    if (pairs.length == 1) {
+      return bind(pairs[0]);
+    }
+    StringBuilder result = new StringBuilder(length + 64);
+    for (int i = 0; i < names.length; i++) {
+      result.append(fragments[i]);
+      String value = null;
+      for (int j = 0; j + 1 < pairs.length; j += 2) {
+        if (names[i].equals(pairs[j])) {
+          value = pairs[j + 1];
+          break;
+        }
+      }
+      if (value == null) {
+        throw new IllegalArgumentException("No value for $" + names[i]);
+      }
+      appendSlot(result, i, value);
+    }
+    result.append(fragments[names.length]);
+    return result.toString();
+  }
+
+  private void appendSlot(StringBuilder result, int slot, String value) {
+    if (iri[slot]) {
+      result.append('<');
+      appendIri(result, value);
+      result.append('>');
+    } else {
+      result.append('"');
+      appendLiteral(result, value);
+      result.append('"');
+    }
+  }
+
+  static void appendIri(StringBuilder result, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c <= ' ' || c == '<' || c == '>' || c == '"' || c == '{' || c == '}'
+              || c == '|' || c == '^' || c == '`' || c == '\\') {
+        result.append('%');
+        result.append(Character.toUpperCase(Character.forDigit((c >> 4) & 0xF, 16)));
+        result.append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+      } else {
+        result.append(c);
+      }
+    }
+  }
+
+  static void appendLiteral(StringBuilder result, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\': result.append("\\\\"); break;
+        case '"': result.append("\\\""); break;
+        case '\n': result.append("\\n"); break;
+        case '\r': result.append("\\r"); break;
+        case '\t': result.append("\\t"); break;
+        default: result.append(c);
+      }
+    }
+  }
+
+}
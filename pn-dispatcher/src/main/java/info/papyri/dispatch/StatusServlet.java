@@ -0,0 +1,100 @@
+package info.papyri.dispatch;
+
+import info.papyri.dispatch.browse.KwicRenderer;
+import info.papyri.dispatch.browse.facet.FacetResultCache;
+import info.papyri.dispatch.browse.facet.ResultSetCache;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.Map;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reports the dispatcher's runtime counters (Solr and SPARQL connection pools,
+ * etc.) as JSON, or JSONP if a <code>jsonp</code> parameter is given.
+ *
+ * @author hcayless
+ */
+@WebServlet(name = "StatusServlet", urlPatterns = {"/status"})
+public class StatusServlet extends HttpServlet {
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+          throws ServletException, IOException {
+    response.setContentType("application/json");
+    response.setHeader("Cache-Control", "no-cache");
+    PrintWriter out = response.getWriter();
+    try {
+      if (request.getParameter("jsonp") != null) {
+        out.print(request.getParameter("jsonp"));
+        out.print("(");
+      }
+      out.print("{\"solr\":");
+      writeMap(out, SolrServerRegistry.getStats());
+      out.print(",\"sparql\":");
+      writeMap(out, SparqlClient.getStats());
+      out.print(",\"lemmas\":");
+      writeMap(out, LemmaCache.getStats());
+      out.print(",\"morph\":");
+      writeMap(out, MorphIndex.getStats());
+      out.print(",\"files\":");
+      writeMap(out, FileCache.getStats());
+      out.print(",\"gzip\":");
+      writeMap(out, GzipVariants.getStats());
+      out.print(",\"ids\":");
+      writeMap(out, IdIndex.getStats());
+      out.print(",\"resolve\":");
+      writeMap(out, ResolutionCache.getStats());
+      out.print(",\"cts\":");
+      writeMap(out, CitationIndex.getStats());
+      out.print(",\"patterns\":");
+      writeMap(out, HighlightPatterns.getStats());
+      out.print(",\"kwic\":");
+      writeMap(out, KwicRenderer.getStats());
+      out.print(",\"facets\":");
+      writeMap(out, FacetResultCache.getStats());
+      out.print(",\"resultsets\":");
+      writeMap(out, ResultSetCache.getStats());
+      out.print(",\"rdf\":");
+      writeMap(out, ModelCache.getStats());
+      out.print(",\"backend\":");
+      writeMap(out, AsyncDispatch.getStats());
+      out.print("}");
+      if (request.getParameter("jsonp") != null) {
+        out.print(")");
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  static void writeMap(PrintWriter out, Map<?, ?> map) {
+    out.print("{");
+    Iterator<? extends Map.Entry<?, ?>> itr = map.entrySet().iterator();
+    while (itr.hasNext()) {
+      Map.Entry<?, ?> e = itr.next();
+      out.print("\"" + e.getKey() + "\":");
+      Object value = e.getValue();
+      if (value instanceof Map) {
+        writeMap(out, (Map<?, ?>) value);
+      } else if (value instanceof Number || value instanceof Boolean) {
+        out.print(value);
+      } else {
+        out.print("\"" + String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+      }
+      if (itr.hasNext()) {
+        out.print(",");
+      }
+    }
+    out.print("}");
+  }
+
+  @Override
+  public String getServletInfo() {
+    return "Runtime status counters";
+  }
+}
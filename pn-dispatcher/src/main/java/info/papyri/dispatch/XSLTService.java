@@ -4,22 +4,51 @@
  */
 package info.papyri.dispatch;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.security.MessageDigest;
 import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
 
 import java.io.File;
-import java.io.BufferedReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
 import java.util.Iterator;
-import javax.xml.transform.Source;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 import javax.xml.transform.stream.StreamSource;
 
 import net.sf.saxon.s9api.Processor;
@@ -34,32 +63,184 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Runs the configured stylesheets (init-param name to file) over POSTed
+ * documents; GET lists them, with per-stylesheet counters.  Stylesheets are
+ * compiled in parallel at startup, and each thread reuses its own
+ * transformer for each one.  They are recompiled in the background when an
+ * .xsl file in their directory changes (checked at most every
+ * <code>xsltCheckInterval</code> ms, a context-param), and swapped in only
+ * once compiled, so a broken edit leaves the previous version running.
+ * Output is buffered, so a failed transform gets a clean 500 rather than a
+ * half-written page.
+ * <p>
+ * Results are cached by stylesheet version, <code>collection</code> and a
+ * digest of the input, so re-posting the same document is answered
+ * immediately (<code>xsltCacheMaxChars</code>).  A multipart or zip POST is
+ * a batch: its documents are transformed in parallel as they are read
+ * (<code>xsltBatchThreads</code>, at most <code>xsltBatchMaxDocs</code> and
+ * <code>xsltBatchMaxBytes</code> per request) and returned as a zip.  No
+ * document may be over 20MB.
  *
  * @author hcayless
  */
 @WebServlet(name = "XSLTService", urlPatterns = {"/epidocinator"})
+@MultipartConfig
 public class XSLTService extends HttpServlet {
 
-  private HashMap<String, XsltExecutable> xslts;
+  static final long DEFAULT_CHECK_INTERVAL = 10000;
+  static final long DEFAULT_CACHE_CHARS = 16L * 1024 * 1024;
+  static final int DEFAULT_MAX_BATCH = 500;
+  static final long DEFAULT_MAX_BATCH_BYTES = 100L * 1024 * 1024;
+  static final long MAX_DOCUMENT_BYTES = 20L * 1024 * 1024;
+
+  private Map<String, Stylesheet> xslts;
   private Processor processor = new Processor(false);
-  private Logger log;
+  private Logger log = LoggerFactory.getLogger(XSLTService.class);
+  private long checkInterval = DEFAULT_CHECK_INTERVAL;
+  private volatile long lastCheck;
+  private ExecutorService recompiler;
+  private ThreadPoolExecutor batchPool;
+  private int maxBatch = DEFAULT_MAX_BATCH;
+  private long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+  ResultCache results = new ResultCache(DEFAULT_CACHE_CHARS);
 
   @Override
   public void init(ServletConfig config) {
-    log = LoggerFactory.getLogger(this.getClass());
+    ServletContext context = config.getServletContext();
+    int threads = Runtime.getRuntime().availableProcessors();
+    try {
+      if (context.getInitParameter("xsltCheckInterval") != null) {
+        checkInterval = Long.parseLong(context.getInitParameter("xsltCheckInterval").trim());
+      }
+      if (context.getInitParameter("xsltCacheMaxChars") != null) {
+        results = new ResultCache(Long.parseLong(context.getInitParameter("xsltCacheMaxChars").trim()));
+      }
+      if (context.getInitParameter("xsltBatchThreads") != null) {
+        threads = Integer.parseInt(context.getInitParameter("xsltBatchThreads").trim());
+      }
+      if (context.getInitParameter("xsltBatchMaxDocs") != null) {
+        maxBatch = Integer.parseInt(context.getInitParameter("xsltBatchMaxDocs").trim());
+      }
+      if (context.getInitParameter("xsltBatchMaxBytes") != null) {
+        maxBatchBytes = Long.parseLong(context.getInitParameter("xsltBatchMaxBytes").trim());
+      }
+    } catch (NumberFormatException e) {
+      log.warn("Bad XSLTService setting, using defaults.", e);
+    }
     Enumeration<String> names = config.getInitParameterNames();
-    xslts = new HashMap<String, XsltExecutable>();
+    xslts = new TreeMap<String, Stylesheet>();
+    List<Callable<Object>> compiles = new ArrayList<Callable<Object>>();
     while (names.hasMoreElements()) {
       String name = names.nextElement();
-      try {
-        XsltCompiler compiler = processor.newXsltCompiler();
-        XsltExecutable xslt = compiler.compile(new StreamSource(new File(config.getInitParameter(name))));
-        xslts.put(name, xslt);
-      } catch (SaxonApiException e) {
-        log.error("Failed to compile "+name+".", e);
+      final Stylesheet xsl = new Stylesheet(name, new File(config.getInitParameter(name)));
+      xslts.put(name, xsl);
+      compiles.add(new Callable<Object>() {
+
+        @Override
+        public Object call() {
+          compile(xsl);
+          return null;
+        }
+      });
+    }
+    long start = System.currentTimeMillis();
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(compiles.size(),
+            Runtime.getRuntime().availableProcessors())));
+    try {
+      pool.invokeAll(compiles);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      pool.shutdown();
+    }
+    log.info("Compiled " + compiles.size() + " stylesheets in " + (System.currentTimeMillis() - start) + " ms.");
+    xslts = Collections.unmodifiableMap(xslts);
+    lastCheck = System.currentTimeMillis();
+    // when the queue is full, the request thread transforms the document itself
+    batchPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1000),
+            new ThreadFactory() {
+
+              private final AtomicInteger count = new AtomicInteger();
+
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "xslt-batch-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+              }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+    batchPool.allowCoreThreadTimeOut(true);
+    recompiler = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "xslt-recompiler");
+        t.setDaemon(true);
+        return t;
       }
+    });
+  }
+
+  @Override
+  public void destroy() {
+    recompiler.shutdownNow();
+    batchPool.shutdownNow();
+    super.destroy();
+  }
+
+  /**
+   * Compiles <code>xsl</code> and, if that works, makes it current.
+   */
+  boolean compile(Stylesheet xsl) {
+    long start = System.currentTimeMillis();
+    long modified = xsl.sourceModified();
+    xsl.attempted = modified;
+    try {
+      XsltCompiler compiler = processor.newXsltCompiler();
+      XsltExecutable executable = compiler.compile(new StreamSource(xsl.file));
+      xsl.current = new Compiled(executable, modified);
+      xsl.compiles.incrementAndGet();
+      xsl.compileTime = System.currentTimeMillis() - start;
+      return true;
+    } catch (SaxonApiException e) {
+      // keep what we had; it is tried again when the files next change
+      xsl.compileFailures.incrementAndGet();
+      xsl.lastError = e.getMessage();
+      log.error("Failed to compile " + xsl.name + ".", e);
+      return false;
     }
+  }
+
+  /**
+   * Queues recompilation of any stylesheet whose files have changed.
+   */
+  private void checkForChanges() {
+    long now = System.currentTimeMillis();
+    if (now - lastCheck < checkInterval) {
+      return;
+    }
+    lastCheck = now;
+    for (final Stylesheet xsl : xslts.values()) {
+      if (xsl.sourceModified() != xsl.attempted && xsl.recompiling.compareAndSet(false, true)) {
+        try {
+          recompiler.execute(new Runnable() {
 
+            @Override
+            public void run() {
+              try {
+                if (compile(xsl)) {
+                  log.info("Recompiled " + xsl.name + ".");
+                }
+              } finally {
+                xsl.recompiling.set(false);
+              }
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          xsl.recompiling.set(false);
+        }
+      }
+    }
   }
 
   /** 
@@ -71,9 +252,10 @@ public class XSLTService extends HttpServlet {
    */
   protected void processRequest(HttpServletRequest request, HttpServletResponse response)
           throws ServletException, IOException {
-    PrintWriter out = response.getWriter();
-    try {
-      if ("GET".equals(request.getMethod())) {
+    checkForChanges();
+    if ("GET".equals(request.getMethod())) {
+      PrintWriter out = response.getWriter();
+      try {
         response.setContentType("application/json");
         if(request.getParameter("jsonp") != null) {
           out.print(request.getParameter("jsonp"));
@@ -88,26 +270,434 @@ public class XSLTService extends HttpServlet {
             out.print(",");
           }
         }
-        out.print("]}");
+        out.print("],\"stats\":");
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        for (Stylesheet xsl : xslts.values()) {
+          stats.put(xsl.name, xsl.getStats());
+        }
+        stats.put("cache", results.getStats());
+        StatusServlet.writeMap(out, stats);
+        out.print("}");
         if(request.getParameter("jsonp") != null) {
           out.print(")");
         }
-      } else {
-        try {
-          response.setContentType("text/html;charset=UTF-8");
-          XsltTransformer xslt = xslts.get(request.getParameter("xsl")).load();
-          if (request.getParameter("coll") != null) {
-            xslt.setParameter(new QName("collection"), new XdmAtomicValue(request.getParameter("coll")));
+      } finally {
+        out.close();
+      }
+      return;
+    }
+    Stylesheet xsl = xslts.get(request.getParameter("xsl"));
+    Compiled c = xsl == null ? null : xsl.current;
+    if (c == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND, "No stylesheet named " + request.getParameter("xsl") + ".");
+      return;
+    }
+    String contentType = request.getContentType() == null ? "" : request.getContentType().toLowerCase();
+    if (contentType.startsWith("multipart/") || contentType.startsWith("application/zip")
+            || contentType.startsWith("application/x-zip")) {
+      batch(request, response, xsl);
+      return;
+    }
+    if (request.getContentLength() > MAX_DOCUMENT_BYTES) {
+      response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Document too large.");
+      return;
+    }
+    String text;
+    try {
+      String encoding = request.getCharacterEncoding() == null ? "UTF-8" : request.getCharacterEncoding();
+      text = read(new InputStreamReader(new BoundedInputStream(request.getInputStream(), MAX_DOCUMENT_BYTES), encoding));
+    } catch (IOException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+      return;
+    }
+    String result;
+    try {
+      result = transform(xsl, request.getParameter("coll"), text);
+    } catch (Exception e) {
+      log.error("Transformation "+request.getParameter("xsl")+" failed.", e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Transformation failed: " + e.getMessage());
+      return;
+    }
+    response.setContentType("text/html;charset=UTF-8");
+    PrintWriter out = response.getWriter();
+    try {
+      out.write(result);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Transforms each document in a multipart or zip POST, in parallel, and
+   * streams the results back as a zip in the order they were sent.  Each
+   * document is handed to the pool as soon as it has been read, so the batch
+   * is never held in memory as a whole.  Each result is named after its
+   * part's file name (or field name) or zip entry with ".html" appended; a
+   * document that fails to transform gets a ".error" entry holding the
+   * message instead.
+   */
+  private void batch(HttpServletRequest request, HttpServletResponse response, final Stylesheet xsl)
+          throws ServletException, IOException {
+    final String coll = request.getParameter("coll");
+    List<String> names = new ArrayList<String>();
+    List<Future<String>> results = new ArrayList<Future<String>>();
+    try {
+      try {
+        if (request.getContentType().toLowerCase().startsWith("multipart/")) {
+          long total = 0;
+          for (Part part : request.getParts()) {
+            if ("xsl".equals(part.getName()) || "coll".equals(part.getName())) {
+              continue;
+            }
+            if (part.getSize() > MAX_DOCUMENT_BYTES) {
+              throw new IOException(part.getName() + " is too large.");
+            }
+            total += part.getSize();
+            if (total > maxBatchBytes) {
+              throw new IOException("At most " + maxBatchBytes + " bytes may be sent at once.");
+            }
+            String filename = filename(part);
+            names.add(filename == null ? part.getName() : filename);
+            checkBatchSize(names.size());
+            results.add(submit(xsl, coll, read(new InputStreamReader(part.getInputStream(), "UTF-8"))));
+          }
+        } else {
+          ZipInputStream zip = new ZipInputStream(request.getInputStream());
+          // counts what the entries inflate to, across the whole request
+          InputStream all = new BoundedInputStream(zip, maxBatchBytes);
+          ZipEntry entry;
+          while ((entry = zip.getNextEntry()) != null) {
+            if (!entry.isDirectory()) {
+              names.add(entry.getName());
+              checkBatchSize(names.size());
+              results.add(submit(xsl, coll, read(new InputStreamReader(new BoundedInputStream(all, MAX_DOCUMENT_BYTES), "UTF-8"))));
+            }
+          }
+        }
+      } catch (IOException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        return;
+      }
+      response.setContentType("application/zip");
+      ZipOutputStream out = new ZipOutputStream(response.getOutputStream());
+      try {
+        for (int i = 0; i < results.size(); i++) {
+          byte[] bytes;
+          String name = names.get(i);
+          try {
+            bytes = results.get(i).get().getBytes("UTF-8");
+            name += ".html";
+          } catch (ExecutionException e) {
+            bytes = String.valueOf(e.getCause().getMessage()).getBytes("UTF-8");
+            name += ".error";
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
           }
-          xslt.setSource(new StreamSource(request.getReader()));
-          xslt.setDestination(new Serializer(response.getWriter()));
-          xslt.transform();
-        } catch (Exception e) {
-          log.error("Transformation "+request.getParameter("xsl")+" failed.", e);
+          // the result is no longer needed once it's written
+          results.set(i, null);
+          out.putNextEntry(new ZipEntry(name));
+          out.write(bytes);
+          out.closeEntry();
+          out.flush();
         }
+      } finally {
+        out.close();
       }
     } finally {
-      out.close();
+      for (Future<String> result : results) {
+        if (result != null) {
+          result.cancel(true);
+        }
+      }
+    }
+  }
+
+  private Future<String> submit(final Stylesheet xsl, final String coll, final String text) {
+    return batchPool.submit(new Callable<String>() {
+
+      @Override
+      public String call() throws Exception {
+        return transform(xsl, coll, text);
+      }
+    });
+  }
+
+  private void checkBatchSize(int n) throws IOException {
+    if (n > maxBatch) {
+      throw new IOException("At most " + maxBatch + " documents may be sent at once.");
+    }
+  }
+
+  private static String filename(Part part) {
+    String disposition = part.getHeader("Content-Disposition");
+    if (disposition != null) {
+      for (String param : disposition.split(";")) {
+        param = param.trim();
+        if (param.startsWith("filename=")) {
+          String name = param.substring(9).replace("\"", "").trim();
+          return name.length() == 0 ? null : name;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The result of running <code>xsl</code> over <code>text</code>, from the
+   * result cache if the same document has been transformed by the current
+   * version of the stylesheet with the same <code>collection</code> before.
+   */
+  String transform(Stylesheet xsl, String coll, String text) throws SaxonApiException {
+    Compiled c = xsl.current;
+    String key = c.version + "\u0000" + xsl.name + "\u0000" + (coll == null ? "" : coll) + "\u0000" + digest(text);
+    String cached = results.get(key);
+    if (cached != null) {
+      return cached;
+    }
+    long start = System.currentTimeMillis();
+    StringWriter result = new StringWriter(8192);
+    try {
+      XsltTransformer xslt = c.transformer();
+      if (coll != null) {
+        xslt.setParameter(new QName("collection"), new XdmAtomicValue(coll));
+      }
+      xslt.setSource(new StreamSource(new StringReader(text)));
+      xslt.setDestination(new Serializer(result));
+      xslt.transform();
+      c.release(xslt);
+    } catch (SaxonApiException e) {
+      xsl.failures.incrementAndGet();
+      xsl.lastError = e.getMessage();
+      throw e;
+    }
+    xsl.record(System.currentTimeMillis() - start);
+    String s = result.toString();
+    results.put(key, s);
+    return s;
+  }
+
+  static String digest(String text) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      byte[] hash = md.digest(text.getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (Exception e) {
+      // SHA-1 and UTF-8 are always there
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String read(Reader in) throws IOException {
+    StringBuilder text = new StringBuilder(8192);
+    char[] buf = new char[8192];
+    int n;
+    while ((n = in.read(buf)) > 0) {
+      text.append(buf, 0, n);
+    }
+    return text.toString();
+  }
+
+  /**
+   * Fails once more than <code>max</code> bytes have been read, so one
+   * zip entry can't inflate without limit.
+   */
+  private static class BoundedInputStream extends FilterInputStream {
+
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long max) {
+      super(in);
+      remaining = max;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0 && --remaining < 0) {
+        throw new IOException("Document too large.");
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0 && (remaining -= n) < 0) {
+        throw new IOException("Document too large.");
+      }
+      return n;
+    }
+
+    @Override
+    public void close() {
+      // leave the zip stream open for the next entry
+    }
+  }
+
+  /**
+   * Transform results, keyed by stylesheet version, collection and a digest
+   * of the input, in an LRU map bounded by the number of characters held.
+   */
+  static class ResultCache {
+
+    private final LinkedHashMap<String, String> cache = new LinkedHashMap<String, String>(256, 0.75f, true);
+    private final long maxChars;
+    private long chars;
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong evictions = new AtomicLong();
+
+    ResultCache(long maxChars) {
+      this.maxChars = maxChars;
+    }
+
+    String get(String key) {
+      String result;
+      synchronized (cache) {
+        result = cache.get(key);
+      }
+      (result == null ? misses : hits).incrementAndGet();
+      return result;
+    }
+
+    void put(String key, String result) {
+      if (result.length() > maxChars / 4) {
+        return;
+      }
+      synchronized (cache) {
+        String old = cache.put(key, result);
+        chars += result.length() + key.length() - (old == null ? 0 : old.length() + key.length());
+        Iterator<Map.Entry<String, String>> i = cache.entrySet().iterator();
+        while (chars > maxChars && i.hasNext()) {
+          Map.Entry<String, String> eldest = i.next();
+          chars -= eldest.getKey().length() + eldest.getValue().length();
+          i.remove();
+          evictions.incrementAndGet();
+        }
+      }
+    }
+
+    Map<String, Object> getStats() {
+      Map<String, Object> stats = new LinkedHashMap<String, Object>();
+      synchronized (cache) {
+        stats.put("size", cache.size());
+        stats.put("chars", chars);
+      }
+      stats.put("maxChars", maxChars);
+      stats.put("hits", hits.get());
+      stats.put("misses", misses.get());
+      stats.put("evictions", evictions.get());
+      return stats;
+    }
+  }
+
+  /**
+   * A configured stylesheet: its current compiled version and counters.
+   */
+  static class Stylesheet {
+
+    final String name;
+    final File file;
+    volatile Compiled current;
+    volatile long attempted;
+    volatile long compileTime;
+    volatile String lastError;
+    final AtomicBoolean recompiling = new AtomicBoolean();
+    final AtomicLong compiles = new AtomicLong();
+    final AtomicLong compileFailures = new AtomicLong();
+    final AtomicLong transforms = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicLong totalTime = new AtomicLong();
+    final AtomicLong maxTime = new AtomicLong();
+
+    Stylesheet(String name, File file) {
+      this.name = name;
+      this.file = file;
+    }
+
+    /**
+     * The latest modification time of the .xsl files alongside (and so
+     * possibly included by) this one.
+     */
+    long sourceModified() {
+      long modified = file.lastModified();
+      File[] siblings = file.getAbsoluteFile().getParentFile().listFiles();
+      if (siblings != null) {
+        for (File f : siblings) {
+          if (f.getName().endsWith(".xsl")) {
+            modified = Math.max(modified, f.lastModified());
+          }
+        }
+      }
+      return modified;
+    }
+
+    void record(long elapsed) {
+      transforms.incrementAndGet();
+      totalTime.addAndGet(elapsed);
+      long max;
+      while (elapsed > (max = maxTime.get()) && !maxTime.compareAndSet(max, elapsed)) {
+      }
+    }
+
+    Map<String, Object> getStats() {
+      Map<String, Object> stats = new LinkedHashMap<String, Object>();
+      long n = transforms.get();
+      stats.put("transforms", n);
+      stats.put("failures", failures.get());
+      stats.put("meanMs", n == 0 ? 0.0 : (double) totalTime.get() / n);
+      stats.put("maxMs", maxTime.get());
+      stats.put("compiles", compiles.get());
+      stats.put("compileFailures", compileFailures.get());
+      stats.put("compileMs", compileTime);
+      Compiled c = current;
+      stats.put("compiledAt", c == null ? "never" : new Date(c.modified).toString());
+      stats.put("lastError", lastError == null ? "" : lastError);
+      return stats;
+    }
+  }
+
+  /**
+   * One compiled version of a stylesheet, with a transformer per thread.
+   * A transformer is reset before reuse, and dropped if a transform using
+   * it fails.
+   */
+  static class Compiled {
+
+    private static final AtomicLong versions = new AtomicLong();
+    final XsltExecutable executable;
+    final long modified;
+    /** Distinguishes results of this version from those of earlier ones. */
+    final long version = versions.incrementAndGet();
+    private final ThreadLocal<XsltTransformer> transformers = new ThreadLocal<XsltTransformer>();
+
+    Compiled(XsltExecutable executable, long modified) {
+      this.executable = executable;
+      this.modified = modified;
+    }
+
+    XsltTransformer transformer() {
+      XsltTransformer t = transformers.get();
+      transformers.remove();
+      if (t == null) {
+        t = executable.load();
+      } else {
+        t.getUnderlyingController().reset();
+      }
+      return t;
+    }
+
+    /**
+     * Hands <code>t</code> back for reuse by this thread.
+     */
+    void release(XsltTransformer t) {
+      t.setDestination(null);
+      transformers.set(t);
     }
   }
 
@@ -1,7 +1,6 @@
 package info.papyri.dispatch.atom;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -10,6 +9,7 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.EnumMap;
 import java.util.Map;
+import info.papyri.dispatch.SolrServerRegistry;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -25,7 +25,6 @@ import org.apache.abdera.writer.Writer;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
@@ -42,8 +41,6 @@ import org.apache.solr.common.SolrDocumentList;
 
 public class AtomFeedServlet extends HttpServlet{
     
-    static String SOLR_URL;
-    static String PN_SEARCH;
     static Abdera abdera = null;
     static int entriesPerPage = 50;
     /** URL assigned to rel="self" feed header link, and root URL for all other ids */
@@ -93,8 +90,6 @@ public class AtomFeedServlet extends HttpServlet{
     public void init(ServletConfig config) throws ServletException{
         
         super.init(config);
-        SOLR_URL = config.getInitParameter("solrUrl");
-        PN_SEARCH = config.getInitParameter("pnSearchPath");
         abdera = getAbderaInstance();
  
         
@@ -306,16 +301,11 @@ public class AtomFeedServlet extends HttpServlet{
         
         try{
             
-            SolrServer solrServer = new CommonsHttpSolrServer(SOLR_URL + PN_SEARCH);
+            SolrServer solrServer = SolrServerRegistry.getServer(SolrServerRegistry.PN_SEARCH);
             QueryResponse qr = solrServer.query(sq);
             SolrDocumentList sdl = qr.getResults();
             return sdl;
         }
-        catch(MalformedURLException mue){
-            
-            return buildErrorDocumentList("MalformedURLException: " + mue.getMessage());
-                
-        }
         catch(SolrServerException sse){
             
             return buildErrorDocumentList("SolrServerException: " + sse.getMessage());
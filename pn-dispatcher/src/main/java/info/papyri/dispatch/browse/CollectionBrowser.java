@@ -1,14 +1,11 @@
 package info.papyri.dispatch.browse;
 
+import info.papyri.dispatch.AsyncDispatch;
 import info.papyri.dispatch.FileUtils;
-import java.io.BufferedReader;
+import info.papyri.dispatch.PageTemplate;
+import info.papyri.dispatch.SparqlClient;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLEncoder;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -22,7 +19,6 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.map.ObjectMapper;
 
 /**
  * Servlet enabling collection-browsing functionality
@@ -44,15 +40,13 @@ import org.codehaus.jackson.map.ObjectMapper;
  * @see CollectionBrowser#parseUriToCollectionRecord(java.util.LinkedHashMap, java.lang.String, java.lang.String, java.lang.String)  
  * @see DocumentCollectionBrowseRecord
  */
-@WebServlet(name = "CollectionBrowser", urlPatterns = {"/browse"})
+@WebServlet(name = "CollectionBrowser", urlPatterns = {"/browse"}, asyncSupported = true)
 public class CollectionBrowser extends HttpServlet {
     
     /** site home directory */
     static String home;
-    /** HTML output is by injection; the browseURL member provides the html page for this */
-    static URL browseURL;
-    /** SPARQL-point URL */
-    static String SPARQL_URL;
+    /** HTML output is by injection; the browsePage member provides the html page for this */
+    static PageTemplate browsePage;
     /** Name of the SPARQL graph to be queried */
     static String SPARQL_GRAPH;
     /** URL of this servlet */
@@ -65,25 +59,28 @@ public class CollectionBrowser extends HttpServlet {
     static ArrayList<SolrField> ORG_HIERARCHY = new ArrayList<SolrField>(Arrays.asList(SolrField.collection, SolrField.series, SolrField.volume));
     static ArrayList<String> COLLECTIONS = new ArrayList<String>(Arrays.asList("ddbdp", "hgv", "apis"));
     
+    /** Runs {@link #processRequest} on the backend pool */
+    private final AsyncDispatch.Handler handler = new AsyncDispatch.Handler(){
+        
+        @Override
+        public void handle(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException{
+            
+            processRequest(request, response);
+            
+        }
+        
+    };
+    
     @Override
     public void init(ServletConfig config) throws ServletException{
         
         super.init(config);
 
-        SPARQL_URL = config.getInitParameter("sparqlUrl");
         SPARQL_GRAPH = "<" + config.getInitParameter("sparqlGraph") + ">";
         BROWSE_SERVLET = config.getInitParameter("browseServletPath");
         FACET_SERVLET = config.getInitParameter("facetBrowserPath");
         home = config.getInitParameter("home");
-        try {
-            
-            browseURL = new URL("file://" + home + "/" + "browse.html");
-            
-        } catch (MalformedURLException e) {
-      
-            throw new ServletException(e);
-   
-        }
+        browsePage = new PageTemplate(home + "/" + "browse.html", "<!-- Browse results -->");
         
     }    
     
@@ -201,12 +198,7 @@ public class CollectionBrowser extends HttpServlet {
         
         try{
               
-          URL sparq = new URL("http://localhost:8090/pi/query?query=" + URLEncoder.encode(sparqlQuery, "UTF-8") + "&output=json");
-          HttpURLConnection http = (HttpURLConnection)sparq.openConnection();
-          http.setConnectTimeout(2000);
-          ObjectMapper o = new ObjectMapper();
-          JsonNode root = o.readValue(http.getInputStream(), JsonNode.class);
-          return root.path("results").path("bindings"); 
+          return SparqlClient.bindings(sparqlQuery);
             
         } 
         catch(Exception e){
@@ -339,29 +331,26 @@ public class CollectionBrowser extends HttpServlet {
      * 
      * @param response The <code>HttpResponse</code> object
      * @param html The HTML code to be displayed.
-     * @see #browseURL;
+     * @see #browsePage;
      */
     
     void displayBrowseResult(HttpServletResponse response, String html){
         
-        BufferedReader reader = null;
         try{
         
-            PrintWriter out = response.getWriter();
-            reader = new BufferedReader(new InputStreamReader(browseURL.openStream()));
-            String line = "";
-            while ((line = reader.readLine()) != null) {
-              
-                out.println(line);
-
-                if (line.contains("<!-- Browse results -->")) {
+            OutputStream out = response.getOutputStream();
+            byte[][] page = browsePage.getParts();
+            PageTemplate.write(page, 0, out);
+            PageTemplate.write(page, 1, out);
             
-                    out.println(html);
+            if(page[1].length > 0){
                 
+                out.write(html.getBytes("UTF-8"));
+                out.write('\n');
                 
-                }
-          
-            } 
+            }
+            
+            PageTemplate.write(page, 2, out);
         
         }
         catch(Exception e){ }
@@ -465,7 +454,7 @@ public class CollectionBrowser extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        processRequest(request, response);
+        AsyncDispatch.dispatch(request, response, handler);
     }
 
     /** 
@@ -478,7 +467,7 @@ public class CollectionBrowser extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        processRequest(request, response);
+        AsyncDispatch.dispatch(request, response, handler);
     }
     
     
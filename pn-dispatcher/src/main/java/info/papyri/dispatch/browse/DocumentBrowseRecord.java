@@ -17,7 +17,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import org.apache.solr.client.solrj.SolrQuery;
 
 /**
  * The <code>DocumentBrowseRecord</code> class stores summary information regarding
@@ -39,16 +38,16 @@ public class DocumentBrowseRecord extends BrowseRecord implements Comparable {
   private ArrayList<String> imagePaths;
   private Boolean hasIllustration;
   private String highlightString;
-  private String solrQueryString;
+  private String resultSetToken;
   private Long position;
-  private Long total;
   public Pattern[] highlightTerms;
   private ArrayList<String> highlightWords;
   private FileUtils util;
   private String tempRegex;
   private SearchClause testClause;
   
-  private static IdComparator documentComparator = new IdComparator();
+  /** The display id, parsed when first sorted */
+  private IdComparator.SortKey sortKey;
   
   public DocumentBrowseRecord(String prefId, ArrayList<String> ids, URL url, ArrayList<String> titles, String place, String date, String lang, ArrayList<String> imgPaths, String trans, Boolean illus, ArrayList<SearchClause> sts) {
     
@@ -417,6 +416,19 @@ public class DocumentBrowseRecord extends BrowseRecord implements Comparable {
   @Override
   public String getHTML() {
 
+    return getHTML(this.getKWIC());
+
+  }
+  
+  /**
+   * As {@link #getHTML()}, but with the KWIC block supplied by the caller
+   * (e.g. generated in parallel by <code>KwicRenderer</code>).
+   * 
+   * @param kwic the KWIC HTML; may be empty
+   * @return the record's table rows
+   */
+  public String getHTML(String kwic) {
+
     StringBuilder anchor = new StringBuilder();
     anchor.append("<a href='");
     anchor.append(generateLink());    
@@ -447,7 +459,7 @@ public class DocumentBrowseRecord extends BrowseRecord implements Comparable {
     html.append(getImageHTML());
     html.append("</td>");
     html.append("</tr>");
-    html.append(this.getKWIC());
+    html.append(kwic);
     return html.toString();
 
   }
@@ -633,10 +645,14 @@ public class DocumentBrowseRecord extends BrowseRecord implements Comparable {
   public int compareTo(Object o) {
 
     DocumentBrowseRecord comparandum = (DocumentBrowseRecord) o;
-    String thisId = this.getDisplayId() != null ? this.getDisplayId() : "";
-    String thatId = comparandum.getDisplayId() != null ? comparandum.getDisplayId() : "";
+    return getSortKey().compareTo(comparandum.getSortKey());
 
-    return documentComparator.compare(thisId, thatId);
+  }
+  
+  private IdComparator.SortKey getSortKey() {
+      
+    if(sortKey == null) sortKey = IdComparator.sortKey(preferredId != null ? preferredId : "");
+    return sortKey;
 
   }
   
@@ -648,7 +664,7 @@ public class DocumentBrowseRecord extends BrowseRecord implements Comparable {
       
   }
   
-  String getKWIC(){
+  public String getKWIC(){
       
       StringBuilder html = new StringBuilder();
       try{
@@ -723,74 +739,39 @@ public class DocumentBrowseRecord extends BrowseRecord implements Comparable {
       
       String startURL = url.toString().substring("http://papyri.info".length());
       String sh = getHighlightString();
-      String sq = getSolrQueryString();
-      String fullURL = (startURL + sh + sq).length() < 2000 ? startURL + sh + sq : (startURL + sq).length() < 2000 ? startURL + sq : startURL;
+      String rs = getResultSetString();
+      String fullURL = (startURL + sh + rs).length() < 2000 ? startURL + sh + rs : startURL + rs.replaceFirst("^&", "?");
       return fullURL;
       
   }
   
   /**
-   * Sets the Solr data required for the document to generate a Solr query string
-   * returning itself and its immediate neighbours in the result set.
+   * Sets the search the record was returned by, and its position there.
    * 
    * Used for linear browsing functionality
    * 
-   * @param sq A Solr querystring retrieving the current record and its immediate neighbour(s)
+   * @param token The token identifying the search in <code>ResultSetCache</code>
    * @param position The position of this record in the current resultset
-   * @param total The total number of records in the current resultset
    */
   
-  public void setSolrData(SolrQuery sq, long position, long total){
-      
-      setSolrQueryString(sq);
-      setPosition(position);
-      setTotal(total);
+  public void setResultSet(String token, long position){
       
-      
-  }
-  
-  private void setSolrQueryString(SolrQuery sq){
-          
-      int browserLimit = 2000;
-      String sqs = sq.toString();
-      
-      if(sq == null || sqs.length() > browserLimit){
-          
-          solrQueryString = "";
-          return;
-          
-      }
-      
-      solrQueryString = sqs;
+      resultSetToken = token;
+      this.position = position;
       
   }
   
   /**
-   * Formats the 
+   * Formats the result set token and position for the record's link.
    * 
    * @return 
    */
   
-  private String getSolrQueryString(){
-      
-      if("".equals(solrQueryString)) return "";
-      String sq = ("".equals(highlightString) ? "?" : "&") + solrQueryString;
-      sq += "&p=" + String.valueOf(position) + "&t=" + String.valueOf(total); 
-      return sq;
-      
-  }
-
-  private void setPosition(long p){
-      
-      position = p;
-      
-  }
-  
-  private void setTotal(long t){
+  private String getResultSetString(){
       
-      total = t;
+      if(resultSetToken == null) return "";
+      return ("".equals(highlightString) ? "?" : "&") + "rs=" + resultSetToken + "&p=" + String.valueOf(position);
       
   }
-  
    
 }
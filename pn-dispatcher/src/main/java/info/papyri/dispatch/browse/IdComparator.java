@@ -1,7 +1,9 @@
 package info.papyri.dispatch.browse;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -13,69 +15,135 @@ import java.util.regex.Pattern;
  * the ids up into numeric and alphabetic components for ordering, discarding any
  * punctuation characters.
  * 
+ * Each id is parsed once into a <code>SortKey</code>, whose components are packed into
+ * a single <code>int[]</code> that orders correctly when compared element by element;
+ * {@link #sort(java.util.List)} sorts a list of ids by their keys, so that no id is
+ * parsed more than once.
+ * 
  * 
  * @author thill
  */
 public class IdComparator implements Comparator {
 
+    /** Marks the start of a numeric component, which sorts before an alphabetic one */
+    static final int NUMERIC = 1;
+    /** Marks the start of an alphabetic component */
+    static final int ALPHABETIC = 2;
+    /** Ends an alphabetic component; its characters are stored one higher */
+    static final int END = 0;
+    
+    /**
+     * Compares two ids, or two <code>SortKey</code>s.
+     * 
+     * Ids are parsed for every comparison; to sort many ids use {@link #sort(java.util.List)}.
+     * 
+     * @param t
+     * @param t1
+     * @return 
+     */
+    
     @Override
     public int compare(Object t, Object t1) {
         
-        String id1 = (String) t;
-        String id2 = (String) t1;
+        SortKey key1 = t instanceof SortKey ? (SortKey) t : sortKey((String) t);
+        SortKey key2 = t1 instanceof SortKey ? (SortKey) t1 : sortKey((String) t1);
+        return key1.compareTo(key2);
         
-        ArrayList<String> ids1 = splitIntoNumericAndAlphabeticComponents(id1);
-        ArrayList<String> ids2 = splitIntoNumericAndAlphabeticComponents(id2);
+    }
+    
+    /**
+     * Sorts the passed list of ids in place, parsing each id only once.
+     * 
+     * Like <code>Collections.sort</code>, the sort is stable.
+     * 
+     * @param ids 
+     */
+    
+    public static void sort(List<String> ids){
         
-        Pattern letterCheck = Pattern.compile("^\\D.*");
-        Pattern numberCheck = Pattern.compile("^\\d.*");
-  
+        SortKey[] keys = new SortKey[ids.size()];
+        for(int i = 0; i < keys.length; i++) keys[i] = sortKey(ids.get(i));
+        Arrays.sort(keys);
+        for(int i = 0; i < keys.length; i++) ids.set(i, keys[i].id);
         
-        // loop through all components
+    }
+    
+    /**
+     * Parses the passed id into its <code>SortKey</code>.
+     * 
+     * Numeric components are stored as their number of digits, leading zeros aside,
+     * followed by the digits, so that they compare by value however long they are. 
+     * Alphabetic components are stored with punctuation removed and case folded as by
+     * <code>String.compareToIgnoreCase</code>.
+     * 
+     * @param id
+     * @return 
+     */
+    
+    public static SortKey sortKey(String id){
         
-        // make sure no index errors possible by choosing shorter of two arrays
+        int length = id.length();
+        // each component adds at most two ints to its characters
+        int[] packed = new int[3 * length];
+        int size = 0;
+        int i = 0;
         
-        int limit = ids1.size() < ids2.size() ? ids1.size() : ids2.size();
-
-        for(int i = 0; i < limit; i++){
+        while(i < length){
             
-            String id1chunk = ids1.get(i);
-            String id2chunk = ids2.get(i);
-            
-            // if the two are of different types, return numerical types first
-            
-            if(numberCheck.matcher(id1chunk).matches() && letterCheck.matcher(id2chunk).matches()) return -1;
-            if(letterCheck.matcher(id1chunk).matches() && numberCheck.matcher(id2chunk).matches()) return 1;
-
-            // if they're numerical, do numerical sort
+            int start = i;
             
-            if(numberCheck.matcher(id1chunk).matches()){
-
-                if(Long.valueOf(id1chunk) < Long.valueOf(id2chunk)) return -1;
-                if(Long.valueOf(id1chunk) > Long.valueOf(id2chunk)) return 1;
+            if(isDigit(id.charAt(i))){
+                
+                while(i < length && isDigit(id.charAt(i))) i++;
+                int first = start;
+                while(first < i - 1 && id.charAt(first) == '0') first++;
+                packed[size++] = NUMERIC;
+                packed[size++] = i - first;
+                for(int d = first; d < i; d++) packed[size++] = id.charAt(d) - '0';
                 
             }
             else{
-
-                String value1 = id1chunk.replaceAll("\\p{Punct}", "");
-                String value2 = id2chunk.replaceAll("\\p{Punct}", "");
-                int compareValue = value1.compareToIgnoreCase(value2);
-                if(compareValue != 0) return compareValue;
+                
+                packed[size++] = ALPHABETIC;
+                
+                while(i < length && !isDigit(id.charAt(i))){
+                    
+                    char c = id.charAt(i++);
+                    if(!isPunctuation(c)) packed[size++] = Character.toLowerCase(Character.toUpperCase(c)) + 1;
+                    
+                }
+                
+                packed[size++] = END;
                 
             }
             
-            
         }
         
-        // prioritise shorter over longer
+        return new SortKey(id, Arrays.copyOf(packed, size));
         
-        if(id1.length() < id2.length()) return -1;
-        if(id1.length() > id2.length()) return 1;
+    }
+    
+    /** As <code>\d</code> in a regular expression */
+    private static boolean isDigit(char c){
         
-        return 0;
+        return c >= '0' && c <= '9';
         
     }
     
+    /** As <code>\p{Punct}</code> in a regular expression */
+    private static boolean isPunctuation(char c){
+        
+        return (c >= '!' && c <= '/') || (c >= ':' && c <= '@') || (c >= '[' && c <= '`') || (c >= '{' && c <= '~');
+        
+    }
+    
+    /**
+     * Splits the passed id into the components compared by a <code>SortKey</code>, as strings.
+     * 
+     * @param mixedString
+     * @return 
+     */
+    
     ArrayList<String> splitIntoNumericAndAlphabeticComponents(String mixedString){
         
         ArrayList<String> components = new ArrayList<String>();
@@ -100,4 +168,48 @@ public class IdComparator implements Comparator {
         
     }
     
+    /**
+     * An id parsed for ordering.
+     * 
+     * Where one id's components match the start of the other's, the shorter id
+     * (counting punctuation) sorts first.
+     */
+    
+    public static class SortKey implements Comparable<SortKey> {
+        
+        final String id;
+        final int[] packed;
+        
+        SortKey(String id, int[] packed){
+            
+            this.id = id;
+            this.packed = packed;
+            
+        }
+        
+        public String getId(){
+            
+            return id;
+            
+        }
+        
+        @Override
+        public int compareTo(SortKey other){
+            
+            int limit = packed.length < other.packed.length ? packed.length : other.packed.length;
+            
+            for(int i = 0; i < limit; i++){
+                
+                if(packed[i] != other.packed[i]) return packed[i] < other.packed[i] ? -1 : 1;
+                
+            }
+            
+            if(id.length() < other.id.length()) return -1;
+            if(id.length() > other.id.length()) return 1;
+            return 0;
+            
+        }
+        
+    }
+    
 }
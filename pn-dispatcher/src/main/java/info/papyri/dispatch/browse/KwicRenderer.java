@@ -0,0 +1,232 @@
+package info.papyri.dispatch.browse;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Generates the KWIC snippets for a page of <code>DocumentBrowseRecord</code>s
+ * concurrently, on a bounded pool shared by all requests.
+ *
+ * Each page gets a time budget; any record whose snippet is not ready when the
+ * budget runs out (or which cannot be queued because the pool is saturated) is
+ * rendered without a KWIC block rather than holding up the rest of the page.
+ *
+ * Configured from the web.xml context-params <code>kwicThreads</code>,
+ * <code>kwicQueueSize</code> and <code>kwicTimeout</code> (ms per page).
+ *
+ * @author thill
+ * @see DocumentBrowseRecord#getKWIC()
+ */
+public class KwicRenderer implements ServletContextListener {
+
+    static final int DEFAULT_THREADS = 8;
+    static final int DEFAULT_QUEUE_SIZE = 256;
+    static final long DEFAULT_TIMEOUT = 3000;
+
+    private static ThreadPoolExecutor executor;
+    private static volatile long timeout = DEFAULT_TIMEOUT;
+
+    private static final AtomicLong pages = new AtomicLong();
+    private static final AtomicLong snippets = new AtomicLong();
+    private static final AtomicLong late = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    private static final AtomicLong totalMillis = new AtomicLong();
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+
+        ServletContext context = sce.getServletContext();
+        int threads = DEFAULT_THREADS;
+        int queueSize = DEFAULT_QUEUE_SIZE;
+
+        try{
+
+            if(context.getInitParameter("kwicThreads") != null) threads = Integer.parseInt(context.getInitParameter("kwicThreads").trim());
+            if(context.getInitParameter("kwicQueueSize") != null) queueSize = Integer.parseInt(context.getInitParameter("kwicQueueSize").trim());
+            if(context.getInitParameter("kwicTimeout") != null) timeout = Long.parseLong(context.getInitParameter("kwicTimeout").trim());
+
+        } catch(NumberFormatException nfe){
+
+            context.log("Bad KWIC pool setting, using defaults.", nfe);
+
+        }
+
+        configure(threads, queueSize);
+
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+
+        synchronized(KwicRenderer.class){
+
+            if(executor != null) executor.shutdownNow();
+            executor = null;
+
+        }
+
+    }
+
+    static synchronized void configure(int threads, int queueSize){
+
+        if(executor != null) executor.shutdownNow();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new KwicThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor(){
+
+        if(executor == null) configure(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+        return executor;
+
+    }
+
+    /**
+     * Returns the KWIC HTML for each of the passed records, in the same order.
+     *
+     * Records whose snippets miss the deadline get an empty string.
+     *
+     * @param records
+     * @return The KWIC HTML for each record
+     */
+
+    public static String[] render(List<DocumentBrowseRecord> records){
+
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+        String[] kwics = new String[records.size()];
+        List<Future<String>> futures = new ArrayList<Future<String>>(records.size());
+        ThreadPoolExecutor pool = getExecutor();
+
+        for(final DocumentBrowseRecord record : records){
+
+            Future<String> future = null;
+
+            try{
+
+                future = pool.submit(new Callable<String>(){
+
+                    @Override
+                    public String call(){
+
+                        return record.getKWIC();
+
+                    }
+
+                });
+
+            } catch(RejectedExecutionException ree){
+
+                rejected.incrementAndGet();
+
+            }
+
+            futures.add(future);
+
+        }
+
+        int missed = 0;
+
+        for(int i = 0; i < futures.size(); i++){
+
+            Future<String> future = futures.get(i);
+            kwics[i] = "";
+            if(future == null){
+
+                missed++;
+                continue;
+
+            }
+
+            try{
+
+                kwics[i] = future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                snippets.incrementAndGet();
+
+            } catch(TimeoutException te){
+
+                future.cancel(true);
+                late.incrementAndGet();
+                missed++;
+
+            } catch(ExecutionException ee){
+
+                failed.incrementAndGet();
+                missed++;
+
+            } catch(InterruptedException ie){
+
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                missed++;
+
+            }
+
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        pages.incrementAndGet();
+        totalMillis.addAndGet(elapsed);
+        if(missed > 0) System.out.println("KWIC: " + missed + " of " + records.size() + " records without snippets after " + elapsed + " ms");
+        return kwics;
+
+    }
+
+    public static Map<String, Object> getStats(){
+
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        long p = pages.get();
+        stats.put("pages", p);
+        stats.put("snippets", snippets.get());
+        stats.put("late", late.get());
+        stats.put("rejected", rejected.get());
+        stats.put("failed", failed.get());
+        stats.put("averagePageMillis", p == 0 ? 0.0 : (double) totalMillis.get() / p);
+        stats.put("timeout", timeout);
+        ThreadPoolExecutor pool = executor;
+        if(pool != null){
+
+            stats.put("activeThreads", pool.getActiveCount());
+            stats.put("maxThreads", pool.getMaximumPoolSize());
+            stats.put("queued", pool.getQueue().size());
+
+        }
+        return stats;
+
+    }
+
+    private static class KwicThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+
+            Thread t = new Thread(r, "kwic-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+
+        }
+
+    }
+
+}
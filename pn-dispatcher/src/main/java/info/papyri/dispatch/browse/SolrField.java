@@ -45,6 +45,7 @@ public enum SolrField {
         nome,
         series,
         series_led_path,
+        sort_key,
         title,
         transcription,
         transcription_ia,
@@ -48,7 +48,7 @@ abstract public class BooleanFacet extends Facet{
     @Override
     public SolrQuery buildQueryContribution(SolrQuery solrQuery){
         
-        solrQuery.addFacetField(field.name());
+        addFacetField(solrQuery, field.name());
         
         Iterator<String> cit = facetConstraints.iterator();
 
@@ -178,7 +178,7 @@ public class DateFacet extends Facet {
    @Override
     public SolrQuery buildQueryContribution(SolrQuery solrQuery){
            
-        solrQuery.addFacetField(flagField.name());
+        addFacetField(solrQuery, flagField.name());
         
         if(terminusAfterWhich.getCurrentValue().equals("Unknown") || terminusBeforeWhich.getCurrentValue().equals("Unknown")){
             
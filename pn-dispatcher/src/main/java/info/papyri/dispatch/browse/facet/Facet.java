@@ -11,6 +11,7 @@ import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.response.FacetField;
 import org.apache.solr.client.solrj.response.FacetField.Count;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.FacetParams;
 
 /**
  * Handles all the necessary backend (Solr) and frontend (HTML) interactions needed
@@ -55,6 +56,17 @@ abstract public class Facet {
      */
     static String defaultValue = "--- All values ---";
     
+    /** Number of values requested for a lazily-loaded <code>Facet</code> on a results page:
+     *  enough to tell whether the widget has only one value and should be disabled
+     */
+    static final int LAZY_LIMIT = 2;
+    
+    /** Whether this instance is answering a request for its full list of values
+     * 
+     * @see FacetBrowser#writeFacetValues(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse) 
+     */
+    boolean allValues = false;
+    
     /**
      * Constructor
      * 
@@ -81,8 +93,7 @@ abstract public class Facet {
     
     public SolrQuery buildQueryContribution(SolrQuery solrQuery){
         
-        solrQuery.addFacetField(field.name());
-        solrQuery.setFacetLimit(-1);                // = no limit
+        addFacetField(solrQuery, field.name());
         
         Iterator<String> cit = facetConstraints.iterator();
         
@@ -103,6 +114,84 @@ abstract public class Facet {
         
     }
     
+    /**
+     * Adds the passed field to the faceting information requested by the <code>SolrQuery</code>,
+     * along with this <code>Facet</code>'s limit and sort for it.
+     * 
+     * @param solrQuery
+     * @param fieldName 
+     * @see #getFacetLimit()
+     * @see #getFacetSort() 
+     */
+    
+    void addFacetField(SolrQuery solrQuery, String fieldName){
+        
+        solrQuery.addFacetField(fieldName);
+        solrQuery.set("f." + fieldName + "." + FacetParams.FACET_LIMIT, getFacetLimit());
+        solrQuery.set("f." + fieldName + "." + FacetParams.FACET_SORT, getFacetSort());
+        
+    }
+    
+    /**
+     * Returns the maximum number of values to be retrieved from Solr for each of the
+     * <code>Facet</code>'s fields; -1 for all of them.
+     * 
+     * Lazily-loaded <code>Facet</code>s retrieve only <code>LAZY_LIMIT</code> values for
+     * a results page.
+     * 
+     * @return 
+     * @see #isLazy() 
+     */
+    
+    int getFacetLimit(){
+        
+        return isLazy() && !allValues ? LAZY_LIMIT : -1;
+        
+    }
+    
+    /**
+     * Returns the order in which values are to be retrieved from Solr: alphabetical
+     * (<code>index</code>) when all values are retrieved, and most frequent first 
+     * (<code>count</code>) otherwise.
+     * 
+     * @return 
+     */
+    
+    String getFacetSort(){
+        
+        return getFacetLimit() < 0 ? FacetParams.FACET_SORT_INDEX : FacetParams.FACET_SORT_COUNT;
+        
+    }
+    
+    /**
+     * Indicates whether the full list of values for the <code>Facet</code>'s widget is
+     * fetched from <code>FacetBrowser</code> as JSON only when the widget is opened, rather
+     * than being sent with every results page.
+     * 
+     * Suitable for long-tail fields such as provenance.
+     * 
+     * @return 
+     */
+    
+    boolean isLazy(){
+        
+        return false;
+        
+    }
+    
+    /**
+     * Indicates whether the values held are only the first <code>LAZY_LIMIT</code> of a 
+     * lazily-loaded list.
+     * 
+     * @return 
+     */
+    
+    boolean isTruncated(){
+        
+        return isLazy() && !allValues && valuesAndCounts.size() >= LAZY_LIMIT;
+        
+    }
+    
     /** 
      * Generates the HTML form element used for input.
      * 
@@ -122,7 +211,8 @@ abstract public class Facet {
         html.append("<p>");
         // if only one value possible, then gray out control
         Boolean onlyOneValue = valuesAndCounts.size() == 1;
-        Boolean allSelected = facetConstraints.size() == valuesAndCounts.size();
+        Boolean truncated = isTruncated();
+        Boolean allSelected = !truncated && facetConstraints.size() == valuesAndCounts.size();
         String disabled = (onlyOneValue || allSelected) ? " disabled=\"true\"" : "";             
         String defaultSelected = (onlyOneValue || allSelected) ? "" : "selected=\"true\"";
         html.append("<span class=\"option-label\">");
@@ -130,6 +220,8 @@ abstract public class Facet {
         html.append("</span>");
         html.append("<select");
         html.append(disabled);
+        // the rest of the options are fetched by the widget when opened
+        if(truncated) html.append(" data-lazy=\"true\"");
         html.append(" name=\"");
         html.append(formName.name());
         html.append("\">");
@@ -147,9 +239,8 @@ abstract public class Facet {
             
             Count valueAndCount = vcit.next();
             String value = valueAndCount.getName();
-            String displayValue = getDisplayValue(value);
-            // truncate if too long; otherwise control potentially takes up whole screen
-            if(displayValue.length() > 35) displayValue = displayValue.substring(0, 35);    
+            if(truncated && !facetConstraints.contains(value)) continue;
+            String displayValue = getOptionLabel(value);
             String count = String.valueOf(valueAndCount.getCount());
             String selected = onlyOneValue || (oneConstraintSet && value.equals(facetConstraints.get(0)))? " selected=\"true\"" : "";
             html.append("<option");
@@ -392,6 +483,21 @@ abstract public class Facet {
         
         return value;
         
+    }
+    
+    /**
+     * Returns the label used for the passed value in the <code>Facet</code>'s drop-down selector.
+     * 
+     * @param value
+     * @return The display value, truncated if too long; otherwise control potentially takes up whole screen
+     */
+    
+    String getOptionLabel(String value){
+        
+        String displayValue = getDisplayValue(value);
+        if(displayValue.length() > 35) displayValue = displayValue.substring(0, 35);
+        return displayValue;
+        
     }
     
      /* getters and setters below */
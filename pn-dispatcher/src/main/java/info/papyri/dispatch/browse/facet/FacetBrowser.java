@@ -1,23 +1,23 @@
 package info.papyri.dispatch.browse.facet;
 
 import info.papyri.dispatch.browse.facet.customexceptions.FacetNotFoundException;
+import info.papyri.dispatch.AsyncDispatch;
+import info.papyri.dispatch.PageTemplate;
+import info.papyri.dispatch.SolrServerRegistry;
 import info.papyri.dispatch.SolrUtils;
 import info.papyri.dispatch.browse.DocumentBrowseRecord;
 import info.papyri.dispatch.browse.IdComparator;
+import info.papyri.dispatch.browse.KwicRenderer;
 import info.papyri.dispatch.browse.SolrField;
 import info.papyri.dispatch.browse.facet.StringSearchFacet.SearchClause;
 import info.papyri.dispatch.browse.facet.customexceptions.CustomApplicationException;
-import java.io.BufferedReader;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -30,12 +30,17 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
+import org.apache.solr.client.solrj.response.FacetField.Count;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.FacetParams;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
 import org.apache.solr.common.SolrDocument;
 
-@WebServlet(name = "FacetBrowser", urlPatterns = {"/search"})
+@WebServlet(name = "FacetBrowser", urlPatterns = {"/search"}, asyncSupported = true)
 
 /**
  * Enables faceted browsing of the pn collections
@@ -45,45 +50,46 @@ import org.apache.solr.common.SolrDocument;
 
 public class FacetBrowser extends HttpServlet {
     
-    /** Solr server address. Supplied in config file */
-    static String SOLR_URL;
-    /** Path to appropriate Solr core */
-    static String PN_SEARCH;  
     /** path to home html directory */
     static private String home;
-    /** path to html file used in html injection */
-    static private URL FACET_URL;
+    /** html page shell into which results are injected */
+    static private PageTemplate FACET_PAGE;
     /** path to servlet */
     static private String FACET_PATH;
     /** Default number of records to show per page */
     static private int defaultDocumentsPerPage = 15;
     /** Utility class providing lemma expansion */
     static SolrUtils SOLR_UTIL;
-    /** Path to html instructions file */
-    static String INSTRUCTIONS_PATH;
-    
-    static int SOCKET_TIMEOUT = 20000;
+    /** Html instructions shown when no constraints are set */
+    static PageTemplate INSTRUCTIONS;
+    /** Request parameter naming the <code>Facet</code> whose values are wanted as JSON */
+    static final String FACET_VALUES_PARAM = "facetValues";
+    /** Generates the JSON for lazily-loaded facet value lists */
+    static private final JsonFactory JSON = new JsonFactory();
+        
+    /** Runs {@link #processRequest} on the backend pool */
+    private final AsyncDispatch.Handler handler = new AsyncDispatch.Handler(){
+        
+        @Override
+        public void handle(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException{
+            
+            processRequest(request, response);
+            
+        }
+        
+    };
         
     @Override
     public void init(ServletConfig config) throws ServletException{
         
         super.init(config);
 
-        SOLR_URL = config.getInitParameter("solrUrl");
         SOLR_UTIL = new SolrUtils(config);
         home = config.getInitParameter("home");
-        PN_SEARCH = config.getInitParameter("pnSearchPath");
         FACET_PATH = config.getInitParameter("facetBrowserPath");
-        INSTRUCTIONS_PATH = config.getInitParameter("instructionsPath");
-        try {
-            
-            FACET_URL = new URL("file://" + home + "/" + "facetbrowse.html");
-            
-        } catch (MalformedURLException e) {
-      
-            throw new ServletException(e);
-   
-        }
+        String instructionsPath = config.getInitParameter("instructionsPath");
+        if(instructionsPath != null) INSTRUCTIONS = new PageTemplate(instructionsPath);
+        FACET_PAGE = new PageTemplate(home + "/" + "facetbrowse.html", "<!-- Facet browse results -->");
         
     } 
     
@@ -106,6 +112,14 @@ public class FacetBrowser extends HttpServlet {
         response.setContentType("text/html;charset=UTF-8");
         request.setCharacterEncoding("UTF-8");
         
+        /* A lazily-loaded facet widget asking for its full list of values */
+        if(request.getParameter(FACET_VALUES_PARAM) != null){
+            
+            writeFacetValues(request, response);
+            return;
+            
+        }
+        
         /* Get the <code>List</code> of facets to be displayed */
         ArrayList<Facet> facets = getFacets();
                 
@@ -132,8 +146,10 @@ public class FacetBrowser extends HttpServlet {
         
         ArrayList<CustomApplicationException> exceptionLog = collectFacetExceptions(facets);
                
-        /* Query the Solr server */
-        QueryResponse queryResponse = runFacetQuery(solrQuery);
+        /* Query the Solr server, unless the same query has already been answered
+         * since the index last changed
+         */
+        QueryResponse queryResponse = runCachedFacetQuery(solrQuery);
         
         /* Allow each facet to pull out the values relevant to it from the <code>QueryResponse</code>
          * returned by the Solr server.
@@ -263,6 +279,10 @@ public class FacetBrowser extends HttpServlet {
             sq = facet.buildQueryContribution(sq);
             
         }
+        // the natural order of the document's displayed id, as computed by IdComparator, is indexed
+        // as sort_key, so Solr pages in the order results are shown; documents indexed before
+        // sort_key was added fall back to series, volume and item
+        sq.addSortField(SolrField.sort_key.name(), SolrQuery.ORDER.asc);
         sq.addSortField(SolrField.series.name(), SolrQuery.ORDER.asc);
         sq.addSortField(SolrField.volume.name(), SolrQuery.ORDER.asc);
         sq.addSortField(SolrField.item.name(), SolrQuery.ORDER.asc);
@@ -286,28 +306,111 @@ public class FacetBrowser extends HttpServlet {
         
         try{
             
-          CommonsHttpSolrServer solrServer = new CommonsHttpSolrServer(SOLR_URL + PN_SEARCH);
-          solrServer.setSoTimeout(SOCKET_TIMEOUT);
+          SolrServer solrServer = SolrServerRegistry.getServer(SolrServerRegistry.PN_SEARCH);
           QueryResponse qr = solrServer.query(sq, SolrRequest.METHOD.POST);
           return qr;
             
             
         }
-        catch(MalformedURLException murle){
+        catch(SolrServerException sse){
             
-            System.out.println("MalformedURLException at info.papyri.dispatch.browse.facet.FacetBrowser: " + murle.getMessage());
-            return null;
+           System.out.println("SolrServerException at info.papyri.dispatch.browse.facet.FacetBrowser: " + sse.getMessage());
+           return null;
             
             
         }
-        catch(SolrServerException sse){
+        
+        
+    }
+    
+    /**
+     * Queries the Solr server, unless an identical query has already been answered since
+     * the index last changed.
+     * 
+     * @param sq
+     * @return The <code>QueryResponse</code>, which may be shared with other requests
+     * @see FacetResultCache
+     */
+    
+    private QueryResponse runCachedFacetQuery(SolrQuery sq){
+        
+        String cacheKey = FacetResultCache.key(sq);
+        QueryResponse queryResponse = FacetResultCache.get(cacheKey);
+        
+        if(queryResponse == null){
             
-           System.out.println("SolrServerException at info.papyri.dispatch.browse.facet.FacetBrowser: " + sse.getMessage());
-           return null;
+            long generation = FacetResultCache.getGeneration();
+            queryResponse = runFacetQuery(sq);
+            if(queryResponse != null) FacetResultCache.put(cacheKey, queryResponse, generation);
             
+        }
+        
+        return queryResponse;
+        
+    }
+    
+    /**
+     * Writes the full list of values of a lazily-loaded <code>Facet</code>, under the constraints
+     * set in the request, as a JSON array of <code>value</code>, <code>label</code> and <code>count</code>
+     * objects.
+     * 
+     * Only the requested <code>Facet</code>'s field is faceted on, and no documents are returned.
+     * 
+     * @param request
+     * @param response
+     * @throws IOException 
+     * @see Facet#isLazy()
+     */
+    
+    void writeFacetValues(HttpServletRequest request, HttpServletResponse response) throws IOException{
+        
+        ArrayList<Facet> facets = getFacets();
+        parseRequestToFacets(request, facets);
+        Facet requested = null;
+        
+        for(Facet facet : facets){
+            
+            if(facet.isLazy() && facet.formName.name().equals(request.getParameter(FACET_VALUES_PARAM))) requested = facet;
+            
+        }
+        
+        if(requested == null){
+            
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+            
+        }
+        
+        requested.allValues = true;
+        SolrQuery solrQuery = buildFacetQuery(1, facets, 0);
+        solrQuery.add("project", "IDP");
+        solrQuery.set(FacetParams.FACET_FIELD, requested.field.name());
+        QueryResponse queryResponse = runCachedFacetQuery(solrQuery);
+        
+        if(queryResponse == null){
+            
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+            
+        }
+        
+        requested.setWidgetValues(queryResponse);
+        response.setContentType("application/json;charset=UTF-8");
+        JsonGenerator json = JSON.createJsonGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+        json.writeStartArray();
+        
+        for(Count count : requested.valuesAndCounts){
+            
+            json.writeStartObject();
+            json.writeStringField("value", count.getName());
+            json.writeStringField("label", requested.getOptionLabel(count.getName()));
+            json.writeNumberField("count", count.getCount());
+            json.writeEndObject();
             
         }
         
+        json.writeEndArray();
+        json.close();
         
     }
     
@@ -373,6 +476,9 @@ public class FacetBrowser extends HttpServlet {
         if(queryResponse.getResults() == null) return records;
         
         int counter = 0;
+        
+        /* Linear browsing from the records looks their neighbours up in the search's id list */
+        String resultSet = queryResponse.getResults().getNumFound() > 0 ? ResultSetCache.register(solrQuery) : null;
                 
         for(SolrDocument doc : queryResponse.getResults()){
             
@@ -394,7 +500,7 @@ public class FacetBrowser extends HttpServlet {
                 ArrayList<String> allIds = getAllSortedIds(doc);
                 String preferredId = (allIds == null || allIds.isEmpty()) ? "No id supplied" : allIds.remove(0);
                 DocumentBrowseRecord record = new DocumentBrowseRecord(preferredId, allIds, url, documentTitles, place, date, language, imagePaths, translationLanguages, hasIllustration, searchClauses);
-                setLinearBrowseData(solrQuery, queryResponse, counter, record);
+                if(resultSet != null) record.setResultSet(resultSet, solrQuery.getStart() + counter);
                 records.add(record);
                 counter++;
                 
@@ -406,7 +512,6 @@ public class FacetBrowser extends HttpServlet {
            }
         }
           
-        Collections.sort(records);
         return records;
         
     }
@@ -548,6 +653,9 @@ public class FacetBrowser extends HttpServlet {
      * Note the importance of the table-cell order defined here corresponding to the
      * order defined at <code>DocumentBrowseRecord.getHTML()</code>
      * 
+     * KWIC snippets for the page are generated concurrently by <code>KwicRenderer</code>;
+     * records whose snippets miss the deadline are shown without them.
+     * 
      * 
      * @param facets
      * @param returnedRecords
@@ -614,12 +722,12 @@ public class FacetBrowser extends HttpServlet {
             
             html.append("<table>");
             html.append("<tr class=\"tablehead\"><td>Identifier</td><td>Title</td><td>Location</td><td>Date</td><td>Languages</td><td>Translations</td><td>Images</td></tr>");
-            Iterator<DocumentBrowseRecord> rit = returnedRecords.iterator();
+            String[] kwics = KwicRenderer.render(returnedRecords);
             
-            while(rit.hasNext()){
+            for(int i = 0; i < returnedRecords.size(); i++){
             
-                DocumentBrowseRecord dbr = rit.next();
-                html.append(dbr.getHTML());
+                DocumentBrowseRecord dbr = returnedRecords.get(i);
+                html.append(dbr.getHTML(kwics[i]));
                   
             }
             html.append("</table>");
@@ -755,25 +863,21 @@ public class FacetBrowser extends HttpServlet {
     
     void displayBrowseResult(HttpServletResponse response, String html){
         
-        BufferedReader reader = null;
         try{
         
-            PrintWriter out = response.getWriter();
-            reader = new BufferedReader(new InputStreamReader(FACET_URL.openStream()));
-            String line = "";
-            while ((line = reader.readLine()) != null) {
-              
-                out.println(line);
-
-                if (line.contains("<!-- Facet browse results -->")) {
+            OutputStream out = response.getOutputStream();
+            byte[][] page = FACET_PAGE.getParts();
+            PageTemplate.write(page, 0, out);
+            PageTemplate.write(page, 1, out);
             
-                    out.println(html);
+            if(page[1].length > 0){
                 
+                out.write(html.getBytes("UTF-8"));
+                out.write('\n');
                 
-                }
-          
-            } 
+            }
             
+            PageTemplate.write(page, 2, out);
         
         }
         catch(Exception e){ }
@@ -1005,7 +1109,7 @@ public class FacetBrowser extends HttpServlet {
 
             }
             apisPublicationNumbers = filterIds(apisPublicationNumbers);
-            Collections.sort(apisPublicationNumbers, new IdComparator());
+            IdComparator.sort(apisPublicationNumbers);
             ids.addAll(apisPublicationNumbers);
             
         }      
@@ -1018,7 +1122,7 @@ public class FacetBrowser extends HttpServlet {
                 invit.next().replaceAll("_", "");
             }
             apisInventoryNumbers = filterIds(apisInventoryNumbers);
-            Collections.sort(apisInventoryNumbers, new IdComparator());
+            IdComparator.sort(apisInventoryNumbers);
             ids.addAll(apisInventoryNumbers);
 
         }
@@ -1062,7 +1166,7 @@ public class FacetBrowser extends HttpServlet {
         }    // closing null check
 
         collectionMembers = filterIds(collectionMembers);
-        Collections.sort(collectionMembers, new IdComparator());
+        IdComparator.sort(collectionMembers);
 
         return collectionMembers;
         
@@ -1096,56 +1200,6 @@ public class FacetBrowser extends HttpServlet {
          
     }
     
-    /**
-     * Creates, starting from the <code>SolrQuery</code> object used for the current result set,
-     * a new <code>SolrQuery</code> capable of returning the immediate neighbour(s) of the passed
-     * <code>DocumentBrowseRecord</code> in that result set, in order to support linear-browsing 
-     * functionality.
-     * 
-     * @param bigQuery
-     * @param qr
-     * @param recordPosition
-     * @param record 
-     */
-    
-    private void setLinearBrowseData(SolrQuery bigQuery, QueryResponse qr, int recordPosition, DocumentBrowseRecord record){
-
-        SolrQuery newQuery = new SolrQuery();  
-        
-        String[] filterQueries = bigQuery.getFilterQueries();
-        String[] sortFields = bigQuery.getSortFields();
-        
-        try{
-            
-            Long currentPosition = Long.valueOf(bigQuery.getStart() + recordPosition);
-            Long lastRecord = qr.getResults().getNumFound() - 1;
-            newQuery.setRows((currentPosition == 0 || currentPosition == lastRecord) ? 2 : 3);
-            int startValue = (int)(currentPosition == 0 ? 0 : currentPosition - 1);
-            newQuery.setStart(startValue);
-            newQuery.addField("id");
-            newQuery.addField("title");
-        
-            for(int i = 0; i < filterQueries.length; i++){
-
-                String filterQuery = filterQueries[i];
-                if(!"".equals(filterQuery)) newQuery.addFilterQuery(filterQuery);
-
-            }
-
-            for(int j = 0; j < sortFields.length; j++){
-
-                String[] sortBits = sortFields[j].split(" ");
-                if(sortBits.length == 2) newQuery.addSortField(sortBits[0], SolrQuery.ORDER.valueOf(sortBits[1]));
-
-            }
-            
-            record.setSolrData(newQuery, currentPosition, lastRecord);
-            
-            
-        } catch(Exception e){  }
-        
-    }
-    
     /**
      * Retrieves the required <code>Facet</code> object from the facet list, given the <code>Facet</code> subclass.
      * 
@@ -1178,13 +1232,11 @@ public class FacetBrowser extends HttpServlet {
         
        String instructions = "<div id=\"info\"><p>Selecting a value using the controls in the left-hand column will return a list of all  documents that match it in the right-hand column. Once these results have been returned, the controls can be used to further refine the search with additional values. This process of adding new search constraints can be applied repeatedly until the results have been narrowed as far as desired.</p></div>";      
 
+       if(INSTRUCTIONS == null) return instructions;
+       
        try{
            
-           BufferedReader in = new BufferedReader(new FileReader(INSTRUCTIONS_PATH));
-           StringBuilder instrBuilder = new StringBuilder();
-           String startInst = "";
-           while((startInst = in.readLine()) != null){ instrBuilder.append(startInst);}   
-           return instrBuilder.toString();
+           return INSTRUCTIONS.getText();
            
        } catch(FileNotFoundException fnfe){
            
@@ -1211,7 +1263,7 @@ public class FacetBrowser extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        processRequest(request, response);
+        AsyncDispatch.dispatch(request, response, handler);
     }
 
     /** 
@@ -1224,7 +1276,7 @@ public class FacetBrowser extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        processRequest(request, response);
+        AsyncDispatch.dispatch(request, response, handler);
     }
 
     /** 
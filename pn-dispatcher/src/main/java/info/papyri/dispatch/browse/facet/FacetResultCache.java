@@ -0,0 +1,351 @@
+package info.papyri.dispatch.browse.facet;
+
+import info.papyri.dispatch.IndexVersion;
+import info.papyri.dispatch.SolrServerRegistry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Bounded LRU cache of the <code>QueryResponse</code>s <code>FacetBrowser</code>
+ * gets back from pn-search, so that identical facet queries - above all the
+ * unconstrained first page everyone lands on - are answered without a round
+ * trip to Solr.
+ *
+ * Entries are keyed on the canonical form of the <code>SolrQuery</code> built
+ * from the facet constraints: parameter names and values sorted, so that the
+ * order in which constraints appear in the request does not matter, and the
+ * page and documents-per-page included as <code>start</code> and <code>rows</code>.
+ * The facet widget values are rebuilt from the cached response by each request's
+ * own <code>Facet</code>s, which costs no I/O.
+ *
+ * The whole cache is dropped when the pn-search index version changes, and a response
+ * fetched before that is not stored after it. Memory use is estimated from the size
+ * of each response when it is stored.
+ *
+ * Configured from the web.xml context-params <code>facetCacheSize</code> (entries),
+ * <code>facetCacheMaxBytes</code> (estimated) and <code>facetCacheCheckInterval</code>
+ * (ms between index version checks).
+ *
+ * @author thill
+ * @see FacetBrowser#processRequest(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+ */
+public class FacetResultCache implements ServletContextListener {
+
+    static final int DEFAULT_SIZE = 500;
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    static final long DEFAULT_CHECK_INTERVAL = 60000;
+
+    private static volatile int maxSize = DEFAULT_SIZE;
+    private static volatile long maxBytes = DEFAULT_MAX_BYTES;
+    private static final IndexVersion indexVersion = new IndexVersion(SolrServerRegistry.PN_SEARCH, DEFAULT_CHECK_INTERVAL);
+    private static final LinkedHashMap<String, Cached> cache = new LinkedHashMap<String, Cached>(64, 0.75f, true);
+    private static long bytes = 0;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+    private static final AtomicLong invalidations = new AtomicLong();
+    private static final AtomicLong tooLarge = new AtomicLong();
+    /** Bumped on every clear, so a response fetched before one isn't stored after it */
+    private static final AtomicLong generation = new AtomicLong();
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+
+        ServletContext context = sce.getServletContext();
+
+        try{
+
+            if(context.getInitParameter("facetCacheSize") != null) maxSize = Integer.parseInt(context.getInitParameter("facetCacheSize").trim());
+            if(context.getInitParameter("facetCacheMaxBytes") != null) maxBytes = Long.parseLong(context.getInitParameter("facetCacheMaxBytes").trim());
+            if(context.getInitParameter("facetCacheCheckInterval") != null) indexVersion.setCheckInterval(Long.parseLong(context.getInitParameter("facetCacheCheckInterval").trim()));
+
+        } catch(NumberFormatException nfe){
+
+            context.log("Bad facet cache setting, using defaults.", nfe);
+
+        }
+
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+
+        clear();
+
+    }
+
+    /**
+     * Returns the canonical cache key for the passed query.
+     *
+     * @param sq
+     * @return The parameters of the query, names and values each in sorted order
+     */
+
+    public static String key(SolrQuery sq){
+
+        List<String> names = new ArrayList<String>();
+        Iterator<String> nit = sq.getParameterNamesIterator();
+        while(nit.hasNext()) names.add(nit.next());
+        Collections.sort(names);
+        StringBuilder key = new StringBuilder();
+
+        for(String name : names){
+
+            String[] values = sq.getParams(name);
+            if(values == null) continue;
+            List<String> sorted = new ArrayList<String>();
+            Collections.addAll(sorted, values);
+            Collections.sort(sorted);
+
+            for(String value : sorted){
+
+                key.append(name).append('=').append(value).append('\u0000');
+
+            }
+
+        }
+
+        return key.toString();
+
+    }
+
+    /**
+     * Returns the cached response for the passed key, or null if there isn't one.
+     *
+     * @param key
+     * @return
+     */
+
+    public static QueryResponse get(String key){
+
+        checkIndexVersion();
+        Cached cached;
+        synchronized(cache){
+
+            cached = cache.get(key);
+
+        }
+
+        if(cached == null){
+
+            misses.incrementAndGet();
+            return null;
+
+        }
+
+        hits.incrementAndGet();
+        return cached.response;
+
+    }
+
+    /**
+     * Returns the current generation of the cache, to be read before fetching a
+     * response that is to be passed to <code>put</code>.
+     *
+     * @return
+     */
+
+    public static long getGeneration(){
+
+        return generation.get();
+
+    }
+
+    /**
+     * Caches the passed response, evicting the least recently used entries as needed
+     * to stay within both the entry and the memory bounds - unless the cache has been
+     * cleared since the response was fetched.
+     *
+     * Responses are shared between requests, so must be treated as read-only.
+     *
+     * @param key
+     * @param response
+     * @param fetchedAt The generation of the cache when the response was fetched
+     * @see #getGeneration()
+     */
+
+    public static void put(String key, QueryResponse response, long fetchedAt){
+
+        long size = 2L * key.length() + estimate(response.getResponse());
+        if(size > maxBytes / 4){
+
+            tooLarge.incrementAndGet();
+            return;
+
+        }
+
+        synchronized(cache){
+
+            if(generation.get() != fetchedAt) return;
+            Cached old = cache.put(key, new Cached(response, size));
+            bytes += size - (old == null ? 0 : old.bytes);
+            Iterator<Cached> cit = cache.values().iterator();
+
+            while((bytes > maxBytes || cache.size() > maxSize) && cit.hasNext()){
+
+                bytes -= cit.next().bytes;
+                cit.remove();
+                evictions.incrementAndGet();
+
+            }
+
+        }
+
+    }
+
+    public static void clear(){
+
+        synchronized(cache){
+
+            generation.incrementAndGet();
+            cache.clear();
+            bytes = 0;
+
+        }
+
+    }
+
+    public static Map<String, Object> getStats(){
+
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        long h = hits.get();
+        long m = misses.get();
+
+        synchronized(cache){
+
+            stats.put("size", cache.size());
+            stats.put("bytes", bytes);
+
+        }
+
+        stats.put("maxSize", maxSize);
+        stats.put("maxBytes", maxBytes);
+        stats.put("hits", h);
+        stats.put("misses", m);
+        stats.put("hitRatio", h + m == 0 ? 0.0 : (double) h / (h + m));
+        stats.put("evictions", evictions.get());
+        stats.put("tooLarge", tooLarge.get());
+        stats.put("invalidations", invalidations.get());
+        stats.put("indexVersion", indexVersion.get());
+        return stats;
+
+    }
+
+    /**
+     * Returns the version of the pn-search index, checking it first if it is due to be.
+     *
+     * @return The version, or -1 if it has never been successfully checked
+     */
+
+    static long getIndexVersion(){
+
+        checkIndexVersion();
+        return indexVersion.get();
+
+    }
+
+    /**
+     * Drops the cache if the pn-search index has changed since the last check.
+     *
+     */
+
+    private static void checkIndexVersion(){
+
+        if(indexVersion.check()){
+
+            invalidations.incrementAndGet();
+            clear();
+
+        }
+
+    }
+
+    /**
+     * Roughly estimates the heap taken up by a parsed Solr response.
+     *
+     * @param o
+     * @return The estimated size in bytes
+     */
+
+    static long estimate(Object o){
+
+        if(o == null) return 0;
+        if(o instanceof String) return 40 + 2 * ((String) o).length();
+
+        if(o instanceof NamedList){
+
+            NamedList<?> list = (NamedList<?>) o;
+            long size = 32;
+
+            for(int i = 0; i < list.size(); i++){
+
+                size += 8 + estimate(list.getName(i)) + estimate(list.getVal(i));
+
+            }
+
+            return size;
+
+        }
+
+        if(o instanceof Map){
+
+            long size = 48;
+
+            for(Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet()){
+
+                size += 32 + estimate(entry.getKey()) + estimate(entry.getValue());
+
+            }
+
+            return size;
+
+        }
+
+        if(o instanceof Collection){
+
+            long size = 32;
+            for(Object member : (Collection<?>) o) size += 8 + estimate(member);
+            return size;
+
+        }
+
+        if(o instanceof Object[]){
+
+            long size = 16;
+            for(Object member : (Object[]) o) size += 8 + estimate(member);
+            return size;
+
+        }
+
+        return 16;
+
+    }
+
+    private static class Cached {
+
+        final QueryResponse response;
+        final long bytes;
+
+        Cached(QueryResponse response, long bytes){
+
+            this.response = response;
+            this.bytes = bytes;
+
+        }
+
+    }
+
+}
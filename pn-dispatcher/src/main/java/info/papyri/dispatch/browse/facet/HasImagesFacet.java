@@ -204,7 +204,7 @@ public class HasImagesFacet extends Facet {
         for(int i = 0; i < ImageParam.values().length; i++){
             
             ImageParam ip = ImageParam.values()[i];
-            solrQuery.addFacetField(ip.getSearchField());
+            addFacetField(solrQuery, ip.getSearchField());
             
         }
         
@@ -144,7 +144,7 @@ public class IdentifierFacet extends Facet{
             ArrayList<SolrField> fields = sc.getFacetFields();
             for(SolrField ipField : fields){ 
                 
-                solrQuery.addFacetField(ipField.name());
+                addFacetField(solrQuery, ipField.name());
             
             }
             
@@ -1325,7 +1325,7 @@ public class IdentifierFacet extends Facet{
         public ArrayList<String> getIdValuesAsHTML() {
             
              ArrayList<String> identifiers = new ArrayList<String>(idValues.keySet());
-             Collections.sort(identifiers, new IdComparator());
+             IdComparator.sort(identifiers);
              return identifiers;
             
         }
@@ -0,0 +1,128 @@
+package info.papyri.dispatch.browse.facet;
+
+import info.papyri.dispatch.AsyncDispatch;
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+@WebServlet(name = "NeighborBrowser", urlPatterns = {"/browse/neighbors"}, asyncSupported = true)
+
+/**
+ * Supports linear browsing: returns, as JSON, the previous and next records of a record
+ * reached from a <code>FacetBrowser</code> results page, looked up in the search's id list
+ * held by <code>ResultSetCache</code>.
+ *
+ * Expects the parameters <code>rs</code> (the search's token), <code>p</code> (the record's
+ * position in the search, counting from 0) and optionally <code>id</code> (the record's path,
+ * used to find it if the index has changed and it is no longer at that position). Responds with
+ * an object holding <code>position</code>, <code>total</code>, and the paths <code>prev</code>
+ * and <code>next</code>, either of which may be null.
+ *
+ * @author thill
+ * @see ResultSetCache
+ */
+
+public class NeighborBrowser extends HttpServlet {
+
+    /** Request parameter holding the result set token */
+    static final String RESULT_SET_PARAM = "rs";
+    /** Request parameter holding the record's position in the result set */
+    static final String POSITION_PARAM = "p";
+    /** Request parameter holding the record's path */
+    static final String ID_PARAM = "id";
+    static private final JsonFactory JSON = new JsonFactory();
+
+    /** Runs {@link #processRequest} on the backend pool */
+    private final AsyncDispatch.Handler handler = new AsyncDispatch.Handler(){
+
+        @Override
+        public void handle(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException{
+
+            processRequest(request, response);
+
+        }
+
+    };
+
+    protected void processRequest(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+
+        String token = request.getParameter(RESULT_SET_PARAM);
+        int position;
+
+        try{
+
+            position = Integer.parseInt(request.getParameter(POSITION_PARAM));
+
+        } catch(NumberFormatException nfe){
+
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+
+        }
+
+        if(token == null){
+
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+
+        }
+
+        ResultSetCache.IdList ids;
+
+        try{
+
+            ids = ResultSetCache.get(token);
+
+        } catch(SolrServerException sse){
+
+            System.out.println("SolrServerException at info.papyri.dispatch.browse.facet.NeighborBrowser: " + sse.getMessage());
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+
+        }
+
+        int current = ids == null ? -1 : ResultSetCache.locate(ids, position, request.getParameter(ID_PARAM));
+
+        if(current == -1){
+
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+
+        }
+
+        response.setContentType("application/json;charset=UTF-8");
+        JsonGenerator json = JSON.createJsonGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+        json.writeStartObject();
+        json.writeNumberField("position", current);
+        json.writeNumberField("total", ids.getNumFound());
+        json.writeFieldName("prev");
+        if(current > 0) json.writeString(ids.get(current - 1));
+        else json.writeNull();
+        json.writeFieldName("next");
+        if(current + 1 < ids.size()) json.writeString(ids.get(current + 1));
+        else json.writeNull();
+        json.writeEndObject();
+        json.close();
+
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        AsyncDispatch.dispatch(request, response, handler);
+    }
+
+    @Override
+    public String getServletInfo() {
+        return "Previous and next records in a search";
+    }
+
+}
@@ -22,6 +22,13 @@ public class NomeFacet extends Facet {
         
     }
     
+    @Override
+    boolean isLazy(){
+        
+        return true;
+        
+    }
+    
     @Override
     public String getDisplayValue(String value){
         
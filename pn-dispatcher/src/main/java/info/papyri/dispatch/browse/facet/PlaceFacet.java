@@ -24,6 +24,13 @@ public class PlaceFacet extends Facet {
         return "Indicates the place where the text was produced, as far as can be determined. Often this will correspond to the findspot of the document.";
         
     }
+    
+    @Override
+    boolean isLazy(){
+        
+        return true;
+        
+    }
 
 
     
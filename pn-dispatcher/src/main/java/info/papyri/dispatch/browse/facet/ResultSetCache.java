@@ -0,0 +1,567 @@
+package info.papyri.dispatch.browse.facet;
+
+import info.papyri.dispatch.SolrServerRegistry;
+import info.papyri.dispatch.browse.SolrField;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+/**
+ * Holds, for each search run through <code>FacetBrowser</code>, the ordered list of the ids
+ * of the documents it returns, so that the previous and next records of any one of them
+ * can be looked up by <code>NeighborBrowser</code> without querying Solr again.
+ *
+ * A search is registered when its results page is built, and is identified from then on
+ * by a short token derived from its filter queries and sort order - so the same search
+ * always gets the same token, whatever page or number of rows was asked for. The id list
+ * itself is only fetched, in a single query returning nothing but ids, the first time
+ * a neighbour is asked for, and again if the pn-search index has changed since; concurrent
+ * requests for a list that is being fetched wait for that fetch rather than start their own.
+ *
+ * Ids are held as paths (without the <code>http://papyri.info</code> prefix or a trailing
+ * slash), packed into a single <code>char[]</code> with an <code>int[]</code> of end offsets,
+ * and an open-addressed <code>int[]</code> hash table from each path to its position.
+ *
+ * Configured from the web.xml context-params <code>resultSetCacheSize</code> (searches),
+ * <code>resultSetCacheMaxBytes</code> (for all the id lists together) and
+ * <code>resultSetMaxIds</code> (ids held per search; records beyond are not linked).
+ *
+ * @author thill
+ * @see NeighborBrowser
+ */
+public class ResultSetCache implements ServletContextListener {
+
+    static final int DEFAULT_SIZE = 1000;
+    static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+    static final int DEFAULT_MAX_IDS = 100000;
+    /** Stripped from ids before they are stored */
+    static final String ID_PREFIX = "http://papyri.info";
+
+    private static volatile int maxSize = DEFAULT_SIZE;
+    private static volatile long maxBytes = DEFAULT_MAX_BYTES;
+    private static volatile int maxIds = DEFAULT_MAX_IDS;
+    private static final LinkedHashMap<String, ResultSet> cache = new LinkedHashMap<String, ResultSet>(64, 0.75f, true);
+    private static final ConcurrentMap<String, FutureTask<IdList>> pending = new ConcurrentHashMap<String, FutureTask<IdList>>();
+    private static long bytes = 0;
+
+    private static final AtomicLong registered = new AtomicLong();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong fetches = new AtomicLong();
+    private static final AtomicLong shared = new AtomicLong();
+    private static final AtomicLong unknown = new AtomicLong();
+    private static final AtomicLong truncated = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+
+        ServletContext context = sce.getServletContext();
+
+        try{
+
+            if(context.getInitParameter("resultSetCacheSize") != null) maxSize = Integer.parseInt(context.getInitParameter("resultSetCacheSize").trim());
+            if(context.getInitParameter("resultSetCacheMaxBytes") != null) maxBytes = Long.parseLong(context.getInitParameter("resultSetCacheMaxBytes").trim());
+            if(context.getInitParameter("resultSetMaxIds") != null) maxIds = Integer.parseInt(context.getInitParameter("resultSetMaxIds").trim());
+
+        } catch(NumberFormatException nfe){
+
+            context.log("Bad result set cache setting, using defaults.", nfe);
+
+        }
+
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+
+        clear();
+
+    }
+
+    /**
+     * Registers the search the passed query belongs to, if it has not been already.
+     *
+     * @param sq The query used for a page of results
+     * @return The token identifying the search
+     */
+
+    public static String register(SolrQuery sq){
+
+        SolrQuery idQuery = buildIdQuery(sq);
+        String key = FacetResultCache.key(idQuery);
+        String token = token(key);
+
+        synchronized(cache){
+
+            ResultSet resultSet = cache.get(token);
+
+            if(resultSet == null || !resultSet.key.equals(key)){
+
+                if(resultSet != null) bytes -= resultSet.bytes();
+                resultSet = new ResultSet(key, idQuery, null, -1);
+                cache.put(token, resultSet);
+                bytes += resultSet.bytes();
+                registered.incrementAndGet();
+                evict();
+
+            }
+
+        }
+
+        return token;
+
+    }
+
+    /**
+     * Returns the ordered id list of the search identified by the passed token, fetching it
+     * if it hasn't been yet or the index has changed since.
+     *
+     * @param token
+     * @return The ids, or null if the token is unknown (or has been evicted)
+     * @throws SolrServerException
+     */
+
+    public static IdList get(String token) throws SolrServerException{
+
+        ResultSet resultSet;
+
+        synchronized(cache){
+
+            resultSet = cache.get(token);
+
+        }
+
+        if(resultSet == null){
+
+            unknown.incrementAndGet();
+            return null;
+
+        }
+
+        long version = FacetResultCache.getIndexVersion();
+
+        if(resultSet.ids != null && resultSet.version == version){
+
+            hits.incrementAndGet();
+            return resultSet.ids;
+
+        }
+
+        final ResultSet registered = resultSet;
+        FutureTask<IdList> task = new FutureTask<IdList>(new Callable<IdList>(){
+
+            @Override
+            public IdList call() throws SolrServerException{
+
+                return fetch(registered.query);
+
+            }
+
+        });
+
+        FutureTask<IdList> running = pending.putIfAbsent(registered.key, task);
+
+        if(running == null){
+
+            running = task;
+            fetches.incrementAndGet();
+            task.run();
+
+        }
+        else shared.incrementAndGet();
+
+        try{
+
+            IdList ids = running.get();
+            if(running == task) store(token, registered, ids, version);
+            return ids;
+
+        } catch(InterruptedException ie){
+
+            Thread.currentThread().interrupt();
+            throw new SolrServerException("Interrupted waiting for the ids of " + token);
+
+        } catch(ExecutionException ee){
+
+            Throwable cause = ee.getCause();
+            if(cause instanceof SolrServerException) throw (SolrServerException) cause;
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new SolrServerException(cause);
+
+        } finally {
+
+            // only once stored, so that no request in between fetches the list again
+            if(running == task) pending.remove(registered.key, task);
+
+        }
+
+    }
+
+    /**
+     * Stores a freshly fetched id list, if the search it belongs to hasn't been evicted or
+     * replaced in the meantime.
+     *
+     */
+
+    private static void store(String token, ResultSet registered, IdList ids, long version){
+
+        ResultSet fetched = new ResultSet(registered.key, registered.query, ids, version);
+
+        synchronized(cache){
+
+            ResultSet old = cache.get(token);
+
+            if(old != null && old.key.equals(fetched.key)){
+
+                cache.put(token, fetched);
+                bytes += fetched.bytes() - old.bytes();
+                evict();
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Finds the position of the current record in the list: the passed position if the id
+     * there is the passed one (or no id is passed), otherwise wherever the id has moved to.
+     *
+     * @param ids
+     * @param position The position the record had when its link was generated
+     * @param id The record's id, or path, with or without the <code>http://papyri.info</code> prefix
+     * @return The position, or -1 if the record can't be found
+     */
+
+    static int locate(IdList ids, int position, String id){
+
+        boolean inRange = position >= 0 && position < ids.size();
+        if(id == null) return inRange ? position : -1;
+
+        String path = trim(id);
+        if(inRange && ids.matches(position, path)) return position;
+        return ids.indexOf(path);
+
+    }
+
+    public static void clear(){
+
+        synchronized(cache){
+
+            cache.clear();
+            bytes = 0;
+
+        }
+
+    }
+
+    public static Map<String, Object> getStats(){
+
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+
+        synchronized(cache){
+
+            stats.put("size", cache.size());
+            stats.put("bytes", bytes);
+
+        }
+
+        stats.put("maxSize", maxSize);
+        stats.put("maxBytes", maxBytes);
+        stats.put("maxIds", maxIds);
+        stats.put("registered", registered.get());
+        stats.put("hits", hits.get());
+        stats.put("fetches", fetches.get());
+        stats.put("shared", shared.get());
+        stats.put("unknown", unknown.get());
+        stats.put("truncated", truncated.get());
+        stats.put("evictions", evictions.get());
+        return stats;
+
+    }
+
+    /**
+     * Builds the query for the ids alone of all the documents in the search: the same
+     * main query, filter queries and sort as the passed one, but no facets.
+     *
+     * @param sq
+     * @return
+     */
+
+    static SolrQuery buildIdQuery(SolrQuery sq){
+
+        SolrQuery idQuery = new SolrQuery();
+        idQuery.setQuery(sq.getQuery());
+        idQuery.setFields(SolrField.id.name());
+
+        String[] filterQueries = sq.getFilterQueries();
+
+        if(filterQueries != null){
+
+            for(String filterQuery : filterQueries){
+
+                if(!"".equals(filterQuery)) idQuery.addFilterQuery(filterQuery);
+
+            }
+
+        }
+
+        String[] sortFields = sq.getSortFields();
+
+        if(sortFields != null){
+
+            for(String sortField : sortFields){
+
+                String[] sortBits = sortField.split(" ");
+                if(sortBits.length == 2) idQuery.addSortField(sortBits[0], SolrQuery.ORDER.valueOf(sortBits[1]));
+
+            }
+
+        }
+
+        String[] projects = sq.getParams("project");
+        if(projects != null) idQuery.set("project", projects);
+        return idQuery;
+
+    }
+
+    private static IdList fetch(SolrQuery idQuery) throws SolrServerException{
+
+        SolrQuery sq = idQuery.getCopy();
+        sq.setStart(0);
+        sq.setRows(maxIds);
+        QueryResponse qr = SolrServerRegistry.getServer(SolrServerRegistry.PN_SEARCH).query(sq, SolrRequest.METHOD.POST);
+        SolrDocumentList docs = qr.getResults();
+        String[] ids = new String[docs.size()];
+
+        for(int i = 0; i < ids.length; i++){
+
+            SolrDocument doc = docs.get(i);
+            Object id = doc.getFieldValue(SolrField.id.name());
+            ids[i] = id == null ? "" : id.toString();
+
+        }
+
+        if(docs.getNumFound() > ids.length) truncated.incrementAndGet();
+        return new IdList(ids, docs.getNumFound());
+
+    }
+
+    /**
+     * Evicts the least recently used searches until within both bounds. Must be called
+     * holding the lock on <code>cache</code>.
+     *
+     */
+
+    private static void evict(){
+
+        Iterator<ResultSet> rit = cache.values().iterator();
+
+        while((bytes > maxBytes || cache.size() > maxSize) && rit.hasNext()){
+
+            bytes -= rit.next().bytes();
+            rit.remove();
+            evictions.incrementAndGet();
+
+        }
+
+    }
+
+    static String token(String key){
+
+        try{
+
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder token = new StringBuilder();
+
+            for(int i = 0; i < 6; i++){
+
+                token.append(Integer.toHexString((digest[i] & 0xff) | 0x100).substring(1));
+
+            }
+
+            return token.toString();
+
+        } catch(NoSuchAlgorithmException nsae){
+
+            throw new IllegalStateException(nsae);
+
+        } catch(UnsupportedEncodingException uee){
+
+            throw new IllegalStateException(uee);
+
+        }
+
+    }
+
+    static String trim(String id){
+
+        String path = id.startsWith(ID_PREFIX) ? id.substring(ID_PREFIX.length()) : id;
+        return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+
+    }
+
+    /**
+     * The ordered ids of the documents returned by a search, as paths packed end to end,
+     * with a hash table from each path to its (first) position.
+     *
+     */
+
+    public static class IdList {
+
+        private final char[] chars;
+        private final int[] ends;
+        /** Positions plus one, by hash of the path; 0 where empty */
+        private final int[] table;
+        private final long numFound;
+
+        IdList(String[] ids, long numFound){
+
+            ends = new int[ids.length];
+            int length = 0;
+
+            for(int i = 0; i < ids.length; i++){
+
+                ids[i] = trim(ids[i]);
+                length += ids[i].length();
+                ends[i] = length;
+
+            }
+
+            chars = new char[length];
+
+            for(int i = 0; i < ids.length; i++){
+
+                ids[i].getChars(0, ids[i].length(), chars, i == 0 ? 0 : ends[i - 1]);
+
+            }
+
+            int capacity = 2;
+            while(capacity < 2 * ids.length) capacity <<= 1;
+            table = new int[capacity];
+
+            for(int i = 0; i < ids.length; i++){
+
+                int slot = ids[i].hashCode() & (capacity - 1);
+                while(table[slot] != 0) slot = (slot + 1) & (capacity - 1);
+                table[slot] = i + 1;
+
+            }
+
+            this.numFound = numFound;
+
+        }
+
+        /**
+         * @param i
+         * @return The path of the <code>i</code>th record, e.g. <code>/ddbdp/p.oxy;1;1</code>
+         */
+
+        public String get(int i){
+
+            int start = i == 0 ? 0 : ends[i - 1];
+            return new String(chars, start, ends[i] - start);
+
+        }
+
+        /** Whether the <code>i</code>th path is the passed one */
+        boolean matches(int i, String path){
+
+            int start = i == 0 ? 0 : ends[i - 1];
+            if(ends[i] - start != path.length()) return false;
+
+            for(int j = 0; j < path.length(); j++){
+
+                if(chars[start + j] != path.charAt(j)) return false;
+
+            }
+
+            return true;
+
+        }
+
+        /**
+         * @param path
+         * @return The first position of the passed path, or -1 if it isn't in the list
+         */
+
+        int indexOf(String path){
+
+            int slot = path.hashCode() & (table.length - 1);
+
+            while(table[slot] != 0){
+
+                if(matches(table[slot] - 1, path)) return table[slot] - 1;
+                slot = (slot + 1) & (table.length - 1);
+
+            }
+
+            return -1;
+
+        }
+
+        /** The number of ids held */
+        public int size(){
+
+            return ends.length;
+
+        }
+
+        /** The number of documents in the search, which may be more than are held */
+        public long getNumFound(){
+
+            return numFound;
+
+        }
+
+        long bytes(){
+
+            return 48 + 2L * chars.length + 4L * ends.length + 4L * table.length;
+
+        }
+
+    }
+
+    private static class ResultSet {
+
+        final String key;
+        final SolrQuery query;
+        final IdList ids;
+        final long version;
+
+        ResultSet(String key, SolrQuery query, IdList ids, long version){
+
+            this.key = key;
+            this.query = query;
+            this.ids = ids;
+            this.version = version;
+
+        }
+
+        long bytes(){
+
+            return 2L * key.length() + (ids == null ? 0 : ids.bytes());
+
+        }
+
+    }
+
+}
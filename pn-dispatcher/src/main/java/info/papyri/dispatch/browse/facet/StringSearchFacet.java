@@ -2,6 +2,7 @@ package info.papyri.dispatch.browse.facet;
 
 import edu.unc.epidoc.transcoder.TransCoder;
 import info.papyri.dispatch.FileUtils;
+import info.papyri.dispatch.LemmaCache;
 import info.papyri.dispatch.browse.SolrField;
 import info.papyri.dispatch.browse.facet.customexceptions.CustomApplicationException;
 import info.papyri.dispatch.browse.facet.customexceptions.IncompleteClauseException;
@@ -17,17 +18,13 @@ import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.solr.client.solrj.SolrQuery;
-import org.apache.solr.client.solrj.SolrServer;
-import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
 import org.apache.solr.client.solrj.response.QueryResponse;
-import org.apache.solr.common.SolrDocumentList;
 
 /**
  * <code>Facet</code> complex string-search capability.
@@ -299,11 +296,6 @@ public class StringSearchFacet extends Facet{
      */
     private HashMap<Integer, ArrayList<SearchClause>> searchClauses = new HashMap<Integer, ArrayList<SearchClause>>();
     
-    /**
-     * Path to the Solr index for lemmatised searches 
-     */
-    private static String morphSearch = "morph-search/";
-    
     /**
      * Stores exceptions thrown during search-clause parsing for feedback to the user.
      * 
@@ -2795,18 +2787,8 @@ public class StringSearchFacet extends Facet{
                    declinedForm = startForm + "ς";
                    
                }
-               SolrServer solr = new CommonsHttpSolrServer(FacetBrowser.SOLR_URL + morphSearch);
-               String searchTerm = "lemma:" + declinedForm;
-               SolrQuery sq = new SolrQuery();
-               sq.setQuery(searchTerm);
-               sq.setRows(1000);
-               QueryResponse qr = solr.query(sq);
-               SolrDocumentList forms = qr.getResults();
-               Set<String> formSet = new HashSet<String>();
-               if (forms.size() > 0) {
-                  for (int i = 0; i < forms.size(); i++) {
-                    formSet.add(FileUtils.stripDiacriticals((String)forms.get(i).getFieldValue("form")).replaceAll("[^\\p{L}]", "").toLowerCase());
-                  }
+               Set<String> formSet = LemmaCache.getLetterForms(declinedForm);
+               if (formSet.size() > 0) {
                  declinedForm = FileUtils.interpose(formSet, " OR ");
 
                 } 
@@ -57,8 +57,7 @@ public class TranslationFacet extends Facet {
     @Override
     public SolrQuery buildQueryContribution(SolrQuery solrQuery){
         
-        solrQuery.addFacetField(field.name());
-        solrQuery.setFacetLimit(-1);
+        addFacetField(solrQuery, field.name());
         
         Iterator<String> cit = facetConstraints.iterator();
         
@@ -0,0 +1,186 @@
+package info.papyri.dispatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author hcayless
+ */
+public class AsyncDispatchTest extends TestCase {
+
+  private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+  private final List<String> calls = new ArrayList<String>();
+  private boolean committed;
+  /** When set, writes wait on it */
+  private CountDownLatch blocked;
+  private final CountDownLatch writing = new CountDownLatch(1);
+
+  public AsyncDispatchTest(String testName) {
+    super(testName);
+  }
+
+  public void testDetachedResponseDropsOutput() throws Exception {
+    AsyncDispatch.GuardedResponse guarded = new AsyncDispatch.GuardedResponse(response());
+    ServletOutputStream out = guarded.getOutputStream();
+    out.write("before".getBytes("UTF-8"));
+    guarded.detach(0, null);
+    out.write("after".getBytes("UTF-8"));
+    guarded.setStatus(500);
+    guarded.sendRedirect("/elsewhere");
+    assertEquals("before", body.toString("UTF-8"));
+    assertTrue(calls.isEmpty());
+  }
+
+  public void testDetachSendsStatus() throws Exception {
+    AsyncDispatch.GuardedResponse guarded = new AsyncDispatch.GuardedResponse(response());
+    PrintWriter out = guarded.getWriter();
+    guarded.detach(HttpServletResponse.SC_GATEWAY_TIMEOUT, null);
+    out.print("late");
+    out.flush();
+    assertEquals("", body.toString("UTF-8"));
+    assertEquals("sendError 504", calls.get(0));
+    // only once, and not over a response that's already gone out
+    guarded.detach(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null);
+    assertEquals(1, calls.size());
+    committed = true;
+    AsyncDispatch.GuardedResponse sent = new AsyncDispatch.GuardedResponse(response());
+    sent.detach(HttpServletResponse.SC_GATEWAY_TIMEOUT, null);
+    assertEquals(1, calls.size());
+  }
+
+  public void testDetachDoesNotWaitForWrites() throws Exception {
+    blocked = new CountDownLatch(1);
+    final AsyncDispatch.GuardedResponse guarded = new AsyncDispatch.GuardedResponse(response());
+    Thread slow = new Thread() {
+      @Override
+      public void run() {
+        try {
+          guarded.getOutputStream().write('x');
+        } catch (Exception e) {
+        }
+      }
+    };
+    slow.start();
+    assertTrue(writing.await(5, TimeUnit.SECONDS));
+    long start = System.currentTimeMillis();
+    guarded.detach(HttpServletResponse.SC_GATEWAY_TIMEOUT, null);
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    // no error page over a write that's under way
+    assertTrue(calls.isEmpty());
+    blocked.countDown();
+    slow.join();
+  }
+
+  public void testTimeoutDuringWriteCompletesAfterIt() throws Exception {
+    blocked = new CountDownLatch(1);
+    final AsyncDispatch.GuardedResponse guarded = new AsyncDispatch.GuardedResponse(response());
+    final AtomicInteger completions = new AtomicInteger();
+    Runnable complete = new Runnable() {
+      @Override
+      public void run() {
+        completions.incrementAndGet();
+      }
+    };
+    Thread handler = new Thread() {
+      @Override
+      public void run() {
+        try {
+          guarded.getOutputStream().write('x');
+          guarded.getOutputStream().write('y');
+        } catch (Exception e) {
+        }
+      }
+    };
+    handler.start();
+    assertTrue(writing.await(5, TimeUnit.SECONDS));
+    guarded.detach(HttpServletResponse.SC_GATEWAY_TIMEOUT, complete);
+    // the container mustn't recycle the response under the write
+    assertEquals(0, completions.get());
+    blocked.countDown();
+    handler.join();
+    assertEquals("x", body.toString("UTF-8"));
+    assertEquals("[sendError 504]", calls.toString());
+    assertEquals(1, completions.get());
+    // the worker finishing afterwards changes nothing
+    guarded.detach(0, complete);
+    assertEquals(1, completions.get());
+  }
+
+  public void testDetachedRequestKeepsParameters() throws Exception {
+    AsyncDispatch.GuardedResponse guarded = new AsyncDispatch.GuardedResponse(response());
+    AsyncDispatch.GuardedRequest request = new AsyncDispatch.GuardedRequest(request(), guarded);
+    assertEquals("oxy", request.getParameter("q"));
+    request.setAttribute("before", "yes");
+    guarded.detach(0, null);
+    // the container may have handed the real request to someone else
+    assertEquals("oxy", request.getParameter("q"));
+    assertEquals("/search", request.getRequestURI());
+    assertNull(request.getHeader("Range"));
+    request.setAttribute("after", "yes");
+    assertEquals("[setAttribute before]", calls.toString());
+  }
+
+  private HttpServletRequest request() {
+    final Map<String, String[]> parameters = new HashMap<String, String[]>();
+    parameters.put("q", new String[] {"oxy"});
+    return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class[] {HttpServletRequest.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if ("getParameterMap".equals(name)) return parameters;
+        if ("getRequestURI".equals(name)) return "/search";
+        if ("getRequestURL".equals(name)) return new StringBuffer("http://papyri.info/search");
+        if (name.startsWith("get")) return null;
+        calls.add(name + (args == null ? "" : " " + args[0]));
+        return null;
+      }
+    });
+  }
+
+  private HttpServletResponse response() {
+    final ServletOutputStream out = new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        writing.countDown();
+        if (blocked != null) {
+          try {
+            blocked.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        body.write(b);
+      }
+    };
+    final PrintWriter writer = new PrintWriter(out);
+    return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class[] {HttpServletResponse.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if ("getOutputStream".equals(name)) return out;
+        if ("getWriter".equals(name)) return writer;
+        if ("isCommitted".equals(name)) return committed;
+        calls.add(name + (args == null ? "" : " " + args[0]));
+        return null;
+      }
+    });
+  }
+
+}
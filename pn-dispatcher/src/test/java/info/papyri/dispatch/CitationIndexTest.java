@@ -0,0 +1,153 @@
+package info.papyri.dispatch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+/**
+ *
+ * @author hcayless
+ */
+public class CitationIndexTest extends TestCase {
+
+  private static final String DOC = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+          + "<?xml-model href=\"epidoc.rng\"?>\n"
+          + "<TEI xmlns=\"http://www.tei-c.org/ns/1.0\"><teiHeader/><text><body>\n"
+          + "<div type=\"edition\" xml:lang=\"grc\">\n"
+          + "<div type=\"textpart\" subtype=\"fragment\" n=\"a\"><ab>\n"
+          + "<lb n=\"1\"/>καὶ <supplied reason=\"lost\">τοῦ</supplied>\n"
+          + "<lb n=\"2\"/><!-- a <comment> -->ἐν <expan>ἔτ<ex>ους</ex></expan>\n"
+          + "</ab></div>\n"
+          + "<div type=\"textpart\" subtype=\"fragment\" n=\"b\"><ab>\n"
+          + "<lb n=\"1\"/>ἀλλὰ <hi rend=\"a>b\">\n<lb n=\"2\"/>δέ</hi>\n"
+          + "</ab></div>\n"
+          + "</div></body></text></TEI>";
+
+  private File f;
+
+  public CitationIndexTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    f = File.createTempFile("citations", ".xml");
+    FileOutputStream out = new FileOutputStream(f);
+    out.write(DOC.getBytes("UTF-8"));
+    out.close();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    f.delete();
+  }
+
+  public void testRefsMatchReffHandler() throws Exception {
+    CitationIndex idx = CitationIndex.build(f);
+    assertEquals(Arrays.asList("a", "a.1", "a.2", "b", "b.1", "b.2"), idx.getRefs());
+    StringWriter expected = new StringWriter();
+    CTSServlet servlet = new CTSServlet();
+    CTSServlet.CTSReffContentHandler handler = servlet.new CTSReffContentHandler();
+    handler.setup(new PrintWriter(expected), servlet.new CTSUrn("urn:cts:papyri.info:ddbdp.bgu;1;2"));
+    XMLReader reader = CTSServlet.newReader();
+    reader.setContentHandler(handler);
+    reader.parse(new InputSource(f.toURI().toString()));
+    for (String ref : idx.getRefs()) {
+      assertTrue(expected.toString().contains("bgu;1;2:" + ref + "<"));
+    }
+  }
+
+  public void testPassages() throws Exception {
+    CitationIndex idx = CitationIndex.build(f);
+    assertEquals("<tei:div type=\"textpart\" subtype=\"fragment\" n=\"a\"><tei:ab>\n"
+            + "<tei:lb n=\"1\"/>καὶ <tei:supplied reason=\"lost\">τοῦ</tei:supplied>\n"
+            + "</tei:ab></tei:div>", idx.passage(f, "a.1", "a.1"));
+    assertEquals("<tei:div type=\"textpart\" subtype=\"fragment\" n=\"a\"><tei:ab>\n"
+            + "<tei:lb n=\"2\"/>ἐν <tei:expan>ἔτ<tei:ex>ους</tei:ex></tei:expan>\n"
+            + "</tei:ab></tei:div>\n", idx.passage(f, "a.2", "a.2"));
+    assertEquals(idx.passage(f, "a", "a"), idx.passage(f, "a.1", "a.2"));
+    // the line starts inside <hi>, so its bytes alone aren't well-formed
+    assertNull(idx.passage(f, "b.2", "b.2"));
+    // and the last textpart runs on to the end of the text
+    assertNull(idx.passage(f, "b", "b"));
+    assertEquals("", idx.passage(f, "c", "c"));
+    assertEquals("", idx.passage(f, "b", "a"));
+    assertNull(idx.range("c", "c"));
+    assertNull(idx.range("b", "a"));
+  }
+
+  public void testPassagesMatchWalk() throws Exception {
+    CitationIndex idx = CitationIndex.build(f);
+    for (String location : Arrays.asList("a", "a.1", "a.2", "a.1-a.2", "a.2-a.2")) {
+      String[] loc = location.split("-");
+      assertEquals(location, walk(location), idx.passage(f, loc[0], loc[loc.length - 1]));
+    }
+  }
+
+  public void testReadWrite() throws Exception {
+    File out = new File(f.getPath() + CitationIndex.SUFFIX);
+    try {
+      CitationIndex idx = CitationIndex.build(f);
+      CitationIndex.write(idx, out);
+      CitationIndex copy = CitationIndex.read(out);
+      assertTrue(copy.isCurrent(f));
+      assertEquals(idx.getRefs(), copy.getRefs());
+      for (String ref : idx.getRefs()) {
+        assertTrue(Arrays.equals(idx.range(ref, ref), copy.range(ref, ref)));
+      }
+      f.setLastModified(f.lastModified() - 5000);
+      assertFalse(copy.isCurrent(f));
+    } finally {
+      out.delete();
+    }
+  }
+
+  public void testServletPassages() throws Exception {
+    File dir = new File(f.getPath() + ".idx");
+    CitationIndex.configure(f.getParent(), dir.getPath());
+    try {
+      List<String> passages = new CTSServlet().passages(f, Arrays.asList("a.1", "b.2", "a.2", "x", ""));
+      assertEquals(walk("a.1"), passages.get(0));
+      // walked, as the index can't give it on its own
+      assertEquals(walk("b.2"), passages.get(1));
+      assertEquals(walk("a.2"), passages.get(2));
+      assertEquals("", passages.get(3));
+      assertTrue(passages.get(4).startsWith("\n<?xml-model"));
+      assertTrue(CitationIndex.indexFile(f).exists());
+    } finally {
+      CitationIndex.indexFile(f).delete();
+      dir.delete();
+      CitationIndex.configure(CitationIndex.DEFAULT_XML_PATH, CitationIndex.DEFAULT_INDEX_PATH);
+    }
+  }
+
+  /**
+   * The passage at <code>location</code> as the walk gives it.
+   */
+  private String walk(String location) throws Exception {
+    StringWriter text = new StringWriter();
+    CTSServlet.CTSPassageContentHandler handler = new CTSServlet().new CTSPassageContentHandler();
+    handler.setup(new PrintWriter(text));
+    handler.parseReference(location);
+    XMLReader reader = CTSServlet.newReader();
+    reader.setContentHandler(handler);
+    reader.parse(new InputSource(f.toURI().toString()));
+    return text.toString();
+  }
+
+  public void testPrefix() throws IOException {
+    assertEquals("<tei:a x=\"1\"><tei:b/><c:d/></tei:a>", CitationIndex.prefix("<a x=\"1\"><b/><c:d/></a>".getBytes("UTF-8")));
+    assertEquals("<tei:a>b<![CDATA[<!-- c -->]]></tei:a>",
+            CitationIndex.prefix("<a><!-- x --><?y z?>b<![CDATA[<!-- c -->]]></a>".getBytes("UTF-8")));
+    assertNull(CitationIndex.prefix("</a><b>".getBytes("UTF-8")));
+    assertNull(CitationIndex.prefix("<a><b></a>".getBytes("UTF-8")));
+  }
+
+}
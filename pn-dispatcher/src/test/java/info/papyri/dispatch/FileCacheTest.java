@@ -0,0 +1,81 @@
+package info.papyri.dispatch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author hcayless
+ */
+public class FileCacheTest extends TestCase {
+
+  private File a;
+  private File b;
+
+  public FileCacheTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    FileCache.configure(FileCache.DEFAULT_MAX_BYTES, FileCache.DEFAULT_MAX_ENTRY_BYTES);
+    FileCache.clear();
+    a = File.createTempFile("filecache", ".txt");
+    b = File.createTempFile("filecache", ".txt");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    a.delete();
+    b.delete();
+    FileCache.configure(FileCache.DEFAULT_MAX_BYTES, FileCache.DEFAULT_MAX_ENTRY_BYTES);
+    FileCache.clear();
+    super.tearDown();
+  }
+
+  public void testHitAndReload() throws Exception {
+    write(a, "καὶ τοῦ");
+    long hits = (Long) FileCache.getStats().get("hits");
+    assertEquals("καὶ τοῦ", FileCache.getText(a));
+    assertEquals("καὶ τοῦ", FileCache.getText(a));
+    assertEquals(hits + 1, ((Long) FileCache.getStats().get("hits")).longValue());
+    write(a, "changed");
+    a.setLastModified(a.lastModified() + 2000);
+    assertEquals("changed", FileCache.getText(a));
+  }
+
+  public void testBoundedBySize() throws Exception {
+    write(a, "aaaa");
+    write(b, "bbbb");
+    long one = FileCache.sizeOf("aaaa");
+    FileCache.configure(one + 1, one + 1);
+    FileCache.getText(a);
+    FileCache.getText(b);
+    Map<String, Object> stats = FileCache.getStats();
+    assertEquals(1, stats.get("entries"));
+    assertEquals(one, stats.get("residentBytes"));
+  }
+
+  public void testMissingFile() throws Exception {
+    a.delete();
+    try {
+      FileCache.getText(a);
+      fail();
+    } catch (IOException e) {
+    }
+  }
+
+  private void write(File f, String content) throws IOException {
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+}
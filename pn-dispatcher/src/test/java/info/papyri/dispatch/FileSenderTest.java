@@ -0,0 +1,105 @@
+package info.papyri.dispatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import junit.framework.TestCase;
+import static org.easymock.EasyMock.*;
+
+/**
+ *
+ * @author hcayless
+ */
+public class FileSenderTest extends TestCase {
+
+  private static final long MODIFIED = 1300000000000L;
+  private static final String ETAG = FileSender.etag(1000, MODIFIED);
+
+  public FileSenderTest(String testName) {
+    super(testName);
+  }
+
+  public void testNotModified() {
+    assertTrue(FileSender.notModified(request(null, ETAG, -1), ETAG, MODIFIED));
+    assertTrue(FileSender.notModified(request(null, "\"x\", W/" + ETAG, -1), ETAG, MODIFIED));
+    assertTrue(FileSender.notModified(request(null, "*", -1), ETAG, MODIFIED));
+    assertFalse(FileSender.notModified(request(null, "\"x\"", MODIFIED), ETAG, MODIFIED));
+    assertTrue(FileSender.notModified(request(null, null, MODIFIED + 999), ETAG, MODIFIED + 500));
+    assertFalse(FileSender.notModified(request(null, null, MODIFIED - 1000), ETAG, MODIFIED));
+    assertFalse(FileSender.notModified(request(null, null, -1), ETAG, MODIFIED));
+  }
+
+  public void testRange() {
+    assertNull(FileSender.range(request(null, null, -1), ETAG, MODIFIED, 1000));
+    assertRange(0, 99, FileSender.range(request("bytes=0-99", null, -1), ETAG, MODIFIED, 1000));
+    assertRange(900, 999, FileSender.range(request("bytes=900-", null, -1), ETAG, MODIFIED, 1000));
+    assertRange(900, 999, FileSender.range(request("bytes=-100", null, -1), ETAG, MODIFIED, 1000));
+    assertRange(0, 999, FileSender.range(request("bytes=-5000", null, -1), ETAG, MODIFIED, 1000));
+    assertRange(500, 999, FileSender.range(request("bytes=500-5000", null, -1), ETAG, MODIFIED, 1000));
+    assertRange(-1, -1, FileSender.range(request("bytes=1000-", null, -1), ETAG, MODIFIED, 1000));
+    assertNull(FileSender.range(request("bytes=0-1,5-6", null, -1), ETAG, MODIFIED, 1000));
+    assertNull(FileSender.range(request("bytes=9-1", null, -1), ETAG, MODIFIED, 1000));
+    assertNull(FileSender.range(request("lines=1-2", null, -1), ETAG, MODIFIED, 1000));
+  }
+
+  public void testAcceptsGzip() {
+    assertTrue(FileSender.acceptsGzip(encoding("gzip, deflate")));
+    assertTrue(FileSender.acceptsGzip(encoding("deflate;q=1.0, gzip;q=0.5")));
+    assertFalse(FileSender.acceptsGzip(encoding("gzip;q=0, deflate")));
+    assertFalse(FileSender.acceptsGzip(encoding("identity")));
+    assertFalse(FileSender.acceptsGzip(encoding(null)));
+  }
+
+  public void testSendRange() throws IOException {
+    File f = File.createTempFile("filesender", ".xml");
+    f.deleteOnExit();
+    FileOutputStream fos = new FileOutputStream(f);
+    fos.write("0123456789".getBytes("UTF-8"));
+    fos.close();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    HttpServletRequest request = createNiceMock(HttpServletRequest.class);
+    expect(request.getHeader("Range")).andReturn("bytes=2-5").anyTimes();
+    expect(request.getDateHeader((String) anyObject())).andReturn(-1L).anyTimes();
+    expect(request.getMethod()).andReturn("GET").anyTimes();
+    HttpServletResponse response = createNiceMock(HttpServletResponse.class);
+    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    response.setHeader("Content-Range", "bytes 2-5/10");
+    response.setContentLength(4);
+    expect(response.getOutputStream()).andReturn(new javax.servlet.ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        body.write(b);
+      }
+    });
+    replay(request, response);
+    FileSender.send(request, response, f);
+    verify(response);
+    assertEquals("2345", body.toString("UTF-8"));
+  }
+
+  private static void assertRange(long start, long end, long[] range) {
+    assertNotNull(range);
+    assertEquals(start, range[0]);
+    assertEquals(end, range[1]);
+  }
+
+  private static HttpServletRequest encoding(String acceptEncoding) {
+    HttpServletRequest request = createNiceMock(HttpServletRequest.class);
+    expect(request.getHeader("Accept-Encoding")).andReturn(acceptEncoding).anyTimes();
+    replay(request);
+    return request;
+  }
+
+  private static HttpServletRequest request(String range, String ifNoneMatch, long ifModifiedSince) {
+    HttpServletRequest request = createNiceMock(HttpServletRequest.class);
+    expect(request.getHeader("Range")).andReturn(range).anyTimes();
+    expect(request.getHeader("If-None-Match")).andReturn(ifNoneMatch).anyTimes();
+    expect(request.getDateHeader("If-Modified-Since")).andReturn(ifModifiedSince).anyTimes();
+    replay(request);
+    return request;
+  }
+
+}
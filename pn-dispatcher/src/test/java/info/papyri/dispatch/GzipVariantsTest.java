@@ -0,0 +1,69 @@
+package info.papyri.dispatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author hcayless
+ */
+public class GzipVariantsTest extends TestCase {
+
+  private File f;
+
+  public GzipVariantsTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    f = File.createTempFile("gzipvariants", ".html");
+    write(f, 300);
+    f.setLastModified(1300000000000L);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    GzipVariants.sibling(f).delete();
+    f.delete();
+  }
+
+  public void testCompress() throws IOException {
+    File gz = GzipVariants.compress(f);
+    assertEquals(GzipVariants.sibling(f), gz);
+    assertEquals(f.lastModified(), gz.lastModified());
+    assertTrue(gz.length() < f.length());
+    InputStream in = new GZIPInputStream(new FileInputStream(gz));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[1024];
+    int n;
+    while ((n = in.read(buf)) > 0) {
+      out.write(buf, 0, n);
+    }
+    in.close();
+    assertEquals(f.length(), out.size());
+    assertEquals(gz, GzipVariants.variant(f));
+  }
+
+  public void testStaleVariantNotUsed() throws IOException {
+    GzipVariants.compress(f);
+    write(f, 400);
+    f.setLastModified(1300000005000L);
+    assertNull(GzipVariants.variant(f));
+  }
+
+  private static void write(File f, int lines) throws IOException {
+    FileOutputStream out = new FileOutputStream(f);
+    for (int i = 0; i < lines; i++) {
+      out.write(("<p class=\"line\">" + i + ". και του</p>\n").getBytes("UTF-8"));
+    }
+    out.close();
+  }
+
+}
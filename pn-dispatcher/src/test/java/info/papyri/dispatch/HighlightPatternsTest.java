@@ -0,0 +1,189 @@
+package info.papyri.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+import org.antlr.runtime.*;
+
+/**
+ * Checks that the highlight patterns FileUtils builds are the same as those
+ * built by the previous replace-chain implementation (kept here).
+ *
+ * @author hcayless
+ */
+public class HighlightPatternsTest extends TestCase {
+
+  private static final String[] QUERIES = {"καὶ", "ἀρουρ", "πυρου αρταβας", "#σιτου#", "ετ* ους?",
+    "\"λογου εν\"~3", "transcription_ngram_ia:(προβατα)", "ρ#ς", "°ἐ", "abc", "ΣΩΜΑ", "#κ #ω#"};
+
+  private final FileUtils util = new FileUtils("", "");
+
+  public HighlightPatternsTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    HighlightPatterns.clear();
+  }
+
+  public void testSamePatternsAsBefore() {
+    for (String q : queries()) {
+      assertEquals(q, strings(legacyGetPatterns(q)), strings(util.getPatterns(q)));
+      assertEquals(q, legacySubstring(q), util.substituteForSubstringPatternMatch(q));
+      assertEquals(q, legacyPhrase(q), util.substituteForPhrasePatternMatch(q));
+      assertEquals(q, legacySubstituteDiacritics(q), util.substituteDiacritics(q));
+    }
+  }
+
+  public void testCached() {
+    Pattern[] first = util.getSubstringHighlightPatterns("καὶ");
+    long hits = (Long) HighlightPatterns.getStats().get("hits");
+    Pattern[] second = util.getSubstringHighlightPatterns("καὶ");
+    assertEquals(hits + 1, ((Long) HighlightPatterns.getStats().get("hits")).longValue());
+    assertNotSame(first, second);
+    assertSame(first[0], second[0]);
+    assertNotSame(second[0], util.getPhraseHighlightPatterns("καὶ")[0]);
+  }
+
+  private static List<String> queries() {
+    List<String> queries = new ArrayList<String>();
+    for (String q : QUERIES) {
+      queries.add(q);
+    }
+    Random r = new Random(3);
+    String alphabet = "αεηιορυωσςκλμν ΑΣ#*?£¥°\"-.ab";
+    for (int i = 0; i < 500; i++) {
+      StringBuilder sb = new StringBuilder();
+      int n = 1 + r.nextInt(12);
+      for (int j = 0; j < n; j++) {
+        sb.append(alphabet.charAt(r.nextInt(alphabet.length())));
+      }
+      queries.add(sb.toString());
+    }
+    return queries;
+  }
+
+  private static List<String> strings(Pattern[] patterns) {
+    List<String> result = new ArrayList<String>();
+    for (Pattern p : patterns) {
+      result.add(p.pattern() + "/" + p.flags());
+    }
+    return result;
+  }
+
+  // The implementation being replaced, verbatim.
+
+  private static String sigla = "([-’ʼ\\\\[\\\\]()\u0323〚〛\\\\\\\\/\"|?*ⓐⒶⒷ.]|&gt;|&lt;|ca\\.|ⓝ[0-9a-z]+\\\\.ⓜ|Ⓝ[0-9a-z]+\\\\.ⓜ|Ⓜ[0-9a-z]+\\\\.ⓞ)*";
+
+  static Pattern[] legacyGetPatterns(String query) {
+      String q = query.replace("*", "£").replace("?", "¥");
+      ANTLRStringStream a = new ANTLRStringStream(q.replaceAll("[\\\\/]", "").replaceAll("\"([^\"]+)\"~\\d+", "$1"));
+      QueryLexer ql = new QueryLexer(a);
+      CommonTokenStream tokens = new CommonTokenStream(ql);
+      QueryParser qp = new QueryParser(tokens);
+      List<String> find = new ArrayList<String>();
+      try {
+        qp.query();
+        find = qp.getStrings();
+      } catch (RecognitionException e) {
+        return new Pattern[0];
+      }
+      Pattern[] patterns = new Pattern[find.size()];
+      for (int i = 0; i < find.size(); i++) {
+        if (query.contains("#") || query.contains("ngram")) {
+          patterns[i] = Pattern.compile(find.get(i).toLowerCase()
+                .replaceAll("([^ #])", sigla + "$1" + sigla)
+                .replace("# #", "\\s+")
+                .replace("#", "(\\b)")
+                .replaceAll("\\s", "\\\\s+")
+                .replaceAll("^#", "(\\s|^)")
+                .replaceAll("^$", "(\\s|$)")
+                .replace("£", "\\S*").replace("¥", "\\S").replace("\"", "")
+                .replace("α", "(α|ἀ|ἁ|ἂ|ἃ|ἄ|ἅ|ἆ|ἇ|ὰ|ά|ᾀ|ᾁ|ᾂ|ᾃ|ᾄ|ᾅ|ᾆ|ᾇ|ᾲ|ᾳ|ᾴ|ᾶ|ᾷ)")
+                .replace("ε", "(ε|ἐ|ἑ|ἒ|ἓ|ἔ|ἕ|έ|ὲ)")
+                .replace("η", "(η|ἠ|ἡ|ἢ|ἣ|ἤ|ἥ|ἦ|ἧ|ή|ὴ|ᾐ|ᾑ|ᾒ|ᾓ|ᾔ|ᾕ|ᾖ|ᾗ|ῂ|ῃ|ῄ|ῆ|ῇ)")
+                .replace("ι", "(ι|ί|ὶ|ἰ|ἱ|ἲ|ἳ|ἴ|ἵ|ἶ|ἷ|ῒ|ΐ|ῖ|ῗ)")
+                .replace("ο", "(ο|ὸ|ό|ὀ|ὁ|ὂ|ὃ|ὄ|ὅ)")
+                .replace("υ", "(υ|ύ|ὺ|ὐ|ὑ|ὒ|ὓ|ὔ|ὕ|ὖ|ὗ|ῢ|ΰ|ῦ|ῧ)")
+                .replace("ω", "(ω|ώ|ὼ|ὠ|ὡ|ὢ|ὣ|ὤ|ὥ|ὦ|ὧ|ᾠ|ᾡ|ᾢ|ᾣ|ᾤ|ᾥ|ᾦ|ᾧ|ῲ|ῳ|ῴ|ῶ|ῷ)")
+                .replace("ρ", "(ρ|ῥ)").replaceAll("(σ|ς)", "(σ|ς)" + sigla),
+                Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.UNIX_LINES);
+        } else {
+          patterns[i] = Pattern.compile("\\b" + find.get(i).toLowerCase()
+                .replaceAll("(\\S)", sigla + "$1" + sigla)
+                .replaceAll("([^£¥])$", "$1\\\\b")
+                .replaceAll("\\s", "\\\\s+")
+                .replace("£", "\\S*").replace("¥", "\\S").replace("\"", "")
+                .replace("α", "(α|ἀ|ἁ|ἂ|ἃ|ἄ|ἅ|ἆ|ἇ|ὰ|ά|ᾀ|ᾁ|ᾂ|ᾃ|ᾄ|ᾅ|ᾆ|ᾇ|ᾲ|ᾳ|ᾴ|ᾶ|ᾷ)")
+                .replace("ε", "(ε|ἐ|ἑ|ἒ|ἓ|ἔ|ἕ|έ|ὲ)")
+                .replace("η", "(η|ἠ|ἡ|ἢ|ἣ|ἤ|ἥ|ἦ|ἧ|ή|ὴ|ᾐ|ᾑ|ᾒ|ᾓ|ᾔ|ᾕ|ᾖ|ᾗ|ῂ|ῃ|ῄ|ῆ|ῇ)")
+                .replace("ι", "(ι|ί|ὶ|ἰ|ἱ|ἲ|ἳ|ἴ|ἵ|ἶ|ἷ|ῒ|ΐ|ῖ|ῗ)")
+                .replace("ο", "(ο|ὸ|ό|ὀ|ὁ|ὂ|ὃ|ὄ|ὅ)")
+                .replace("υ", "(υ|ύ|ὺ|ὐ|ὑ|ὒ|ὓ|ὔ|ὕ|ὖ|ὗ|ῢ|ΰ|ῦ|ῧ)")
+                .replace("ω", "(ω|ώ|ὼ|ὠ|ὡ|ὢ|ὣ|ὤ|ὥ|ὦ|ὧ|ᾠ|ᾡ|ᾢ|ᾣ|ᾤ|ᾥ|ᾦ|ᾧ|ῲ|ῳ|ῴ|ῶ|ῷ)")
+                .replace("ρ", "(ρ|ῥ)").replaceAll("(σ|ς)", "(σ|ς)" + sigla),
+                Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.UNIX_LINES);
+        }
+    }
+    return patterns;
+  }
+
+  static String legacySubstituteDiacritics(String rawString){
+        
+        String transformedString = rawString
+                .replace("α", "(α|ἀ|ἁ|ἂ|ἃ|ἄ|ἅ|ἆ|ἇ|ὰ|ά|ᾀ|ᾁ|ᾂ|ᾃ|ᾄ|ᾅ|ᾆ|ᾇ|ᾲ|ᾳ|ᾴ|ᾶ|ᾷ)")
+                .replace("ε", "(ε|ἐ|ἑ|ἒ|ἓ|ἔ|ἕ|έ|ὲ)")
+                .replace("η", "(η|ἠ|ἡ|ἢ|ἣ|ἤ|ἥ|ἦ|ἧ|ή|ὴ|ᾐ|ᾑ|ᾒ|ᾓ|ᾔ|ᾕ|ᾖ|ᾗ|ῂ|ῃ|ῄ|ῆ|ῇ)")
+                .replace("ι", "(ι|ί|ὶ|ἰ|ἱ|ἲ|ἳ|ἴ|ἵ|ἶ|ἷ|ῒ|ΐ|ῖ|ῗ)")
+                .replace("ο", "(ο|ὸ|ό|ὀ|ὁ|ὂ|ὃ|ὄ|ὅ)")
+                .replace("υ", "(υ|ύ|ὺ|ὐ|ὑ|ὒ|ὓ|ὔ|ὕ|ὖ|ὗ|ῢ|ΰ|ῦ|ῧ)")
+                .replace("ω", "(ω|ώ|ὼ|ὠ|ὡ|ὢ|ὣ|ὤ|ὥ|ὦ|ὧ|ᾠ|ᾡ|ᾢ|ᾣ|ᾤ|ᾥ|ᾦ|ᾧ|ῲ|ῳ|ῴ|ῶ|ῷ)")
+                .replace("ρ", "(ρ|ῥ)");                  
+        return transformedString;
+        
+    }
+   
+
+  static String legacySubstring(String rawString){
+       
+       String transformedString = rawString;
+       transformedString = transformedString.toLowerCase()
+                .replaceAll("([^ #])", sigla + "$1" + sigla)
+                .replace("# #", "\\s+")
+                .replace("#", "(\\b)")
+                .replaceAll("\\s", "\\\\s+")
+                .replaceAll("^#", "(\\s|^)")
+                .replaceAll("^$", "(\\s|$)")
+                .replaceAll("°", "\\\\((?!\\\\*)")
+                .replaceAll("£", "[^//s]*").replaceAll("¥", "[^//s]").replace("\"", "");
+       transformedString = legacySubstituteDiacritics(transformedString);
+       transformedString = transformedString.replaceAll("(σ|ς)", "(σ|ς)" + sigla);
+       return transformedString;
+       
+   }
+   
+  static String legacyPhrase(String rawString){
+       
+       String transformedString = rawString;
+       transformedString = transformedString.toLowerCase()
+                .replaceAll("(\\S)", sigla + "$1" + sigla)
+                .replace("^ #", "\\s+")
+                .replace("#", "(\\b)")
+                .replaceAll("\\s", "\\\\s+")
+                .replaceAll("^#", "(\\s|^)")
+                .replaceAll("^$", "(\\s|$)")
+                .replaceAll("°", "\\\\((?!\\\\*)")
+                .replace("£", "[^\\s]*").replaceAll("¥", "[^\\s]").replace("\"", "");
+       transformedString = legacySubstituteDiacritics(transformedString);
+       transformedString = transformedString.replaceAll("(σ|ς)", "(σ|ς)" + sigla);
+       transformedString = "(^|(?<=[\\s]))" + transformedString + "((?=[\\s])|$)";
+       return transformedString;
+       
+   }
+   
+
+}
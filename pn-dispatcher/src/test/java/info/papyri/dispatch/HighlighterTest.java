@@ -0,0 +1,70 @@
+package info.papyri.dispatch;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+
+/**
+ * Checks that streaming highlighting gives the same output as
+ * Snippets.highlight, with chunk sizes small enough that matches, tags and
+ * highlight runs regularly straddle chunk boundaries.
+ *
+ * @author hcayless
+ */
+public class HighlighterTest extends TestCase {
+
+  private static final String[] TAGS = {"<br id=\"l1\"/>", "<span class=\"linenumber\">5</span>", "<a href=\"#n\">a</a>",
+    "<div class=\"textpart\">", "</div>", "&amp;", "&#x0323;", "<span class=\"x\">", "</span>", "\n", "  "};
+
+  private final FileUtils util = new FileUtils("/data/papyri.info/idp.data", "/data/papyri.info/pn/idp.html");
+
+  public HighlighterTest(String testName) {
+    super(testName);
+  }
+
+  public void testSameAsInMemory() throws IOException {
+    Random r = new Random(11);
+    String[] queries = {"καὶ", "ἀρουρ", "πυρου αρταβας", "ετους", "λογου", "και του"};
+    for (int i = 0; i < 80; i++) {
+      String html = html(r, 20 + r.nextInt(400));
+      for (String q : queries) {
+        Pattern[][] sets = {util.getSubstringHighlightPatterns(q), util.getPhraseHighlightPatterns(q), util.getPatterns(q)};
+        for (Pattern[] patterns : sets) {
+          String expected = Snippets.highlight(patterns, html);
+          for (int chunk : new int[] {1, 17, 200, Highlighter.CHUNK}) {
+            assertEquals(q + " / " + chunk, expected, stream(patterns, html, chunk));
+          }
+        }
+      }
+    }
+  }
+
+  public void testGreedyPatternFallsBackToWholeDocument() throws IOException {
+    Pattern[] patterns = {Pattern.compile("[^<]*"), Pattern.compile("ου\\b")};
+    String html = html(new Random(3), 300);
+    assertEquals(Snippets.highlight(patterns, html), stream(patterns, html, 32));
+  }
+
+  private static String stream(Pattern[] patterns, String html, int chunk) throws IOException {
+    StringWriter out = new StringWriter();
+    new Highlighter(patterns, chunk).highlight(new StringReader(html), out);
+    return out.toString();
+  }
+
+  static String html(Random r, int words) {
+    StringBuilder sb = new StringBuilder("<html><body>");
+    for (int w = 0; w < words; w++) {
+      if (r.nextInt(3) == 0) {
+        sb.append(TAGS[r.nextInt(TAGS.length)]);
+      }
+      String word = SnippetsTest.document(r, 1, 1).trim();
+      sb.append(word.substring(word.indexOf(' ') + 1));
+      sb.append(r.nextBoolean() ? " " : "");
+    }
+    return sb.append("</body></html>").toString();
+  }
+
+}
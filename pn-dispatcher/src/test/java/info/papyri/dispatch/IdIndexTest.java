@@ -0,0 +1,118 @@
+package info.papyri.dispatch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author hcayless
+ */
+public class IdIndexTest extends TestCase {
+
+  private File root;
+  private String xmlRoot;
+  private String htmlRoot;
+  private FileUtils util;
+
+  public IdIndexTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    root = File.createTempFile("idindex", "");
+    root.delete();
+    xmlRoot = root.getPath() + "/xml";
+    htmlRoot = root.getPath() + "/html";
+    util = new FileUtils(xmlRoot, htmlRoot);
+    write(xmlRoot + "/DDB_EpiDoc_XML/bgu/bgu.1/bgu.1.2.xml", idnos("ddb-hybrid", "bgu;1;2"));
+    write(xmlRoot + "/HGV_meta_EpiDoc/HGV1/123a.xml", idnos("ddb-hybrid", "bgu;1;2"));
+    write(xmlRoot + "/HGV_meta_EpiDoc/HGV1/124.xml", idnos("filename", "124"));
+    write(xmlRoot + "/APIS/michigan/xml/michigan.apis.5.xml", idnos("HGV", "124"));
+    write(xmlRoot + "/HGV_trans_EpiDoc/123a.xml", idnos("filename", "123a"));
+    write(htmlRoot + "/DDB_EpiDoc_XML/bgu/bgu.1/bgu.1.2.html", "<html/>");
+    write(htmlRoot + "/DDB_EpiDoc_XML/bgu/bgu.1/bgu.1.2.txt", "text");
+    write(htmlRoot + "/HGV_meta_EpiDoc/HGV1/124.html", "<html/>");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(root);
+  }
+
+  public void testBuildAndLoad() throws IOException {
+    List<String[]> entries = IdIndex.build(new File(xmlRoot), util);
+    assertEquals(5, entries.size());
+    File f = new File(root, "idindex.bin");
+    IdIndex.write(entries, f, 0, xmlRoot, htmlRoot);
+    IdIndex idx = IdIndex.load(f);
+    assertEquals(5, idx.size());
+    IdIndex.Entry e = idx.get("ddbdp/bgu;1;2");
+    assertEquals(new File(xmlRoot + "/DDB_EpiDoc_XML/bgu/bgu.1/bgu.1.2.xml"), e.getXmlFile());
+    assertEquals(new File(htmlRoot + "/DDB_EpiDoc_XML/bgu/bgu.1/bgu.1.2.html"), e.getHtmlFile());
+    assertEquals(new File(htmlRoot + "/DDB_EpiDoc_XML/bgu/bgu.1/bgu.1.2.txt"), e.getTextFile());
+    // aggregated into the DDbDP page
+    e = idx.get("hgv/123a");
+    assertEquals(new File(xmlRoot + "/HGV_meta_EpiDoc/HGV1/123a.xml"), e.getXmlFile());
+    assertEquals(new File(htmlRoot + "/DDB_EpiDoc_XML/bgu/bgu.1/bgu.1.2.html"), e.getHtmlFile());
+    // aggregated into the HGV page
+    e = idx.get("apis/michigan.apis.5");
+    assertEquals(new File(htmlRoot + "/HGV_meta_EpiDoc/HGV1/124.html"), e.getHtmlFile());
+    assertNull(e.getTextFile());
+    assertNull(idx.get("hgvtrans/123a").getHtmlFile());
+    assertNull(idx.get("hgv/125"));
+    assertNull(idx.get("ddbdp/bgu;1;3"));
+  }
+
+  public void testJournal() throws IOException {
+    File f = new File(root, "idindex.bin");
+    IdIndex.write(IdIndex.build(new File(xmlRoot), util), f, 0, xmlRoot, htmlRoot);
+    IdIndex idx = IdIndex.load(f);
+    String added = xmlRoot + "/DDB_EpiDoc_XML/bgu/bgu.1/bgu.1.3.xml";
+    write(added, idnos("ddb-hybrid", "bgu;1;3"));
+    File removed = new File(xmlRoot + "/HGV_meta_EpiDoc/HGV1/124.xml");
+    removed.delete();
+    File journal = new File(root, "idindex.journal");
+    write(journal.getPath(), added + "\n" + removed.getPath() + "\n" + xmlRoot + "/partial");
+    idx.applyJournal(journal, util);
+    assertEquals(new File(added), idx.get("ddbdp/bgu;1;3").getXmlFile());
+    assertNull(idx.get("hgv/124"));
+  }
+
+  public void testNormalizeDdb() {
+    assertEquals("chr.mitt;;12", IdIndex.Idnos.normalizeDdb("chr.mitt;;12"));
+    assertEquals("o.berenike;2;129", IdIndex.Idnos.normalizeDdb("o.berenike;2;129"));
+    assertEquals("p.aegyptus.vi;;2", IdIndex.Idnos.normalizeDdb("p.aegyptus.vi;;2"));
+    assertEquals("sb;1;1", IdIndex.Idnos.normalizeDdb("sb;1;1"));
+    assertEquals("p.wurzb;;1", IdIndex.Idnos.normalizeDdb("p.w\u00fcrzb;;1"));
+  }
+
+  private static String idnos(String type, String value) {
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<TEI xmlns=\"http://www.tei-c.org/ns/1.0\"><teiHeader><fileDesc><publicationStmt>"
+            + "<idno type=\"" + type + "\">" + value + "</idno>"
+            + "</publicationStmt></fileDesc></teiHeader><text/></TEI>";
+  }
+
+  private static void write(String path, String content) throws IOException {
+    File f = new File(path);
+    f.getParentFile().mkdirs();
+    FileOutputStream out = new FileOutputStream(f);
+    out.write(content.getBytes("UTF-8"));
+    out.close();
+  }
+
+  private static void delete(File f) {
+    File[] files = f.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    f.delete();
+  }
+
+}
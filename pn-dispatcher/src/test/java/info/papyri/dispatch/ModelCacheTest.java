@@ -0,0 +1,111 @@
+package info.papyri.dispatch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ *
+ * @author hcayless
+ */
+public class ModelCacheTest extends TestCase {
+
+  private static final String URI = "http://papyri.info/ddbdp/bgu;1;2/source";
+  private static final String RDF = "<?xml version=\"1.0\"?>\n"
+          + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" xmlns:dc=\"http://purl.org/dc/terms/\">"
+          + "<rdf:Description rdf:about=\"" + URI + "\">"
+          + "<dc:isPartOf rdf:resource=\"http://papyri.info/ddbdp/bgu;1\"/>"
+          + "<dc:identifier xml:lang=\"en\">bgu;1;2</dc:identifier>"
+          + "</rdf:Description></rdf:RDF>";
+
+  private File dir;
+
+  public ModelCacheTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = File.createTempFile("models", "");
+    dir.delete();
+    new File(dir, "DDB_EpiDoc_XML/bgu/bgu.1").mkdirs();
+    new File(dir, "HGV_meta_EpiDoc/HGV1").mkdirs();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ModelCache.clear();
+    delete(dir);
+  }
+
+  public void testSerialize() throws Exception {
+    ModelCache.Entry e = ModelCache.parse(URI, RDF.getBytes("UTF-8"));
+    assertEquals(e.getETag("json"), ModelCache.parse(URI, RDF.getBytes("UTF-8")).getETag("json"));
+    assertFalse(e.getETag("json").equals(e.getETag("turtle")));
+    String nt = new String(e.serialize("n3"), "UTF-8");
+    assertTrue(nt.contains("<" + URI + "> <http://purl.org/dc/terms/isPartOf> <http://papyri.info/ddbdp/bgu;1> ."));
+    assertTrue(new String(e.serialize("turtle"), "UTF-8").contains("bgu;1;2"));
+    assertSame(e.serialize("turtle"), e.serialize("turtle"));
+    JsonNode json = new ObjectMapper().readTree(new String(e.serialize("json"), "UTF-8"));
+    JsonNode part = json.path(URI).path("http://purl.org/dc/terms/isPartOf").get(0);
+    assertEquals("uri", part.path("type").getTextValue());
+    assertEquals("http://papyri.info/ddbdp/bgu;1", part.path("value").getTextValue());
+    JsonNode id = json.path(URI).path("http://purl.org/dc/terms/identifier").get(0);
+    assertEquals("literal", id.path("type").getTextValue());
+    assertEquals("en", id.path("lang").getTextValue());
+  }
+
+  public void testETagMatching() {
+    assertTrue(FileSender.matches("\"a\", \"b-json\"", "\"b-json\""));
+    assertTrue(FileSender.matches("W/\"b-json\"", "\"b-json\""));
+    assertTrue(FileSender.matches("*", "\"b-json\""));
+    assertFalse(FileSender.matches("\"b-turtle\"", "\"b-json\""));
+    assertFalse(FileSender.matches(null, "\"b-json\""));
+  }
+
+  public void testPublicationInvalidates() throws Exception {
+    File journal = new File(dir, "journal");
+    write(journal, "");
+    ModelCache.replay(journal);
+    File ddb = new File(dir, "DDB_EpiDoc_XML/bgu/bgu.1/bgu.1.2.xml");
+    write(ddb, "<TEI><teiHeader><fileDesc><publicationStmt>"
+            + "<idno type=\"ddb-hybrid\">bgu;1;2</idno></publicationStmt></fileDesc></teiHeader></TEI>");
+    Set<String> uris = ModelCache.uris(ddb);
+    assertTrue(uris.contains(URI));
+    assertTrue(uris.contains("http://papyri.info/ddbdp/bgu;1"));
+    ModelCache.put(ModelCache.parse(URI, RDF.getBytes("UTF-8")));
+    ModelCache.put(ModelCache.parse("http://papyri.info/hgv/1/source", RDF.getBytes("UTF-8")));
+    assertEquals(2, ModelCache.size());
+    write(journal, ddb.getPath() + "\n" + new File(dir, "HGV_meta_EpiDoc/HGV1/").getPath());
+    ModelCache.replay(journal);
+    // the unfinished line waits for the next check
+    assertEquals(1, ModelCache.size());
+    write(journal, ddb.getPath() + "\n" + new File(dir, "HGV_meta_EpiDoc/HGV1/1.xml").getPath() + "\n");
+    ModelCache.replay(journal);
+    assertEquals(0, ModelCache.size());
+    // a removed DDbDP file can't be mapped back to its id
+    ddb.delete();
+    assertNull(ModelCache.uris(ddb));
+  }
+
+  private static void write(File f, String content) throws IOException {
+    FileOutputStream out = new FileOutputStream(f);
+    out.write(content.getBytes("UTF-8"));
+    out.close();
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    f.delete();
+  }
+
+}
@@ -0,0 +1,40 @@
+package info.papyri.dispatch;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author hcayless
+ */
+public class MorphIndexTest extends TestCase {
+
+  private static final String MORPHS = "<analyses>"
+          + "<analysis><form>λόγου</form><lemma>λόγος</lemma><postag>n-s---mg-</postag></analysis>"
+          + "<analysis><form>λόγοι</form><lemma>λόγος</lemma><postag>n-p---mn-</postag></analysis>"
+          + "<analysis><form>λόγου</form><lemma>λόγος</lemma><postag>n-s---mg-</postag></analysis>"
+          + "<analysis><form>ἔλυ_σε</form><lemma>λύω1</lemma></analysis>"
+          + "<analysis><form>amo^</form><lemma>Amo</lemma></analysis>"
+          + "</analyses>";
+
+  public MorphIndexTest(String testName) {
+    super(testName);
+  }
+
+  public void testForms() throws Exception {
+    MorphIndex idx = MorphIndex.build(new ByteArrayInputStream(MORPHS.getBytes("UTF-8")));
+    assertEquals(new LinkedHashSet<String>(Arrays.asList("λογου", "λογοι")), idx.getForms("λόγος"));
+    assertEquals(new LinkedHashSet<String>(Arrays.asList("ελυσε")), idx.getForms("λύω"));
+    assertEquals(new LinkedHashSet<String>(Arrays.asList("amo")), idx.getForms("amo"));
+    assertTrue(idx.getForms("λογος").isEmpty());
+    assertTrue(idx.getFootprint() > 0);
+  }
+
+  public void testTokenize() {
+    assertEquals(Arrays.asList("λύω"), MorphIndex.tokenize("λύω1"));
+    assertEquals(Arrays.asList("a", "b"), MorphIndex.tokenize("A-b"));
+  }
+
+}
@@ -0,0 +1,71 @@
+package info.papyri.dispatch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author hcayless
+ */
+public class PageTemplateTest extends TestCase {
+
+  private File page;
+
+  public PageTemplateTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    page = File.createTempFile("pagetemplate", ".html");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    page.delete();
+    super.tearDown();
+  }
+
+  public void testSplitsAroundMarkerLines() throws Exception {
+    write("<html>\n<body>\n  <!-- Results -->\n<p>after</p>\n</html>\n");
+    byte[][] parts = new PageTemplate(page, "<!-- Results -->").getParts();
+    assertEquals(3, parts.length);
+    assertEquals("<html>\n<body>\n", new String(parts[0], "UTF-8"));
+    assertEquals("  <!-- Results -->\n", new String(parts[1], "UTF-8"));
+    assertEquals("<p>after</p>\n</html>\n", new String(parts[2], "UTF-8"));
+  }
+
+  public void testMissingMarker() throws Exception {
+    write("<html>\n<!-- B -->\n</html>");
+    byte[][] parts = new PageTemplate(page, "<!-- A -->", "<!-- B -->").getParts();
+    assertEquals(5, parts.length);
+    assertEquals(0, parts[0].length);
+    assertEquals(0, parts[1].length);
+    assertEquals("<html>\n", new String(parts[2], "UTF-8"));
+    assertEquals("<!-- B -->\n", new String(parts[3], "UTF-8"));
+    assertEquals("</html>", new String(parts[4], "UTF-8"));
+  }
+
+  public void testReloadsWhenModified() throws Exception {
+    write("one");
+    PageTemplate t = new PageTemplate(page);
+    assertEquals("one", t.getText());
+    write("two, changed");
+    page.setLastModified(page.lastModified() + 2000);
+    Thread.sleep(PageTemplate.CHECK_INTERVAL + 10);
+    assertEquals("two, changed", t.getText());
+  }
+
+  private void write(String content) throws IOException {
+    FileOutputStream out = new FileOutputStream(page);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+}
@@ -0,0 +1,37 @@
+package info.papyri.dispatch;
+
+import java.io.File;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author hcayless
+ */
+public class ResolutionCacheTest extends TestCase {
+
+  public ResolutionCacheTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ResolutionCache.clear();
+  }
+
+  public void testPositiveAndNegative() throws IOException {
+    File f = File.createTempFile("resolution", ".html");
+    f.deleteOnExit();
+    assertNull(ResolutionCache.get("Html http://papyri.info/hgv/1/source"));
+    ResolutionCache.put("Html http://papyri.info/hgv/1/source", f);
+    ResolutionCache.put("Html http://papyri.info/hgv/2/source", null);
+    ResolutionCache.put("Html http://papyri.info/hgv/3/source", new File(f.getPath() + ".missing"));
+    assertEquals(f, ResolutionCache.get("Html http://papyri.info/hgv/1/source"));
+    assertSame(ResolutionCache.NONE, ResolutionCache.get("Html http://papyri.info/hgv/2/source"));
+    assertSame(ResolutionCache.NONE, ResolutionCache.get("Html http://papyri.info/hgv/3/source"));
+    assertNull(ResolutionCache.get("Text http://papyri.info/hgv/1/source"));
+    ResolutionCache.clear();
+    assertNull(ResolutionCache.get("Html http://papyri.info/hgv/1/source"));
+  }
+
+}
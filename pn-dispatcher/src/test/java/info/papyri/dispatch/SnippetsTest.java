@@ -0,0 +1,203 @@
+package info.papyri.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+
+/**
+ * Checks Snippets against the previous FileUtils.highlightMatches
+ * implementation (kept here as a reference).  Run main() for a rough
+ * benchmark on long documents.
+ *
+ * @author hcayless
+ */
+public class SnippetsTest extends TestCase {
+
+  private static final String[] WORDS = {"καὶ", "τοῦ", "ἀρούρας", "πυροῦ", "ἀρτάβας", "δραχμὰς",
+    "[ἐπὶ]", "τῶν", "Αὐρήλιος", "ὑπὲρ", "σίτου", "〚τε〛", "ἔτους", "(ἔτους)", "κώμης", "<ἐν>",
+    "Ἀρσινοΐτου", "-", "-]", "χαίρειν", "πρόβατα", "ἐλαίου", "οἴνου", "ca.", "λόγου"};
+
+  private final FileUtils util = new FileUtils("/data/papyri.info/idp.data", "/data/papyri.info/pn/idp.html");
+
+  public SnippetsTest(String testName) {
+    super(testName);
+  }
+
+  public void testSameSnippetsAsBefore() {
+    Random r = new Random(42);
+    String[] queries = {"καὶ", "ἀρουρ", "πυρου αρταβας", "ετους", "λογου", "προβατα"};
+    for (int i = 0; i < 200; i++) {
+      String text = document(r, 5 + r.nextInt(60), 3 + r.nextInt(r.nextBoolean() ? 12 : 60));
+      for (String q : queries) {
+        Pattern[][] sets = {util.getSubstringHighlightPatterns(q), util.getPhraseHighlightPatterns(q)};
+        for (Pattern[] patterns : sets) {
+          assertEquals(legacyHighlightMatches(text, patterns), Snippets.highlightMatches(text, patterns));
+        }
+      }
+    }
+  }
+
+  public void testSameHighlightAsBefore() {
+    Pattern[] patterns = util.getSubstringHighlightPatterns("του");
+    String html = "<p>τοῦ <span class=\"x\">τοῦ</span> <a href=\"#\">τοῦ</a> &amp; τοῦτο</p>";
+    assertEquals(legacyHighlight(patterns, html), Snippets.highlight(patterns, html));
+  }
+
+  public void testSameLineNumberRewrites() {
+    Random r = new Random(7);
+    String alphabet = "- ]]\n\r\t..1207ab<>ⓝ";
+    for (int i = 0; i < 20000; i++) {
+      StringBuilder sb = new StringBuilder();
+      int n = r.nextInt(40);
+      for (int j = 0; j < n; j++) {
+        sb.append(alphabet.charAt(r.nextInt(alphabet.length())));
+      }
+      String t = sb.toString();
+      assertEquals(t, legacyPrepare(t), Snippets.prepare(t).text);
+    }
+  }
+
+  public void testLineMarks() {
+    Snippets.Prepared p = Snippets.prepare("a\nb <c>\nd");
+    assertEquals("a ⓝb &lt;c&gt; ⓝd", p.text);
+    assertEquals(2, p.marks.length);
+    assertEquals(-1, p.lastMarkBefore(p.marks[0]));
+    assertEquals(0, p.lastMarkBefore(p.marks[0] + 1));
+    assertEquals(p.marks[1], p.firstMarkFrom(p.marks[0] + 1));
+    assertEquals(-1, p.firstMarkFrom(p.marks[1] + 1));
+  }
+
+  static String document(Random r, int lines, int wordsPerLine) {
+    StringBuilder sb = new StringBuilder();
+    for (int l = 1; l <= lines; l++) {
+      sb.append(r.nextInt(4) == 0 ? "\r\n" : "\n").append(l).append(". ");
+      int n = 1 + r.nextInt(wordsPerLine);
+      for (int w = 0; w < n; w++) {
+        sb.append(WORDS[r.nextInt(WORDS.length)]);
+        if (w < n - 1) sb.append(' ');
+      }
+    }
+    return sb.append('\n').toString();
+  }
+
+  public static void main(String[] args) {
+    FileUtils util = new FileUtils("", "");
+    Pattern[] patterns = util.getSubstringHighlightPatterns("προβατα");
+    Random r = new Random(1);
+    for (int lines : new int[] {50, 500, 5000}) {
+      String text = document(r, lines, 60);
+      int runs = 20000 / lines;
+      for (int warm = 0; warm < 2; warm++) {
+        long t0 = System.nanoTime();
+        for (int i = 0; i < runs; i++) legacyHighlightMatches(text, patterns);
+        long t1 = System.nanoTime();
+        for (int i = 0; i < runs; i++) Snippets.highlightMatches(text, patterns);
+        long t2 = System.nanoTime();
+        if (warm == 1) {
+          System.out.printf("%6d chars: before %8.3f ms, after %8.3f ms%n", text.length(),
+                  (t1 - t0) / 1e6 / runs, (t2 - t1) / 1e6 / runs);
+        }
+      }
+    }
+  }
+
+  // The implementation Snippets replaced, verbatim apart from inlined fields.
+
+  private static final String exclude = "(<span\\s[^>]+>[^<]+</span>|<a\\s[^>]+>[^<]+</a>|<[^>]+>|&\\w+;)";
+  private static final String lineNum = "((\\s|\\r|\\n)+([0-9]+\\.\\S*)\\s*)";
+  private static final String hyphenatedLineNumInSupplied = "((?<![-])-\\](\\s|\\r|\\n)+([0-9]+\\.\\S*)\\s*)";
+  private static final String hyphenatedLineNum = "(-(\\s|\\r|\\n)+([0-9]+\\.\\S*)\\s*)";
+
+  static String legacyPrepare(String t) {
+    return t.toString().replaceAll(hyphenatedLineNumInSupplied, "Ⓜ$3ⓞ").replaceAll(hyphenatedLineNum, "Ⓝ$3ⓜ").replaceAll(lineNum, "\nⓝ$3ⓜ").replace("\n", " ⓝ").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
+  static List<String> legacyHighlightMatches(String t, Pattern[] patterns) {
+    List<String> result = new ArrayList<String>();
+    String text = legacyPrepare(t);
+    for (Pattern pattern : patterns) {
+      Matcher m = pattern.matcher(text);
+      int prevEnd = 0;
+      while (m.find()) {
+        int start = m.toMatchResult().start();
+        int end = m.toMatchResult().end();
+        if (text.substring(0, start).indexOf('ⓝ') > 0) {
+          start = text.substring(0, start).lastIndexOf("ⓝ");
+        } else {
+          start = 0;
+        }
+        if (end > text.length() - 50) {
+          end = text.length();
+        } else {
+          if (text.indexOf('ⓝ', end) > 0) {
+            end = text.indexOf('ⓝ', end) - 1;
+          }
+        }
+        if (end - start > 150) {
+          while (m.toMatchResult().start() - start > 100) {
+            start = text.indexOf(' ', start + 70) + 1;
+          }
+          if (end - m.toMatchResult().end() > 100) {
+            end = text.lastIndexOf(' ', m.toMatchResult().end() + 70);
+          }
+        }
+        if (start >= prevEnd) {
+          result.add(legacyHighlight(patterns, text.substring(start, end)).replaceAll("Ⓜ([^ⓞ]+)ⓞ", "-]<br/>$1 ").replaceAll("Ⓝ([^ⓜ]+)ⓜ", "-<br/>$1 ").replaceAll("ⓝ([^ⓜ]+)ⓜ", "$1 ").replace("ⓝ", ""));
+          if (result.size() > 2) {
+            return result;
+          }
+          prevEnd = end;
+        } else {
+          String hit = result.remove(result.size() - 1) + text.substring(prevEnd, end);
+          result.add(legacyHighlight(patterns, hit).replaceAll("Ⓜ([^ⓞ]+)ⓞ", "-]<br/>$1 ").replaceAll("Ⓝ([^ⓜ]+)ⓜ", "-<br/>$1 ").replaceAll("ⓝ([^ⓜ]+)ⓜ", "$1 ").replace("ⓝ", ""));
+          if (result.size() > 2) {
+            return result;
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  static String legacyHighlight(Pattern[] patterns, String t) {
+    List<String> exclusions = new ArrayList<String>();
+    Matcher exMatch = Pattern.compile(exclude).matcher(t);
+    while (exMatch.find()) {
+      exclusions.add(t.substring(exMatch.start(), exMatch.end()));
+    }
+    String text = t.toString().replaceAll(exclude, "ⓐⓐⓐ\n");
+    int index = 0;
+    for (Pattern pattern : patterns) {
+      StringBuilder hl = new StringBuilder();
+      Matcher m = pattern.matcher(text);
+      while (m.find()) {
+        hl.append(text.substring(index, m.start()));
+        hl.append("Ⓐ");
+        hl.append(text.substring(m.start(), m.end()));
+        hl.append("Ⓑ");
+        index = m.end();
+      }
+      if (hl.length() > 0) {
+        hl.append(text.substring(index));
+        text = hl.toString();
+        index = 0;
+      }
+    }
+    Matcher m = Pattern.compile("ⓐⓐⓐ\\n?").matcher(text);
+    int i = 0;
+    int start = 0;
+    StringBuilder result = new StringBuilder();
+    while (m.find()) {
+      result.append(text.substring(start, m.start()));
+      result.append(exclusions.get(i));
+      start = m.end();
+      i++;
+    }
+    result.append(text.substring(start));
+    return result.toString().replaceAll("Ⓐ+", "<span class=\"highlight\">").replaceAll("Ⓑ+", "</span>");
+  }
+
+}
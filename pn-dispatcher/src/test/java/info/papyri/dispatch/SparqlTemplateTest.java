@@ -0,0 +1,46 @@
+package info.papyri.dispatch;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author hcayless
+ */
+public class SparqlTemplateTest extends TestCase {
+
+  public SparqlTemplateTest(String testName) {
+    super(testName);
+  }
+
+  public void testDescribeMatchesOldQuery() {
+    String expected = "prefix dc: <http://purl.org/dc/terms/> "
+            + "construct{<http://papyri.info/hgv/12345/source> ?Predicate ?Object} "
+            + "from <http://papyri.info/graph> "
+            + "where {<http://papyri.info/hgv/12345/source> ?Predicate ?Object} "
+            + "order by ?Object";
+    assertEquals(expected, SparqlTemplate.DESCRIBE.bind("http://papyri.info/hgv/12345/source"));
+  }
+
+  public void testNamedSlots() {
+    SparqlTemplate t = new SparqlTemplate("select ?s where { ?s <$p> \"$o\" }");
+    assertEquals("select ?s where { ?s <http://purl.org/dc/terms/identifier> \"p.oxy.1.1\" }",
+            t.bind("p", "http://purl.org/dc/terms/identifier", "o", "p.oxy.1.1"));
+  }
+
+  public void testEscaping() {
+    SparqlTemplate t = new SparqlTemplate("select ?s where { ?s <$p> \"$o\" }");
+    assertEquals("select ?s where { ?s <http://x/a%3E%20b> \"say \\\"hi\\\"\" }",
+            t.bind("p", "http://x/a> b", "o", "say \"hi\""));
+  }
+
+  public void testMissingValue() {
+    SparqlTemplate t = new SparqlTemplate("select ?s where { ?s <$p> \"$o\" }");
+    try {
+      t.bind("p", "http://x/");
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+}
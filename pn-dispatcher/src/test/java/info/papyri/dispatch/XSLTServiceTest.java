@@ -0,0 +1,124 @@
+package info.papyri.dispatch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import javax.xml.transform.stream.StreamSource;
+import junit.framework.TestCase;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XsltTransformer;
+
+/**
+ *
+ * @author hcayless
+ */
+public class XSLTServiceTest extends TestCase {
+
+  private File dir;
+  private File file;
+
+  public XSLTServiceTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = File.createTempFile("xslt", "");
+    dir.delete();
+    dir.mkdirs();
+    file = new File(dir, "test.xsl");
+    write(file, "<xsl:value-of select=\"concat('one:', $collection)\"/>");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.delete();
+    dir.delete();
+  }
+
+  public void testTransformerReuse() throws Exception {
+    XSLTService service = new XSLTService();
+    XSLTService.Stylesheet xsl = new XSLTService.Stylesheet("test", file);
+    assertTrue(service.compile(xsl));
+    XSLTService.Compiled c = xsl.current;
+    XsltTransformer t = c.transformer();
+    t.setParameter(new QName("collection"), new XdmAtomicValue("bgu"));
+    assertEquals("one:bgu", transform(t));
+    c.release(t);
+    XsltTransformer again = c.transformer();
+    assertSame(t, again);
+    // parameters don't leak from one request to the next
+    assertEquals("one:", transform(again));
+  }
+
+  public void testRecompile() throws Exception {
+    XSLTService service = new XSLTService();
+    XSLTService.Stylesheet xsl = new XSLTService.Stylesheet("test", file);
+    assertTrue(service.compile(xsl));
+    XSLTService.Compiled first = xsl.current;
+    write(file, "<xsl:value-of select=\"'two'\"/>");
+    file.setLastModified(first.modified + 2000);
+    assertTrue(xsl.sourceModified() != xsl.attempted);
+    assertTrue(service.compile(xsl));
+    assertEquals("two", transform(xsl.current.transformer()));
+    write(file, "<xsl:value-of select=\"'three'\"");
+    assertFalse(service.compile(xsl));
+    // the last good version stays in use
+    assertEquals("two", transform(xsl.current.transformer()));
+    assertEquals(1, xsl.compileFailures.get());
+  }
+
+  public void testResultCache() throws Exception {
+    XSLTService service = new XSLTService();
+    XSLTService.Stylesheet xsl = new XSLTService.Stylesheet("test", file);
+    service.compile(xsl);
+    assertEquals("one:bgu", service.transform(xsl, "bgu", "<doc/>").trim());
+    assertEquals("one:bgu", service.transform(xsl, "bgu", "<doc/>").trim());
+    assertEquals(1, service.results.hits.get());
+    assertEquals("one:", service.transform(xsl, null, "<doc/>").trim());
+    assertEquals(2, xsl.transforms.get());
+    // a new version of the stylesheet doesn't see the old results
+    write(file, "<xsl:value-of select=\"'two'\"/>");
+    service.compile(xsl);
+    assertEquals("two", service.transform(xsl, "bgu", "<doc/>").trim());
+    assertEquals(1, service.results.hits.get());
+  }
+
+  public void testResultCacheBound() {
+    XSLTService.ResultCache cache = new XSLTService.ResultCache(100);
+    cache.put("a", "0123456789");
+    cache.put("b", "0123456789");
+    cache.get("a");
+    for (int i = 0; i < 8; i++) {
+      cache.put("c" + i, "0123456789");
+    }
+    assertNotNull(cache.get("c7"));
+    assertNull(cache.get("b"));
+    assertTrue(cache.evictions.get() > 0);
+    cache.put("big", "01234567890123456789012345678901234567890");
+    assertNull(cache.get("big"));
+  }
+
+  private static String transform(XsltTransformer t) throws Exception {
+    StringWriter out = new StringWriter();
+    t.setSource(new StreamSource(new StringReader("<doc/>")));
+    Serializer serializer = new Serializer(out);
+    serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION, "yes");
+    t.setDestination(serializer);
+    t.transform();
+    return out.toString().trim();
+  }
+
+  private static void write(File f, String body) throws IOException {
+    FileOutputStream out = new FileOutputStream(f);
+    out.write(("<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"2.0\">"
+            + "<xsl:output method=\"text\"/><xsl:param name=\"collection\" select=\"''\"/>"
+            + "<xsl:template match=\"/\">" + body + "</xsl:template></xsl:stylesheet>").getBytes("UTF-8"));
+    out.close();
+  }
+
+}
@@ -0,0 +1,66 @@
+package info.papyri.dispatch.browse;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Rough timing of id sorting before and after <code>SortKey</code>; not a test, and not
+ * run by the build. Pass a file of ids, one per line (e.g. the values of the pn-search
+ * <code>volume</code> or <code>full_identifier</code> fields), or nothing to use generated ids.
+ *
+ * @author thill
+ */
+public class IdComparatorBenchmark {
+
+    public static void main(String[] args) throws IOException {
+
+        List<String> ids = new ArrayList<String>();
+
+        if(args.length > 0){
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), "UTF-8"));
+            String line;
+            while((line = in.readLine()) != null) if(line.trim().length() > 0) ids.add(line.trim());
+            in.close();
+
+        }
+        else{
+
+            Random r = new Random(1);
+            for(int i = 0; i < 20000; i++) ids.add(IdComparatorTest.realisticId(r));
+
+        }
+
+        Comparator legacy = new IdComparatorTest.LegacyIdComparator();
+        IdComparator comparator = new IdComparator();
+        int runs = Math.max(1, 200000 / ids.size());
+
+        for(int warm = 0; warm < 5; warm++){
+
+            long t0 = System.nanoTime();
+            for(int i = 0; i < runs; i++) Collections.sort(new ArrayList<String>(ids), legacy);
+            long t1 = System.nanoTime();
+            for(int i = 0; i < runs; i++) Collections.sort(new ArrayList<String>(ids), comparator);
+            long t2 = System.nanoTime();
+            for(int i = 0; i < runs; i++) IdComparator.sort(new ArrayList<String>(ids));
+            long t3 = System.nanoTime();
+
+            if(warm == 4){
+
+                System.out.printf("%d ids: before %8.3f ms, comparator %8.3f ms, sort %8.3f ms%n", ids.size(),
+                        (t1 - t0) / 1e6 / runs, (t2 - t1) / 1e6 / runs, (t3 - t2) / 1e6 / runs);
+
+            }
+
+        }
+
+    }
+
+}
@@ -3,9 +3,16 @@ package info.papyri.dispatch.browse;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import junit.framework.TestCase;
 
 /**
+ * Also checks the <code>SortKey</code> ordering against the previous regular expression
+ * based implementation (kept here as a reference, and timed by IdComparatorBenchmark).
  *
  * @author thill
  */
@@ -107,4 +114,130 @@ public class IdComparatorTest extends TestCase {
         assertEquals(testArray8, testInstance.splitIntoNumericAndAlphabeticComponents(testString8));
 
     }
+
+    public void testSameOrderAsBefore() {
+        
+        IdComparator testInstance = new IdComparator();
+        Comparator legacy = new LegacyIdComparator();
+        Random r = new Random(42);
+        List<String> ids = new ArrayList<String>(Arrays.asList("", "0", "00", "007", "7", "1.2", "12", "1 2", 
+                "a.1", "a1b", "P.Oxy.", "p oxy", "28bis", "28 bis", "28Bis", "ı", "I", "İ", "ß", "SS"));
+        for(int i = 0; i < 600; i++) ids.add(i % 2 == 0 ? realisticId(r) : fuzzedId(r));
+        
+        for(String id1 : ids){
+            
+            for(String id2 : ids){
+                
+                assertEquals(id1 + " / " + id2, Integer.signum(legacy.compare(id1, id2)), testInstance.compare(id1, id2));
+                
+            }
+            
+        }
+        
+        List<String> expected = new ArrayList<String>(ids);
+        Collections.sort(expected, legacy);
+        IdComparator.sort(ids);
+        assertEquals(expected, ids);
+        
+    }
+    
+    static final String[] SERIES = {"p.oxy", "bgu", "o.bodl", "sb", "p.mich", "p.tebt", "c.ep.lat", "p.cair.zen", 
+        "chr.wilck", "p.lond", "P.Mich. inv.", "o.claud", "p.yale", "stud.pal"};
+    static final String[] SUFFIXES = {"", "", "", "A", "a", "B", "bis", "_1", "-2", "r", "v", " descr", ".1", "(a)"};
+    
+    static String realisticId(Random r) {
+        
+        StringBuilder id = new StringBuilder(SERIES[r.nextInt(SERIES.length)]);
+        if(r.nextBoolean()) id.append(' ').append(1 + r.nextInt(80));
+        id.append(' ').append(1 + r.nextInt(r.nextBoolean() ? 100 : 5000)).append(SUFFIXES[r.nextInt(SUFFIXES.length)]);
+        return r.nextInt(5) == 0 ? id.toString().replace(' ', ';') : id.toString();
+        
+    }
+    
+    static String fuzzedId(Random r) {
+        
+        String alphabet = "00129.,;-_() aAbBzZéÉıIß";
+        StringBuilder id = new StringBuilder();
+        int n = r.nextInt(12);
+        for(int i = 0; i < n; i++) id.append(alphabet.charAt(r.nextInt(alphabet.length())));
+        return id.toString();
+        
+    }
+    
+    // The implementation SortKey replaced, verbatim apart from the class name.
+    
+    static class LegacyIdComparator implements Comparator {
+
+        @Override
+        public int compare(Object t, Object t1) {
+
+            String id1 = (String) t;
+            String id2 = (String) t1;
+
+            ArrayList<String> ids1 = splitIntoNumericAndAlphabeticComponents(id1);
+            ArrayList<String> ids2 = splitIntoNumericAndAlphabeticComponents(id2);
+
+            Pattern letterCheck = Pattern.compile("^\\D.*");
+            Pattern numberCheck = Pattern.compile("^\\d.*");
+
+            int limit = ids1.size() < ids2.size() ? ids1.size() : ids2.size();
+
+            for(int i = 0; i < limit; i++){
+
+                String id1chunk = ids1.get(i);
+                String id2chunk = ids2.get(i);
+
+                if(numberCheck.matcher(id1chunk).matches() && letterCheck.matcher(id2chunk).matches()) return -1;
+                if(letterCheck.matcher(id1chunk).matches() && numberCheck.matcher(id2chunk).matches()) return 1;
+
+                if(numberCheck.matcher(id1chunk).matches()){
+
+                    if(Long.valueOf(id1chunk) < Long.valueOf(id2chunk)) return -1;
+                    if(Long.valueOf(id1chunk) > Long.valueOf(id2chunk)) return 1;
+
+                }
+                else{
+
+                    String value1 = id1chunk.replaceAll("\\p{Punct}", "");
+                    String value2 = id2chunk.replaceAll("\\p{Punct}", "");
+                    int compareValue = value1.compareToIgnoreCase(value2);
+                    if(compareValue != 0) return compareValue;
+
+                }
+
+            }
+
+            if(id1.length() < id2.length()) return -1;
+            if(id1.length() > id2.length()) return 1;
+
+            return 0;
+
+        }
+
+        ArrayList<String> splitIntoNumericAndAlphabeticComponents(String mixedString){
+
+            ArrayList<String> components = new ArrayList<String>();
+            Pattern findFirstAlphabetical = Pattern.compile("([\\D]+)");
+            int findIndex = 0;
+
+            Matcher matcher = findFirstAlphabetical.matcher(mixedString);
+
+            while(matcher.find()){
+
+                String numbers = mixedString.substring(findIndex, matcher.start());
+                if(!"".equals(numbers)) components.add(numbers); 
+                String letters = matcher.group(1);
+                components.add(letters);
+                findIndex = matcher.end();
+
+            }
+
+            if(findIndex < mixedString.length()) components.add(mixedString.substring(findIndex));
+
+            return components;
+
+        }
+
+    }
+    
 }
@@ -0,0 +1,86 @@
+package info.papyri.dispatch.browse.facet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import junit.framework.TestCase;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ *
+ * @author thill
+ */
+public class FacetResultCacheTest extends TestCase {
+
+    public FacetResultCacheTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FacetResultCache.clear();
+        super.tearDown();
+    }
+
+    public void testKeyIgnoresConstraintOrder() {
+
+        FacetBrowser browser = new FacetBrowser();
+        HashMap<String, String[]> params = new HashMap<String, String[]>();
+        params.put("LANG", new String[]{"grc", "la"});
+        params.put("PLACE", new String[]{"Oxyrhynchos"});
+        SolrQuery first = browser.buildFacetQuery(1, facets(browser, params), 15);
+
+        params.put("LANG", new String[]{"la", "grc"});
+        SolrQuery second = browser.buildFacetQuery(1, facets(browser, params), 15);
+        assertEquals(FacetResultCache.key(first), FacetResultCache.key(second));
+
+        SolrQuery nextPage = browser.buildFacetQuery(2, facets(browser, params), 15);
+        assertFalse(FacetResultCache.key(first).equals(FacetResultCache.key(nextPage)));
+        SolrQuery longerPage = browser.buildFacetQuery(1, facets(browser, params), 50);
+        assertFalse(FacetResultCache.key(first).equals(FacetResultCache.key(longerPage)));
+
+    }
+
+    public void testPut() {
+
+        // get() would check the index version against pn-search, so only the accounting is tested here
+        FacetResultCache.put("a", new QueryResponse(new NamedList<Object>(), null), FacetResultCache.getGeneration());
+        long bytes = (Long) FacetResultCache.getStats().get("bytes");
+        assertTrue(bytes > 0);
+        FacetResultCache.put("a", new QueryResponse(new NamedList<Object>(), null), FacetResultCache.getGeneration());
+        assertEquals(1, FacetResultCache.getStats().get("size"));
+        assertEquals(bytes, FacetResultCache.getStats().get("bytes"));
+
+    }
+
+    public void testPutAfterClear() {
+
+        long generation = FacetResultCache.getGeneration();
+        // the index changed while the response was being fetched
+        FacetResultCache.clear();
+        FacetResultCache.put("a", new QueryResponse(new NamedList<Object>(), null), generation);
+        assertEquals(0, FacetResultCache.getStats().get("size"));
+
+    }
+
+    public void testEstimate() {
+
+        NamedList<Object> small = new NamedList<Object>();
+        small.add("numFound", 1);
+        NamedList<Object> large = new NamedList<Object>();
+        large.add("facet_fields", small);
+        large.add("title", "P.Oxy. 1 1");
+        assertTrue(FacetResultCache.estimate(large) > FacetResultCache.estimate(small));
+
+    }
+
+    private ArrayList<Facet> facets(FacetBrowser browser, HashMap<String, String[]> params) {
+
+        ArrayList<Facet> facets = browser.getFacets();
+        for(Facet facet : facets) facet.addConstraints(params);
+        return facets;
+
+    }
+
+}
@@ -0,0 +1,60 @@
+package info.papyri.dispatch.browse.facet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import junit.framework.TestCase;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.FacetField;
+
+/**
+ *
+ * @author thill
+ */
+public class FacetTest extends TestCase {
+
+    public FacetTest(String testName) {
+        super(testName);
+    }
+
+    public void testPerFacetLimits() {
+
+        SolrQuery sq = new SolrQuery();
+        new PlaceFacet().buildQueryContribution(sq);
+        new LanguageFacet().buildQueryContribution(sq);
+        assertNull(sq.get("facet.limit"));
+        assertEquals("2", sq.get("f.display_place.facet.limit"));
+        assertEquals("count", sq.get("f.display_place.facet.sort"));
+        assertEquals("-1", sq.get("f.facet_language.facet.limit"));
+        assertEquals("index", sq.get("f.facet_language.facet.sort"));
+
+        PlaceFacet all = new PlaceFacet();
+        all.allValues = true;
+        sq = new SolrQuery();
+        all.buildQueryContribution(sq);
+        assertEquals("-1", sq.get("f.display_place.facet.limit"));
+
+    }
+
+    public void testLazyWidget() {
+
+        PlaceFacet place = new PlaceFacet();
+        HashMap<String, String[]> params = new HashMap<String, String[]>();
+        params.put("PLACE", new String[]{"Oxyrhynchos"});
+        place.addConstraints(params);
+        FacetField field = new FacetField("display_place");
+        field.add("Oxyrhynchos", 10);
+        field.add("Karanis", 5);
+        place.valuesAndCounts = new ArrayList<FacetField.Count>(field.getValues());
+        String html = place.generateWidget();
+        assertTrue(html.contains("data-lazy=\"true\""));
+        assertTrue(html.contains("Oxyrhynchos (10)"));
+        assertFalse(html.contains("Karanis"));
+
+        place.valuesAndCounts.remove(1);
+        html = place.generateWidget();
+        assertFalse(html.contains("data-lazy"));
+        assertTrue(html.contains("disabled"));
+
+    }
+
+}
@@ -0,0 +1,88 @@
+package info.papyri.dispatch.browse.facet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import junit.framework.TestCase;
+import org.apache.solr.client.solrj.SolrQuery;
+
+/**
+ *
+ * @author thill
+ */
+public class ResultSetCacheTest extends TestCase {
+
+    public ResultSetCacheTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ResultSetCache.clear();
+        super.tearDown();
+    }
+
+    public void testTokenIgnoresPaging() {
+
+        FacetBrowser browser = new FacetBrowser();
+        HashMap<String, String[]> params = new HashMap<String, String[]>();
+        params.put("PLACE", new String[]{"Oxyrhynchos"});
+        String first = ResultSetCache.register(browser.buildFacetQuery(1, facets(browser, params), 15));
+        String later = ResultSetCache.register(browser.buildFacetQuery(3, facets(browser, params), 50));
+        assertEquals(first, later);
+        assertEquals(12, first.length());
+        assertEquals(1, ResultSetCache.getStats().get("size"));
+
+        params.put("LANG", new String[]{"grc"});
+        String narrower = ResultSetCache.register(browser.buildFacetQuery(1, facets(browser, params), 15));
+        assertFalse(first.equals(narrower));
+        assertEquals(2, ResultSetCache.getStats().get("size"));
+
+        SolrQuery idQuery = ResultSetCache.buildIdQuery(browser.buildFacetQuery(1, facets(browser, params), 15));
+        assertEquals("id", idQuery.getFields());
+        assertNull(idQuery.getFacetFields());
+        assertEquals("sort_key asc,series asc,volume asc,item asc", idQuery.getSortField());
+
+    }
+
+    public void testLocate() {
+
+        ResultSetCache.IdList ids = new ResultSetCache.IdList(new String[]{
+            "http://papyri.info/ddbdp/p.oxy;1;1", "http://papyri.info/ddbdp/p.oxy;1;2", "/ddbdp/p.oxy;1;3"}, 4);
+        assertEquals(3, ids.size());
+        assertEquals(4, ids.getNumFound());
+        assertEquals("/ddbdp/p.oxy;1;2", ids.get(1));
+        assertEquals("/ddbdp/p.oxy;1;3", ids.get(2));
+
+        assertEquals(1, ResultSetCache.locate(ids, 1, null));
+        assertEquals(1, ResultSetCache.locate(ids, 1, "/ddbdp/p.oxy;1;2/"));
+        assertEquals(2, ResultSetCache.locate(ids, 0, "/ddbdp/p.oxy;1;3"));
+        assertEquals(-1, ResultSetCache.locate(ids, 0, "/ddbdp/p.oxy;1;4"));
+        assertEquals(-1, ResultSetCache.locate(ids, 3, null));
+
+    }
+
+    public void testLocateInLongList() {
+
+        String[] paths = new String[5000];
+        for(int i = 0; i < paths.length; i++) paths[i] = "http://papyri.info/hgv/" + i + (i % 2 == 0 ? "/" : "");
+        paths[4999] = "/hgv/17";
+        ResultSetCache.IdList ids = new ResultSetCache.IdList(paths, paths.length);
+        assertEquals("/hgv/0", ids.get(0));
+
+        for(int i = 0; i < 4999; i++) assertEquals(i, ResultSetCache.locate(ids, 0, "/hgv/" + i));
+        // the first of two
+        assertEquals(17, ResultSetCache.locate(ids, 2, "http://papyri.info/hgv/17"));
+        assertEquals(4999, ResultSetCache.locate(ids, 4999, "/hgv/17"));
+        assertEquals(-1, ResultSetCache.locate(ids, 0, "/hgv/5000"));
+
+    }
+
+    private ArrayList<Facet> facets(FacetBrowser browser, HashMap<String, String[]> params) {
+
+        ArrayList<Facet> facets = browser.getFacets();
+        for(Facet facet : facets) facet.addConstraints(params);
+        return facets;
+
+    }
+
+}
@@ -31,6 +31,22 @@
 						delay: 0,
 						minLength: 0,
 						source: function (request, response) {
+							// long value lists are only sent on request; fetch them the first time the list is opened
+							if (select.attr("data-lazy") && !select.data("loaded")) {
+								var search = window.location.search;
+								var url = window.location.pathname + (search ? search + "&" : "?") + "facetValues=" + encodeURIComponent(select.attr("name"));
+								var source = this;
+								$.getJSON(url, function (values) {
+									var current = select.val();
+									select.children("option").filter(function () { return this.value != "default"; }).remove();
+									$.each(values, function (i, v) {
+										$("<option></option>").attr("value", v.value).text(v.label + " (" + v.count + ")").prop("selected", v.value == current).appendTo(select);
+									});
+									select.data("loaded", true);
+									source.options.source(request, response);
+								});
+								return;
+							}
 							var matcher = new RegExp($.ui.autocomplete.escapeRegex(request.term), "i");
 							response(select.children("option").map(function () {
 								var text = $(this).text();
@@ -80,99 +80,46 @@ function getPath() {
    without first returning to the initial search page listing results */
 
 /**
- * Initiates the sequence of events that queries the Solr server and adds
+ * Initiates the sequence of events that looks up the record's neighbours and adds
  * next, previous, and back-to-results controls as appropriate.
  *
- * Of the parameters passed in the query string, "p" refers to the records position
- * in the entire result set; "t" is the total number of records in the result set;
- * 'q' is the searched-for string used in highlighting (and thus must be filtered out 
- * for search purposes); and the remainder are all parameters for direct use by the 
- * Solr server
+ * Of the parameters passed in the query string, "rs" is the token identifying the
+ * result set, held by the dispatcher; "p" refers to the record's position in the 
+ * entire result set; and 'q' is the searched-for string used in highlighting
  *
  */
 function addLinearBrowseControls(){
 
+	var resultset = jQuery(document).getUrlParam("rs");
 	var position = jQuery(document).getUrlParam("p");
-	var total = jQuery(document).getUrlParam("t");
-	var rows = jQuery(document).getUrlParam("rows");
-	var qs = buildSolrQueryString();
-	if(qs == "") return false;
-	querySolrServer(qs, position, total, rows, qs);
+	if(resultset == null || position == null) return false;
+	var id = location.pathname.replace(/\/$/, "");
+	jQuery.getJSON("/browse/neighbors",
+			{ rs: resultset, p: position, id: id },
+			function(data){ addLinearBrowseHTML(data, resultset); });
 	
 }
 
-/**
- * Transforms the passed querystring into a querystring usable in querying the Solr
- * server.
- *
- * The purpose of this query is to determine the next and previous records to which
- * the 'next' and 'previous' controls should point.
- *
- */
-
-function buildSolrQueryString(){
-
-	var querystring = window.location.search;
-	if(!querystring.match(/fq=/)) return "";
-	// get rid of values not used by Solr: t, d, and q (which is used only for highlighting)
-	querystring = querystring.replace(/[&?]t=\d+/, "");
-	querystring = querystring.replace(/[&?]p=\d+/, "");
-	var highlightstring = jQuery(document).getUrlParam("q");
-	// but *some* value for q is required, so the 'select all' wildcard (*:*) is given
-	if(highlightstring == null || highlightstring == ""){
-	
-		querystring = querystring += "&q=*:*";
-	
-	}
-	else{
-	
-		querystring = querystring.replace(highlightstring, "*:*");
-	
-	}
-	if(querystring.charAt(0) == "?") querystring = querystring.substring(1);
-	return querystring;
-
-}
-/**
- * Queries the Solr server
- */
-
-function querySolrServer(query, position, total, rows, querystring){
-
-	var that = this;
-	var serverUrl = "http://" + location.host + "/solr/select/";
-	jQuery.get(	serverUrl,
-			query, 
-			function(data){ that.addLinearBrowseHTML(data, position, total, rows, querystring); }, 
-			"xml");
-
-}
-
 /**
  * Manager function for generating the 'Previous', 'Next', and 'Back to search results' 
  * HTML controls.
  */
 
 
-function addLinearBrowseHTML(xmldoc, position, total, rows, querystring){
+function addLinearBrowseHTML(neighbors, resultset){
 
-	var xml = jQuery(xmldoc);
-	var prevRecord = (position == 0 && rows == 2) ? null : xml.find("doc")[0];
-	var nextRecord = (position == total && rows == 2) ? null : xml.find("doc")[xml.find("doc").length - 1];	
 	var htmlWrapper = jQuery("<div id=\"linear-browse-wrapper\"></div>");
-	addPrevRecordHTML(htmlWrapper, prevRecord, position, total, rows, querystring);
+	addRecordHTML(htmlWrapper, "linear-previous-record", "<< Previous record", neighbors.prev, resultset, neighbors.position - 1);
 	addBackToFacetBrowse(htmlWrapper)
-	addNextRecordHTML(htmlWrapper, nextRecord, position, total, rows, querystring);
-	var spacer = jQuery("<div style='height: 1px; width: 100%; clear: both;'></div>");
+	addRecordHTML(htmlWrapper, "linear-next-record", "Next record >>", neighbors.next, resultset, neighbors.position + 1);
 	jQuery("#controls").before(htmlWrapper);
 
 }
 
-function addPrevRecordHTML(wrapper, record, position, total, rows, querystring){
+function addRecordHTML(wrapper, wrapperId, msg, id, resultset, position){
 
-	var arrowWrapper = jQuery("<div id=\"linear-previous-record\"></div>");
-	var msg = "<< Previous record";
-	if(record == null){
+	var arrowWrapper = jQuery("<div id=\"" + wrapperId + "\"></div>");
+	if(id == null){
 	
 		var deadlink = jQuery("<span class='deadlink'></span>");
 		deadlink.text(msg);
@@ -183,11 +130,8 @@ function addPrevRecordHTML(wrapper, record, position, total, rows, querystring){
 	
 		var link = jQuery("<a></a>");
 		link.text(msg);
-		var id = jQuery(jQuery(record).children()[0]).text().substring("http://papyri.info".length);
-		var title = jQuery(jQuery(record).children()[1]).text();
-		var href = id + "?" + buildSolrQueryLinkString("prev", querystring, position, total, rows);
-		link.attr("title", title);
-		link.attr("href", href);
+		link.attr("title", id);
+		link.attr("href", buildLinearBrowseLink(id, resultset, position));
 		arrowWrapper.append(link);
 
 	}
@@ -210,96 +154,27 @@ function addBackToFacetBrowse(wrapper){
 	wrapper.append(linkwrapper);
 }
 
-function addNextRecordHTML(wrapper, record, position, total, rows, querystring){
-
-	var arrowWrapper = jQuery("<div id=\"linear-next-record\"></div>");
-	var msg = "Next record >>"
-	if(record == null){
-	
-		var deadlink = jQuery("<span class='deadlink'></span>");
-		deadlink.text(msg);
-		arrowWrapper.append(deadlink);
-	
-	}
-	else{
-	
-		var link = jQuery("<a></a>");
-		link.text(msg);
-		var id = jQuery(jQuery(record).children()[0]).text().substring("http://papyri.info".length);
-		var title = jQuery(jQuery(record).children()[1]).text();
-		var href = id + "?" + buildSolrQueryLinkString("next", querystring, position, total, rows);
-		link.attr("title", title);
-		link.attr("href", href);
-		arrowWrapper.append(link);
-		
-	}
-	wrapper.append(arrowWrapper);
-	
-}
 /**
- * Alters the query string used by the presently-displayed page so that it is suitable for use
- * by the next or previous record in the result set. 
- * 
- * This will typically be by advancing or reducing the start value of the query, though 
- * special considerations apply when the first or last record is reached.
+ * Generates the link to the next or previous record in the result set, carrying 
+ * over the result set token and the highlighted string.
  *
  */
 
-function buildSolrQueryLinkString(direction, querystring, position, total, rows){
-
-	var offset = jQuery(document).getUrlParam("start") / 1;
-	position = position / 1;
-	total = total / 1;
-	rows = rows / 1;
-	var new_offset = offset;
-	var new_position = position;
+function buildLinearBrowseLink(id, resultset, position){
 
-	if(direction == "next"){
-	
-		if(position + 1 == total){
-			
-			new_rows = 2;
-			
-		}
-		else{
-		
-			new_rows = 3;
-		
-		}
-		new_position += 1;
-		if(position != 0) new_offset += 1;
-	
-	}
-	else{					// i.e., if direction = "prev"
+	var highlightstring = jQuery(document).getUrlParam("q");
+	var href = id;
+	if(highlightstring != null && highlightstring != ""){
 	
-		if(position - 1 == 0){
-		
-			new_rows = 2;
-			new_offset = 0;
-		
-		}
-		else{ 
-		
-			new_offset -= 1; 
-			new_rows = 3;	
-		}
-		new_position -= 1;
+		href = href + "/?q=" + highlightstring + "&";
 	
 	}
-
-	var reOffset = new RegExp("start=" + offset);
-	var reRows = new RegExp("rows=" + rows);
-	querystring = querystring.replace(reOffset, "start=" + new_offset);
-	querystring = querystring.replace(reRows, "rows=" + new_rows);
-	querystring = querystring + "&p=" + new_position;
-	querystring = querystring + "&t=" + jQuery(document).getUrlParam("t");
-	querystring = querystring.replace(/[&]?q=\*:\*/, "");
-	if(jQuery(document).getUrlParam("q") != null && jQuery(document).getUrlParam("q") != ""){
+	else{
 	
-		querystring = querystring + "&q=" + jQuery(document).getUrlParam("q");
+		href = href + "?";
 	
 	}
-	return querystring;
+	return href + "rs=" + resultset + "&p=" + position;
 	
 }
 
@@ -3,9 +3,6 @@ package info.papyri.sync;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
 import java.sql.Connection;
 import java.sql.Date;
 import java.sql.DriverManager;
@@ -17,7 +14,6 @@ import java.util.Iterator;
 import java.util.List;
 import org.apache.log4j.Logger;
 import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.map.ObjectMapper;
 
 
 /**
@@ -27,9 +23,6 @@ import org.codehaus.jackson.map.ObjectMapper;
 public class GitWrapper {
   
   private static GitWrapper git;
-  private static String graph = "http://papyri.info/graph";
-  private static String path = "/pi/query";
-  private static String sparqlserver = "http://localhost:8090";
   private static Logger logger = Logger.getLogger("pn-sync");
   
   public static GitWrapper init (String gitDir, String dbUser, String dbPass) {
@@ -248,20 +241,13 @@ public class GitWrapper {
   public static String filenameToUri(String file, boolean resolve) {
     StringBuilder result = new StringBuilder();
     if (file.contains("DDB")) {
-      StringBuilder sparql = new StringBuilder();
-      sparql.append("prefix dc: <http://purl.org/dc/terms/> ")
-            .append("select ?id ")
-            .append("from <http://papyri.info/graph> ")
-            .append("where { ?id dc:identifier \"")
-            .append(file.substring(file.lastIndexOf("/") + 1, file.lastIndexOf(".")))
-            .append("\" }");
+      String sparql = SparqlTemplate.BY_IDENTIFIER.bind(file.substring(file.lastIndexOf("/") + 1, file.lastIndexOf(".")));
       try {
         // If the numbers server already knows the id for the filename, use that
         // because it will be 100% accurate. 
-        URL m = new URL(sparqlserver + path + "?query=" + URLEncoder.encode(sparql.toString(), "UTF-8") + "&output=json");
-        JsonNode root = getJson(m);
-        if (root.path("results").path("bindings").size() > 0) {
-          result.append(root.path("results").path("bindings").path(0).path("id").path("value").asText());
+        JsonNode bindings = SparqlClient.bindings(sparql);
+        if (bindings.size() > 0) {
+          result.append(bindings.path(0).path("id").path("value").asText());
         // Otherwise, attempt to infer the identifier from the filename. 
         } else {
           result.append("http://papyri.info/ddbdp/");
@@ -336,62 +322,30 @@ public class GitWrapper {
   }
   
   public static String lookupMainId(String id) {
-    StringBuilder sparql = new StringBuilder();
-    sparql.append("prefix dc: <http://purl.org/dc/terms/> ")
-          .append("select ?id ")
-          .append("from <http://papyri.info/graph> ")
-          .append("where { ?id dc:relation <")
-          .append(id)
-          .append("> ")
-          .append("filter regex(str(?id), \"^http://papyri.info/ddbdp/.*\") ")
-          .append("filter not exists {?id dc:isReplacedBy ?b} }");
+    String sparql = SparqlTemplate.RELATED_DDBDP.bind(id);
     try {
-      URL m = new URL(sparqlserver + path + "?query=" + URLEncoder.encode(sparql.toString(), "UTF-8") + "&output=json");
-      JsonNode root = getJson(m);
-      if (root.path("results").path("bindings").size() > 0) {
-        return root.path("results").path("bindings").path(0).path("id").path("value").asText();
+      JsonNode bindings = SparqlClient.bindings(sparql);
+      if (bindings.size() > 0) {
+        return bindings.path(0).path("id").path("value").asText();
       } else {
         if (id.contains("/apis/")) {
-          sparql = new StringBuilder();
-          sparql.append("prefix dc: <http://purl.org/dc/terms/> ")
-                .append("select ?id ")
-                .append("from <http://papyri.info/graph> ")
-                .append("where { ?id dc:relation <")
-                .append(id)
-                .append("> ")
-                .append("filter regex(str(?id), \"^http://papyri.info/hgv/.*\") }");
-          m = new URL(sparqlserver + path + "?query=" + URLEncoder.encode(sparql.toString(), "UTF-8") + "&output=json");
-          root = getJson(m);
-          if (root.path("results").path("bindings").size() > 0) {
-            return root.path("results").path("bindings").path(0).path("id").path("value").asText();
+          sparql = SparqlTemplate.RELATED_HGV.bind(id);
+          bindings = SparqlClient.bindings(sparql);
+          if (bindings.size() > 0) {
+            return bindings.path(0).path("id").path("value").asText();
           }
         }
       }
     } catch (Exception e) {
-      logger.error("Failed to look up query: \n" + sparql.toString());
+      logger.error("Failed to look up query: \n" + sparql, e);
     }
     return null;
   }
   
-  private static JsonNode getJson(URL q) throws java.io.IOException {
-      HttpURLConnection http = (HttpURLConnection)q.openConnection();
-      http.setConnectTimeout(2000);
-      ObjectMapper o = new ObjectMapper();
-      JsonNode result = o.readValue(http.getInputStream(), JsonNode.class);
-      return result;
-  }
-  
   private static List<String> loadDDbCollections() {
     List<String> result = new ArrayList<String>();
-    String sparql = "prefix dc: <http://purl.org/dc/terms/> "
-            + "select ?id "
-            + "from <http://papyri.info/graph> "
-            + "where { <http://papyri.info/ddbdp> dc:hasPart ?id } "
-            + "order by desc(?id)";
     try {
-        URL m = new URL(sparqlserver + path + "?query=" + URLEncoder.encode(sparql.toString(), "UTF-8") + "&output=json");
-        JsonNode root = getJson(m);
-        Iterator<JsonNode> i = root.path("results").path("bindings").getElements();
+        Iterator<JsonNode> i = SparqlClient.bindings(SparqlTemplate.DDB_COLLECTIONS).getElements();
         while (i.hasNext()) {
           result.add(i.next().path("id").path("value").asText());
         }
@@ -0,0 +1,56 @@
+package info.papyri.sync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * Appends the paths of published source files to the journal the
+ * dispatcher's id index replays, one absolute path per line, so that new and
+ * moved documents resolve without rebuilding the index.  Configured by
+ * SyncServlet from its <code>idIndexJournal</code> init-param; does nothing
+ * if that isn't set.
+ *
+ * @author hcayless
+ */
+public class IdIndexJournal {
+
+  private static volatile File journal;
+  private static Logger logger = Logger.getLogger("pn-sync");
+
+  public static void init(String path) {
+    journal = path == null || "".equals(path.trim()) ? null : new File(path.trim());
+  }
+
+  /**
+   * Records the XML files among <code>files</code>; removed files are
+   * recorded too, and dropped by the index when it finds them missing.
+   */
+  public static synchronized void record(List<String> files) {
+    if (journal == null || files.isEmpty()) {
+      return;
+    }
+    try {
+      Writer out = new OutputStreamWriter(new FileOutputStream(journal, true), "UTF-8");
+      try {
+        StringBuilder lines = new StringBuilder();
+        for (String file : files) {
+          if (file.endsWith(".xml")) {
+            lines.append(new File(file).getAbsolutePath()).append('\n');
+          }
+        }
+        // one write, so the dispatcher never sees half a line for long
+        out.write(lines.toString());
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      logger.error("Unable to update id index journal " + journal, e);
+    }
+  }
+
+}
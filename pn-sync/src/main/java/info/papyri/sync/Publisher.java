@@ -105,6 +105,11 @@ public class Publisher implements Runnable {
             status = PUBLISHING;
             logger.info("Indexing files starting at " + new Date());
             indexer.index(urls);
+            List<String> changed = new ArrayList<String>(diffs.size());
+            for (String diff : diffs) {
+              changed.add(base + File.separator + diff);
+            }
+            IdIndexJournal.record(changed);
           } else {
             logger.info("No files to map.");
           }
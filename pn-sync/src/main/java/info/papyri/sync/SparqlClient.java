@@ -0,0 +1,112 @@
+package info.papyri.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+
+/**
+ * Shared client for the numbers server (the Fuseki SPARQL endpoint), using a
+ * pooled, keep-alive connection manager with connect and read timeouts and a
+ * single reusable JSON reader.  Configured by SyncServlet from its
+ * <code>sparqlUrl</code>, <code>sparqlConnectTimeout</code>,
+ * <code>sparqlReadTimeout</code> and <code>sparqlMaxConnections</code>
+ * init-params.
+ *
+ * @author hcayless
+ */
+public class SparqlClient {
+
+  static final String DEFAULT_ENDPOINT = "http://localhost:8090/pi/query";
+  static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+  static final int DEFAULT_READ_TIMEOUT = 30000;
+  static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+  private static final ObjectReader jsonReader = new ObjectMapper().reader(JsonNode.class);
+  private static volatile String endpoint = DEFAULT_ENDPOINT;
+  private static volatile PoolingClientConnectionManager manager;
+  private static volatile DefaultHttpClient http;
+
+  /**
+   * (Re)creates the shared connection pool.
+   */
+  public static synchronized void configure(String url, int connectTimeout, int readTimeout, int maxConnections) {
+    PoolingClientConnectionManager old = manager;
+    PoolingClientConnectionManager m = new PoolingClientConnectionManager();
+    m.setMaxTotal(maxConnections);
+    m.setDefaultMaxPerRoute(maxConnections);
+    DefaultHttpClient client = new DefaultHttpClient(m);
+    HttpParams params = client.getParams();
+    HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+    HttpConnectionParams.setSoTimeout(params, readTimeout);
+    HttpConnectionParams.setStaleCheckingEnabled(params, true);
+    if (url != null) {
+      endpoint = url;
+    }
+    manager = m;
+    http = client;
+    if (old != null) {
+      old.shutdown();
+    }
+  }
+
+  public static synchronized void shutdown() {
+    if (manager != null) {
+      manager.shutdown();
+    }
+    manager = null;
+    http = null;
+  }
+
+  /**
+   * Runs a SELECT query and returns the parsed JSON result document.
+   */
+  public static JsonNode select(String query) throws IOException {
+    HttpGet get = new HttpGet(endpoint + "?query=" + URLEncoder.encode(query, "UTF-8") + "&output=json");
+    get.addHeader("Accept", "application/sparql-results+json");
+    HttpResponse response = getClient().execute(get);
+    HttpEntity entity = response.getEntity();
+    try {
+      if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null) {
+        throw new IOException("SPARQL query failed with " + response.getStatusLine() + ": " + query);
+      }
+      InputStream in = entity.getContent();
+      return jsonReader.readValue(in);
+    } finally {
+      // Fully consuming the entity hands the connection back to the pool.
+      EntityUtils.consume(entity);
+    }
+  }
+
+  /**
+   * Runs a query and returns the result bindings of a SELECT.
+   */
+  public static JsonNode bindings(String query) throws IOException {
+    return select(query).path("results").path("bindings");
+  }
+
+  private static DefaultHttpClient getClient() {
+    DefaultHttpClient client = http;
+    if (client == null) {
+      synchronized (SparqlClient.class) {
+        if (http == null) {
+          configure(endpoint, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAX_CONNECTIONS);
+        }
+        client = http;
+      }
+    }
+    return client;
+  }
+
+}
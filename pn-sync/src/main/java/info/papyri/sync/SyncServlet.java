@@ -50,7 +50,12 @@ public class SyncServlet extends HttpServlet {
         BasicConfigurator.configure();
       }
     }
+    SparqlClient.configure(config.getInitParameter("sparqlUrl"),
+            getIntParameter(config, "sparqlConnectTimeout", SparqlClient.DEFAULT_CONNECT_TIMEOUT),
+            getIntParameter(config, "sparqlReadTimeout", SparqlClient.DEFAULT_READ_TIMEOUT),
+            getIntParameter(config, "sparqlMaxConnections", SparqlClient.DEFAULT_MAX_CONNECTIONS));
     git = GitWrapper.init(config.getInitParameter("gitDir"), config.getInitParameter("dbUser"), config.getInitParameter("dbPass"));
+    IdIndexJournal.init(config.getInitParameter("idIndexJournal"));
     publisher = new Publisher(config.getInitParameter("gitDir"));
     // Run at 5 minutes past the hour, and every hour thereafter.
     Calendar cal = Calendar.getInstance();
@@ -64,6 +69,25 @@ public class SyncServlet extends HttpServlet {
     logger.debug("Syncing scheduled.");
   }
 
+  @Override
+  public void destroy() {
+    SparqlClient.shutdown();
+    super.destroy();
+  }
+
+  private static int getIntParameter(ServletConfig config, String name, int defaultValue) {
+    String value = config.getInitParameter(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      logger.warn("Ignoring non-numeric value '" + value + "' for " + name);
+      return defaultValue;
+    }
+  }
+
   /** 
    * Processes requests for both HTTP <code>GET</code> and <code>POST</code> methods.
    * @param request servlet request
@@ -445,6 +445,9 @@
           </field>
         </xsl:if>
         <xsl:if test="$alterity = 'self'">
+          <field name="sort_key">
+            <xsl:value-of select="pi:get-sort-key(pi:get-display-id($hgv_series, $hgv_volume, $hgv_item))"/>
+          </field>
           <field name="series">
             <xsl:value-of select="lower-case($hgv_series)"/>
           </field>
@@ -524,6 +527,9 @@
           <xsl:value-of select="string-join(($ddbdp_full_identifier, $ddbdp_series, $ddbdp_volume, 'ddbdp'), ';')"/>
         </field>
         <xsl:if test="$alterity = 'self'">
+          <field name="sort_key">
+            <xsl:value-of select="pi:get-sort-key(pi:get-display-id($ddbdp_series, $ddbdp_volume, $ddbdp_full_identifier))"/>
+          </field>
           <field name="series">
             <xsl:value-of select="$ddbdp_series"/>
           </field>
@@ -619,6 +625,23 @@
           <xsl:value-of select="string-join(($apis-inventory, $apis_series, '0', 'apis'), ';')"/>
         </field>
         <xsl:if test="$alterity = 'self'">
+          <!-- shown by its publication, if cited, else its inventory number -->
+          <xsl:variable name="apis-display-id">
+            <xsl:choose>
+              <xsl:when test="$docs[1]//t:TEI/t:text/t:body/t:div[@type='bibliography' and @subtype = 'citations']/t:listBibl/t:bibl[@type='ddbdp']">
+                <xsl:value-of select="replace(replace(($docs[1]//t:TEI/t:text/t:body/t:div[@type='bibliography' and @subtype = 'citations']/t:listBibl/t:bibl[@type='ddbdp'])[1], ':', ' '), ' 0 ', ' ')"/>
+              </xsl:when>
+              <xsl:when test="string-length($apis-inventory[1]) > 0">
+                <xsl:value-of select="replace($apis-inventory[1], ' 0 ', ' ')"/>
+              </xsl:when>
+              <xsl:otherwise>
+                <xsl:value-of select="pi:get-display-id($apis_series, '0', $apis_item)"/>
+              </xsl:otherwise>
+            </xsl:choose>
+          </xsl:variable>
+          <field name="sort_key">
+            <xsl:value-of select="pi:get-sort-key($apis-display-id)"/>
+          </field>
           <field name="series">
             <xsl:value-of select="$apis_series"/>
           </field>
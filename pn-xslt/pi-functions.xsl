@@ -410,4 +410,39 @@
     </xsl:choose>
   </xsl:function>
 
+  <!-- Given series, volume and item, the identifier shown for a document in search results, 
+       like "p.oxy 1 1" (a volume of 0 is left out) -->
+  <xsl:function name="pi:get-display-id" as="xs:string">
+    <xsl:param name="series"/>
+    <xsl:param name="volume"/>
+    <xsl:param name="item"/>
+    <xsl:variable name="parts" select="for $part in ($series, $volume, $item) return replace(replace($part, '_', ' '), '^\s+|\s+$', '')"/>
+    <xsl:sequence select="replace(string-join($parts, ' '), ' 0 ', ' ')"/>
+  </xsl:function>
+  
+  <!-- Given an identifier, a key that sorts it by plain string comparison in the natural order 
+       used by info.papyri.dispatch.browse.IdComparator: numeric runs by value and before alphabetic 
+       runs, alphabetic runs case-insensitively and without punctuation, and otherwise shorter identifiers 
+       first. Each numeric run is '1', its number of digits and the digits; each alphabetic run is '2', 
+       its folded characters (spaces as '!', which punctuation frees up) and a closing space; the key ends 
+       with a space and the length of the identifier. -->
+  <xsl:function name="pi:get-sort-key" as="xs:string">
+    <xsl:param name="id" as="xs:string"/>
+    <xsl:variable name="runs" as="xs:string*">
+      <xsl:analyze-string select="$id" regex="[0-9]+">
+        <xsl:matching-substring>
+          <xsl:variable name="digits" select="replace(., '^0+(.)', '$1')"/>
+          <xsl:sequence select="concat('1', format-number(string-length($digits), '00'), $digits)"/>
+        </xsl:matching-substring>
+        <xsl:non-matching-substring>
+          <xsl:variable name="letters" select="replace(replace(., '[!-/:-@\[-`{-~]', ''), ' ', '!')"/>
+          <xsl:variable name="folded" select="for $c in (for $cp in string-to-codepoints($letters) return codepoints-to-string($cp)) 
+            return (if (string-length(lower-case(upper-case($c))) = 1) then lower-case(upper-case($c)) else $c)"/>
+          <xsl:sequence select="concat('2', string-join($folded, ''), ' ')"/>
+        </xsl:non-matching-substring>
+      </xsl:analyze-string>
+    </xsl:variable>
+    <xsl:sequence select="concat(string-join($runs, ''), ' ', format-number(string-length($id), '0000'))"/>
+  </xsl:function>
+
 </xsl:stylesheet>